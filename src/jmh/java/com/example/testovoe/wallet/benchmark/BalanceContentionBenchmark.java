@@ -0,0 +1,85 @@
+package com.example.testovoe.wallet.benchmark;
+
+import com.example.testovoe.wallet.engine.ShardedEngine;
+import com.example.testovoe.wallet.ledger.BalanceChange;
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Изменение баланса в памяти (то, что делает updateBalanceInMemory) при
+ * разном числе кошельков и потоков: 1 кошелёк - максимальная конкуренция.
+ *
+ * inline - CAS в вызывающем потоке (wallet.engine.shards = 0),
+ * sharded - команда в поток шарда кошелька, как в рабочей конфигурации
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BalanceContentionBenchmark {
+
+    @Param({"1", "16", "1024"})
+    private int wallets;
+
+    @Param({"inline", "sharded"})
+    private String mode;
+
+    private BalanceStore store;
+    private ShardedEngine engine;
+    private UUID[] walletIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = new BalanceStore(wallets * 2, 16, 0);
+        walletIds = new UUID[wallets];
+        for (int i = 0; i < wallets; i++) {
+            walletIds[i] = UUID.randomUUID();
+            store.putIfAbsent(walletIds[i], 1_000_000_000L, 0);
+        }
+        int shards = "sharded".equals(mode) ? Runtime.getRuntime().availableProcessors() : 0;
+        engine = new ShardedEngine(shards, 4096);
+        engine.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index = ThreadLocalRandom.current().nextInt(1 << 20);
+        long step;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public BalanceChange threads1(Cursor cursor) {
+        return apply(cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public BalanceChange threads4(Cursor cursor) {
+        return apply(cursor);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public BalanceChange threadsMax(Cursor cursor) {
+        return apply(cursor);
+    }
+
+    private BalanceChange apply(Cursor cursor) {
+        UUID walletId = walletIds[(cursor.index++ & Integer.MAX_VALUE) % wallets];
+        // Пополнение и списание чередуются, баланс не уходит в ноль
+        long delta = (cursor.step++ & 1) == 0 ? 100 : -100;
+        return engine.execute(walletId, () -> store.apply(walletId, delta));
+    }
+}
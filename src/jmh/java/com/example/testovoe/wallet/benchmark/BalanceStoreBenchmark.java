@@ -0,0 +1,65 @@
+package com.example.testovoe.wallet.benchmark;
+
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поиск и вставка в кэш балансов. Кэш заполнен до maxSize записанными
+ * балансами, поэтому каждая вставка вытесняет запись (CLOCK)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BalanceStoreBenchmark {
+
+    private static final int MISSES = 4096;
+
+    @Param({"10000", "1000000"})
+    private int size;
+
+    private BalanceStore store;
+    private UUID[] walletIds;
+    private UUID[] missing;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = new BalanceStore(size, 16, size);
+        walletIds = new UUID[size];
+        for (int i = 0; i < size; i++) {
+            walletIds[i] = UUID.randomUUID();
+            store.putIfAbsent(walletIds[i], i, 0);
+        }
+        missing = new UUID[MISSES];
+        for (int i = 0; i < MISSES; i++) {
+            missing[i] = UUID.randomUUID();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index = ThreadLocalRandom.current().nextInt(1 << 20);
+    }
+
+    @Benchmark
+    public long lookupHit(Cursor cursor) {
+        return store.balance(walletIds[(cursor.index++ & Integer.MAX_VALUE) % size]);
+    }
+
+    @Benchmark
+    public long lookupMiss(Cursor cursor) {
+        return store.balance(missing[cursor.index++ & (MISSES - 1)]);
+    }
+
+    @Benchmark
+    public void insertWithEviction() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        store.putIfAbsent(new UUID(random.nextLong(), random.nextLong()), 0, 0);
+    }
+}
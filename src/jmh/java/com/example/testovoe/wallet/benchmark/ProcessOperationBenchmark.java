@@ -0,0 +1,190 @@
+package com.example.testovoe.wallet.benchmark;
+
+import com.example.testovoe.wallet.cluster.ClusterMembership;
+import com.example.testovoe.wallet.dto.WalletOperationRequest;
+import com.example.testovoe.wallet.dto.WalletOperationResponse;
+import com.example.testovoe.wallet.engine.ShardedEngine;
+import com.example.testovoe.wallet.journal.OperationJournal;
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import com.example.testovoe.wallet.ledger.IdempotencyIndex;
+import com.example.testovoe.wallet.model.OperationType;
+import com.example.testovoe.wallet.repository.BalanceUpsertResult;
+import com.example.testovoe.wallet.repository.StoredBalance;
+import com.example.testovoe.wallet.repository.WalletOperationRepository;
+import com.example.testovoe.wallet.repository.WalletRepository;
+import com.example.testovoe.wallet.service.Backpressure;
+import com.example.testovoe.wallet.service.FlushScheduler;
+import com.example.testovoe.wallet.service.JournalRecovery;
+import com.example.testovoe.wallet.service.WalletLoader;
+import com.example.testovoe.wallet.service.WalletMetrics;
+import com.example.testovoe.wallet.service.WalletService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.validation.Validation;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * processOperation целиком: шард, журнал, очереди и поток записи.
+ * Репозитории - заглушки без записи вызовов, поэтому измеряется только
+ * работа в памяти (и fsync журнала, если он включён)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessOperationBenchmark {
+
+    @Param({"1", "1024"})
+    private int wallets;
+
+    @Param({"false", "true"})
+    private boolean journalEnabled;
+
+    private Path journalDir;
+    private OperationJournal journal;
+    private ShardedEngine engine;
+    private WalletLoader walletLoader;
+    private WalletService walletService;
+    private WalletOperationRequest[] deposits;
+    private WalletOperationRequest[] withdrawals;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        WalletRepository walletRepository = mock(WalletRepository.class, withSettings().stubOnly());
+        when(walletRepository.upsertBalances(any(), any(), any()))
+                .thenAnswer(call -> new BalanceUpsertResult(0, call.<UUID[]>getArgument(0).length,
+                        Arrays.stream(call.<UUID[]>getArgument(0)).collect(Collectors.toMap(id -> id, id -> 1L))));
+        when(walletRepository.findOrCreateBalances(any()))
+                .thenAnswer(call -> Arrays.stream(call.<UUID[]>getArgument(0))
+                        .collect(Collectors.toMap(id -> id, id -> new StoredBalance(BigDecimal.ZERO, 0))));
+        WalletOperationRepository operationRepository = mock(WalletOperationRepository.class, withSettings().stubOnly());
+        when(operationRepository.copyOperations(any(), anyList()))
+                .thenAnswer(call -> (long) call.<List<?>>getArgument(1).size());
+
+        journalDir = Files.createTempDirectory("wallet-journal-jmh");
+        journal = new OperationJournal(journalEnabled, journalDir, 64 * 1024 * 1024);
+        journal.open();
+        engine = new ShardedEngine(Runtime.getRuntime().availableProcessors(), 4096);
+        engine.start();
+
+        Backpressure backpressure = new Backpressure();
+        ReflectionTestUtils.setField(backpressure, "highWatermark", 1_000_000L);
+        ReflectionTestUtils.setField(backpressure, "lowWatermark", 500_000L);
+        ReflectionTestUtils.setField(backpressure, "maxLagMs", 60_000L);
+        walletLoader = new WalletLoader(walletRepository);
+        ReflectionTestUtils.setField(walletLoader, "threads", 1);
+        ReflectionTestUtils.setField(walletLoader, "batchSize", 500);
+        ReflectionTestUtils.setField(walletLoader, "timeoutMs", 5000L);
+        walletLoader.start();
+
+        // Кластер выключен: узел владеет всеми кошельками
+        ClusterMembership cluster = new ClusterMembership(null, null, null);
+        cluster.start();
+
+        FlushScheduler flushScheduler = new FlushScheduler();
+        ReflectionTestUtils.setField(flushScheduler, "balancesMaxIntervalMs", 5000L);
+        ReflectionTestUtils.setField(flushScheduler, "operationsMaxIntervalMs", 1L);
+        ReflectionTestUtils.setField(flushScheduler, "targetLatencyMs", 200L);
+        ReflectionTestUtils.setField(flushScheduler, "decreaseFactor", 0.5);
+        ReflectionTestUtils.setField(flushScheduler, "minIntervalMs", 1L);
+        ReflectionTestUtils.setField(flushScheduler, "balancesInitialBatch", 1000);
+        ReflectionTestUtils.setField(flushScheduler, "balancesMinBatch", 100);
+        ReflectionTestUtils.setField(flushScheduler, "balancesMaxBatch", 20000);
+        ReflectionTestUtils.setField(flushScheduler, "balancesStep", 250);
+        ReflectionTestUtils.setField(flushScheduler, "operationsInitialBatch", 5000);
+        ReflectionTestUtils.setField(flushScheduler, "operationsMinBatch", 500);
+        ReflectionTestUtils.setField(flushScheduler, "operationsMaxBatch", 50000);
+        ReflectionTestUtils.setField(flushScheduler, "operationsStep", 1000);
+        flushScheduler.init();
+
+        walletService = new WalletService(walletRepository, operationRepository, journal,
+                mock(JournalRecovery.class, withSettings().stubOnly()), engine, backpressure,
+                new IdempotencyIndex(600_000, 100, 1), Validation.buildDefaultValidatorFactory().getValidator(),
+                new WalletMetrics(new SimpleMeterRegistry()), walletLoader, cluster, flushScheduler,
+                new BalanceStore(wallets * 2, 16, 0));
+        walletService.start();
+
+        deposits = new WalletOperationRequest[wallets];
+        withdrawals = new WalletOperationRequest[wallets];
+        for (int i = 0; i < wallets; i++) {
+            UUID walletId = UUID.randomUUID();
+            deposits[i] = request(walletId, OperationType.DEPOSIT);
+            withdrawals[i] = request(walletId, OperationType.WITHDRAW);
+            // Запас, чтобы списания не упирались в баланс
+            walletService.processOperation(WalletOperationRequest.builder()
+                    .walletId(walletId)
+                    .operationType(OperationType.DEPOSIT)
+                    .amount(new BigDecimal("1000000.00"))
+                    .build());
+        }
+    }
+
+    /**
+     * Чекпоинт сбрасывает очереди в заглушки и удаляет сегменты журнала
+     */
+    @TearDown(Level.Iteration)
+    public void checkpoint() {
+        walletService.checkpointJournal();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        walletService.shutdown();
+        walletLoader.stop();
+        engine.close();
+        journal.close();
+        FileSystemUtils.deleteRecursively(journalDir.toFile());
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index = ThreadLocalRandom.current().nextInt(1 << 20);
+        long step;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public WalletOperationResponse threads1(Cursor cursor) {
+        return process(cursor);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public WalletOperationResponse threadsMax(Cursor cursor) {
+        return process(cursor);
+    }
+
+    private WalletOperationResponse process(Cursor cursor) {
+        int wallet = (cursor.index++ & Integer.MAX_VALUE) % wallets;
+        WalletOperationRequest request = (cursor.step++ & 1) == 0 ? deposits[wallet] : withdrawals[wallet];
+        return walletService.processOperation(request);
+    }
+
+    private static WalletOperationRequest request(UUID walletId, OperationType operationType) {
+        return WalletOperationRequest.builder()
+                .walletId(walletId)
+                .operationType(operationType)
+                .amount(BigDecimal.ONE)
+                .build();
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.testovoe.wallet.repository;
+
+import com.example.testovoe.wallet.model.OperationStatus;
+import com.example.testovoe.wallet.model.OperationType;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Подготовка пачки операций к записи: бинарный поток COPY, который
+ * строит поток записи перед отправкой в Postgres
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OperationCopyBenchmark {
+
+    private static final UUID JOURNAL_ID = UUID.randomUUID();
+
+    @Param({"1000", "5000"})
+    private int batchSize;
+
+    private List<OperationRow> batch;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(new OperationRow(UUID.randomUUID(),
+                    i % 2 == 0 ? OperationType.DEPOSIT : OperationType.WITHDRAW,
+                    random.nextLong(1, 100_000_000L),
+                    OperationStatus.SUCCESS,
+                    i + 1,
+                    LocalDateTime.now(),
+                    i % 4 == 0 ? UUID.randomUUID() : null,
+                    false));
+        }
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return WalletOperationBulkRepositoryImpl.encode(JOURNAL_ID, batch);
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.testovoe.wallet.loadtest;
+
+import com.example.testovoe.wallet.WalletApplication;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * Нагрузочный прогон: поднимает приложение на случайном порту (Postgres из
+ * Testcontainers или внешний по jdbc-url), гоняет сценарии и пишет
+ * результаты в JSON и гистограммы HdrHistogram (.hgrm).
+ *
+ * mvn -Ploadtest test-compile exec:exec -Dloadtest.args="rate=2000 duration=60 label=baseline"
+ *
+ * Параметры name=value: scenarios, rate, warmup и duration (секунды),
+ * max-in-flight, output, label, jdbc-url, db-user, db-password.
+ * Параметры app.<свойство>=значение передаются приложению, например
+ * сравнение потоков запросов на одном профиле нагрузки (Java 21+; результатов
+ * этого сравнения пока нет, виртуальные потоки включаются только по ним):
+ *
+ * -Dloadtest.args="scenarios=cold-reads app.wallet.cache.max-size=10000 label=platform"
+ * -Dloadtest.args="scenarios=cold-reads app.wallet.cache.max-size=10000 app.spring.threads.virtual.enabled=true label=virtual"
+ *
+ * С baseline=<json прошлого прогона> завершается с кодом 1, если p99
+ * какого-либо сценария вырос больше чем на max-p99-regression (доля, 0.2).
+ */
+@Slf4j
+public class LoadTestRunner {
+
+    private static final String APP_PREFIX = "app.";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        List<String> names = List.of(options.getOrDefault("scenarios", String.join(",", Scenario.builtIn().keySet())).split(","));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+        Duration warmup = Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup", "10")));
+        Duration duration = Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration", "30")));
+        int maxInFlight = Integer.parseInt(options.getOrDefault("max-in-flight", "2000"));
+        Path output = Path.of(options.getOrDefault("output", "target/loadtest"));
+        String label = options.getOrDefault("label", Instant.now().toString().replace(':', '-'));
+
+        PostgreSQLContainer<?> postgres = null;
+        String jdbcUrl = options.get("jdbc-url");
+        String username = options.getOrDefault("db-user", "test");
+        String password = options.getOrDefault("db-password", "test");
+        if (jdbcUrl == null) {
+            postgres = new PostgreSQLContainer<>(DockerImageName.parse("postgres:17"))
+                    .withDatabaseName("wallet_db")
+                    .withUsername(username)
+                    .withPassword(password);
+            postgres.start();
+            jdbcUrl = postgres.getJdbcUrl();
+        }
+
+        Path journalDir = Files.createTempDirectory("wallet-journal-loadtest");
+        Map<String, String> appProperties = new LinkedHashMap<>();
+        options.forEach((name, value) -> {
+            if (name.startsWith(APP_PREFIX)) {
+                appProperties.put(name.substring(APP_PREFIX.length()), value);
+            }
+        });
+        List<String> appArgs = new ArrayList<>(List.of(
+                "--spring.datasource.url=" + jdbcUrl,
+                "--spring.datasource.username=" + username,
+                "--spring.datasource.password=" + password,
+                "--server.port=0",
+                "--wallet.journal.dir=" + journalDir,
+                // Журнал запросов контроллера искажает задержки
+                "--logging.level.com.example.testovoe=WARN",
+                "--logging.level.com.example.testovoe.wallet.loadtest=INFO"));
+        appProperties.forEach((name, value) -> appArgs.add("--" + name + "=" + value));
+
+        List<ScenarioResult> results = new ArrayList<>();
+        try (ServletWebServerApplicationContext context = (ServletWebServerApplicationContext)
+                new SpringApplicationBuilder(WalletApplication.class).run(appArgs.toArray(String[]::new))) {
+            URI baseUri = URI.create("http://localhost:" + context.getWebServer().getPort());
+            HttpClient client = HttpClient.newBuilder()
+                    .executor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()))
+                    .connectTimeout(Duration.ofSeconds(5))
+                    .build();
+            OpenLoadGenerator generator = new OpenLoadGenerator(client, baseUri, maxInFlight);
+            for (String name : names) {
+                Scenario scenario = Scenario.builtIn().get(name.trim());
+                if (scenario == null) {
+                    throw new IllegalArgumentException("Unknown scenario " + name + ", known: " + Scenario.builtIn().keySet());
+                }
+                ScenarioResult result = generator.run(scenario, rate, warmup, duration);
+                log.info("{}: {} requests, {} req/s, p50 {} us, p99 {} us, p99.9 {} us, statuses {}, failures {}",
+                        result.scenario(), result.requests(), Math.round(result.achievedRate()),
+                        result.latencyMicros().get("p50"), result.latencyMicros().get("p99"),
+                        result.latencyMicros().get("p99.9"), result.statuses(), result.failures());
+                results.add(result);
+            }
+        } finally {
+            if (postgres != null) {
+                postgres.stop();
+            }
+        }
+
+        Path report = write(output, label, rate, appProperties, results);
+        log.info("Load test results written to {}", report);
+
+        int exitCode = 0;
+        if (options.containsKey("baseline")) {
+            double maxRegression = Double.parseDouble(options.getOrDefault("max-p99-regression", "0.2"));
+            exitCode = compare(Path.of(options.get("baseline")), results, maxRegression) ? 0 : 1;
+        }
+        System.exit(exitCode);
+    }
+
+    private static Path write(Path output, String label, int rate, Map<String, String> appProperties,
+                              List<ScenarioResult> results) throws IOException {
+        Files.createDirectories(output);
+        for (ScenarioResult result : results) {
+            try (PrintStream out = new PrintStream(Files.newOutputStream(
+                    output.resolve(label + "-" + result.scenario() + ".hgrm")))) {
+                // Значения в микросекундах
+                result.histogram().outputPercentileDistribution(out, 1000.0);
+            }
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("label", label);
+        report.put("timestamp", Instant.now().toString());
+        report.put("rate", rate);
+        report.put("processors", Runtime.getRuntime().availableProcessors());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("app", appProperties);
+        report.put("scenarios", results);
+        Path file = output.resolve(label + ".json");
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file.toFile(), report);
+        return file;
+    }
+
+    /**
+     * @return false, если p99 хотя бы одного сценария хуже базового больше допустимого
+     */
+    private static boolean compare(Path baseline, List<ScenarioResult> results, double maxRegression) throws IOException {
+        Map<String, Double> baselineP99 = new HashMap<>();
+        for (JsonNode scenario : new ObjectMapper().readTree(baseline.toFile()).path("scenarios")) {
+            baselineP99.put(scenario.path("scenario").asText(), scenario.path("latencyMicros").path("p99").asDouble());
+        }
+        boolean passed = true;
+        for (ScenarioResult result : results) {
+            Double previous = baselineP99.get(result.scenario());
+            if (previous == null || previous <= 0) {
+                continue;
+            }
+            double change = result.p99Micros() / previous - 1;
+            if (change > maxRegression) {
+                log.error("{}: p99 regressed by {}% ({} us -> {} us)", result.scenario(),
+                        Math.round(change * 100), previous, result.p99Micros());
+                passed = false;
+            } else {
+                log.info("{}: p99 {} us, baseline {} us", result.scenario(), result.p99Micros(), previous);
+            }
+        }
+        return passed;
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.testovoe.wallet.loadtest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Генератор нагрузки открытой модели: запросы отправляются по расписанию
+ * с заданной частотой, не дожидаясь ответов на предыдущие.
+ *
+ * Задержка считается от запланированного времени отправки, а не от
+ * фактического: если сервис (или сам генератор) притормозил, ожидание
+ * в очереди попадает в гистограмму (поправка на coordinated omission).
+ */
+@Slf4j
+public class OpenLoadGenerator {
+
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final int FUNDING_BATCH = 1000;
+
+    private final HttpClient client;
+    private final URI baseUri;
+    private final int maxInFlight;
+
+    public OpenLoadGenerator(HttpClient client, URI baseUri, int maxInFlight) {
+        this.client = client;
+        this.baseUri = baseUri;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public ScenarioResult run(Scenario scenario, int rate, Duration warmup, Duration duration) {
+        UUID[] wallets = fund(scenario);
+        ZipfSampler sampler = new ZipfSampler(scenario.wallets(), scenario.zipfExponent());
+
+        Recorder recorder = new Recorder(MAX_LATENCY_NANOS, 3);
+        Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        LongAdder failures = new LongAdder();
+        AtomicLong inFlight = new AtomicLong();
+
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long measureFrom = start + warmup.toNanos();
+        long end = measureFrom + duration.toNanos();
+        long sent = 0;
+
+        log.info("Scenario {}: {} req/s for {} s after {} s warm-up",
+                scenario.name(), rate, duration.toSeconds(), warmup.toSeconds());
+        for (long intended = start; intended < end; intended = start + ++sent * intervalNanos) {
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            // Ограничение открытых запросов: задержка уже идёт от intended, поэтому ожидание не теряется
+            while (inFlight.get() >= maxInFlight) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+            }
+
+            boolean measured = intended >= measureFrom;
+            long scheduled = intended;
+            inFlight.incrementAndGet();
+            client.sendAsync(nextRequest(scenario, wallets[sampler.next()]), HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, error) -> {
+                        long latency = System.nanoTime() - scheduled;
+                        inFlight.decrementAndGet();
+                        if (!measured) {
+                            return;
+                        }
+                        recorder.recordValue(Math.min(latency, MAX_LATENCY_NANOS));
+                        if (error != null) {
+                            failures.increment();
+                        } else {
+                            statuses.computeIfAbsent(response.statusCode(), code -> new LongAdder()).increment();
+                        }
+                    });
+        }
+
+        long drainDeadline = System.nanoTime() + REQUEST_TIMEOUT.toNanos();
+        while (inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        Histogram histogram = recorder.getIntervalHistogram();
+
+        Map<Integer, Long> statusCounts = new TreeMap<>();
+        statuses.forEach((code, count) -> statusCounts.put(code, count.sum()));
+        return ScenarioResult.of(scenario, rate, duration, histogram, statusCounts, failures.sum() + inFlight.get());
+    }
+
+    /**
+     * Начальные балансы пакетами через /batch
+     */
+    private UUID[] fund(Scenario scenario) {
+        UUID[] wallets = new UUID[scenario.wallets()];
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < wallets.length; i++) {
+            wallets[i] = UUID.randomUUID();
+            body.append(operationJson(wallets[i], "DEPOSIT", scenario.initialBalance().toPlainString())).append('\n');
+            if ((i + 1) % FUNDING_BATCH == 0 || i == wallets.length - 1) {
+                HttpRequest request = HttpRequest.newBuilder(baseUri.resolve("/api/v1/wallets/batch"))
+                        .header("Content-Type", "application/x-ndjson")
+                        .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                        .build();
+                try {
+                    HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                    if (response.statusCode() != 200) {
+                        throw new IllegalStateException("Funding wallets failed with HTTP " + response.statusCode());
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException("Failed to fund wallets for " + scenario.name(), e);
+                }
+                body.setLength(0);
+            }
+        }
+        return wallets;
+    }
+
+    private HttpRequest nextRequest(Scenario scenario, UUID walletId) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < scenario.readRatio()) {
+            return HttpRequest.newBuilder(baseUri.resolve("/api/v1/wallets/" + walletId))
+                    .timeout(REQUEST_TIMEOUT)
+                    .GET()
+                    .build();
+        }
+        String operationType = random.nextDouble() < scenario.withdrawRatio() ? "WITHDRAW" : "DEPOSIT";
+        return HttpRequest.newBuilder(baseUri.resolve("/api/v1/wallets"))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(
+                        operationJson(walletId, operationType, scenario.amount().toPlainString())))
+                .build();
+    }
+
+    private static String operationJson(UUID walletId, String operationType, String amount) {
+        return "{\"walletId\":\"" + walletId + "\",\"operationType\":\"" + operationType + "\",\"amount\":" + amount + "}";
+    }
+}
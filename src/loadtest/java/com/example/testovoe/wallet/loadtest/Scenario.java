@@ -0,0 +1,38 @@
+package com.example.testovoe.wallet.loadtest;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Профиль нагрузки: какие кошельки выбираются и какие операции отправляются
+ *
+ * @param zipfExponent  0 - кошельки выбираются равномерно, больше - сильнее перекос в горячие
+ * @param readRatio     доля запросов баланса (GET), остальное - операции
+ * @param withdrawRatio доля списаний среди операций
+ */
+public record Scenario(String name,
+                       int wallets,
+                       double zipfExponent,
+                       double readRatio,
+                       double withdrawRatio,
+                       BigDecimal initialBalance,
+                       BigDecimal amount) {
+
+    public static Map<String, Scenario> builtIn() {
+        Map<String, Scenario> scenarios = new LinkedHashMap<>();
+        // Несколько горячих кошельков получают большую часть операций
+        scenarios.put("hot-wallet", new Scenario("hot-wallet", 10_000, 1.1, 0.0, 0.5,
+                new BigDecimal("1000.00"), new BigDecimal("1.00")));
+        scenarios.put("read-write-mix", new Scenario("read-write-mix", 10_000, 0.0, 0.8, 0.5,
+                new BigDecimal("1000.00"), new BigDecimal("1.00")));
+        // Только списания: кошельки быстро уходят в недостаток средств
+        scenarios.put("insufficient-funds", new Scenario("insufficient-funds", 1_000, 0.0, 0.0, 1.0,
+                new BigDecimal("10.00"), new BigDecimal("3.00")));
+        // Только чтения по большому числу кошельков: с малым wallet.cache.max-size
+        // почти каждый запрос промахивается мимо кэша и идёт в БД
+        scenarios.put("cold-reads", new Scenario("cold-reads", 200_000, 0.0, 1.0, 0.0,
+                new BigDecimal("1000.00"), new BigDecimal("1.00")));
+        return scenarios;
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.testovoe.wallet.loadtest;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.HdrHistogram.Histogram;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Итог сценария в машиночитаемом виде: задержки в микросекундах
+ *
+ * @param failures запросы без ответа (ошибка соединения или тайм-аут)
+ */
+public record ScenarioResult(String scenario,
+                             int targetRate,
+                             double achievedRate,
+                             long requests,
+                             long failures,
+                             Map<Integer, Long> statuses,
+                             Map<String, Double> latencyMicros,
+                             @JsonIgnore Histogram histogram) {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    static ScenarioResult of(Scenario scenario, int rate, Duration duration, Histogram histogram,
+                             Map<Integer, Long> statuses, long failures) {
+        Map<String, Double> latency = new LinkedHashMap<>();
+        for (double percentile : PERCENTILES) {
+            latency.put("p" + (percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile)),
+                    toMicros(histogram.getValueAtPercentile(percentile)));
+        }
+        latency.put("max", toMicros(histogram.getMaxValue()));
+        latency.put("mean", histogram.getMean() / TimeUnit.MICROSECONDS.toNanos(1));
+        long requests = histogram.getTotalCount();
+        return new ScenarioResult(scenario.name(), rate, requests / (double) duration.toSeconds(),
+                requests, failures, statuses, latency, histogram);
+    }
+
+    public double p99Micros() {
+        return latencyMicros.get("p99");
+    }
+
+    private static double toMicros(long nanos) {
+        return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+    }
+}
@@ -1,65 +1,148 @@
-package com.example.testovoe.wallet;
-
-import com.zaxxer.hikari.HikariConfig;
-import com.zaxxer.hikari.HikariDataSource;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Configuration;
-import org.springframework.scheduling.annotation.EnableAsync;
-import org.springframework.scheduling.annotation.EnableScheduling;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
-
-import javax.sql.DataSource;
-import java.util.concurrent.Executor;
-
-@Configuration
-@EnableAsync
-@EnableScheduling
-public class AppConfig {
-
-    @Value("${spring.datasource.url}")
-    private String dbUrl;
-
-    @Value("${spring.datasource.username}")
-    private String dbUsername;
-
-    @Value("${spring.datasource.password}")
-    private String dbPassword;
-
-    @Value("${spring.datasource.hikari.maximum-pool-size:20}")
-    private int maxPoolSize;
-
-    @Value("${spring.datasource.hikari.minimum-idle:5}")
-    private int minIdle;
-
-
-    @Bean
-    public DataSource dataSource() {
-        HikariConfig config = new HikariConfig();
-        config.setJdbcUrl(dbUrl);
-        config.setUsername(dbUsername);
-        config.setPassword(dbPassword);
-        config.setMaximumPoolSize(maxPoolSize);
-        config.setMinimumIdle(minIdle);
-        config.setConnectionTimeout(30000);
-        config.setIdleTimeout(600000);
-        config.setMaxLifetime(1800000);
-        config.setAutoCommit(false);
-        config.addDataSourceProperty("cachePrepStmts", "t");
-        config.addDataSourceProperty("prepStmtCacheSize", "50");
-        config.addDataSourceProperty("prepStmtCacheSqlLimit", "512");
-
-        return new HikariDataSource(config);
-    }
-
-    @Bean(name = "taskExecutor")
-    public Executor taskExecutor() {
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(10);
-        executor.setMaxPoolSize(50);
-        executor.setQueueCapacity(1000);
-        executor.setThreadNamePrefix("WalletAsync-");
-        executor.initialize();
-        return executor;
-    }
-}
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.engine.ShardedEngine;
+import com.example.testovoe.wallet.journal.OperationJournal;
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import com.example.testovoe.wallet.ledger.BalanceStoreMetrics;
+import com.example.testovoe.wallet.ledger.IdempotencyIndex;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import javax.sql.DataSource;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+
+@Configuration
+@EnableAsync
+@EnableScheduling
+public class AppConfig {
+
+    @Value("${spring.datasource.url}")
+    private String dbUrl;
+
+    @Value("${spring.datasource.username}")
+    private String dbUsername;
+
+    @Value("${spring.datasource.password}")
+    private String dbPassword;
+
+    @Value("${spring.datasource.hikari.maximum-pool-size:20}")
+    private int maxPoolSize;
+
+    @Value("${spring.datasource.hikari.minimum-idle:5}")
+    private int minIdle;
+
+    @Value("${wallet.cache.initial-capacity:65536}")
+    private int cacheInitialCapacity;
+
+    @Value("${wallet.cache.concurrency:64}")
+    private int cacheConcurrency;
+
+    @Value("${wallet.cache.max-size:1000000}")
+    private int cacheMaxSize;
+
+    @Value("${wallet.idempotency.window-ms:600000}")
+    private long idempotencyWindowMs;
+
+    @Value("${wallet.idempotency.claim-timeout-ms:100}")
+    private long idempotencyClaimTimeoutMs;
+
+    @Value("${wallet.idempotency.retry-after-seconds:1}")
+    private int idempotencyRetryAfterSeconds;
+
+    @Value("${wallet.engine.shards:0}")
+    private int engineShards;
+
+    @Value("${wallet.engine.ring-size:4096}")
+    private int engineRingSize;
+
+    @Value("${wallet.journal.enabled:true}")
+    private boolean journalEnabled;
+
+    @Value("${wallet.journal.dir:data/journal}")
+    private String journalDir;
+
+    @Value("${wallet.journal.segment-size-mb:64}")
+    private int journalSegmentSizeMb;
+
+
+    @Bean
+    public DataSource dataSource() {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(dbUrl);
+        config.setUsername(dbUsername);
+        config.setPassword(dbPassword);
+        config.setMaximumPoolSize(maxPoolSize);
+        config.setMinimumIdle(minIdle);
+        config.setConnectionTimeout(30000);
+        config.setIdleTimeout(600000);
+        config.setMaxLifetime(1800000);
+        config.setAutoCommit(false);
+        config.addDataSourceProperty("cachePrepStmts", "t");
+        config.addDataSourceProperty("prepStmtCacheSize", "50");
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", "512");
+
+        return new HikariDataSource(config);
+    }
+
+    /**
+     * С spring.threads.virtual.enabled (Java 21+) - виртуальный поток на задачу
+     * с тем же пределом параллельности, что и у пула. Режим выключен по
+     * умолчанию: быстрее ли он пула, не измерено
+     */
+    @Bean(name = "taskExecutor")
+    public Executor taskExecutor(Environment environment) {
+        if (Threading.VIRTUAL.isActive(environment)) {
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("WalletAsync-");
+            executor.setVirtualThreads(true);
+            executor.setConcurrencyLimit(50);
+            return executor;
+        }
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(10);
+        executor.setMaxPoolSize(50);
+        executor.setQueueCapacity(1000);
+        executor.setThreadNamePrefix("WalletAsync-");
+        executor.initialize();
+        return executor;
+    }
+
+    @Bean
+    public BalanceStore balanceStore() {
+        return new BalanceStore(cacheInitialCapacity, cacheConcurrency, cacheMaxSize);
+    }
+
+    @Bean
+    public BalanceStoreMetrics balanceStoreMetrics(BalanceStore balanceStore) {
+        return new BalanceStoreMetrics(balanceStore, Tags.empty());
+    }
+
+    @Bean
+    public IdempotencyIndex idempotencyIndex() {
+        return new IdempotencyIndex(idempotencyWindowMs, idempotencyClaimTimeoutMs, idempotencyRetryAfterSeconds);
+    }
+
+    /**
+     * shards: 0 - операции в потоках запросов, -1 - по числу процессоров
+     */
+    @Bean(initMethod = "start", destroyMethod = "close")
+    public ShardedEngine shardedEngine() {
+        int shards = engineShards < 0 ? Runtime.getRuntime().availableProcessors() : engineShards;
+        return new ShardedEngine(shards, engineRingSize);
+    }
+
+    @Bean(initMethod = "open", destroyMethod = "close")
+    public OperationJournal operationJournal() {
+        return new OperationJournal(journalEnabled, Path.of(journalDir), journalSegmentSizeMb * 1024 * 1024);
+    }
+}
@@ -1,13 +1,13 @@
-package com.example.testovoe.wallet;
-
-import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
-
-@SpringBootApplication
-public class WalletApplication {
-
-    public static void main(String[] args) {
-        SpringApplication.run(WalletApplication.class, args);
-    }
-
-}
+package com.example.testovoe.wallet;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+
+@SpringBootApplication
+public class WalletApplication {
+
+    public static void main(String[] args) {
+        SpringApplication.run(WalletApplication.class, args);
+    }
+
+}
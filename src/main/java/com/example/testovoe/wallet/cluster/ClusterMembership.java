@@ -0,0 +1,278 @@
+package com.example.testovoe.wallet.cluster;
+
+import com.example.testovoe.wallet.exception.ServiceOverloadedException;
+import com.example.testovoe.wallet.exception.WalletNotOwnedException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Состав кластера и владельцы кошельков.
+ *
+ * Кошелёк обслуживает один узел - владелец по {@link HashRing}; только его
+ * кэш отвечает за баланс. Состав задаётся списком wallet.cluster.members
+ * или, если список пуст, таблицей аренды wallet_node: узел продлевает свою
+ * строку каждые heartbeat-ms, узлы с истёкшей арендой выбывают. При смене
+ * состава публикуется {@link OwnershipChangedEvent}.
+ *
+ * Передача кошельков при аренде: узел записывает и отпускает ушедшие от него
+ * кошельки, затем отмечает состав в wallet_node.ring ({@link #handedOff}).
+ * Состав, отмеченный всеми живыми узлами, принят. Кошелёк обслуживается, если
+ * он принадлежит узлу и в текущем кольце, и в принятом, и во всех, отмеченных
+ * узлом после него: иначе прежний владелец ещё мог списывать с него (503). Узел, не
+ * продливший аренду за lease-ms, перестаёт обслуживать все кошельки - к этому
+ * времени остальные могли счесть его выбывшим.
+ *
+ * Выключено по умолчанию: единственный узел владеет всеми кошельками
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ClusterMembership implements MeterBinder {
+
+    @Value("${wallet.cluster.enabled:false}")
+    private boolean enabled;
+
+    @Value("${wallet.cluster.node-id:node-1}")
+    private String nodeId;
+
+    @Value("${wallet.cluster.url:http://localhost:8080}")
+    private String url;
+
+    // id=url через запятую; пусто - состав из таблицы wallet_node
+    @Value("${wallet.cluster.members:}")
+    private String members;
+
+    @Value("${wallet.cluster.virtual-nodes:128}")
+    private int virtualNodes;
+
+    @Value("${wallet.cluster.lease-ms:10000}")
+    private long leaseMs;
+
+    @Value("${wallet.cluster.heartbeat-ms:3000}")
+    private long heartbeatMs;
+
+    private final JdbcTemplate jdbcTemplate;
+    // Соединения пула без autocommit
+    private final TransactionTemplate transactionTemplate;
+    private final ApplicationEventPublisher events;
+
+    private volatile HashRing ring;
+    // Кольцо, которое отметили все его узлы; null - ещё ни одно
+    private volatile HashRing acceptedRing;
+    // Состав, для которого этот узел отпустил ушедшие кошельки
+    private volatile String handedOff;
+    // Кольца, отмеченные узлом после acceptedRing: любое из них могли принять
+    // остальные, и его владельцы - обслуживать свои кошельки
+    private final List<HashRing> handedOffRings = new CopyOnWriteArrayList<>();
+    // Начало последнего успешного продления аренды (System.nanoTime)
+    private volatile long renewedAt;
+
+    @PostConstruct
+    public void start() {
+        ClusterNode self = new ClusterNode(nodeId, url);
+        if (!enabled) {
+            ring = new HashRing(List.of(self), 1);
+            return;
+        }
+        if (isStatic()) {
+            List<ClusterNode> nodes = parseMembers(members);
+            if (nodes.stream().noneMatch(node -> node.id().equals(nodeId))) {
+                throw new IllegalStateException("wallet.cluster.members does not contain node " + nodeId);
+            }
+            ring = new HashRing(nodes, virtualNodes);
+        } else {
+            // До первого продления узел считает себя единственным, но не
+            // обслуживает ни одного кошелька, пока состав не отметят все
+            ring = new HashRing(List.of(self), virtualNodes);
+            heartbeat();
+            // Кэш ещё пуст: отпускать нечего. Второе продление публикует отметку,
+            // единственный узел сразу начинает обслуживать кошельки
+            handedOff = ring.key();
+            heartbeat();
+        }
+        log.info("Node {} joined cluster of {}", nodeId, ring.nodes());
+    }
+
+    /**
+     * Продление аренды и чтение состава из wallet_node
+     */
+    @Scheduled(fixedDelayString = "${wallet.cluster.heartbeat-ms:3000}",
+            initialDelayString = "${wallet.cluster.heartbeat-ms:3000}")
+    public void heartbeat() {
+        if (!enabled || isStatic()) {
+            return;
+        }
+        // Раньше начала транзакции: аренда в БД истекает не раньше renewedAt + lease-ms
+        long started = System.nanoTime();
+        List<Member> members;
+        try {
+            members = transactionTemplate.execute(status -> {
+                // Время аренды - по часам БД, часы узлов могут расходиться
+                jdbcTemplate.update("""
+                        INSERT INTO wallet_node (node_id, url, lease_until, ring)
+                        VALUES (?, ?, localtimestamp + make_interval(secs => ?), ?)
+                        ON CONFLICT (node_id) DO UPDATE
+                        SET url = EXCLUDED.url, lease_until = EXCLUDED.lease_until, ring = EXCLUDED.ring
+                        """, nodeId, url, leaseMs / 1000.0, handedOff);
+                return jdbcTemplate.query("SELECT node_id, url, ring FROM wallet_node WHERE lease_until > localtimestamp",
+                        (rs, rowNum) -> new Member(new ClusterNode(rs.getString(1), rs.getString(2)), rs.getString(3)));
+            });
+        } catch (RuntimeException e) {
+            // Без БД состав не узнать - остаёмся на прежнем кольце
+            log.warn("Failed to renew cluster lease of node {}", nodeId, e);
+            return;
+        }
+        renewedAt = started;
+        update(members);
+    }
+
+    private void update(List<Member> members) {
+        HashRing previous = ring;
+        HashRing current = new HashRing(members.stream().map(Member::node).toList(), virtualNodes);
+        if (current.nodes().equals(previous.nodes())) {
+            current = previous;
+        } else {
+            ring = current;
+            log.info("Cluster membership changed: {} -> {}", previous.nodes(), current.nodes());
+            // Обработчики записывают и отпускают ушедшие кошельки, затем вызывают handedOff
+            events.publishEvent(new OwnershipChangedEvent(previous, current));
+        }
+        // Отметки других узлов - из этого продления, своя - текущая
+        String key = current.key();
+        HashRing accepted = acceptedRing;
+        if (accepted != current && key.equals(handedOff)
+                && members.stream().allMatch(member -> isSelf(member.node()) || key.equals(member.ring()))) {
+            acceptedRing = current;
+            handedOffRings.clear();
+            log.info("All nodes handed off wallets for cluster {}", current.nodes());
+        }
+    }
+
+    /**
+     * Узел записал и отпустил все кошельки, ушедшие от него в кольце ring.
+     * Отметка попадёт в wallet_node при следующем продлении аренды
+     */
+    public void handedOff(HashRing ring) {
+        if (ring == this.ring) {
+            handedOffRings.add(ring);
+            handedOff = ring.key();
+        }
+    }
+
+    /**
+     * Текущий состав отметили все живые узлы
+     */
+    public boolean isSettled() {
+        return !enabled || isStatic() || acceptedRing == ring;
+    }
+
+    /**
+     * Остановка: строка аренды удаляется, кошельки узла сразу переходят
+     * к остальным. WalletService зависит от этого бина и к этому моменту
+     * уже записал балансы в БД
+     */
+    @PreDestroy
+    public void leave() {
+        if (!enabled || isStatic()) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(
+                    status -> jdbcTemplate.update("DELETE FROM wallet_node WHERE node_id = ?", nodeId));
+        } catch (RuntimeException e) {
+            log.warn("Failed to release cluster lease of node {}", nodeId, e);
+        }
+    }
+
+    public boolean isOwner(UUID walletId) {
+        return !enabled || isSelf(ring.owner(walletId));
+    }
+
+    public boolean isSelf(ClusterNode node) {
+        return node.id().equals(nodeId);
+    }
+
+    public ClusterNode owner(UUID walletId) {
+        return ring.owner(walletId);
+    }
+
+    /**
+     * @throws WalletNotOwnedException    кошелёк обслуживает другой узел
+     * @throws ServiceOverloadedException кошелёк ещё не передан этому узлу
+     *                                    или аренда узла могла истечь
+     */
+    public void checkOwner(UUID walletId) {
+        if (!enabled) {
+            return;
+        }
+        ClusterNode owner = ring.owner(walletId);
+        if (!isSelf(owner)) {
+            throw new WalletNotOwnedException(walletId, owner);
+        }
+        if (isStatic()) {
+            return;
+        }
+        int retryAfterSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(heartbeatMs));
+        if (System.nanoTime() - renewedAt > TimeUnit.MILLISECONDS.toNanos(leaseMs)) {
+            throw new ServiceOverloadedException(retryAfterSeconds, "Cluster lease of node " + nodeId + " is not renewed");
+        }
+        HashRing accepted = acceptedRing;
+        boolean handedOver = accepted != null && isSelf(accepted.owner(walletId));
+        for (HashRing handedOffRing : handedOffRings) {
+            handedOver &= isSelf(handedOffRing.owner(walletId));
+        }
+        if (!handedOver) {
+            throw new ServiceOverloadedException(retryAfterSeconds,
+                    "Wallet " + walletId + " is being handed off to node " + nodeId);
+        }
+    }
+
+    private boolean isStatic() {
+        return !members.isBlank();
+    }
+
+    /**
+     * Живой узел из wallet_node и состав, для которого он отпустил кошельки
+     */
+    private record Member(ClusterNode node, String ring) {
+    }
+
+    private static List<ClusterNode> parseMembers(String members) {
+        List<ClusterNode> nodes = new ArrayList<>();
+        for (String member : members.split(",")) {
+            String[] parts = member.trim().split("=", 2);
+            if (parts.length != 2 || parts[0].isBlank() || parts[1].isBlank()) {
+                throw new IllegalArgumentException("Cluster member must be id=url, got " + member);
+            }
+            nodes.add(new ClusterNode(parts[0].trim(), parts[1].trim()));
+        }
+        return nodes;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("wallet.cluster.members", this, membership -> membership.ring.nodes().size())
+                .description("Nodes in the hash ring as seen by this node")
+                .register(registry);
+        Gauge.builder("wallet.cluster.settled", this, membership -> membership.isSettled() ? 1 : 0)
+                .description("1 when every live node has handed off wallets for the current ring")
+                .register(registry);
+    }
+}
@@ -0,0 +1,8 @@
+package com.example.testovoe.wallet.cluster;
+
+/**
+ * Узел кластера: идентификатор и адрес, на который перенаправляются запросы
+ * к его кошелькам
+ */
+public record ClusterNode(String id, String url) {
+}
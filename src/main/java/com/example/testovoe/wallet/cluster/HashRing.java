@@ -0,0 +1,79 @@
+package com.example.testovoe.wallet.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Консистентное хеширование кошельков по узлам: у каждого узла virtualNodes
+ * точек на кольце, кошелёк принадлежит первой точке не меньше его хеша.
+ * При добавлении или уходе узла переезжают только кошельки его точек -
+ * примерно 1/N всех.
+ *
+ * Точки зависят только от идентификаторов узлов, поэтому все узлы с одним
+ * составом строят одно кольцо. Хеш кошелька не совпадает с хешем сегментов
+ * BalanceStore: кошельки узла распределены по всем сегментам его кэша
+ */
+public final class HashRing {
+
+    private final List<ClusterNode> nodes;
+    private final long[] points;
+    private final ClusterNode[] owners;
+
+    public HashRing(List<ClusterNode> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Hash ring needs at least one node");
+        }
+        this.nodes = nodes.stream().sorted(Comparator.comparing(ClusterNode::id)).toList();
+        int size = this.nodes.size() * virtualNodes;
+        long[][] ring = new long[size][2];
+        int next = 0;
+        for (int node = 0; node < this.nodes.size(); node++) {
+            for (int i = 0; i < virtualNodes; i++) {
+                UUID point = UUID.nameUUIDFromBytes(
+                        (this.nodes.get(node).id() + "#" + i).getBytes(StandardCharsets.UTF_8));
+                ring[next][0] = hash(point);
+                ring[next++][1] = node;
+            }
+        }
+        Arrays.sort(ring, Comparator.comparingLong(point -> point[0]));
+        points = new long[size];
+        owners = new ClusterNode[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = ring[i][0];
+            owners[i] = this.nodes.get((int) ring[i][1]);
+        }
+    }
+
+    public ClusterNode owner(UUID walletId) {
+        int index = Arrays.binarySearch(points, hash(walletId));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * Узлы по возрастанию идентификатора
+     */
+    public List<ClusterNode> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Состав строкой (id узлов через запятую): одинаковый у всех узлов с этим кольцом
+     */
+    public String key() {
+        return nodes.stream().map(ClusterNode::id).collect(Collectors.joining(","));
+    }
+
+    private static long hash(UUID walletId) {
+        long h = walletId.getLeastSignificantBits() ^ Long.rotateLeft(walletId.getMostSignificantBits(), 29);
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
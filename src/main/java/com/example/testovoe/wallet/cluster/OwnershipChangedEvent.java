@@ -0,0 +1,7 @@
+package com.example.testovoe.wallet.cluster;
+
+/**
+ * Состав кластера изменился: часть кошельков сменила владельца
+ */
+public record OwnershipChangedEvent(HashRing previous, HashRing current) {
+}
@@ -0,0 +1,93 @@
+package com.example.testovoe.wallet.controller;
+
+import com.example.testovoe.wallet.model.OperationType;
+import com.example.testovoe.wallet.service.OperationExporter;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Выгрузка операций для сверок: NDJSON или CSV потоком, gzip по Accept-Encoding
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/v1/operations")
+@RequiredArgsConstructor
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class OperationExportController {
+
+    public static final String CSV = "text/csv";
+
+    private final OperationExporter exporter;
+
+    @GetMapping("/export")
+    public void exportOperations(
+            @RequestParam(defaultValue = "NDJSON") OperationExporter.Format format,
+            @RequestParam(required = false) UUID walletId,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(required = false) OperationType type,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            HttpServletResponse response) throws IOException {
+
+        boolean gzip = acceptsGzip(acceptEncoding);
+        log.info("Exporting operations as {}: wallet={}, from={}, to={}, type={}, gzip={}",
+                format, walletId, from, to, type, gzip);
+
+        exporter.export(format, new OperationExporter.Filter(walletId, from, to, type), () -> {
+            response.setContentType(format == OperationExporter.Format.CSV ? CSV : MediaType.APPLICATION_NDJSON_VALUE);
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            if (!gzip) {
+                return response.getOutputStream();
+            }
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+            return new GZIPOutputStream(response.getOutputStream(), 64 * 1024);
+        });
+    }
+
+    /**
+     * gzip разрешён явно или через * с ненулевым q; gzip;q=0 его запрещает
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double gzip = -1;
+        double any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.length() > 2 && parameter.regionMatches(true, 0, "q=", 0, 2)) {
+                    try {
+                        q = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                gzip = Math.max(gzip, q);
+            } else if (name.equals("*")) {
+                any = Math.max(any, q);
+            }
+        }
+        return gzip >= 0 ? gzip > 0 : any > 0;
+    }
+}
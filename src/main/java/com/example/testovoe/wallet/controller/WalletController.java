@@ -1,48 +1,155 @@
-package com.example.testovoe.wallet.controller;
-
-import com.example.testovoe.wallet.dto.WalletBalanceResponse;
-import com.example.testovoe.wallet.dto.WalletOperationRequest;
-import com.example.testovoe.wallet.dto.WalletOperationResponse;
-import com.example.testovoe.wallet.service.WalletService;
-import jakarta.validation.Valid;
-import lombok.RequiredArgsConstructor;
-import lombok.extern.slf4j.Slf4j;
-import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.*;
-
-import java.util.UUID;
-
-@Slf4j
-@RestController
-@RequestMapping("/api/v1/wallets")
-@RequiredArgsConstructor
-public class WalletController {
-
-    private final WalletService walletService;
-
-    @PostMapping
-    public ResponseEntity<WalletOperationResponse> processOperation(
-            @Valid @RequestBody WalletOperationRequest request) {
-
-        log.info("Received operation request: {}", request);
-
-        WalletOperationResponse response = walletService.processOperation(request);
-        return ResponseEntity.ok(response);
-    }
-
-    @GetMapping("/{walletId}")
-    public ResponseEntity<WalletBalanceResponse> getWalletBalance(
-            @PathVariable UUID walletId) {
-
-        log.debug("Getting balance for wallet: {}", walletId);
-
-        WalletBalanceResponse response = walletService.getWalletBalance(walletId);
-        return ResponseEntity.ok(response);
-    }
-
-    @GetMapping("/{walletId}/exists")
-    public ResponseEntity<Boolean> walletExists(@PathVariable UUID walletId) {
-        boolean exists = walletService.walletExists(walletId);
-        return ResponseEntity.ok(exists);
-    }
-}
+package com.example.testovoe.wallet.controller;
+
+import com.example.testovoe.wallet.dto.BatchOperationResponse;
+import com.example.testovoe.wallet.dto.OperationHistoryResponse;
+import com.example.testovoe.wallet.dto.TransferRequest;
+import com.example.testovoe.wallet.dto.WalletBalanceResponse;
+import com.example.testovoe.wallet.dto.WalletOperationRequest;
+import com.example.testovoe.wallet.dto.WalletOperationResponse;
+import com.example.testovoe.wallet.service.OperationHistoryService;
+import com.example.testovoe.wallet.service.WalletService;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.validation.Valid;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+@Slf4j
+@RestController
+@RequestMapping("/api/v1/wallets")
+@RequiredArgsConstructor
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class WalletController {
+
+    private final WalletService walletService;
+    private final OperationHistoryService historyService;
+    private final ObjectMapper objectMapper;
+
+    @Value("${wallet.batch.max-size:10000}")
+    private int batchMaxSize;
+
+    @PostMapping
+    public ResponseEntity<WalletOperationResponse> processOperation(
+            @Valid @RequestBody WalletOperationRequest request,
+            @RequestHeader(value = "Idempotency-Key", required = false) UUID idempotencyKey) {
+
+        log.info("Received operation request: {}", request);
+
+        // Ключ из тела запроса важнее заголовка
+        if (request.getOperationId() == null) {
+            request.setOperationId(idempotencyKey);
+        }
+
+        WalletOperationResponse response = walletService.processOperation(request);
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Перевод между кошельками: оба изменения баланса применяются атомарно
+     */
+    @PostMapping("/transfer")
+    public ResponseEntity<WalletOperationResponse> processTransfer(
+            @Valid @RequestBody TransferRequest request,
+            @RequestHeader(value = "Idempotency-Key", required = false) UUID idempotencyKey) {
+
+        log.info("Received transfer request: {}", request);
+
+        if (request.getOperationId() == null) {
+            request.setOperationId(idempotencyKey);
+        }
+
+        WalletOperationResponse response = walletService.processTransfer(request);
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Пакет операций JSON-массивом
+     */
+    @PostMapping(value = "/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<BatchOperationResponse> processBatch(
+            @RequestBody List<WalletOperationRequest> requests,
+            @RequestParam(defaultValue = "false") boolean atomic) {
+
+        return ResponseEntity.ok(processBatchChecked(requests, atomic));
+    }
+
+    /**
+     * Пакет операций в NDJSON: по одной операции на строку
+     */
+    @PostMapping(value = "/batch", consumes = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<BatchOperationResponse> processBatchNdjson(
+            InputStream body,
+            @RequestParam(defaultValue = "false") boolean atomic) {
+
+        List<WalletOperationRequest> requests = new ArrayList<>();
+        try (MappingIterator<WalletOperationRequest> lines =
+                     objectMapper.readerFor(WalletOperationRequest.class).readValues(body)) {
+            while (lines.hasNextValue()) {
+                requests.add(lines.nextValue());
+                if (requests.size() > batchMaxSize) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Malformed NDJSON", e);
+        }
+        return ResponseEntity.ok(processBatchChecked(requests, atomic));
+    }
+
+    private BatchOperationResponse processBatchChecked(List<WalletOperationRequest> requests, boolean atomic) {
+        if (requests.size() > batchMaxSize) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "Batch is limited to " + batchMaxSize + " operations");
+        }
+        log.info("Received batch of {} operations, atomic={}", requests.size(), atomic);
+        return walletService.processBatch(requests, atomic);
+    }
+
+    @GetMapping("/{walletId}")
+    public ResponseEntity<WalletBalanceResponse> getWalletBalance(
+            @PathVariable UUID walletId) {
+
+        log.debug("Getting balance for wallet: {}", walletId);
+
+        WalletBalanceResponse response = walletService.getWalletBalance(walletId);
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * История операций от новых к старым; следующая страница - по nextCursor
+     */
+    @GetMapping("/{walletId}/operations")
+    public ResponseEntity<OperationHistoryResponse> getOperationHistory(
+            @PathVariable UUID walletId,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer limit) {
+        try {
+            return ResponseEntity.ok(historyService.history(walletId, from, to, cursor, limit));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+    }
+
+    @GetMapping("/{walletId}/exists")
+    public ResponseEntity<Boolean> walletExists(@PathVariable UUID walletId) {
+        boolean exists = walletService.walletExists(walletId);
+        return ResponseEntity.ok(exists);
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.testovoe.wallet.controller;
+
+import com.example.testovoe.wallet.exception.BatchSpansOwnersException;
+import com.example.testovoe.wallet.exception.FeatureDisabledException;
+import com.example.testovoe.wallet.exception.IdempotencyKeyConflictException;
+import com.example.testovoe.wallet.exception.ServiceOverloadedException;
+import com.example.testovoe.wallet.exception.WalletNotOwnedException;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ProblemDetail;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import java.net.URI;
+
+@RestControllerAdvice
+public class WalletExceptionHandler {
+
+    public static final String OWNER_HEADER = "X-Wallet-Owner";
+
+    /**
+     * Перегрузка записи в БД: 503 с Retry-After, клиент повторит запрос позже
+     */
+    @ExceptionHandler(ServiceOverloadedException.class)
+    public ResponseEntity<ProblemDetail> handleOverloaded(ServiceOverloadedException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(ProblemDetail.forStatusAndDetail(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage()));
+    }
+
+    @ExceptionHandler(IdempotencyKeyConflictException.class)
+    public ResponseEntity<ProblemDetail> handleIdempotencyConflict(IdempotencyKeyConflictException e) {
+        return ResponseEntity.status(HttpStatus.CONFLICT)
+                .body(ProblemDetail.forStatusAndDetail(HttpStatus.CONFLICT, e.getMessage()));
+    }
+
+    /**
+     * Кошелёк обслуживает другой узел кластера: 307 на тот же путь владельца,
+     * метод и тело запроса клиент повторит как есть
+     */
+    @ExceptionHandler(WalletNotOwnedException.class)
+    public ResponseEntity<ProblemDetail> handleNotOwned(WalletNotOwnedException e, HttpServletRequest request) {
+        String query = request.getQueryString();
+        URI location = URI.create(e.getOwner().url() + request.getRequestURI() + (query != null ? "?" + query : ""));
+        return ResponseEntity.status(HttpStatus.TEMPORARY_REDIRECT)
+                .location(location)
+                .header(OWNER_HEADER, e.getOwner().id())
+                .body(ProblemDetail.forStatusAndDetail(HttpStatus.TEMPORARY_REDIRECT, e.getMessage()));
+    }
+
+    /**
+     * Пакет не может списывать с кошельков разных узлов кластера: клиент
+     * разбивает его по владельцам
+     */
+    @ExceptionHandler(BatchSpansOwnersException.class)
+    public ResponseEntity<ProblemDetail> handleBatchSpansOwners(BatchSpansOwnersException e) {
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(ProblemDetail.forStatusAndDetail(HttpStatus.BAD_REQUEST, e.getMessage()));
+    }
+
+    /**
+     * Переводы и атомарные пакеты требуют шардов (wallet.engine.shards != 0)
+     */
+    @ExceptionHandler(FeatureDisabledException.class)
+    public ResponseEntity<ProblemDetail> handleFeatureDisabled(FeatureDisabledException e) {
+        return ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED)
+                .body(ProblemDetail.forStatusAndDetail(HttpStatus.NOT_IMPLEMENTED, e.getMessage()));
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.testovoe.wallet.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchOperationResponse {
+    private int succeeded;
+    private int failed;
+    // Результаты в порядке операций запроса
+    private List<WalletOperationResponse> results;
+}
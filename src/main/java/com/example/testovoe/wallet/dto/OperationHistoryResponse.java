@@ -0,0 +1,21 @@
+package com.example.testovoe.wallet.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.UUID;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class OperationHistoryResponse {
+    private UUID walletId;
+    // От новых к старым
+    private List<WalletOperationResponse> operations;
+    // Курсор следующей страницы, null - страница последняя
+    private String nextCursor;
+}
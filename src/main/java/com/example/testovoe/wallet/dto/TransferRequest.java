@@ -0,0 +1,46 @@
+package com.example.testovoe.wallet.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import jakarta.validation.constraints.AssertTrue;
+import jakarta.validation.constraints.DecimalMin;
+import jakarta.validation.constraints.Digits;
+import jakarta.validation.constraints.NotNull;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class TransferRequest {
+
+    @NotNull(message = "Source wallet ID is required")
+    @JsonProperty("fromWalletId")
+    private UUID fromWalletId;
+
+    @NotNull(message = "Target wallet ID is required")
+    @JsonProperty("toWalletId")
+    private UUID toWalletId;
+
+    @NotNull(message = "Amount is required")
+    @DecimalMin(value = "0.01", message = "Amount must be greater than 0")
+    @Digits(integer = 15, fraction = 4, message = "Amount must fit DECIMAL(19, 4)")
+    @JsonProperty("amount")
+    private BigDecimal amount;
+
+    // Ключ идемпотентности: повтор перевода с тем же ключом не меняет балансы
+    @JsonProperty("operationId")
+    private UUID operationId;
+
+    @JsonIgnore
+    @AssertTrue(message = "Source and target wallets must differ")
+    public boolean isDistinctWallets() {
+        return fromWalletId == null || !fromWalletId.equals(toWalletId);
+    }
+}
@@ -1,16 +1,16 @@
-package com.example.testovoe.wallet.dto;
-
-import lombok.AllArgsConstructor;
-import lombok.Data;
-import lombok.NoArgsConstructor;
-
-import java.math.BigDecimal;
-import java.util.UUID;
-
-@Data
-@NoArgsConstructor
-@AllArgsConstructor
-public class WalletBalanceResponse {
-    private UUID walletId;
-    private BigDecimal balance;
+package com.example.testovoe.wallet.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletBalanceResponse {
+    private UUID walletId;
+    private BigDecimal balance;
 }
\ No newline at end of file
@@ -1,33 +1,48 @@
-package com.example.testovoe.wallet.dto;
-
-import com.fasterxml.jackson.annotation.JsonProperty;
-import jakarta.validation.constraints.DecimalMin;
-import jakarta.validation.constraints.NotNull;
-import lombok.AllArgsConstructor;
-import lombok.Builder;
-import lombok.Data;
-import lombok.NoArgsConstructor;
-import com.example.testovoe.wallet.model.OperationType;
-
-import java.math.BigDecimal;
-import java.util.UUID;
-
-@Data
-@NoArgsConstructor
-@AllArgsConstructor
-@Builder
-public class WalletOperationRequest {
-
-    @NotNull(message = "Wallet ID is required")
-    @JsonProperty("walletId")
-    private UUID walletId;
-
-    @NotNull(message = "Operation type is required")
-    @JsonProperty("operationType")
-    private OperationType operationType;
-
-    @NotNull(message = "Amount is required")
-    @DecimalMin(value = "0.01", message = "Amount must be greater than 0")
-    @JsonProperty("amount")
-    private BigDecimal amount;
-}
+package com.example.testovoe.wallet.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import jakarta.validation.constraints.AssertTrue;
+import jakarta.validation.constraints.DecimalMin;
+import jakarta.validation.constraints.Digits;
+import jakarta.validation.constraints.NotNull;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import com.example.testovoe.wallet.model.OperationType;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class WalletOperationRequest {
+
+    @NotNull(message = "Wallet ID is required")
+    @JsonProperty("walletId")
+    private UUID walletId;
+
+    @NotNull(message = "Operation type is required")
+    @JsonProperty("operationType")
+    private OperationType operationType;
+
+    @NotNull(message = "Amount is required")
+    @DecimalMin(value = "0.01", message = "Amount must be greater than 0")
+    @Digits(integer = 15, fraction = 4, message = "Amount must fit DECIMAL(19, 4)")
+    @JsonProperty("amount")
+    private BigDecimal amount;
+
+    // Ключ идемпотентности: повтор запроса с тем же ключом не меняет баланс
+    @JsonProperty("operationId")
+    private UUID operationId;
+
+    // Ноги перевода создаются только переводом: /api/v1/wallets/transfer
+    @JsonIgnore
+    @AssertTrue(message = "Operation type must be DEPOSIT or WITHDRAW")
+    public boolean isSingleWalletOperation() {
+        return operationType == null || !operationType.isTransferLeg();
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.testovoe.wallet.engine;
+
+import com.example.testovoe.wallet.exception.FeatureDisabledException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Исполнитель операций по шардам: кошелёк закреплён за шардом по хэшу UUID,
+ * у каждого шарда один поток и свой кольцевой буфер команд.
+ *
+ * Все изменения баланса кошелька выполняет один поток в порядке поступления,
+ * поэтому горячий кошелёк не вызывает гонку CAS между потоками запросов,
+ * а операции кошелька попадают в журнал в том же порядке, что и в баланс.
+ * С shards = 0 команды выполняются в вызывающем потоке.
+ */
+@Slf4j
+public class ShardedEngine implements Closeable {
+
+    // Сколько раз поток шарда крутится на пустом буфере перед парковкой
+    private static final int IDLE_SPINS = 100;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Shard[] shards;
+
+    public ShardedEngine(int shardCount, int ringSize) {
+        this.shards = new Shard[Math.max(0, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i, ringSize);
+        }
+    }
+
+    public boolean isEnabled() {
+        return shards.length > 0;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public void start() {
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+        if (isEnabled()) {
+            log.info("Sharded engine started: {} shards, ring size {}", shards.length, shards[0].ring.capacity());
+        }
+    }
+
+    public int shardOf(UUID walletId) {
+        int hash = walletId.hashCode();
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Ставит команду в буфер шарда кошелька. Если буфер заполнен, ждём
+     * освобождения места
+     */
+    public <T> CompletableFuture<T> submit(UUID walletId, Supplier<T> task) {
+        Command<T> command = new Command<>(task);
+        if (!isEnabled()) {
+            command.run();
+            return command.future;
+        }
+        return submit(shards[shardOf(walletId)], command);
+    }
+
+    private <T> CompletableFuture<T> submit(Shard shard, Command<T> command) {
+        if (Thread.currentThread() == shard.thread) {
+            // Команда из потока того же шарда: выполняем сразу, иначе он ждал бы сам себя
+            command.run();
+            return command.future;
+        }
+        // Останавливается после веб-сервера, новых запросов к этому моменту нет
+        if (!shard.running) {
+            throw new IllegalStateException("Sharded engine is stopped");
+        }
+        while (!shard.ring.offer(command)) {
+            shard.wakeUp();
+            Thread.yield();
+        }
+        shard.wakeUp();
+        return command.future;
+    }
+
+    /**
+     * Выполняет команду в шарде кошелька и ждёт результат.
+     * Исключения команды пробрасываются как есть
+     */
+    public <T> T execute(UUID walletId, Supplier<T> task) {
+        return join(submit(walletId, task));
+    }
+
+    /**
+     * Выполняет команду, заняв шарды всех кошельков: пока она работает,
+     * другие команды этих шардов не выполняются. Шарды занимаются по
+     * возрастанию номера, поэтому две такие команды не могут ждать друг
+     * друга по кругу. Сама команда выполняется в последнем шарде, так что
+     * для кошельков одного шарда это обычная команда без блокировок.
+     *
+     * @throws FeatureDisabledException без шардов (нет потоков-владельцев)
+     */
+    public <T> T executeExclusive(Collection<UUID> walletIds, Supplier<T> task) {
+        if (!isEnabled()) {
+            throw new FeatureDisabledException("Exclusive execution requires wallet.engine.shards != 0");
+        }
+        for (Shard shard : shards) {
+            if (Thread.currentThread() == shard.thread) {
+                throw new IllegalStateException("Exclusive execution from a shard thread would deadlock");
+            }
+        }
+        int[] owned = walletIds.stream().mapToInt(this::shardOf).distinct().sorted().toArray();
+        if (owned.length == 0) {
+            return task.get();
+        }
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int k = 0; k < owned.length - 1; k++) {
+                CountDownLatch acquired = new CountDownLatch(1);
+                submit(shards[owned[k]], new Command<>(() -> {
+                    acquired.countDown();
+                    awaitUninterruptibly(release);
+                    return null;
+                }));
+                awaitUninterruptibly(acquired);
+            }
+            return join(submit(shards[owned[owned.length - 1]], new Command<>(task)));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Останавливает потоки шардов, дождавшись выполнения принятых команд
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.running = false;
+            LockSupport.unpark(shard.thread);
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static final class Command<T> implements Runnable {
+        final Supplier<T> task;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Command(Supplier<T> task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                future.complete(task.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static final class Shard implements Runnable {
+        final MpscRingBuffer<Command<?>> ring;
+        final Thread thread;
+        volatile boolean running = true;
+        volatile boolean parked;
+
+        Shard(int index, int ringSize) {
+            this.ring = new MpscRingBuffer<>(ringSize);
+            this.thread = new Thread(this, "wallet-shard-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void wakeUp() {
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (running || !ring.isEmpty()) {
+                Command<?> command = ring.poll();
+                if (command != null) {
+                    command.run();
+                    idle = 0;
+                } else if (++idle < IDLE_SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    // Флаг ставим до проверки буфера: писатель после offer увидит его и разбудит
+                    parked = true;
+                    if (running && ring.isEmpty()) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                    parked = false;
+                    idle = 0;
+                }
+            }
+        }
+    }
+}
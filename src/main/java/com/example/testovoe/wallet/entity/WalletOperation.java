@@ -1,48 +1,59 @@
-package com.example.testovoe.wallet.entity;
-
-import com.example.testovoe.wallet.model.OperationStatus;
-import com.example.testovoe.wallet.model.OperationType;
-import jakarta.persistence.*;
-import lombok.AllArgsConstructor;
-import lombok.Builder;
-import lombok.Data;
-import lombok.NoArgsConstructor;
-import org.hibernate.annotations.CreationTimestamp;
-
-import java.math.BigDecimal;
-import java.time.LocalDateTime;
-import java.util.UUID;
-
-@Entity
-@Table(name = "wallet_operation")
-@Data
-@Builder
-@NoArgsConstructor
-@AllArgsConstructor
-public class WalletOperation {
-
-    @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
-    private Long id;
-
-    @Column(name = "wallet_id", nullable = false)
-    private UUID walletId;
-
-    @Enumerated(EnumType.STRING)
-    @Column(name = "operation_type", nullable = false, length = 20)
-    private OperationType operationType;
-
-    @Column(nullable = false, precision = 19, scale = 4)
-    private BigDecimal amount;
-
-    @Enumerated(EnumType.STRING)
-    @Column(nullable = false, length = 20)
-    private OperationStatus status;
-
-    @Column(name = "error_message")
-    private String errorMessage;
-
-    @CreationTimestamp
-    @Column(name = "created_at", nullable = false, updatable = false)
-    private LocalDateTime createdAt;
-}
+package com.example.testovoe.wallet.entity;
+
+import com.example.testovoe.wallet.model.OperationStatus;
+import com.example.testovoe.wallet.model.OperationType;
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+@Entity
+@Table(name = "wallet_operation",
+        indexes = {
+                @Index(name = "idx_wallet_operation_journal_seq", columnList = "journal_seq"),
+                @Index(name = "idx_wallet_operation_operation_id", columnList = "operation_id"),
+                @Index(name = "idx_wallet_operation_wallet_created", columnList = "wallet_id, created_at DESC, id DESC")
+        })
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletOperation {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "wallet_id", nullable = false)
+    private UUID walletId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "operation_type", nullable = false, length = 20)
+    private OperationType operationType;
+
+    @Column(nullable = false, precision = 19, scale = 4)
+    private BigDecimal amount;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 20)
+    private OperationStatus status;
+
+    @Column(name = "error_message")
+    private String errorMessage;
+
+    @Column(name = "journal_seq")
+    private Long journalSeq;
+
+    @Column(name = "operation_id")
+    private UUID operationId;
+
+    @CreationTimestamp
+    @Column(name = "created_at", nullable = false, updatable = false)
+    private LocalDateTime createdAt;
+}
@@ -0,0 +1,15 @@
+package com.example.testovoe.wallet.exception;
+
+import lombok.Getter;
+
+import java.util.UUID;
+
+@Getter
+public class BalanceOverflowException extends RuntimeException {
+    private final UUID walletId;
+
+    public BalanceOverflowException(UUID walletId) {
+        super("Balance overflow in wallet " + walletId);
+        this.walletId = walletId;
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.testovoe.wallet.exception;
+
+import lombok.Getter;
+
+import java.util.UUID;
+
+/**
+ * Пакет списывает с кошельков, которые обслуживают разные узлы кластера
+ */
+@Getter
+public class BatchSpansOwnersException extends RuntimeException {
+    private final UUID walletId;
+    private final UUID otherWalletId;
+
+    public BatchSpansOwnersException(UUID walletId, UUID otherWalletId) {
+        super("Batch withdraws from wallets " + walletId + " and " + otherWalletId
+                + " of different nodes, split it by owner");
+        this.walletId = walletId;
+        this.otherWalletId = otherWalletId;
+    }
+}
@@ -0,0 +1,11 @@
+package com.example.testovoe.wallet.exception;
+
+/**
+ * Операция требует возможности, выключенной в конфигурации узла
+ */
+public class FeatureDisabledException extends RuntimeException {
+
+    public FeatureDisabledException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.testovoe.wallet.exception;
+
+import lombok.Getter;
+
+import java.util.UUID;
+
+@Getter
+public class IdempotencyKeyConflictException extends RuntimeException {
+    private final UUID operationId;
+
+    public IdempotencyKeyConflictException(UUID operationId) {
+        super("Operation " + operationId + " was already used for another wallet");
+        this.operationId = operationId;
+    }
+}
@@ -0,0 +1,12 @@
+package com.example.testovoe.wallet.exception;
+
+public class JournalException extends RuntimeException {
+
+    public JournalException(String message) {
+        super(message);
+    }
+
+    public JournalException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
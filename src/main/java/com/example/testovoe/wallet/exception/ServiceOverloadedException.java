@@ -0,0 +1,17 @@
+package com.example.testovoe.wallet.exception;
+
+import lombok.Getter;
+
+@Getter
+public class ServiceOverloadedException extends RuntimeException {
+    private final int retryAfterSeconds;
+
+    public ServiceOverloadedException(int retryAfterSeconds) {
+        this(retryAfterSeconds, "Service is overloaded: persistence is lagging behind");
+    }
+
+    public ServiceOverloadedException(int retryAfterSeconds, String reason) {
+        super(reason + ", retry in " + retryAfterSeconds + "s");
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
@@ -1,16 +1,16 @@
-package com.example.testovoe.wallet.exception;
-
-import lombok.Getter;
-
-import java.math.BigDecimal;
-import java.util.UUID;
-
-@Getter
-public class WalletNotFoundException extends RuntimeException {
-    private final UUID walletId;
-
-    public WalletNotFoundException(UUID walletId) {
-        super("Wallet not found: " + walletId);
-        this.walletId = walletId;
-    }
-}
+package com.example.testovoe.wallet.exception;
+
+import lombok.Getter;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+@Getter
+public class WalletNotFoundException extends RuntimeException {
+    private final UUID walletId;
+
+    public WalletNotFoundException(UUID walletId) {
+        super("Wallet not found: " + walletId);
+        this.walletId = walletId;
+    }
+}
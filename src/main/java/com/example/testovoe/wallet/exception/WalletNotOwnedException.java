@@ -0,0 +1,18 @@
+package com.example.testovoe.wallet.exception;
+
+import com.example.testovoe.wallet.cluster.ClusterNode;
+import lombok.Getter;
+
+import java.util.UUID;
+
+@Getter
+public class WalletNotOwnedException extends RuntimeException {
+    private final UUID walletId;
+    private final ClusterNode owner;
+
+    public WalletNotOwnedException(UUID walletId, ClusterNode owner) {
+        super("Wallet " + walletId + " is served by node " + owner.id());
+        this.walletId = walletId;
+        this.owner = owner;
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.testovoe.wallet.journal;
+
+import com.example.testovoe.wallet.model.OperationType;
+
+import java.util.UUID;
+
+/**
+ * Нога проводки для {@link OperationJournal#appendAll(java.util.List)}: суммы в минорных единицах
+ *
+ * @param version     версия баланса или {@link OperationJournal#RELATIVE}
+ * @param operationId ключ идемпотентности или null
+ */
+public record JournalEntry(UUID walletId,
+                           OperationType operationType,
+                           long amountUnits,
+                           long balanceUnits,
+                           long version,
+                           UUID operationId) {
+}
@@ -0,0 +1,29 @@
+package com.example.testovoe.wallet.journal;
+
+import com.example.testovoe.wallet.model.OperationType;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Запись журнала операций: сама операция и баланс кошелька после неё
+ *
+ * @param operationId ключ идемпотентности, null - клиент его не передал
+ */
+public record JournalRecord(long sequence,
+                            UUID walletId,
+                            OperationType operationType,
+                            BigDecimal amount,
+                            BigDecimal balance,
+                            long version,
+                            Instant timestamp,
+                            UUID operationId) {
+
+    /**
+     * Зачисление на кошелёк другого узла: balance не заполнен
+     */
+    public boolean relative() {
+        return version == OperationJournal.RELATIVE;
+    }
+}
@@ -0,0 +1,684 @@
+package com.example.testovoe.wallet.journal;
+
+import com.example.testovoe.wallet.exception.JournalException;
+import com.example.testovoe.wallet.ledger.FixedPoint;
+import com.example.testovoe.wallet.model.OperationType;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Журнал операций (write-ahead log) на memory-mapped сегментах.
+ *
+ * Операция дописывается в журнал до ответа клиенту, fsync выполняет отдельный
+ * поток групповым коммитом: один force() покрывает все записи, накопленные
+ * за время предыдущего. Сегменты удаляются через {@link #release(long)},
+ * когда их операции и балансы уже записаны в БД.
+ *
+ * Номера записей растут и между запусками, а журнал узнаётся по id из его
+ * каталога: пара (id, номер) однозначно определяет операцию в БД.
+ */
+@Slf4j
+public class OperationJournal implements Closeable {
+
+    public static final int RECORD_SIZE = 80;
+    // Версия записи о зачислении на кошелёк другого узла: баланса в ней нет,
+    // сумма прибавляется к строке wallet
+    public static final long RELATIVE = -1;
+    // Сколько ног проводки записано после этой записи (0 - запись последняя)
+    private static final int REMAINING_LEGS_OFFSET = 57;
+    private static final int CRC_OFFSET = 60;
+    private static final int OPERATION_ID_OFFSET = 64;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String ID_FILE = "journal.id";
+    private static final OperationType[] OPERATION_TYPES = OperationType.values();
+
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition written = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    // Ожидание передачи записей в очереди: handOff берёт handOffLock, только
+    // когда сегмент опустел и его кто-то ждёт
+    private final ReentrantLock handOffLock = new ReentrantLock();
+    private final Condition handedOff = handOffLock.newCondition();
+    private volatile int handOffWaiters;
+    // Неблокирующие ожидания fsync по возрастанию номера (под lock)
+    private final PriorityQueue<DurableWaiter> durableWaiters =
+            new PriorityQueue<>(Comparator.comparingLong(DurableWaiter::sequence));
+
+    // Живые сегменты по возрастанию номеров, последний - активный
+    private final ConcurrentLinkedDeque<Segment> segments = new ConcurrentLinkedDeque<>();
+
+    private UUID id;
+    private long lastSequence;
+    private long durableSequence;
+    private volatile boolean running;
+    private volatile Throwable failure;
+    private Thread flusher;
+
+    public OperationJournal(boolean enabled, Path directory, int segmentSizeBytes) {
+        this.enabled = enabled;
+        this.directory = directory;
+        this.segmentSize = Math.max(RECORD_SIZE, segmentSizeBytes / RECORD_SIZE * RECORD_SIZE);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Идентификатор журнала, null - журнал выключен
+     */
+    public UUID id() {
+        return id;
+    }
+
+    /**
+     * Открытие журнала: находим сегменты прошлого запуска и начинаем новый
+     */
+    public void open() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            id = readOrCreateId();
+            for (Path path : listSegmentFiles()) {
+                Segment segment = Segment.recovered(path, countValidRecords(path));
+                if (segment.records() == 0 && segment.baseSequence > lastSequence) {
+                    Files.deleteIfExists(path);
+                    // Журнал, сброшенный в БД перед остановкой, продолжает прежнюю нумерацию
+                    lastSequence = segment.baseSequence - 1;
+                    continue;
+                }
+                segments.addLast(segment);
+                lastSequence = Math.max(lastSequence, segment.lastSequence());
+            }
+            durableSequence = lastSequence;
+            segments.addLast(Segment.create(segmentPath(lastSequence + 1), lastSequence + 1, segmentSize));
+        } catch (IOException e) {
+            throw new JournalException("Failed to open operation journal in " + directory, e);
+        }
+
+        running = true;
+        flusher = new Thread(this::flushLoop, "wallet-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        log.info("Operation journal {} opened in {}, last sequence {}", id, directory, lastSequence);
+    }
+
+    /**
+     * id создаётся при первом открытии каталога; новый каталог - новый журнал,
+     * и его номера не совпадут с записанными в БД прежним
+     */
+    private UUID readOrCreateId() throws IOException {
+        Path path = directory.resolve(ID_FILE);
+        if (Files.exists(path)) {
+            return UUID.fromString(Files.readString(path).trim());
+        }
+        UUID created = UUID.randomUUID();
+        Path temp = directory.resolve(ID_FILE + ".tmp");
+        Files.writeString(temp, created.toString());
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return created;
+    }
+
+    /**
+     * Дописывает операцию в журнал (суммы в минорных единицах {@link FixedPoint}). Запись становится durable после
+     * {@link #awaitDurable(long)}, после передачи операции в очереди записи
+     * нужно вызвать {@link #handOff(long)}.
+     *
+     * @param operationId ключ идемпотентности или null
+     * @return номер записи в журнале или 0, если журнал выключен
+     */
+    public long append(UUID walletId, OperationType operationType,
+                       long amountUnits, long balanceUnits, long version, UUID operationId) {
+        if (!enabled) {
+            return 0;
+        }
+        long timestamp = System.currentTimeMillis();
+
+        lock.lock();
+        try {
+            checkAvailable();
+            Segment segment = segments.getLast();
+            if (segment.isFull()) {
+                segment = roll();
+            }
+            long sequence = ++lastSequence;
+            write(segment, sequence, timestamp, walletId, operationType,
+                    amountUnits, balanceUnits, version, operationId, 0);
+            written.signal();
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Дописывает ноги одной проводки подряд в один сегмент. Каждая запись
+     * хранит число следующих за ней ног, поэтому при восстановлении
+     * недописанная проводка отбрасывается целиком.
+     *
+     * @return номера записей по порядку ног (нули, если журнал выключен)
+     */
+    public long[] appendAll(List<JournalEntry> entries) {
+        long[] sequences = new long[entries.size()];
+        if (!enabled || entries.isEmpty()) {
+            return sequences;
+        }
+        int size = entries.size() * RECORD_SIZE;
+        long timestamp = System.currentTimeMillis();
+
+        lock.lock();
+        try {
+            checkAvailable();
+            Segment segment = segments.getLast();
+            if (size > segment.buffer.capacity()) {
+                throw new JournalException("Posting of " + entries.size() + " legs does not fit a journal segment");
+            }
+            if (segment.position + size > segment.buffer.capacity()) {
+                segment = roll();
+            }
+            for (int i = 0; i < sequences.length; i++) {
+                JournalEntry entry = entries.get(i);
+                sequences[i] = ++lastSequence;
+                write(segment, sequences[i], timestamp, entry.walletId(), entry.operationType(),
+                        entry.amountUnits(), entry.balanceUnits(), entry.version(), entry.operationId(),
+                        sequences.length - 1 - i);
+            }
+            written.signal();
+            return sequences;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Запись в конец активного сегмента (под lock)
+     */
+    private static void write(Segment segment, long sequence, long timestamp, UUID walletId,
+                              OperationType operationType, long amountUnits, long balanceUnits,
+                              long version, UUID operationId, int remainingLegs) {
+        int offset = segment.position;
+        ByteBuffer buffer = segment.buffer;
+        buffer.putLong(offset, sequence);
+        buffer.putLong(offset + 8, walletId.getMostSignificantBits());
+        buffer.putLong(offset + 16, walletId.getLeastSignificantBits());
+        buffer.putLong(offset + 24, amountUnits);
+        buffer.putLong(offset + 32, balanceUnits);
+        buffer.putLong(offset + 40, version);
+        buffer.putLong(offset + 48, timestamp);
+        buffer.put(offset + 56, (byte) operationType.ordinal());
+        buffer.putShort(offset + REMAINING_LEGS_OFFSET, (short) Math.min(remainingLegs, Short.MAX_VALUE));
+        // Нулевой UUID означает отсутствие ключа
+        buffer.putLong(offset + OPERATION_ID_OFFSET, operationId != null ? operationId.getMostSignificantBits() : 0);
+        buffer.putLong(offset + OPERATION_ID_OFFSET + 8, operationId != null ? operationId.getLeastSignificantBits() : 0);
+        buffer.putInt(offset + CRC_OFFSET, checksum(buffer, offset));
+        segment.position = offset + RECORD_SIZE;
+        segment.pending.incrementAndGet();
+    }
+
+    /**
+     * Операция из записи передана в очереди асинхронной записи в БД
+     */
+    public void handOff(long sequence) {
+        if (sequence <= 0) {
+            return;
+        }
+        Iterator<Segment> iterator = segments.descendingIterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (sequence >= segment.baseSequence) {
+                if (segment.pending.decrementAndGet() == 0 && handOffWaiters > 0) {
+                    signalHandedOff();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Ожидание fsync записи (групповой коммит)
+     */
+    public void awaitDurable(long sequence) {
+        if (sequence <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (durableSequence < sequence) {
+                if (failure != null) {
+                    throw new JournalException("Operation journal is unavailable", failure);
+                }
+                durable.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JournalException("Interrupted while waiting for journal fsync", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Неблокирующее ожидание fsync записи: future завершает поток fsync
+     * после группового коммита, продолжения не должны блокироваться
+     */
+    public CompletableFuture<Void> durableFuture(long sequence) {
+        if (sequence <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        lock.lock();
+        try {
+            if (durableSequence >= sequence) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (failure != null) {
+                return CompletableFuture.failedFuture(new JournalException("Operation journal is unavailable", failure));
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            durableWaiters.add(new DurableWaiter(sequence, future));
+            return future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long lastSequence() {
+        lock.lock();
+        try {
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Закрывает активный сегмент для чекпоинта
+     *
+     * @return номер последней записи в закрытых сегментах
+     */
+    public long rotate() {
+        if (!enabled) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            checkAvailable();
+            if (segments.getLast().records() > 0) {
+                roll();
+            }
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ожидание, пока все операции до sequence включительно будут переданы в очереди записи
+     */
+    public boolean awaitHandOff(long sequence, long timeoutMs) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        handOffLock.lock();
+        try {
+            // Счётчик виден handOff до проверки pending: опустевший после неё сегмент разбудит
+            handOffWaiters++;
+            for (Segment segment : segments) {
+                if (segment.baseSequence > sequence) {
+                    break;
+                }
+                while (segment.pending.get() > 0) {
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    remaining = handedOff.awaitNanos(remaining);
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            handOffWaiters--;
+            handOffLock.unlock();
+        }
+    }
+
+    private void signalHandedOff() {
+        handOffLock.lock();
+        try {
+            handedOff.signalAll();
+        } finally {
+            handOffLock.unlock();
+        }
+    }
+
+    /**
+     * Удаляет закрытые сегменты, все записи которых не старше sequence
+     */
+    public void release(long sequence) {
+        if (!enabled) {
+            return;
+        }
+        lock.lock();
+        try {
+            Segment segment;
+            while ((segment = segments.peekFirst()) != null
+                    && segment != segments.getLast()
+                    && segment.lastSequence() <= sequence) {
+                segments.pollFirst();
+                segment.close();
+                Files.deleteIfExists(segment.path);
+                log.debug("Released journal segment {}", segment.path.getFileName());
+            }
+        } catch (IOException e) {
+            log.warn("Failed to delete journal segment", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Чтение всех закрытых сегментов (восстановление после рестарта)
+     */
+    public void replay(Consumer<JournalRecord> consumer) {
+        if (!enabled) {
+            return;
+        }
+        List<Segment> snapshot = new ArrayList<>(segments);
+        for (Segment segment : snapshot) {
+            if (segment.records() == 0) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                for (int i = 0; i < segment.records(); i++) {
+                    consumer.accept(readRecord(buffer, i * RECORD_SIZE));
+                }
+            } catch (IOException e) {
+                throw new JournalException("Failed to replay journal segment " + segment.path, e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!enabled || !running) {
+            return;
+        }
+        lock.lock();
+        try {
+            running = false;
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            Segment segment;
+            long target;
+            int from;
+            int to;
+
+            lock.lock();
+            try {
+                while (running && durableSequence == lastSequence) {
+                    written.await();
+                }
+                if (durableSequence == lastSequence) {
+                    return;
+                }
+                segment = segments.getLast();
+                target = lastSequence;
+                from = segment.forcedPosition;
+                to = segment.position;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            // force() выполняется без блокировки: новые записи продолжают дописываться
+            try {
+                if (to > from) {
+                    segment.buffer.force(from, to - from);
+                }
+            } catch (UncheckedIOException e) {
+                fail(e);
+                return;
+            }
+
+            List<CompletableFuture<Void>> ready = new ArrayList<>();
+            lock.lock();
+            try {
+                segment.forcedPosition = Math.max(segment.forcedPosition, to);
+                durableSequence = Math.max(durableSequence, target);
+                durable.signalAll();
+                // Включая записи, ставшие durable при смене сегмента
+                while (!durableWaiters.isEmpty() && durableWaiters.peek().sequence() <= durableSequence) {
+                    ready.add(durableWaiters.poll().future());
+                }
+            } finally {
+                lock.unlock();
+            }
+            // Вне lock: продолжения ожидающих выполняются в этом потоке
+            ready.forEach(future -> future.complete(null));
+        }
+    }
+
+    /**
+     * Закрытие активного сегмента и открытие следующего (под lock)
+     */
+    private Segment roll() {
+        Segment current = segments.getLast();
+        try {
+            current.buffer.force();
+            current.forcedPosition = current.position;
+            durableSequence = lastSequence;
+            durable.signalAll();
+
+            Segment next = Segment.create(segmentPath(lastSequence + 1), lastSequence + 1, segmentSize);
+            segments.addLast(next);
+            current.closeChannel();
+            return next;
+        } catch (IOException | UncheckedIOException e) {
+            fail(e);
+            throw new JournalException("Failed to roll journal segment", e);
+        }
+    }
+
+    private void fail(Throwable e) {
+        log.error("Operation journal failed, rejecting further operations", e);
+        List<DurableWaiter> waiting;
+        lock.lock();
+        try {
+            failure = e;
+            durable.signalAll();
+            waiting = new ArrayList<>(durableWaiters);
+            durableWaiters.clear();
+        } finally {
+            lock.unlock();
+        }
+        JournalException unavailable = new JournalException("Operation journal is unavailable", e);
+        waiting.forEach(waiter -> waiter.future().completeExceptionally(unavailable));
+    }
+
+    private void checkAvailable() {
+        if (failure != null) {
+            throw new JournalException("Operation journal is unavailable", failure);
+        }
+        if (!running) {
+            throw new JournalException("Operation journal is closed");
+        }
+    }
+
+    private List<Path> listSegmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                    .filter(p -> {
+                        String name = p.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private Path segmentPath(long baseSequence) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, baseSequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Количество корректных записей в начале сегмента (хвост после сбоя отбрасывается)
+     */
+    private static int countValidRecords(Path path) throws IOException {
+        long baseSequence = parseBaseSequence(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = 0;
+            for (int offset = 0; offset + RECORD_SIZE <= buffer.limit(); offset += RECORD_SIZE) {
+                if (buffer.getLong(offset) != baseSequence + count
+                        || buffer.getInt(offset + CRC_OFFSET) != checksum(buffer, offset)) {
+                    break;
+                }
+                count++;
+            }
+            // Проводка, дописанная не до конца, отбрасывается целиком
+            while (count > 0 && buffer.getShort((count - 1) * RECORD_SIZE + REMAINING_LEGS_OFFSET) > 0) {
+                count--;
+            }
+            return count;
+        }
+    }
+
+    private static long parseBaseSequence(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static JournalRecord readRecord(ByteBuffer buffer, int offset) {
+        long operationIdHigh = buffer.getLong(offset + OPERATION_ID_OFFSET);
+        long operationIdLow = buffer.getLong(offset + OPERATION_ID_OFFSET + 8);
+        return new JournalRecord(
+                buffer.getLong(offset),
+                new UUID(buffer.getLong(offset + 8), buffer.getLong(offset + 16)),
+                OPERATION_TYPES[buffer.get(offset + 56)],
+                FixedPoint.toDecimal(buffer.getLong(offset + 24)),
+                FixedPoint.toDecimal(buffer.getLong(offset + 32)),
+                buffer.getLong(offset + 40),
+                Instant.ofEpochMilli(buffer.getLong(offset + 48)),
+                operationIdHigh == 0 && operationIdLow == 0 ? null : new UUID(operationIdHigh, operationIdLow));
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset) {
+        CRC32C crc = new CRC32C();
+        // Всё, кроме самой контрольной суммы
+        crc.update(buffer.slice(offset, CRC_OFFSET));
+        crc.update(buffer.slice(offset + OPERATION_ID_OFFSET, RECORD_SIZE - OPERATION_ID_OFFSET));
+        return (int) crc.getValue();
+    }
+
+    private record DurableWaiter(long sequence, CompletableFuture<Void> future) {
+    }
+
+    private static final class Segment {
+        final Path path;
+        final long baseSequence;
+        final MappedByteBuffer buffer;
+        final AtomicInteger pending = new AtomicInteger();
+        FileChannel channel;
+        int position;
+        int forcedPosition;
+
+        private Segment(Path path, long baseSequence, FileChannel channel, MappedByteBuffer buffer, int position) {
+            this.path = path;
+            this.baseSequence = baseSequence;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.position = position;
+            this.forcedPosition = position;
+        }
+
+        static Segment create(Path path, long baseSequence, int size) throws IOException {
+            FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new Segment(path, baseSequence, channel, buffer, 0);
+        }
+
+        static Segment recovered(Path path, int records) {
+            return new Segment(path, parseBaseSequence(path), null, null, records * RECORD_SIZE);
+        }
+
+        int records() {
+            return position / RECORD_SIZE;
+        }
+
+        long lastSequence() {
+            return baseSequence + records() - 1;
+        }
+
+        boolean isFull() {
+            return position + RECORD_SIZE > buffer.capacity();
+        }
+
+        void closeChannel() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+
+        void close() {
+            try {
+                closeChannel();
+            } catch (IOException e) {
+                log.warn("Failed to close journal segment {}", path, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.example.testovoe.wallet.ledger;
+
+/**
+ * Результат изменения баланса в {@link BalanceStore}
+ *
+ * @param applied false, если для списания не хватило средств
+ * @param balance баланс после операции (или текущий, если операция не применена)
+ * @param version версия баланса после операции
+ * @param retries сколько раз слот был занят другим потоком до захвата
+ */
+public record BalanceChange(boolean applied, long balance, long version, int retries) {
+}
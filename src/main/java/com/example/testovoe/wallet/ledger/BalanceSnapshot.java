@@ -0,0 +1,199 @@
+package com.example.testovoe.wallet.ledger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+/**
+ * Снимок кэша балансов на диске: заголовок и записи (UUID, баланс в минорных
+ * единицах, версия строки wallet) фиксированного размера, пишутся и читаются
+ * через memory-mapped окна. В снимок попадает то, что записано в БД: баланс
+ * вместе с версией строки, с которой он записан.
+ *
+ * Файл пишется во временный и переименовывается атомарно, поэтому на диске
+ * всегда либо прежний снимок, либо новый целиком. Версии кэша в снимок не
+ * попадают: это номера журнала, после рестарта они начинаются заново
+ */
+public final class BalanceSnapshot {
+
+    public static final int HEADER_SIZE = 32;
+    public static final int ENTRY_SIZE = 32;
+
+    private static final int MAGIC = 0x57534E50;
+    private static final int FORMAT_VERSION = 2;
+    // Окно отображения: 32 МБ, файл любого размера не упирается в предел ByteBuffer
+    private static final int WINDOW_ENTRIES = 1 << 20;
+    private static final long WINDOW_SIZE = (long) WINDOW_ENTRIES * ENTRY_SIZE;
+
+    private final LocalDateTime takenAt;
+    private final long size;
+    private final List<ByteBuffer> windows;
+
+    private BalanceSnapshot(LocalDateTime takenAt, long size, List<ByteBuffer> windows) {
+        this.takenAt = takenAt;
+        this.size = size;
+        this.windows = windows;
+    }
+
+    /**
+     * Момент снимка по часам БД: всё, что изменено в БД позже, в снимке может быть устаревшим
+     */
+    public LocalDateTime takenAt() {
+        return takenAt;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void forEach(EntryConsumer consumer) {
+        for (ByteBuffer window : windows) {
+            for (int offset = 0; offset < window.limit(); offset += ENTRY_SIZE) {
+                consumer.accept(new UUID(window.getLong(offset), window.getLong(offset + 8)),
+                        window.getLong(offset + 16), window.getLong(offset + 24));
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(UUID walletId, long balance, long rowVersion);
+    }
+
+    /**
+     * Записывает все кошельки кэша
+     *
+     * @return количество записанных кошельков
+     */
+    public static long write(Path path, LocalDateTime takenAt, BalanceStore store) {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            long size;
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                Writer writer = new Writer(channel);
+                store.forEachStored(writer::add);
+                size = writer.finish(takenAt);
+            }
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return size;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write balance snapshot " + path, e);
+        }
+    }
+
+    /**
+     * Открывает снимок и проверяет контрольную сумму
+     *
+     * @return null, если файла нет
+     * @throws IllegalStateException если файл повреждён или другого формата
+     */
+    public static BalanceSnapshot read(Path path) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new IllegalStateException("Balance snapshot " + path + " is truncated");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+                throw new IllegalStateException("Balance snapshot " + path + " has an unknown format");
+            }
+            long micros = header.getLong(8);
+            long size = header.getLong(16);
+            if (size < 0 || fileSize != HEADER_SIZE + size * ENTRY_SIZE) {
+                throw new IllegalStateException("Balance snapshot " + path + " is truncated");
+            }
+            List<ByteBuffer> windows = new ArrayList<>();
+            CRC32C crc = new CRC32C();
+            for (long position = HEADER_SIZE; position < fileSize; position += WINDOW_SIZE) {
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(WINDOW_SIZE, fileSize - position));
+                crc.update(window.duplicate());
+                windows.add(window);
+            }
+            if (header.getInt(24) != (int) crc.getValue()) {
+                throw new IllegalStateException("Balance snapshot " + path + " is corrupted");
+            }
+            LocalDateTime takenAt = LocalDateTime.ofEpochSecond(0, 0, ZoneOffset.UTC).plus(micros, ChronoUnit.MICROS);
+            return new BalanceSnapshot(takenAt, size, windows);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read balance snapshot " + path, e);
+        }
+    }
+
+    private static final class Writer {
+        private final FileChannel channel;
+        private final CRC32C crc = new CRC32C();
+        private MappedByteBuffer window;
+        private long windowPosition = HEADER_SIZE;
+        private long size;
+
+        private Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void add(UUID walletId, long balance, long rowVersion) {
+            if (window == null || !window.hasRemaining()) {
+                nextWindow();
+            }
+            window.putLong(walletId.getMostSignificantBits());
+            window.putLong(walletId.getLeastSignificantBits());
+            window.putLong(balance);
+            window.putLong(rowVersion);
+            size++;
+        }
+
+        private void nextWindow() {
+            if (window != null) {
+                closeWindow();
+                windowPosition += WINDOW_SIZE;
+            }
+            try {
+                window = channel.map(FileChannel.MapMode.READ_WRITE, windowPosition, WINDOW_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void closeWindow() {
+            crc.update(window.duplicate().flip());
+            window.force();
+        }
+
+        private long finish(LocalDateTime takenAt) throws IOException {
+            if (window != null) {
+                closeWindow();
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(0, MAGIC);
+            header.putInt(4, FORMAT_VERSION);
+            header.putLong(8, ChronoUnit.MICROS.between(LocalDateTime.ofEpochSecond(0, 0, ZoneOffset.UTC), takenAt));
+            header.putLong(16, size);
+            header.putInt(24, (int) crc.getValue());
+            header.force();
+            // Последнее окно отображено целиком - отрезаем незаполненный хвост
+            channel.truncate(HEADER_SIZE + size * ENTRY_SIZE);
+            channel.force(true);
+            return size;
+        }
+    }
+}
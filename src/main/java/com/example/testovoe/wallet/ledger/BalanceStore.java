@@ -0,0 +1,643 @@
+package com.example.testovoe.wallet.ledger;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Кэш балансов на примитивах: open addressing по UUID (два long в ключе),
+ * балансы в минорных единицах {@link FixedPoint} без объектов на запись.
+ *
+ * Каждый слот защищён штампом: чётный - свободен для записи, нечётный - идёт
+ * запись. Изменение баланса захватывает штамп одним CAS, чтение оптимистичное
+ * и не блокируется. Вставки, вытеснение и рост таблицы идут под блокировкой
+ * сегмента; при росте слоты переносятся по одному и помечаются {@link #MOVED},
+ * поэтому операции над остальными кошельками сегмента не останавливаются.
+ *
+ * Размер ограничен maxSize: при вставке в полный сегмент стрелка CLOCK ищет
+ * запись с нулевым счётчиком обращений. Вытесняются только записи, чья
+ * последняя версия уже записана в БД ({@link #markSynced(UUID, long)}).
+ *
+ * Для записи в БД с проверкой версии строки слот хранит записанный баланс и
+ * версию строки wallet.version, с которой он записан: локальные изменения -
+ * разница текущего и записанного баланса ({@link #rebase}).
+ */
+public class BalanceStore {
+
+    public static final long MISSING = Long.MIN_VALUE;
+    // Версия строки в БД неизвестна: следующая запись баланса безусловная
+    public static final long ANY_ROW_VERSION = -1;
+
+    // Штампы: 0 - пустой слот, -2 - перенесён в новую таблицу,
+    // меньше -2 - вытесненный слот (хранит прежний штамп, чтобы не было ABA)
+    private static final long EMPTY = 0;
+    private static final long MOVED = -2;
+    private static final long INITIAL_STAMP = 2;
+
+    // Ячейки слота: штамп, баланс, версия, записанная в БД версия, счётчик обращений,
+    // баланс в БД и версия строки в БД
+    private static final int CELLS = 7;
+    private static final int BALANCE = 1;
+    private static final int VERSION = 2;
+    private static final int SYNCED = 3;
+    private static final int FREQUENCY = 4;
+    private static final int STORED = 5;
+    private static final int ROW_VERSION = 6;
+
+    private static final long MAX_FREQUENCY = 3;
+    private static final int MAX_EVICTION_SCAN = 1024;
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int maxSegmentSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+
+    /**
+     * @param maxSize ограничение размера кэша, 0 - без ограничения
+     */
+    public BalanceStore(int initialCapacity, int concurrency, int maxSize) {
+        int segmentCount = Integer.highestOneBit(Math.max(1, concurrency - 1) << 1);
+        int perSegment = Math.max(MIN_SEGMENT_CAPACITY,
+                tableSizeFor((int) Math.min(Integer.MAX_VALUE / 2, (long) initialCapacity * 4 / 3 / segmentCount + 1)));
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+        this.maxSegmentSize = maxSize > 0 ? Math.max(1, (maxSize + segmentCount - 1) / segmentCount) : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return баланс в минорных единицах или {@link #MISSING}, если кошелька нет в кэше
+     */
+    public long balance(UUID walletId) {
+        return read(walletId, BALANCE, true);
+    }
+
+    /**
+     * Баланс без учёта в статистике и счётчике обращений (для записи в БД)
+     */
+    public long peekBalance(UUID walletId) {
+        return read(walletId, BALANCE, false);
+    }
+
+    /**
+     * @return версия баланса или {@link #MISSING}, если кошелька нет в кэше
+     */
+    public long version(UUID walletId) {
+        return read(walletId, VERSION, false);
+    }
+
+    /**
+     * @return версия строки wallet, с которой записан баланс, или {@link #MISSING}
+     */
+    public long rowVersion(UUID walletId) {
+        return read(walletId, ROW_VERSION, false);
+    }
+
+    public boolean contains(UUID walletId) {
+        return version(walletId) != MISSING;
+    }
+
+    /**
+     * Атомарно прибавляет delta к балансу (отрицательная delta - списание)
+     *
+     * @return результат или null, если кошелька нет в кэше
+     * @throws ArithmeticException при переполнении баланса
+     */
+    public BalanceChange apply(UUID walletId, long delta) {
+        long hi = walletId.getMostSignificantBits();
+        long lo = walletId.getLeastSignificantBits();
+        long hash = hash(hi, lo);
+        Table table = segmentFor(hash).table;
+        int retries = 0;
+        while (true) {
+            int slot = find(table, hi, lo, hash);
+            if (slot < 0) {
+                misses.increment();
+                return null;
+            }
+            int base = slot * CELLS;
+            long stamp = table.cells.get(base);
+            if (stamp == MOVED) {
+                table = table.next;
+                continue;
+            }
+            if (stamp <= 0 || (stamp & 1) != 0 || !table.cells.compareAndSet(base, stamp, stamp + 1)) {
+                retries++;
+                Thread.onSpinWait();
+                continue;
+            }
+
+            // Слот захвачен, меняем баланс без CAS-цикла
+            try {
+                if (!table.matches(slot, hi, lo)) {
+                    // Слот успели вытеснить и отдать другому кошельку
+                    retries++;
+                    continue;
+                }
+                touch(table, base);
+                hits.increment();
+                long balance = table.cells.get(base + BALANCE);
+                long version = table.cells.get(base + VERSION);
+                if (delta < 0 && balance < -delta) {
+                    return new BalanceChange(false, balance, version, retries);
+                }
+                long updated = Math.addExact(balance, delta);
+                table.cells.set(base + BALANCE, updated);
+                table.cells.set(base + VERSION, ++version);
+                return new BalanceChange(true, updated, version, retries);
+            } finally {
+                table.cells.set(base, stamp + 2);
+            }
+        }
+    }
+
+    /**
+     * Версия баланса записана в БД, запись можно вытеснять
+     */
+    public void markSynced(UUID walletId, long version) {
+        markSynced(walletId, version, MISSING, ANY_ROW_VERSION);
+    }
+
+    /**
+     * Версия баланса записана в БД как storedBalance со строкой версии rowVersion
+     */
+    public void markSynced(UUID walletId, long version, long storedBalance, long rowVersion) {
+        long hi = walletId.getMostSignificantBits();
+        long lo = walletId.getLeastSignificantBits();
+        long hash = hash(hi, lo);
+        Table table = segmentFor(hash).table;
+        while (true) {
+            int slot = find(table, hi, lo, hash);
+            if (slot < 0) {
+                return;
+            }
+            int base = slot * CELLS;
+            long stamp = table.cells.get(base);
+            if (stamp == MOVED) {
+                table = table.next;
+                continue;
+            }
+            if (stamp <= 0 || (stamp & 1) != 0 || !table.cells.compareAndSet(base, stamp, stamp + 1)) {
+                Thread.onSpinWait();
+                continue;
+            }
+            try {
+                if (!table.matches(slot, hi, lo)) {
+                    continue;
+                }
+                if (table.cells.get(base + SYNCED) < version) {
+                    table.cells.set(base + SYNCED, version);
+                }
+                if (rowVersion > table.cells.get(base + ROW_VERSION)) {
+                    table.cells.set(base + STORED, storedBalance);
+                    table.cells.set(base + ROW_VERSION, rowVersion);
+                }
+                return;
+            } finally {
+                table.cells.set(base, stamp + 2);
+            }
+        }
+    }
+
+    /**
+     * Перенос локальных изменений на баланс, записанный в БД другим узлом:
+     * баланс становится storedBalance плюс изменения с последней записи,
+     * версия растёт, чтобы кошелёк снова записался в БД
+     *
+     * @return новый баланс или {@link #MISSING}, если кошелька нет в кэше
+     * @throws ArithmeticException при переполнении баланса
+     */
+    public long rebase(UUID walletId, long storedBalance, long rowVersion) {
+        long hi = walletId.getMostSignificantBits();
+        long lo = walletId.getLeastSignificantBits();
+        long hash = hash(hi, lo);
+        Table table = segmentFor(hash).table;
+        while (true) {
+            int slot = find(table, hi, lo, hash);
+            if (slot < 0) {
+                return MISSING;
+            }
+            int base = slot * CELLS;
+            long stamp = table.cells.get(base);
+            if (stamp == MOVED) {
+                table = table.next;
+                continue;
+            }
+            if (stamp <= 0 || (stamp & 1) != 0 || !table.cells.compareAndSet(base, stamp, stamp + 1)) {
+                Thread.onSpinWait();
+                continue;
+            }
+            try {
+                if (!table.matches(slot, hi, lo)) {
+                    continue;
+                }
+                long local = Math.subtractExact(table.cells.get(base + BALANCE), table.cells.get(base + STORED));
+                long updated = Math.addExact(storedBalance, local);
+                table.cells.set(base + BALANCE, updated);
+                table.cells.set(base + VERSION, table.cells.get(base + VERSION) + 1);
+                table.cells.set(base + STORED, storedBalance);
+                table.cells.set(base + ROW_VERSION, rowVersion);
+                return updated;
+            } finally {
+                table.cells.set(base, stamp + 2);
+            }
+        }
+    }
+
+    /**
+     * Добавляет кошелёк, если его ещё нет в кэше. Баланс считается уже
+     * записанным в БД. В полном сегменте сначала вытесняется запись.
+     *
+     * @return false, если кошелёк уже был в кэше
+     */
+    public boolean putIfAbsent(UUID walletId, long balance, long version) {
+        return putIfAbsent(walletId, balance, version, ANY_ROW_VERSION);
+    }
+
+    /**
+     * @param rowVersion версия строки wallet, из которой прочитан баланс
+     * @return false, если кошелёк уже был в кэше
+     */
+    public boolean putIfAbsent(UUID walletId, long balance, long version, long rowVersion) {
+        long hi = walletId.getMostSignificantBits();
+        long lo = walletId.getLeastSignificantBits();
+        long hash = hash(hi, lo);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            Table table = segment.table;
+            if (find(table, hi, lo, hash) >= 0) {
+                return false;
+            }
+            if (segment.size >= maxSegmentSize) {
+                evict(segment);
+            }
+            if ((segment.size + segment.tombstones + 1) * 4L > table.capacity() * 3L) {
+                table = segment.rehash();
+            }
+            if (insert(table, hi, lo, hash, balance, version, version, balance, rowVersion, INITIAL_STAMP)) {
+                segment.tombstones--;
+            }
+            segment.size++;
+            puts.increment();
+            return true;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Удаляет кошелёк, если его последняя версия записана в БД
+     *
+     * @return false, если кошелька нет или в нём есть незаписанные изменения
+     */
+    public boolean removeIfSynced(UUID walletId) {
+        long hi = walletId.getMostSignificantBits();
+        long lo = walletId.getLeastSignificantBits();
+        long hash = hash(hi, lo);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            // Под lock сегмента таблица не растёт - перенесённых слотов в ней нет
+            Table table = segment.table;
+            int slot = find(table, hi, lo, hash);
+            if (slot < 0) {
+                return false;
+            }
+            int base = slot * CELLS;
+            while (true) {
+                long stamp = table.cells.get(base);
+                if (stamp <= 0) {
+                    return false;
+                }
+                if ((stamp & 1) != 0 || !table.cells.compareAndSet(base, stamp, stamp + 1)) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                if (table.cells.get(base + VERSION) != table.cells.get(base + SYNCED)) {
+                    table.cells.set(base, stamp + 2);
+                    return false;
+                }
+                table.cells.set(base, -(stamp + 2));
+                segment.size--;
+                segment.tombstones++;
+                return true;
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    public long putCount() {
+        return puts.sum();
+    }
+
+    /**
+     * Обход всех кошельков (согласованный снимок каждого слота, но не всего кэша).
+     * Вставки в сегмент на время его обхода блокируются.
+     */
+    public void forEach(EntryConsumer consumer) {
+        forEach(consumer, false);
+    }
+
+    /**
+     * Обход кошельков, чей последний баланс ещё не записан в БД
+     */
+    public void forEachDirty(EntryConsumer consumer) {
+        forEach(consumer, true);
+    }
+
+    /**
+     * Обход записанных в БД состояний: баланс и версия строки из последней записи
+     */
+    public void forEachStored(StoredEntryConsumer consumer) {
+        forEachSlot((walletId, cells) -> consumer.accept(walletId, cells[STORED], cells[ROW_VERSION]), false);
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(UUID walletId, long balance, long version);
+    }
+
+    @FunctionalInterface
+    public interface StoredEntryConsumer {
+        void accept(UUID walletId, long storedBalance, long rowVersion);
+    }
+
+    @FunctionalInterface
+    private interface SlotConsumer {
+        void accept(UUID walletId, long[] cells);
+    }
+
+    private void forEach(EntryConsumer consumer, boolean dirtyOnly) {
+        forEachSlot((walletId, cells) -> consumer.accept(walletId, cells[BALANCE], cells[VERSION]), dirtyOnly);
+    }
+
+    private void forEachSlot(SlotConsumer consumer, boolean dirtyOnly) {
+        long[] copy = new long[CELLS];
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                Table table = segment.table;
+                for (int slot = 0; slot < table.capacity(); slot++) {
+                    int base = slot * CELLS;
+                    while (true) {
+                        long stamp = table.cells.get(base);
+                        if (stamp <= 0) {
+                            break;
+                        }
+                        if ((stamp & 1) == 0) {
+                            for (int cell = 1; cell < CELLS; cell++) {
+                                copy[cell] = table.cells.get(base + cell);
+                            }
+                            if (table.cells.get(base) == stamp) {
+                                if (!dirtyOnly || copy[VERSION] != copy[SYNCED]) {
+                                    consumer.accept(new UUID(table.keys[slot * 2], table.keys[slot * 2 + 1]), copy);
+                                }
+                                break;
+                            }
+                        }
+                        Thread.onSpinWait();
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * CLOCK: стрелка снижает счётчики обращений и вытесняет первую чистую
+     * запись с нулевым счётчиком (под lock сегмента). Если все просмотренные
+     * записи ещё не записаны в БД, сегмент временно превышает лимит.
+     */
+    private void evict(Segment segment) {
+        Table table = segment.table;
+        AtomicLongArray cells = table.cells;
+        for (int step = 0; step < MAX_EVICTION_SCAN; step++) {
+            int slot = segment.hand & table.mask;
+            segment.hand = slot + 1;
+            int base = slot * CELLS;
+            long stamp = cells.get(base);
+            if (stamp <= 0 || (stamp & 1) != 0) {
+                continue;
+            }
+            long frequency = cells.get(base + FREQUENCY);
+            if (frequency > 0) {
+                cells.set(base + FREQUENCY, frequency - 1);
+                continue;
+            }
+            if (cells.get(base + VERSION) != cells.get(base + SYNCED)
+                    || !cells.compareAndSet(base, stamp, stamp + 1)) {
+                continue;
+            }
+            if (cells.get(base + VERSION) != cells.get(base + SYNCED)) {
+                cells.set(base, stamp + 2);
+                continue;
+            }
+            cells.set(base, -(stamp + 2));
+            segment.size--;
+            segment.tombstones++;
+            evictions.increment();
+            return;
+        }
+    }
+
+    private long read(UUID walletId, int cell, boolean access) {
+        long hi = walletId.getMostSignificantBits();
+        long lo = walletId.getLeastSignificantBits();
+        long hash = hash(hi, lo);
+        Table table = segmentFor(hash).table;
+        while (true) {
+            int slot = find(table, hi, lo, hash);
+            if (slot < 0) {
+                if (access) {
+                    misses.increment();
+                }
+                return MISSING;
+            }
+            int base = slot * CELLS;
+            long stamp = table.cells.get(base);
+            if (stamp == MOVED) {
+                table = table.next;
+                continue;
+            }
+            if (stamp > 0 && (stamp & 1) == 0) {
+                long value = table.cells.get(base + cell);
+                if (table.matches(slot, hi, lo) && table.cells.get(base) == stamp) {
+                    if (access) {
+                        touch(table, base);
+                        hits.increment();
+                    }
+                    return value;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private static void touch(Table table, int base) {
+        long frequency = table.cells.get(base + FREQUENCY);
+        if (frequency < MAX_FREQUENCY) {
+            table.cells.lazySet(base + FREQUENCY, frequency + 1);
+        }
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments.length == 1 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+    }
+
+    /**
+     * @return слот с ключом (в том числе перенесённый) или -1
+     */
+    private static int find(Table table, long hi, long lo, long hash) {
+        int mask = table.mask;
+        int slot = (int) hash & mask;
+        while (true) {
+            long stamp = table.cells.get(slot * CELLS);
+            if (stamp == EMPTY) {
+                return -1;
+            }
+            if (stamp >= MOVED && table.matches(slot, hi, lo)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Вставка в первый пустой или вытесненный слот (под lock сегмента)
+     *
+     * @return true, если занят вытесненный слот
+     */
+    private static boolean insert(Table table, long hi, long lo, long hash, long balance, long version,
+                                  long synced, long stored, long rowVersion, long stamp) {
+        int mask = table.mask;
+        int slot = (int) hash & mask;
+        long current;
+        while ((current = table.cells.get(slot * CELLS)) != EMPTY && current >= MOVED) {
+            slot = (slot + 1) & mask;
+        }
+        int base = slot * CELLS;
+        table.keys[slot * 2] = hi;
+        table.keys[slot * 2 + 1] = lo;
+        table.cells.set(base + BALANCE, balance);
+        table.cells.set(base + VERSION, version);
+        table.cells.set(base + SYNCED, synced);
+        table.cells.set(base + FREQUENCY, 0);
+        table.cells.set(base + STORED, stored);
+        table.cells.set(base + ROW_VERSION, rowVersion);
+        // Публикация слота: ключ и значения видны всем, кто прочитал штамп.
+        // Штамп вытесненного слота продолжает расти, старые читатели его не спутают.
+        table.cells.set(base, current == EMPTY ? stamp : -current + 2);
+        return current != EMPTY;
+    }
+
+    private static long hash(long hi, long lo) {
+        long h = hi ^ Long.rotateLeft(lo, 32);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static int tableSizeFor(int capacity) {
+        return Integer.highestOneBit(Math.max(1, capacity - 1) << 1);
+    }
+
+    private static final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        volatile Table table;
+        volatile int size;
+        int tombstones;
+        int hand;
+
+        Segment(int capacity) {
+            this.table = new Table(capacity);
+        }
+
+        /**
+         * Перенос живых слотов в новую таблицу (под lock сегмента): вдвое больше,
+         * если заполнена больше чем наполовину, иначе того же размера - чтобы
+         * избавиться от вытесненных слотов
+         */
+        Table rehash() {
+            Table old = table;
+            int capacity = (size + 1) * 2L > old.capacity() ? old.capacity() * 2 : old.capacity();
+            Table next = new Table(capacity);
+            old.next = next;
+            for (int slot = 0; slot < old.capacity(); slot++) {
+                int base = slot * CELLS;
+                while (true) {
+                    long stamp = old.cells.get(base);
+                    if (stamp <= 0) {
+                        break;
+                    }
+                    if ((stamp & 1) == 0 && old.cells.compareAndSet(base, stamp, stamp + 1)) {
+                        long hi = old.keys[slot * 2];
+                        long lo = old.keys[slot * 2 + 1];
+                        insert(next, hi, lo, hash(hi, lo), old.cells.get(base + BALANCE),
+                                old.cells.get(base + VERSION), old.cells.get(base + SYNCED),
+                                old.cells.get(base + STORED), old.cells.get(base + ROW_VERSION), stamp + 2);
+                        old.cells.set(base, MOVED);
+                        break;
+                    }
+                    Thread.onSpinWait();
+                }
+            }
+            tombstones = 0;
+            table = next;
+            return next;
+        }
+    }
+
+    private static final class Table {
+        final long[] keys;
+        final AtomicLongArray cells;
+        final int mask;
+        volatile Table next;
+
+        Table(int capacity) {
+            this.keys = new long[capacity * 2];
+            this.cells = new AtomicLongArray(capacity * CELLS);
+            this.mask = capacity - 1;
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        boolean matches(int slot, long hi, long lo) {
+            return keys[slot * 2] == hi && keys[slot * 2 + 1] == lo;
+        }
+    }
+}
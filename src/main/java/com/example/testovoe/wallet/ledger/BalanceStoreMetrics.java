@@ -0,0 +1,47 @@
+package com.example.testovoe.wallet.ledger;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.binder.cache.CacheMeterBinder;
+
+/**
+ * Метрики кэша балансов: cache.gets (hit/miss), cache.evictions, cache.size, cache.puts
+ */
+public class BalanceStoreMetrics extends CacheMeterBinder<BalanceStore> {
+
+    private final BalanceStore store;
+
+    public BalanceStoreMetrics(BalanceStore store, Iterable<Tag> tags) {
+        super(store, "balances", tags);
+        this.store = store;
+    }
+
+    @Override
+    protected Long size() {
+        return (long) store.size();
+    }
+
+    @Override
+    protected long hitCount() {
+        return store.hitCount();
+    }
+
+    @Override
+    protected Long missCount() {
+        return store.missCount();
+    }
+
+    @Override
+    protected Long evictionCount() {
+        return store.evictionCount();
+    }
+
+    @Override
+    protected long putCount() {
+        return store.putCount();
+    }
+
+    @Override
+    protected void bindImplementationSpecificMetrics(MeterRegistry registry) {
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.testovoe.wallet.ledger;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Суммы в минорных единицах: DECIMAL(19, 4) хранится как long, умноженный на 10^4.
+ * Перевод в BigDecimal выполняется только на границах (DTO и БД).
+ */
+public final class FixedPoint {
+
+    public static final int SCALE = 4;
+
+    private FixedPoint() {
+    }
+
+    /**
+     * @throws ArithmeticException если сумма не помещается в long
+     */
+    public static long toUnits(BigDecimal value) {
+        return value.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    public static BigDecimal toDecimal(long units) {
+        return BigDecimal.valueOf(units, SCALE);
+    }
+}
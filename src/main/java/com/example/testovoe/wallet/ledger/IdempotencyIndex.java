@@ -0,0 +1,144 @@
+package com.example.testovoe.wallet.ledger;
+
+import com.example.testovoe.wallet.exception.ServiceOverloadedException;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Индекс ключей идемпотентности за скользящее окно: два поколения хэш-таблиц,
+ * раз в половину окна старое поколение отбрасывается целиком. Ключ живёт
+ * от половины окна до целого окна без обхода и удаления отдельных записей.
+ *
+ * Ключ сначала захватывается ({@link #claim(UUID, UUID)}), затем либо
+ * фиксируется с номером записи журнала, либо освобождается, если операция
+ * не применена. Повтор, пришедший во время применения, ждёт не дольше
+ * claimTimeoutMs, затем получает 503 с Retry-After.
+ */
+public class IdempotencyIndex {
+
+    // Номер записи журнала у захваченного, но ещё не применённого ключа
+    private static final long PENDING = -1;
+    // Пауза ожидания чужого захвата: от MIN_PARK_NANOS удваивается до MAX_PARK_NANOS
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final long windowMs;
+    private final long rotateIntervalNanos;
+    private final long claimTimeoutNanos;
+    private final int retryAfterSeconds;
+
+    private volatile ConcurrentHashMap<UUID, Entry> current = new ConcurrentHashMap<>();
+    private volatile ConcurrentHashMap<UUID, Entry> previous = new ConcurrentHashMap<>();
+    private volatile long rotateAt;
+
+    /**
+     * @param claimTimeoutMs    сколько повтор ждёт операцию с тем же ключом, применяемую сейчас
+     * @param retryAfterSeconds Retry-After, если она не применилась за это время
+     */
+    public IdempotencyIndex(long windowMs, long claimTimeoutMs, int retryAfterSeconds) {
+        this.windowMs = windowMs;
+        this.rotateIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(2, windowMs)) / 2;
+        this.rotateAt = System.nanoTime() + rotateIntervalNanos;
+        this.claimTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(claimTimeoutMs);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @param walletId    кошелёк операции
+     * @param journalSeq  номер записи журнала, 0 - журнал выключен или операция уже в БД
+     */
+    public record Entry(UUID walletId, long journalSeq) {
+
+        public boolean isPending() {
+            return journalSeq == PENDING;
+        }
+    }
+
+    /**
+     * @return применённая операция с этим ключом или null
+     */
+    public Entry find(UUID operationId) {
+        rotateIfDue();
+        Entry entry = current.get(operationId);
+        if (entry == null) {
+            entry = previous.get(operationId);
+        }
+        return entry == null || entry.isPending() ? null : entry;
+    }
+
+    /**
+     * Захват ключа. Если операция с ключом сейчас применяется в другом потоке,
+     * дожидается её результата не дольше claimTimeoutMs
+     *
+     * @return null, если ключ захвачен, иначе уже применённая операция
+     * @throws ServiceOverloadedException если операция с ключом не применилась за claimTimeoutMs
+     */
+    public Entry claim(UUID operationId, UUID walletId) {
+        rotateIfDue();
+        Entry pending = new Entry(walletId, PENDING);
+        long deadline = 0;
+        long parkNanos = MIN_PARK_NANOS;
+        while (true) {
+            Entry existing = current.get(operationId);
+            if (existing == null) {
+                existing = previous.get(operationId);
+                if (existing == null) {
+                    existing = current.putIfAbsent(operationId, pending);
+                    if (existing == null) {
+                        return null;
+                    }
+                }
+            }
+            if (!existing.isPending()) {
+                return existing;
+            }
+            // Захват из предыдущего поколения завершится записью в current.
+            // Владелец ключа может ждать fsync и БД или упасть, не освободив ключ
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + claimTimeoutNanos;
+            } else if (now - deadline >= 0) {
+                throw new ServiceOverloadedException(retryAfterSeconds,
+                        "Operation " + operationId + " is still being applied");
+            }
+            LockSupport.parkNanos(Math.min(parkNanos, Math.max(1, deadline - now)));
+            parkNanos = Math.min(MAX_PARK_NANOS, parkNanos * 2);
+        }
+    }
+
+    public void complete(UUID operationId, UUID walletId, long journalSeq) {
+        current.put(operationId, new Entry(walletId, journalSeq));
+    }
+
+    public void release(UUID operationId) {
+        current.remove(operationId);
+        previous.remove(operationId);
+    }
+
+    public long windowMs() {
+        return windowMs;
+    }
+
+    public int size() {
+        return current.size() + previous.size();
+    }
+
+    private void rotateIfDue() {
+        if (System.nanoTime() - rotateAt < 0) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (now - rotateAt < 0) {
+                return;
+            }
+            // Захваченные ключи остаются в previous: complete() перенесёт их в current
+            previous = current;
+            current = new ConcurrentHashMap<>();
+            rotateAt = now + rotateIntervalNanos;
+        }
+    }
+}
@@ -1,6 +1,6 @@
-package com.example.testovoe.wallet.model;
-
-public enum OperationStatus {
-    SUCCESS,
-    FAILED;
+package com.example.testovoe.wallet.model;
+
+public enum OperationStatus {
+    SUCCESS,
+    FAILED;
 }
\ No newline at end of file
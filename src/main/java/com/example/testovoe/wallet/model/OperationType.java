@@ -1,6 +1,20 @@
-package com.example.testovoe.wallet.model;
-
-public enum OperationType {
-    DEPOSIT,
-    WITHDRAW
-}
+package com.example.testovoe.wallet.model;
+
+public enum OperationType {
+    DEPOSIT,
+    WITHDRAW,
+    // Ноги перевода между кошельками, создаются только переводом
+    TRANSFER_OUT,
+    TRANSFER_IN;
+
+    /**
+     * Операция увеличивает баланс кошелька
+     */
+    public boolean isCredit() {
+        return this == DEPOSIT || this == TRANSFER_IN;
+    }
+
+    public boolean isTransferLeg() {
+        return this == TRANSFER_OUT || this == TRANSFER_IN;
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.testovoe.wallet.reconciliation;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Расхождение баланса с суммой операций кошелька
+ *
+ * @param ledger     сумма записанных успешных операций
+ * @param actual     баланс в wallet.balance или в кэше
+ * @param detectedAt первая сверка, показавшая это расхождение
+ */
+public record BalanceMismatch(UUID walletId, Source source, BigDecimal ledger, BigDecimal actual,
+                              LocalDateTime detectedAt) {
+
+    public enum Source {
+        DATABASE, CACHE
+    }
+
+    public BigDecimal drift() {
+        return actual.subtract(ledger);
+    }
+}
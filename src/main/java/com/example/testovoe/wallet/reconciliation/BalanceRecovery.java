@@ -0,0 +1,231 @@
+package com.example.testovoe.wallet.reconciliation;
+
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import com.example.testovoe.wallet.service.WalletService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Восстановление wallet.balance из операций: баланс кошелька - его чекпоинт
+ * в wallet_ledger плюс успешные операции после отметки ledger_watermark.
+ *
+ * Все кошельки пересчитываются параллельно: пространство wallet_id делится на
+ * partitions диапазонов, каждый - один запрос в своей транзакции на одном из
+ * threads потоков. Пишутся только отличающиеся балансы, с новой версией
+ * строки: незаписанные изменения в кэшах узлов переносятся на восстановленный
+ * баланс, а не затирают его. Отметка на время восстановления не сдвигается.
+ *
+ * Перед пересчётом очереди этого узла сбрасываются в БД. Операции, ещё не
+ * записанные другими узлами, в восстановленный баланс не попадут - полное
+ * восстановление рассчитано на остановленную запись
+ */
+@Slf4j
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+@RequiredArgsConstructor
+public class BalanceRecovery implements ApplicationRunner {
+
+    private static final String TAIL =
+            "SELECT wallet_id, SUM(" + LedgerCheckpointer.SIGNED_AMOUNT + ") AS delta FROM wallet_operation " +
+                    "WHERE id > ? AND " + LedgerCheckpointer.SUCCESSFUL;
+
+    private static final String RECOVER_WALLET_SQL =
+            "SELECT COALESCE((SELECT balance FROM wallet_ledger WHERE wallet_id = ?), 0) + " +
+                    "COALESCE((SELECT delta FROM (" + TAIL + " AND wallet_id = ? GROUP BY wallet_id) t), 0)";
+
+    private static final String WRITE_WALLET_SQL =
+            "INSERT INTO wallet (id, balance, version, created_at, updated_at) VALUES (?, ?, 0, now(), now()) " +
+                    "ON CONFLICT (id) DO UPDATE SET balance = EXCLUDED.balance, version = wallet.version + 1, " +
+                    "updated_at = now() WHERE wallet.balance <> EXCLUDED.balance";
+
+    @Value("${wallet.recovery.on-startup:false}")
+    private boolean onStartup;
+
+    @Value("${wallet.recovery.threads:4}")
+    private int threads;
+
+    @Value("${wallet.recovery.partitions:64}")
+    private int partitions;
+
+    private final JdbcTemplate jdbcTemplate;
+    // Соединения пула без autocommit
+    private final TransactionTemplate transactionTemplate;
+    private final WalletService walletService;
+    private final BalanceStore balanceCache;
+
+    /**
+     * @param wallets  кошельков с операциями или ненулевым балансом
+     * @param changed  балансов отличалось от восстановленных (записано, если не dryRun)
+     * @param watermark отметка, до которой балансы взяты из чекпоинтов
+     */
+    public record Result(long wallets, long changed, long watermark, long durationMs, boolean dryRun) {
+    }
+
+    /**
+     * Полное восстановление до прогрева кэша (wallet.recovery.on-startup)
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        if (onStartup) {
+            recoverAll(false);
+        }
+    }
+
+    /**
+     * Баланс кошелька по чекпоинту и операциям после него
+     *
+     * @param dryRun только посчитать, не записывая в wallet
+     */
+    public BigDecimal recover(UUID walletId, boolean dryRun) {
+        if (!dryRun) {
+            walletService.flush();
+        }
+        BigDecimal balance = transactionTemplate.execute(status -> {
+            // FOR SHARE: фоновый шаг чекпоинтов пропускает заблокированную отметку
+            long watermark = lockWatermark("FOR SHARE");
+            BigDecimal recovered = jdbcTemplate.queryForObject(RECOVER_WALLET_SQL, BigDecimal.class,
+                    walletId, watermark, walletId);
+            if (!dryRun && jdbcTemplate.update(WRITE_WALLET_SQL, walletId, recovered) > 0) {
+                log.warn("Recovered balance of wallet {}: {}", walletId, recovered);
+            }
+            return recovered;
+        });
+        if (!dryRun) {
+            // Чистая запись кэша устарела; с незаписанными изменениями перенесётся при синхронизации
+            balanceCache.removeIfSynced(walletId);
+        }
+        return balance;
+    }
+
+    /**
+     * Пересчитывает все кошельки параллельно по диапазонам wallet_id
+     *
+     * @param dryRun только посчитать расхождения, не записывая в wallet
+     */
+    public Result recoverAll(boolean dryRun) {
+        long start = System.nanoTime();
+        if (!dryRun) {
+            walletService.flush();
+        }
+        AtomicInteger threadIds = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), task -> {
+            Thread thread = new Thread(task, "wallet-recovery-" + threadIds.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Result result = transactionTemplate.execute(status -> {
+                // Отметка держится до конца: чекпоинты не сдвигаются под пересчётом
+                long watermark = lockWatermark("FOR UPDATE");
+                List<Future<long[]>> ranges = new ArrayList<>();
+                for (int partition = 0; partition < Math.max(1, partitions); partition++) {
+                    UUID lower = bound(partition);
+                    UUID upper = partition + 1 < Math.max(1, partitions) ? bound(partition + 1) : null;
+                    ranges.add(pool.submit(() -> recoverRange(lower, upper, watermark, dryRun)));
+                }
+                long wallets = 0;
+                long changed = 0;
+                try {
+                    for (Future<long[]> range : ranges) {
+                        long[] counts = range.get();
+                        wallets += counts[0];
+                        changed += counts[1];
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Balance recovery interrupted", e);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Failed to recover balances", e.getCause());
+                }
+                return new Result(wallets, changed, watermark,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), dryRun);
+            });
+            if (!dryRun) {
+                List<UUID> cached = new ArrayList<>();
+                balanceCache.forEach((walletId, balance, version) -> cached.add(walletId));
+                cached.forEach(balanceCache::removeIfSynced);
+            }
+            log.warn("Balance recovery{} of {} wallets from checkpoint {}: {} differed, {} ms",
+                    dryRun ? " (dry run)" : "", result.wallets(), result.watermark(), result.changed(),
+                    result.durationMs());
+            return result;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private long lockWatermark(String lock) {
+        return jdbcTemplate.queryForObject("SELECT operation_id FROM ledger_watermark WHERE name = ? " + lock,
+                Long.class, LedgerCheckpointer.WATERMARK);
+    }
+
+    /**
+     * Один диапазон [lower, upper) в своей транзакции
+     *
+     * @return кошельков и отличающихся балансов
+     */
+    private long[] recoverRange(UUID lower, UUID upper, long watermark, boolean dryRun) {
+        String range = upper != null ? " >= ? AND %1$s < ?" : " >= ?";
+        String walletRange = "id" + range.formatted("id");
+        String ledgerRange = "wallet_id" + range.formatted("wallet_id");
+        String recovered =
+                "WITH tail AS (" + TAIL + " AND " + ledgerRange + " GROUP BY wallet_id), " +
+                        "recovered AS (SELECT COALESCE(l.wallet_id, t.wallet_id) AS wallet_id, " +
+                        "COALESCE(l.balance, 0) + COALESCE(t.delta, 0) AS balance " +
+                        "FROM (SELECT wallet_id, balance FROM wallet_ledger WHERE " + ledgerRange + ") l " +
+                        "FULL JOIN tail t ON t.wallet_id = l.wallet_id)";
+        // Кошельки без операций должны иметь нулевой баланс
+        String orphans = "FROM wallet w WHERE w." + walletRange + " AND w.balance <> 0 " +
+                "AND NOT EXISTS (SELECT 1 FROM recovered r WHERE r.wallet_id = w.id)";
+        String sql = dryRun
+                ? recovered + " SELECT (SELECT count(*) FROM recovered), " +
+                "(SELECT count(*) FROM recovered r LEFT JOIN wallet w ON w.id = r.wallet_id " +
+                "WHERE w.balance IS DISTINCT FROM r.balance) + (SELECT count(*) " + orphans + ")"
+                : recovered + ", written AS (" +
+                "INSERT INTO wallet (id, balance, version, created_at, updated_at) " +
+                "SELECT wallet_id, balance, 0, now(), now() FROM recovered " +
+                "ON CONFLICT (id) DO UPDATE SET balance = EXCLUDED.balance, version = wallet.version + 1, " +
+                "updated_at = now() WHERE wallet.balance <> EXCLUDED.balance RETURNING 1), " +
+                "zeroed AS (UPDATE wallet SET balance = 0, version = version + 1, updated_at = now() " +
+                "WHERE id IN (SELECT w.id " + orphans + ") RETURNING 1) " +
+                "SELECT (SELECT count(*) FROM recovered), (SELECT count(*) FROM written) + (SELECT count(*) FROM zeroed)";
+
+        List<Object> parameters = new ArrayList<>();
+        parameters.add(watermark);
+        for (int i = 0; i < 3; i++) {
+            parameters.add(lower);
+            if (upper != null) {
+                parameters.add(upper);
+            }
+        }
+        return transactionTemplate.execute(status -> jdbcTemplate.queryForObject(sql,
+                (row, i) -> new long[]{row.getLong(1), row.getLong(2)}, parameters.toArray()));
+    }
+
+    /**
+     * Нижняя граница диапазона: uuid в Postgres сравниваются побайтно, как
+     * беззнаковые старшие 64 бита
+     */
+    private UUID bound(int partition) {
+        return new UUID(Long.divideUnsigned(-1L, Math.max(1, partitions)) * partition, 0);
+    }
+}
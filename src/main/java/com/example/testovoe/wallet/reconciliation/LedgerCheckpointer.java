@@ -0,0 +1,190 @@
+package com.example.testovoe.wallet.reconciliation;
+
+import com.example.testovoe.wallet.model.OperationStatus;
+import com.example.testovoe.wallet.model.OperationType;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Чекпоинты балансов по операциям: wallet_ledger хранит сумму успешных
+ * операций каждого кошелька с id не больше отметки ledger_watermark.
+ *
+ * Фоновый шаг добавляет операции с id от отметки до границы (fence) пачками
+ * по batch-ids, по транзакции на пачку, и сдвигает отметку. Граница -
+ * максимальный id на момент установки. id берутся из последовательности
+ * внутри транзакций COPY, поэтому строки с меньшими id могут ещё не быть
+ * закоммичены. Граница используется, только когда завершились все
+ * транзакции, шедшие при её установке (xmin текущего снимка не меньше xmax
+ * снимка установки), и прошло fence-grace-ms по часам БД: транзакция
+ * получает xid при первой вставке, уже после nextval.
+ *
+ * Отметку сдвигает один узел (FOR UPDATE SKIP LOCKED), восстановление
+ * балансов держит её на месте
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class LedgerCheckpointer {
+
+    static final String WATERMARK = "ledger";
+
+    /**
+     * Знак операции в сумме: зачисления с плюсом, списания с минусом
+     */
+    static final String SIGNED_AMOUNT = "CASE WHEN operation_type IN (" + credits() + ") THEN amount ELSE -amount END";
+
+    static final String SUCCESSFUL = "status = '" + OperationStatus.SUCCESS + "'";
+
+    private static final String ADVANCE_SQL =
+            "INSERT INTO wallet_ledger (wallet_id, balance, last_operation_id) " +
+                    "SELECT wallet_id, SUM(" + SIGNED_AMOUNT + "), MAX(id) FROM wallet_operation " +
+                    "WHERE id > ? AND id <= ? AND " + SUCCESSFUL + " GROUP BY wallet_id " +
+                    "ON CONFLICT (wallet_id) DO UPDATE SET balance = wallet_ledger.balance + EXCLUDED.balance, " +
+                    "last_operation_id = EXCLUDED.last_operation_id";
+
+    /**
+     * Все транзакции, шедшие при установке границы, завершились, и выдержка
+     * прошла по часам БД
+     */
+    private static final String FENCE_READY =
+            "pg_snapshot_xmin(pg_current_snapshot())::text::bigint >= fence_xmax " +
+                    "AND updated_at <= LOCALTIMESTAMP - ? * INTERVAL '1 millisecond'";
+
+    @Value("${wallet.checkpoint.enabled:true}")
+    private boolean enabled;
+
+    // Операций по id в одной транзакции и транзакций за шаг
+    @Value("${wallet.checkpoint.batch-ids:100000}")
+    private long batchIds;
+
+    @Value("${wallet.checkpoint.max-batches:20}")
+    private int maxBatches;
+
+    // Сколько граница выжидает после установки, кроме завершения транзакций
+    @Value("${wallet.checkpoint.fence-grace-ms:1000}")
+    private long fenceGraceMs;
+
+    private final JdbcTemplate jdbcTemplate;
+    // Соединения пула без autocommit
+    private final TransactionTemplate transactionTemplate;
+
+    private volatile long watermark;
+    private volatile long fence;
+
+    /**
+     * Операции с id в (from, to] добавлены в чекпоинты этим шагом
+     */
+    public record Advance(long from, long to) {
+    }
+
+    @Scheduled(fixedDelayString = "${wallet.checkpoint.interval-ms:30000}",
+            initialDelayString = "${wallet.checkpoint.interval-ms:30000}")
+    public void checkpoint() {
+        if (!enabled || !available()) {
+            return;
+        }
+        try {
+            Advance advance = advance();
+            if (advance.to() > advance.from()) {
+                log.debug("Checkpointed operations up to {}", advance.to());
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to checkpoint wallet balances", e);
+        }
+    }
+
+    /**
+     * Таблицы чекпоинтов есть (схема из миграций, а не из ddl-auto)
+     */
+    public boolean available() {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                "SELECT to_regclass('wallet_ledger') IS NOT NULL", Boolean.class));
+    }
+
+    /**
+     * Сдвигает отметку не больше чем на max-batches пачек. Если отметку
+     * держит другой узел или восстановление, возвращает пустой шаг
+     */
+    public Advance advance() {
+        long start = -1;
+        for (int batch = 0; batch < maxBatches; batch++) {
+            long[] step = transactionTemplate.execute(status -> {
+                List<long[]> rows = jdbcTemplate.query(
+                        "SELECT operation_id, fence_id, CASE WHEN " + FENCE_READY + " THEN 1 ELSE 0 END " +
+                                "FROM ledger_watermark WHERE name = ? FOR UPDATE SKIP LOCKED",
+                        (row, i) -> new long[]{row.getLong(1), row.getLong(2), row.getLong(3)},
+                        fenceGraceMs, WATERMARK);
+                if (rows.isEmpty()) {
+                    return null;
+                }
+                long from = rows.get(0)[0];
+                long until = rows.get(0)[1];
+                watermark = from;
+                fence = until;
+                if (from >= until) {
+                    // Граница для следующих шагов вместе со снимком, после которого она годна
+                    long max = jdbcTemplate.queryForObject("SELECT COALESCE(MAX(id), 0) FROM wallet_operation", Long.class);
+                    if (max > until) {
+                        jdbcTemplate.update("UPDATE ledger_watermark SET fence_id = ?, " +
+                                "fence_xmax = pg_snapshot_xmax(pg_current_snapshot())::text::bigint, " +
+                                "updated_at = LOCALTIMESTAMP WHERE name = ?", max, WATERMARK);
+                        fence = max;
+                    }
+                    return new long[]{from, from};
+                }
+                if (rows.get(0)[2] == 0) {
+                    // Транзакции, шедшие при установке границы, ещё не завершились
+                    return new long[]{from, from};
+                }
+                long to = Math.min(until, from + batchIds);
+                jdbcTemplate.update(ADVANCE_SQL, from, to);
+                // updated_at - время установки границы, отметка его не меняет
+                jdbcTemplate.update("UPDATE ledger_watermark SET operation_id = ? WHERE name = ?", to, WATERMARK);
+                watermark = to;
+                return new long[]{from, to};
+            });
+            if (step == null) {
+                break;
+            }
+            if (start < 0) {
+                start = step[0];
+            }
+            if (step[1] == step[0]) {
+                break;
+            }
+        }
+        if (start < 0) {
+            // Отметку держит другой узел: читаем её без блокировки
+            jdbcTemplate.query("SELECT operation_id, fence_id FROM ledger_watermark WHERE name = ?", row -> {
+                watermark = row.getLong(1);
+                fence = row.getLong(2);
+            }, WATERMARK);
+            return new Advance(watermark, watermark);
+        }
+        return new Advance(start, watermark);
+    }
+
+    public long watermark() {
+        return watermark;
+    }
+
+    public long fence() {
+        return fence;
+    }
+
+    private static String credits() {
+        return Arrays.stream(OperationType.values())
+                .filter(OperationType::isCredit)
+                .map(type -> "'" + type + "'")
+                .collect(Collectors.joining(", "));
+    }
+}
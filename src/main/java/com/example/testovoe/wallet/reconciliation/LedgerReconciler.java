@@ -0,0 +1,291 @@
+package com.example.testovoe.wallet.reconciliation;
+
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import com.example.testovoe.wallet.ledger.FixedPoint;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Инкрементальная сверка балансов с операциями.
+ *
+ * Суммы операций по кошелькам - чекпоинты {@link LedgerCheckpointer}; перед
+ * сверкой отметка сдвигается. С суммой сравниваются wallet.balance и кэш -
+ * параллельно пачками по chunk-size: кошельки, чья сумма изменилась с прошлой
+ * сверки, подозрительные с прошлого раза и очередная порция обхода таблицы
+ * wallet. Баланс и операции пишутся в БД разными потоками, поэтому разница
+ * у кошелька в работе обычна; расхождением считается одинаковая ненулевая
+ * разница на двух сверках подряд
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class LedgerReconciler implements MeterBinder {
+
+    private static final UUID MIN_UUID = new UUID(0, 0);
+    private static final int REPORT_LIMIT = 100;
+
+    private static final String COMPARE_SQL =
+            "SELECT t.id, w.balance, l.balance FROM unnest(?::uuid[]) AS t(id) " +
+                    "LEFT JOIN wallet w ON w.id = t.id LEFT JOIN wallet_ledger l ON l.wallet_id = t.id";
+
+    @Value("${wallet.reconciliation.enabled:true}")
+    private boolean enabled;
+
+    @Value("${wallet.reconciliation.threads:2}")
+    private int threads;
+
+    @Value("${wallet.reconciliation.chunk-size:1000}")
+    private int chunkSize;
+
+    @Value("${wallet.reconciliation.sweep-size:10000}")
+    private int sweepSize;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final BalanceStore balanceCache;
+    private final LedgerCheckpointer checkpointer;
+
+    // Разница с прошлой сверки и подтверждённые расхождения
+    private final Map<Key, BalanceMismatch> suspected = new ConcurrentHashMap<>();
+    private final Map<Key, BalanceMismatch> confirmed = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private ExecutorService workers;
+    private UUID sweepCursor = MIN_UUID;
+    // Кошельки с операциями до этого id уже сверены после их изменения
+    private long comparedUpTo = -1;
+    private volatile Summary last;
+    private Counter checkedWallets;
+    private Timer duration;
+
+    private record Key(UUID walletId, BalanceMismatch.Source source) {
+    }
+
+    /**
+     * Итог последней сверки
+     *
+     * @param watermark  операции с id до него учтены в чекпоинтах
+     * @param fence      граница следующего сдвига отметки
+     * @param checked    кошельков сверено за запуск
+     * @param mismatches подтверждённые расхождения, не больше 100 по величине
+     */
+    public record Summary(LocalDateTime finishedAt, long durationMs, long watermark, long fence, int checked,
+                          int suspected, int confirmed, List<BalanceMismatch> mismatches) {
+    }
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threadIds = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Math.max(1, threads), task -> {
+            Thread thread = new Thread(task, "wallet-reconciliation-" + threadIds.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        workers.shutdownNow();
+    }
+
+    @Scheduled(fixedDelayString = "${wallet.reconciliation.interval-ms:60000}",
+            initialDelayString = "${wallet.reconciliation.interval-ms:60000}")
+    public void scheduled() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            reconcile();
+        } catch (RuntimeException e) {
+            log.error("Balance reconciliation failed", e);
+        }
+    }
+
+    /**
+     * Сдвигает отметку и сверяет затронутые кошельки; запуски не пересекаются
+     *
+     * @return итог или null, если таблиц сверки нет (схема без миграций)
+     */
+    public Summary reconcile() {
+        lock.lock();
+        try {
+            if (!checkpointer.available()) {
+                return null;
+            }
+            long start = System.nanoTime();
+            LedgerCheckpointer.Advance advance = checkpointer.advance();
+            // Суммы, изменённые и фоновыми шагами между сверками
+            Set<UUID> wallets = new LinkedHashSet<>(
+                    changed(comparedUpTo < 0 ? advance.from() : comparedUpTo, advance.to()));
+            comparedUpTo = advance.to();
+            suspected.keySet().forEach(key -> wallets.add(key.walletId()));
+            confirmed.keySet().forEach(key -> wallets.add(key.walletId()));
+            wallets.addAll(sweep());
+
+            List<UUID> ids = new ArrayList<>(wallets);
+            List<Future<List<BalanceMismatch>>> chunks = new ArrayList<>();
+            for (int from = 0; from < ids.size(); from += chunkSize) {
+                List<UUID> chunk = ids.subList(from, Math.min(ids.size(), from + chunkSize));
+                chunks.add(workers.submit(() -> compare(chunk)));
+            }
+            Map<Key, BalanceMismatch> observed = new HashMap<>();
+            for (Future<List<BalanceMismatch>> chunk : chunks) {
+                for (BalanceMismatch mismatch : chunk.get()) {
+                    observed.put(new Key(mismatch.walletId(), mismatch.source()), mismatch);
+                }
+            }
+            record(wallets, observed);
+
+            long elapsed = System.nanoTime() - start;
+            duration.record(elapsed, TimeUnit.NANOSECONDS);
+            checkedWallets.increment(wallets.size());
+            long watermark = checkpointer.watermark();
+            last = new Summary(LocalDateTime.now(), TimeUnit.NANOSECONDS.toMillis(elapsed), watermark,
+                    checkpointer.fence(), wallets.size(), suspected.size(), confirmed.size(), mismatches());
+            if (!confirmed.isEmpty()) {
+                log.warn("Reconciliation found {} balance mismatches, ledger at operation {}", confirmed.size(), watermark);
+            }
+            log.info("Reconciled {} wallets in {} ms, ledger at operation {} of {}",
+                    wallets.size(), last.durationMs(), watermark, checkpointer.fence());
+            return last;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Reconciliation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to compare balances", e.getCause());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Summary lastSummary() {
+        return last;
+    }
+
+    /**
+     * Кошельки, чьи суммы изменились операциями с id в (from, to]
+     */
+    private List<UUID> changed(long from, long to) {
+        if (to <= from) {
+            return List.of();
+        }
+        return jdbcTemplate.queryForList(
+                "SELECT wallet_id FROM wallet_ledger WHERE last_operation_id > ? AND last_operation_id <= ?",
+                UUID.class, from, to);
+    }
+
+    /**
+     * Очередная порция таблицы wallet: со временем сверяются и кошельки без новых операций
+     */
+    private List<UUID> sweep() {
+        if (sweepSize <= 0) {
+            return List.of();
+        }
+        List<UUID> ids = jdbcTemplate.queryForList("SELECT id FROM wallet WHERE id > ? ORDER BY id LIMIT ?",
+                UUID.class, sweepCursor, sweepSize);
+        sweepCursor = ids.size() < sweepSize ? MIN_UUID : ids.get(ids.size() - 1);
+        return ids;
+    }
+
+    private List<BalanceMismatch> compare(List<UUID> walletIds) {
+        LocalDateTime now = LocalDateTime.now();
+        List<BalanceMismatch> mismatches = new ArrayList<>();
+        jdbcTemplate.query(COMPARE_SQL, statement -> statement.setArray(1,
+                statement.getConnection().createArrayOf("uuid", walletIds.toArray())), row -> {
+            UUID walletId = row.getObject(1, UUID.class);
+            BigDecimal stored = row.getBigDecimal(2);
+            BigDecimal ledger = row.getBigDecimal(3) != null ? row.getBigDecimal(3) : BigDecimal.ZERO;
+            if (stored != null && stored.compareTo(ledger) != 0) {
+                mismatches.add(new BalanceMismatch(walletId, BalanceMismatch.Source.DATABASE, ledger, stored, now));
+            }
+            long cached = balanceCache.peekBalance(walletId);
+            if (cached != BalanceStore.MISSING && cached != FixedPoint.toUnits(ledger)) {
+                mismatches.add(new BalanceMismatch(walletId, BalanceMismatch.Source.CACHE, ledger,
+                        FixedPoint.toDecimal(cached), now));
+            }
+        });
+        return mismatches;
+    }
+
+    /**
+     * Расхождение подтверждается, если разница не изменилась с прошлой сверки;
+     * совпавшие балансы снимаются с учёта
+     */
+    private void record(Set<UUID> checked, Map<Key, BalanceMismatch> observed) {
+        for (BalanceMismatch.Source source : BalanceMismatch.Source.values()) {
+            for (UUID walletId : checked) {
+                Key key = new Key(walletId, source);
+                BalanceMismatch current = observed.get(key);
+                BalanceMismatch previous = confirmed.containsKey(key) ? confirmed.get(key) : suspected.get(key);
+                suspected.remove(key);
+                confirmed.remove(key);
+                if (current == null) {
+                    continue;
+                }
+                if (previous != null && previous.drift().compareTo(current.drift()) == 0) {
+                    confirmed.put(key, new BalanceMismatch(walletId, source, current.ledger(), current.actual(),
+                            previous.detectedAt()));
+                } else {
+                    suspected.put(key, current);
+                }
+            }
+        }
+    }
+
+    private List<BalanceMismatch> mismatches() {
+        return confirmed.values().stream()
+                .sorted(Comparator.comparing((BalanceMismatch mismatch) -> mismatch.drift().abs()).reversed())
+                .limit(REPORT_LIMIT)
+                .toList();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (BalanceMismatch.Source source : BalanceMismatch.Source.values()) {
+            Gauge.builder("wallet.reconciliation.mismatches", confirmed,
+                            mismatches -> mismatches.keySet().stream().filter(key -> key.source() == source).count())
+                    .tag("source", source.name().toLowerCase())
+                    .description("Wallets whose balance differs from the sum of their operations on two checks in a row")
+                    .register(registry);
+        }
+        Gauge.builder("wallet.reconciliation.pending.operations", checkpointer,
+                        ledger -> Math.max(0, ledger.fence() - ledger.watermark()))
+                .description("Operation ids below the fence not yet added to the ledger")
+                .register(registry);
+        checkedWallets = Counter.builder("wallet.reconciliation.checked")
+                .description("Wallets compared with the ledger")
+                .register(registry);
+        duration = Timer.builder("wallet.reconciliation.duration")
+                .description("Time of one reconciliation run")
+                .register(registry);
+    }
+}
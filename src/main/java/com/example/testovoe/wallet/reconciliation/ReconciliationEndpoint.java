@@ -0,0 +1,28 @@
+package com.example.testovoe.wallet.reconciliation;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * /actuator/reconciliation: итог последней сверки (GET) и внеочередная сверка (POST)
+ */
+@Component
+@Endpoint(id = "reconciliation")
+@RequiredArgsConstructor
+public class ReconciliationEndpoint {
+
+    private final LedgerReconciler reconciler;
+
+    @ReadOperation
+    public LedgerReconciler.Summary summary() {
+        return reconciler.lastSummary();
+    }
+
+    @WriteOperation
+    public LedgerReconciler.Summary reconcile() {
+        return reconciler.reconcile();
+    }
+}
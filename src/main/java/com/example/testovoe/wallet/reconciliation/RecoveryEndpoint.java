@@ -0,0 +1,35 @@
+package com.example.testovoe.wallet.reconciliation;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/**
+ * /actuator/recovery: восстановленный баланс кошелька без записи (GET /{walletId})
+ * и восстановление кошелька или всех кошельков (POST, dryRun - только подсчёт)
+ */
+@Component
+@Endpoint(id = "recovery")
+@RequiredArgsConstructor
+public class RecoveryEndpoint {
+
+    private final BalanceRecovery recovery;
+
+    @ReadOperation
+    public BigDecimal recovered(@Selector UUID walletId) {
+        return recovery.recover(walletId, true);
+    }
+
+    @WriteOperation
+    public Object recover(@Nullable UUID walletId, @Nullable Boolean dryRun) {
+        boolean dry = Boolean.TRUE.equals(dryRun);
+        return walletId != null ? recovery.recover(walletId, dry) : recovery.recoverAll(dry);
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.testovoe.wallet.repository;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Результат пакетной записи балансов
+ *
+ * @param inserted кошельки, которых ещё не было в таблице
+ * @param updated  обновлённые кошельки
+ * @param versions новая версия строки каждого записанного кошелька; кошелька
+ *                 нет в versions - конфликт, строку успел изменить другой узел
+ */
+public record BalanceUpsertResult(int inserted, int updated, Map<UUID, Long> versions) {
+
+    public int affected() {
+        return inserted + updated;
+    }
+}
@@ -0,0 +1,10 @@
+package com.example.testovoe.wallet.repository;
+
+import java.time.LocalDateTime;
+
+/**
+ * Позиция в истории операций кошелька: страница продолжается со строк
+ * строго раньше (createdAt, id)
+ */
+public record OperationCursor(LocalDateTime createdAt, long id) {
+}
@@ -0,0 +1,26 @@
+package com.example.testovoe.wallet.repository;
+
+import com.example.testovoe.wallet.model.OperationStatus;
+import com.example.testovoe.wallet.model.OperationType;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Операция, ожидающая записи в wallet_operation
+ *
+ * @param amountUnits сумма в минорных единицах {@link com.example.testovoe.wallet.ledger.FixedPoint}
+ * @param journalSeq  номер записи в журнале, 0 - журнал выключен
+ * @param operationId ключ идемпотентности или null
+ * @param relative    зачисление на кошелёк другого узла: сумма прибавляется
+ *                    к строке wallet в той же транзакции, что и запись операции
+ */
+public record OperationRow(UUID walletId,
+                           OperationType operationType,
+                           long amountUnits,
+                           OperationStatus status,
+                           long journalSeq,
+                           LocalDateTime createdAt,
+                           UUID operationId,
+                           boolean relative) {
+}
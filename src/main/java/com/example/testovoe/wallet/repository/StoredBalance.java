@@ -0,0 +1,9 @@
+package com.example.testovoe.wallet.repository;
+
+import java.math.BigDecimal;
+
+/**
+ * Баланс кошелька в БД и версия строки, с которой он прочитан
+ */
+public record StoredBalance(BigDecimal balance, long version) {
+}
@@ -0,0 +1,69 @@
+package com.example.testovoe.wallet.repository;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Пакетные операции над кошельками в обход JPA
+ */
+public interface WalletBulkRepository {
+
+    /**
+     * Вставляет или обновляет балансы одним запросом. Строка обновляется, только
+     * если её версия равна ожидаемой, и получает версию на единицу больше
+     *
+     * @param walletIds        кошельки (без повторов)
+     * @param balanceUnits     балансы в минорных единицах, в том же порядке
+     * @param expectedVersions версии строк, с которых считались балансы;
+     *                         отрицательная - запись без проверки
+     */
+    BalanceUpsertResult upsertBalances(UUID[] walletIds, long[] balanceUnits, long[] expectedVersions);
+
+    /**
+     * Прибавляет суммы к балансам одним запросом, версия строки растёт на
+     * единицу, отсутствующие кошельки создаются с этой суммой. Для зачислений,
+     * баланс которых ведёт другой узел: его запись по версии получит конфликт
+     * и пересчитает баланс от записанного
+     *
+     * @param walletIds  кошельки (без повторов)
+     * @param deltaUnits суммы в минорных единицах, в том же порядке
+     * @return версия строки каждого кошелька после записи
+     */
+    Map<UUID, Long> addBalances(UUID[] walletIds, long[] deltaUnits);
+
+    /**
+     * Балансы кошельков одним запросом, отсутствующие создаются с нулевым балансом
+     *
+     * @param walletIds кошельки (без повторов)
+     * @return баланс и версия строки каждого кошелька из walletIds
+     */
+    Map<UUID, StoredBalance> findOrCreateBalances(UUID[] walletIds);
+
+    /**
+     * Кошельки, чья строка изменилась с известной версии: одним запросом по
+     * первичному ключу, без просмотра таблицы
+     *
+     * @param walletIds   кошельки (без повторов)
+     * @param rowVersions известные версии строк, в том же порядке
+     * @param consumer    получает баланс и версию из БД; для удалённых строк - null и -1
+     * @return сколько кошельков изменилось
+     */
+    long findChangedBalances(UUID[] walletIds, long[] rowVersions, BalanceConsumer consumer);
+
+    /**
+     * Потоковое чтение балансов серверным курсором: в памяти не больше fetchSize строк
+     *
+     * @param updatedSince только кошельки, изменённые с этого момента (null - все)
+     * @param limit        не больше стольких самых свежих по updated_at (0 - без ограничения)
+     * @param fetchSize    строк за одно обращение к курсору
+     * @return сколько кошельков прочитано
+     */
+    long scanBalances(LocalDateTime updatedSince, int limit, int fetchSize, BalanceConsumer consumer);
+
+    @FunctionalInterface
+    interface BalanceConsumer {
+        void accept(UUID walletId, BigDecimal balance, long version);
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.testovoe.wallet.repository;
+
+import com.example.testovoe.wallet.ledger.FixedPoint;
+import lombok.RequiredArgsConstructor;
+import org.postgresql.PGConnection;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Балансы передаются типизированными массивами (uuid[] и bigint[]) и
+ * разворачиваются через unnest: без строк, split_part и BigDecimal на стороне
+ * приложения. Минорные единицы переводятся в DECIMAL(19, 4) уже в Postgres.
+ */
+@RequiredArgsConstructor
+public class WalletBulkRepositoryImpl implements WalletBulkRepository {
+
+    // Обновляются только строки с ожидаемой версией; недостающие строки вставляются.
+    // Строки, не попавшие ни в updated, ни в inserted, - конфликт версий
+    private static final String UPSERT_BALANCES_SQL =
+            "WITH u AS (" +
+                    "SELECT * FROM unnest(?::uuid[], ?::bigint[], ?::bigint[]) AS u(id, units, expected)), " +
+                    "updated AS (" +
+                    "UPDATE wallet w SET balance = u.units * 1e-" + FixedPoint.SCALE + "::numeric, " +
+                    "version = w.version + 1, updated_at = now() " +
+                    "FROM u WHERE w.id = u.id AND (u.expected < 0 OR w.version = u.expected) " +
+                    "RETURNING w.id, w.version), " +
+                    "inserted AS (" +
+                    "INSERT INTO wallet (id, balance, version, created_at, updated_at) " +
+                    "SELECT u.id, u.units * 1e-" + FixedPoint.SCALE + "::numeric, 0, now(), now() FROM u " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM wallet w WHERE w.id = u.id) " +
+                    "ON CONFLICT (id) DO NOTHING " +
+                    "RETURNING id, version) " +
+                    "SELECT id, version, false FROM updated " +
+                    "UNION ALL " +
+                    "SELECT id, version, true FROM inserted";
+
+    // Сумма прибавляется к строке под её блокировкой, поэтому не теряется
+    // при одновременной записи владельца
+    private static final String ADD_BALANCES_SQL =
+            "INSERT INTO wallet AS w (id, balance, version, created_at, updated_at) " +
+                    "SELECT d.id, d.units * 1e-" + FixedPoint.SCALE + "::numeric, 0, now(), now() " +
+                    "FROM unnest(?::uuid[], ?::bigint[]) AS d(id, units) " +
+                    "ON CONFLICT (id) DO UPDATE SET balance = w.balance + EXCLUDED.balance, " +
+                    "version = w.version + 1, updated_at = now() " +
+                    "RETURNING id, version";
+
+    // Вставленные строки не видны второму SELECT того же запроса, поэтому кошелёк
+    // приходит ровно один раз: либо из created, либо из wallet
+    private static final String FIND_OR_CREATE_BALANCES_SQL =
+            "WITH created AS (" +
+                    "INSERT INTO wallet (id, balance, version, created_at, updated_at) " +
+                    "SELECT u.id, 0, 0, now(), now() FROM unnest(?::uuid[]) AS u(id) " +
+                    "ON CONFLICT (id) DO NOTHING " +
+                    "RETURNING id, balance, version) " +
+                    "SELECT id, balance, version FROM created " +
+                    "UNION ALL " +
+                    "SELECT id, balance, version FROM wallet WHERE id = ANY(?::uuid[])";
+
+    // Строки без пары в wallet удалены: приходят с NULL
+    private static final String FIND_CHANGED_BALANCES_SQL =
+            "SELECT s.id, w.balance, w.version " +
+                    "FROM unnest(?::uuid[], ?::bigint[]) AS s(id, version) " +
+                    "LEFT JOIN wallet w ON w.id = s.id " +
+                    "WHERE w.id IS NULL OR w.version <> s.version";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private static String scanBalancesSql(boolean recent, boolean limited) {
+        // Индекса по updated_at нет намеренно: он отключил бы HOT-обновления
+        // при синхронизации балансов. С limit Postgres делает top-N сортировку
+        return "SELECT id, balance, version FROM wallet" +
+                (recent ? " WHERE updated_at >= ?" : "") +
+                (limited ? " ORDER BY updated_at DESC LIMIT ?" : "");
+    }
+
+    @Override
+    @Transactional
+    public BalanceUpsertResult upsertBalances(UUID[] walletIds, long[] balanceUnits, long[] expectedVersions) {
+        if (walletIds.length != balanceUnits.length || walletIds.length != expectedVersions.length) {
+            throw new IllegalArgumentException("walletIds, balanceUnits and expectedVersions differ in length");
+        }
+        if (walletIds.length == 0) {
+            return new BalanceUpsertResult(0, 0, Map.of());
+        }
+        return jdbcTemplate.execute((Connection connection) -> {
+            // Массив bigint из long[] без упаковки - только через API драйвера
+            PGConnection pgConnection = connection.unwrap(PGConnection.class);
+            try (PreparedStatement statement = connection.prepareStatement(UPSERT_BALANCES_SQL)) {
+                statement.setArray(1, pgConnection.createArrayOf("uuid", walletIds));
+                statement.setArray(2, pgConnection.createArrayOf("int8", balanceUnits));
+                statement.setArray(3, pgConnection.createArrayOf("int8", expectedVersions));
+                int inserted = 0;
+                int updated = 0;
+                Map<UUID, Long> versions = new HashMap<>(walletIds.length * 2);
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        versions.put(rows.getObject(1, UUID.class), rows.getLong(2));
+                        if (rows.getBoolean(3)) {
+                            inserted++;
+                        } else {
+                            updated++;
+                        }
+                    }
+                }
+                return new BalanceUpsertResult(inserted, updated, versions);
+            }
+        });
+    }
+
+    @Override
+    @Transactional
+    public Map<UUID, Long> addBalances(UUID[] walletIds, long[] deltaUnits) {
+        return jdbcTemplate.execute((Connection connection) -> addBalances(connection, walletIds, deltaUnits));
+    }
+
+    /**
+     * {@link #addBalances(UUID[], long[])} на соединении открытой транзакции
+     */
+    static Map<UUID, Long> addBalances(Connection connection, UUID[] walletIds, long[] deltaUnits)
+            throws SQLException {
+        if (walletIds.length != deltaUnits.length) {
+            throw new IllegalArgumentException("walletIds and deltaUnits differ in length");
+        }
+        if (walletIds.length == 0) {
+            return Map.of();
+        }
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        try (PreparedStatement statement = connection.prepareStatement(ADD_BALANCES_SQL)) {
+            statement.setArray(1, pgConnection.createArrayOf("uuid", walletIds));
+            statement.setArray(2, pgConnection.createArrayOf("int8", deltaUnits));
+            Map<UUID, Long> versions = new HashMap<>(walletIds.length * 2);
+            try (ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    versions.put(rows.getObject(1, UUID.class), rows.getLong(2));
+                }
+            }
+            return versions;
+        }
+    }
+
+    @Override
+    @Transactional
+    public Map<UUID, StoredBalance> findOrCreateBalances(UUID[] walletIds) {
+        if (walletIds.length == 0) {
+            return Map.of();
+        }
+        return jdbcTemplate.execute((Connection connection) -> {
+            try (PreparedStatement statement = connection.prepareStatement(FIND_OR_CREATE_BALANCES_SQL)) {
+                Array ids = connection.createArrayOf("uuid", walletIds);
+                statement.setArray(1, ids);
+                statement.setArray(2, ids);
+                Map<UUID, StoredBalance> balances = new HashMap<>(walletIds.length * 2);
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        balances.put(rows.getObject(1, UUID.class),
+                                new StoredBalance(rows.getBigDecimal(2), rows.getLong(3)));
+                    }
+                }
+                return balances;
+            }
+        });
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public long findChangedBalances(UUID[] walletIds, long[] rowVersions, BalanceConsumer consumer) {
+        if (walletIds.length != rowVersions.length) {
+            throw new IllegalArgumentException("walletIds and rowVersions differ in length");
+        }
+        if (walletIds.length == 0) {
+            return 0;
+        }
+        return jdbcTemplate.execute((Connection connection) -> {
+            PGConnection pgConnection = connection.unwrap(PGConnection.class);
+            try (PreparedStatement statement = connection.prepareStatement(FIND_CHANGED_BALANCES_SQL)) {
+                statement.setArray(1, pgConnection.createArrayOf("uuid", walletIds));
+                statement.setArray(2, pgConnection.createArrayOf("int8", rowVersions));
+                long changed = 0;
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        BigDecimal balance = rows.getBigDecimal(2);
+                        consumer.accept(rows.getObject(1, UUID.class), balance, balance != null ? rows.getLong(3) : -1);
+                        changed++;
+                    }
+                }
+                return changed;
+            }
+        });
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public long scanBalances(LocalDateTime updatedSince, int limit, int fetchSize, BalanceConsumer consumer) {
+        return jdbcTemplate.execute((Connection connection) -> {
+            // Курсор Postgres работает только вне autocommit - транзакция открыта выше
+            try (PreparedStatement statement = connection.prepareStatement(
+                    scanBalancesSql(updatedSince != null, limit > 0))) {
+                statement.setFetchSize(fetchSize);
+                int parameter = 1;
+                if (updatedSince != null) {
+                    statement.setTimestamp(parameter++, Timestamp.valueOf(updatedSince));
+                }
+                if (limit > 0) {
+                    statement.setInt(parameter, limit);
+                }
+                long scanned = 0;
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        consumer.accept(rows.getObject(1, UUID.class), rows.getBigDecimal(2), rows.getLong(3));
+                        scanned++;
+                    }
+                }
+                return scanned;
+            }
+        });
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.testovoe.wallet.repository;
+
+import com.example.testovoe.wallet.entity.WalletOperation;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Пакетная запись операций в обход JPA
+ */
+public interface WalletOperationBulkRepository {
+
+    /**
+     * Операции с {@link OperationRow#relative()} в той же транзакции
+     * прибавляются к балансам своих кошельков
+     *
+     * @param journalId журнал, в котором записаны операции, или null
+     * @return количество записанных строк
+     */
+    long copyOperations(UUID journalId, List<OperationRow> operations);
+
+    /**
+     * Операции кошелька от новых к старым (created_at, id) по индексу
+     * (wallet_id, created_at): границы времени отсекают лишние секции
+     *
+     * @param from  нижняя граница created_at включительно или null
+     * @param to    верхняя граница created_at не включительно или null
+     * @param after последняя операция предыдущей страницы или null
+     */
+    List<WalletOperation> findHistory(UUID walletId, LocalDateTime from, LocalDateTime to,
+                                      OperationCursor after, int limit);
+}
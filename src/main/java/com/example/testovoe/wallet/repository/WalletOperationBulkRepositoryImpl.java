@@ -0,0 +1,217 @@
+package com.example.testovoe.wallet.repository;
+
+import com.example.testovoe.wallet.entity.WalletOperation;
+import com.example.testovoe.wallet.ledger.FixedPoint;
+import com.example.testovoe.wallet.model.OperationStatus;
+import com.example.testovoe.wallet.model.OperationType;
+import lombok.RequiredArgsConstructor;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Запись операций через COPY в бинарном формате: один поток данных на пачку
+ * вместо INSERT ... RETURNING на каждую строку (IDENTITY отключает батчи
+ * Hibernate). id заполняет BIGSERIAL на стороне Postgres.
+ */
+@RequiredArgsConstructor
+public class WalletOperationBulkRepositoryImpl implements WalletOperationBulkRepository {
+
+    private static final String COPY_SQL =
+            "COPY wallet_operation (wallet_id, operation_type, amount, status, journal_id, journal_seq, created_at, operation_id) " +
+                    "FROM STDIN (FORMAT BINARY)";
+
+    private static final byte[] SIGNATURE = "PGCOPY\n\377\r\n\0".getBytes(StandardCharsets.ISO_8859_1);
+    private static final short FIELD_COUNT = 8;
+
+    // Эпоха timestamp в Postgres
+    private static final LocalDateTime PG_EPOCH = LocalDateTime.of(2000, 1, 1, 0, 0);
+
+    // numeric хранится цифрами по основанию 10000; одна цифра - дробная часть FixedPoint
+    private static final int NBASE = 10000;
+    private static final short NUMERIC_POS = 0x0000;
+    private static final short NUMERIC_NEG = 0x4000;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Override
+    @Transactional
+    public long copyOperations(UUID journalId, List<OperationRow> operations) {
+        if (operations.isEmpty()) {
+            return 0;
+        }
+        byte[] data = encode(journalId, operations);
+        return jdbcTemplate.execute((Connection connection) -> {
+            CopyIn copy = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_SQL);
+            long copied;
+            try {
+                copy.writeToCopy(data, 0, data.length);
+                copied = copy.endCopy();
+            } finally {
+                if (copy.isActive()) {
+                    copy.cancelCopy();
+                }
+            }
+            addRelativeBalances(connection, operations);
+            return copied;
+        });
+    }
+
+    /**
+     * Суммы зачислений на кошельки других узлов - к строкам wallet. Операция и
+     * её сумма фиксируются одной транзакцией, поэтому восстановление по журналу
+     * прибавляет сумму, только если вставило саму операцию
+     */
+    private static void addRelativeBalances(Connection connection, List<OperationRow> operations)
+            throws SQLException {
+        // Порядок кошельков один для всех узлов - без взаимных блокировок строк
+        Map<UUID, Long> deltas = new TreeMap<>();
+        for (OperationRow row : operations) {
+            if (row.relative()) {
+                deltas.merge(row.walletId(), row.amountUnits(), Math::addExact);
+            }
+        }
+        if (deltas.isEmpty()) {
+            return;
+        }
+        UUID[] walletIds = deltas.keySet().toArray(UUID[]::new);
+        long[] deltaUnits = deltas.values().stream().mapToLong(Long::longValue).toArray();
+        WalletBulkRepositoryImpl.addBalances(connection, walletIds, deltaUnits);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<WalletOperation> findHistory(UUID walletId, LocalDateTime from, LocalDateTime to,
+                                             OperationCursor after, int limit) {
+        StringBuilder sql = new StringBuilder("""
+                SELECT id, operation_id, operation_type, amount, status, created_at
+                FROM wallet_operation WHERE wallet_id = ?""");
+        // Только столбцы индекса - строки таблицы не читаются
+        List<Object> args = new ArrayList<>();
+        args.add(walletId);
+        if (from != null) {
+            sql.append(" AND created_at >= ?");
+            args.add(from);
+        }
+        if (to != null) {
+            sql.append(" AND created_at < ?");
+            args.add(to);
+        }
+        if (after != null) {
+            // Сравнение строк целиком - продолжение того же обхода индекса
+            sql.append(" AND (created_at, id) < (?, ?)");
+            args.add(after.createdAt());
+            args.add(after.id());
+        }
+        sql.append(" ORDER BY created_at DESC, id DESC LIMIT ?");
+        args.add(limit);
+        return jdbcTemplate.query(sql.toString(), (rs, rowNum) -> WalletOperation.builder()
+                .id(rs.getLong("id"))
+                .walletId(walletId)
+                .operationId(rs.getObject("operation_id", UUID.class))
+                .operationType(OperationType.valueOf(rs.getString("operation_type")))
+                .amount(rs.getBigDecimal("amount"))
+                .status(OperationStatus.valueOf(rs.getString("status")))
+                .createdAt(rs.getObject("created_at", LocalDateTime.class))
+                .build(), args.toArray());
+    }
+
+    static byte[] encode(UUID journalId, List<OperationRow> operations) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(32 + operations.size() * 96);
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            out.write(SIGNATURE);
+            out.writeInt(0);    // флаги
+            out.writeInt(0);    // длина расширения заголовка
+            for (OperationRow row : operations) {
+                out.writeShort(FIELD_COUNT);
+
+                out.writeInt(16);
+                out.writeLong(row.walletId().getMostSignificantBits());
+                out.writeLong(row.walletId().getLeastSignificantBits());
+
+                writeText(out, row.operationType().name());
+                writeNumeric(out, row.amountUnits());
+                writeText(out, row.status().name());
+
+                if (row.journalSeq() > 0) {
+                    writeUuid(out, journalId);
+                    out.writeInt(8);
+                    out.writeLong(row.journalSeq());
+                } else {
+                    out.writeInt(-1);
+                    out.writeInt(-1);
+                }
+
+                out.writeInt(8);
+                out.writeLong(ChronoUnit.MICROS.between(PG_EPOCH, row.createdAt()));
+
+                writeUuid(out, row.operationId());
+            }
+            out.writeShort(-1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(16);
+        out.writeLong(value.getMostSignificantBits());
+        out.writeLong(value.getLeastSignificantBits());
+    }
+
+    private static void writeText(DataOutputStream out, String value) throws IOException {
+        // Имена enum - ASCII
+        out.writeInt(value.length());
+        out.writeBytes(value);
+    }
+
+    /**
+     * Бинарный numeric: ndigits, weight, sign, dscale и цифры по основанию 10000,
+     * начиная со старшей. Минорные единицы со SCALE = 4 - это ровно одна дробная цифра
+     */
+    private static void writeNumeric(DataOutputStream out, long units) throws IOException {
+        short[] digits = new short[6];
+        int count = 0;
+        long value = Math.abs(units);
+        // Цифры с младшей
+        while (value != 0) {
+            digits[count++] = (short) (value % NBASE);
+            value /= NBASE;
+        }
+        // Хвостовые нулевые цифры не пишем, weight считаем от дробной цифры
+        int lowest = 0;
+        while (lowest < count && digits[lowest] == 0) {
+            lowest++;
+        }
+        int ndigits = count - lowest;
+        out.writeInt(8 + ndigits * 2);
+        out.writeShort(ndigits);
+        out.writeShort(ndigits == 0 ? 0 : count - 2);
+        out.writeShort(units < 0 ? NUMERIC_NEG : NUMERIC_POS);
+        out.writeShort(FixedPoint.SCALE);
+        for (int i = count - 1; i >= lowest; i--) {
+            out.writeShort(digits[i]);
+        }
+    }
+}
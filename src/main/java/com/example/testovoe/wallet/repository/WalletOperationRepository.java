@@ -1,15 +1,29 @@
-package com.example.testovoe.wallet.repository;
-
-import org.springframework.data.jpa.repository.JpaRepository;
-import org.springframework.data.jpa.repository.Modifying;
-import org.springframework.data.jpa.repository.Query;
-import org.springframework.data.repository.query.Param;
-import org.springframework.stereotype.Repository;
-import com.example.testovoe.wallet.entity.WalletOperation;
-
-import java.util.List;
-import java.util.UUID;
-
-@Repository
-public interface WalletOperationRepository extends JpaRepository<WalletOperation, Long> {
-}
+package com.example.testovoe.wallet.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import com.example.testovoe.wallet.entity.WalletOperation;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+@Repository
+public interface WalletOperationRepository extends JpaRepository<WalletOperation, Long>, WalletOperationBulkRepository {
+
+    // Ключи идемпотентности последних операций для восстановления индекса
+    // (ключ перевода закреплён за кошельком списания)
+    @Query("SELECT o.operationId AS operationId, o.walletId AS walletId FROM WalletOperation o " +
+            "WHERE o.operationId IS NOT NULL AND o.createdAt > :since " +
+            "AND o.operationType <> com.example.testovoe.wallet.model.OperationType.TRANSFER_IN")
+    List<OperationKey> findOperationKeysSince(@Param("since") LocalDateTime since);
+
+    interface OperationKey {
+        UUID getOperationId();
+
+        UUID getWalletId();
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.testovoe.wallet.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Лимит пачки и пауза одного потока записи, подбираемые AIMD по задержке
+ * записи и глубине очереди после неё:
+ * - полная пачка записалась быстрее целевой задержки, а очередь не пуста -
+ *   лимит растёт на step; пачка записалась медленнее или с ошибкой - лимит
+ *   уменьшается в decreaseFactor раз;
+ * - в очереди осталось не меньше пачки или запись уложилась в целевую
+ *   задержку, а очередь не пуста - следующая запись сразу; медленная запись
+ *   при неглубокой очереди - пауза сокращается в decreaseFactor раз; очередь
+ *   пуста - пауза растёт на 1/INTERVAL_STEPS от максимальной.
+ *
+ * Под всплеском пачки растут до целевой задержки, а паузы исчезают, поэтому
+ * скорость записи ограничена БД, а не лимитами. Состояние меняет только
+ * поток записи, остальные потоки его читают
+ */
+public final class AdaptiveBatch {
+
+    // Пустых циклов от минимальной паузы до максимальной
+    private static final int INTERVAL_STEPS = 8;
+    // Вес нового значения в сглаженных метриках
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final String queue;
+    private final int minBatch;
+    private final int maxBatch;
+    private final int step;
+    private final double decreaseFactor;
+    private final long targetLatencyNanos;
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+
+    private volatile int limit;
+    private volatile long intervalNanos;
+    private volatile long delayNanos;
+    private volatile double fillRatio;
+    private volatile double rowsPerSecond;
+
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder cycles = new LongAdder();
+    private final LongAdder idleCycles = new LongAdder();
+    private final LongAdder decreases = new LongAdder();
+
+    /**
+     * @param queue          тег метрик: balances или operations
+     * @param initialBatch   лимит до первых наблюдений
+     * @param maxIntervalNanos пауза при пустой очереди
+     */
+    public AdaptiveBatch(String queue, int initialBatch, int minBatch, int maxBatch, int step,
+                         double decreaseFactor, long targetLatencyNanos,
+                         long minIntervalNanos, long maxIntervalNanos) {
+        if (minBatch < 1 || maxBatch < minBatch || step < 1) {
+            throw new IllegalArgumentException("Invalid batch bounds for " + queue + ": "
+                    + minBatch + ".." + maxBatch + ", step " + step);
+        }
+        if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+            throw new IllegalArgumentException("Decrease factor must be in (0, 1): " + decreaseFactor);
+        }
+        this.queue = queue;
+        this.minBatch = minBatch;
+        this.maxBatch = maxBatch;
+        this.step = step;
+        this.decreaseFactor = decreaseFactor;
+        this.targetLatencyNanos = targetLatencyNanos;
+        this.minIntervalNanos = Math.min(minIntervalNanos, maxIntervalNanos);
+        this.maxIntervalNanos = maxIntervalNanos;
+        this.limit = Math.max(minBatch, Math.min(maxBatch, initialBatch));
+        this.intervalNanos = maxIntervalNanos;
+    }
+
+    /**
+     * Сколько строк брать в следующую пачку
+     */
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * Пауза перед следующей записью, решённая по последнему циклу
+     */
+    public long delayNanos() {
+        return delayNanos;
+    }
+
+    /**
+     * Итог цикла записи
+     *
+     * @param written записано строк, 0 - очередь была пуста
+     * @param nanos   время записи пачки
+     * @param backlog строк в очереди после записи
+     */
+    public void onFlush(int written, long nanos, long backlog) {
+        cycles.increment();
+        if (written == 0) {
+            idleCycles.increment();
+            slowDown();
+            return;
+        }
+        rows.add(written);
+        fillRatio += EWMA_WEIGHT * ((double) written / limit - fillRatio);
+        rowsPerSecond += EWMA_WEIGHT * (written * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos)
+                - rowsPerSecond);
+
+        if (nanos > targetLatencyNanos) {
+            decrease();
+        } else if (written >= limit && backlog > 0) {
+            limit = Math.min(maxBatch, limit + step);
+        }
+
+        if (backlog > 0) {
+            speedUp();
+            // БД успевает: хвост очереди после простоя не ждёт накопленной паузы
+            if (backlog >= limit || nanos <= targetLatencyNanos) {
+                delayNanos = 0;
+            }
+        } else {
+            slowDown();
+        }
+    }
+
+    /**
+     * Запись не удалась: пачка меньше, повтор через максимальную паузу
+     */
+    public void onFailure() {
+        cycles.increment();
+        decrease();
+        intervalNanos = maxIntervalNanos;
+        delayNanos = maxIntervalNanos;
+    }
+
+    private void decrease() {
+        limit = Math.max(minBatch, (int) (limit * decreaseFactor));
+        decreases.increment();
+    }
+
+    private void speedUp() {
+        intervalNanos = Math.max(minIntervalNanos, (long) (intervalNanos * decreaseFactor));
+        delayNanos = intervalNanos;
+    }
+
+    private void slowDown() {
+        intervalNanos = Math.min(maxIntervalNanos, intervalNanos + maxIntervalNanos / INTERVAL_STEPS);
+        delayNanos = intervalNanos;
+    }
+
+    void bindTo(MeterRegistry registry) {
+        Gauge.builder("wallet.flush.batch.limit", this, AdaptiveBatch::limit)
+                .tag("queue", queue)
+                .description("Current batch size limit of the writer thread")
+                .register(registry);
+        TimeGauge.builder("wallet.flush.interval", this, TimeUnit.NANOSECONDS, b -> b.intervalNanos)
+                .tag("queue", queue)
+                .description("Current pause between writes while the queue is not deeper than a batch")
+                .register(registry);
+        Gauge.builder("wallet.flush.fill.ratio", this, b -> b.fillRatio)
+                .tag("queue", queue)
+                .description("Smoothed share of the batch limit filled by non-empty writes")
+                .register(registry);
+        Gauge.builder("wallet.flush.throughput", this, b -> b.rowsPerSecond)
+                .tag("queue", queue)
+                .baseUnit("rows/s")
+                .description("Smoothed rows written per second of database time")
+                .register(registry);
+        FunctionCounter.builder("wallet.flush.rows", rows, LongAdder::sum)
+                .tag("queue", queue)
+                .register(registry);
+        FunctionCounter.builder("wallet.flush.cycles", cycles, LongAdder::sum)
+                .tag("queue", queue)
+                .register(registry);
+        FunctionCounter.builder("wallet.flush.idle.cycles", idleCycles, LongAdder::sum)
+                .tag("queue", queue)
+                .description("Writer wake-ups that found the queue empty")
+                .register(registry);
+        FunctionCounter.builder("wallet.flush.decreases", decreases, LongAdder::sum)
+                .tag("queue", queue)
+                .description("Batch limit cuts after slow or failed writes")
+                .register(registry);
+    }
+}
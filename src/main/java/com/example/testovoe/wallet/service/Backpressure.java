@@ -0,0 +1,192 @@
+package com.example.testovoe.wallet.service;
+
+import com.example.testovoe.wallet.exception.ServiceOverloadedException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ограничение очередей записи в БД с гистерезисом: при превышении верхней
+ * границы (или отставания записи) новые операции отклоняются, пока очереди
+ * не опустятся до нижней границы.
+ *
+ * Глубину очереди операций считает сам по событиям постановки и записи,
+ * отставание и очередь балансов сообщает поток записи через {@link #update(long, long)}.
+ */
+@Slf4j
+@Component
+public class Backpressure implements MeterBinder {
+
+    private static final long WAIT_STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @Value("${wallet.backpressure.high-watermark:200000}")
+    private long highWatermark;
+
+    @Value("${wallet.backpressure.low-watermark:100000}")
+    private long lowWatermark;
+
+    @Value("${wallet.backpressure.max-lag-ms:5000}")
+    private long maxLagMs;
+
+    // 0 - отклонять сразу, иначе придерживать вызывающего до этого времени
+    @Value("${wallet.backpressure.max-wait-ms:0}")
+    private long maxWaitMs;
+
+    @Value("${wallet.backpressure.retry-after-seconds:1}")
+    private int retryAfterSeconds;
+
+    private final AtomicLong pendingOperations = new AtomicLong();
+    private final LongAdder persisted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private volatile long pendingBalances;
+    private volatile long lagNanos;
+    private volatile long lagMeasuredAt = System.nanoTime();
+    private volatile boolean overloaded;
+    private volatile double drainRate;
+
+    // Только поток записи
+    private long rateWindowStart = System.nanoTime();
+    private long rateWindowPersisted;
+
+    /**
+     * Пропускает операцию или бросает {@link ServiceOverloadedException}
+     */
+    public void admit() {
+        if (!shouldReject()) {
+            return;
+        }
+        if (maxWaitMs > 0) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+            while (System.nanoTime() < deadline) {
+                LockSupport.parkNanos(WAIT_STEP_NANOS);
+                if (!shouldReject()) {
+                    return;
+                }
+            }
+        }
+        rejected.increment();
+        throw new ServiceOverloadedException(retryAfterSeconds);
+    }
+
+    /**
+     * Как {@link #admit()}, но без ожидания: для вызывающих, которым нельзя
+     * блокировать поток (неблокирующий стек)
+     */
+    public void admitNow() {
+        if (shouldReject()) {
+            rejected.increment();
+            throw new ServiceOverloadedException(retryAfterSeconds);
+        }
+    }
+
+    public void onEnqueued() {
+        pendingOperations.incrementAndGet();
+    }
+
+    public void onPersisted(int operations) {
+        pendingOperations.addAndGet(-operations);
+        persisted.add(operations);
+    }
+
+    /**
+     * Состояние после очередного цикла записи (поток записи)
+     *
+     * @param balances кошельки, ожидающие записи баланса
+     * @param lag      возраст самой старой незаписанной операции
+     */
+    public void update(long balances, long lag) {
+        long now = System.nanoTime();
+        pendingBalances = balances;
+        lagNanos = lag;
+        lagMeasuredAt = now;
+
+        long elapsed = now - rateWindowStart;
+        if (elapsed >= RATE_WINDOW_NANOS) {
+            long total = persisted.sum();
+            double rate = (total - rateWindowPersisted) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+            // Сглаживаем, чтобы единичная пауза не обнуляла скорость
+            drainRate = (drainRate + rate) / 2;
+            rateWindowStart = now;
+            rateWindowPersisted = total;
+        }
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    public long pendingOperations() {
+        return pendingOperations.get();
+    }
+
+    /**
+     * Отставание растёт и между циклами записи, например пока идёт долгий COPY
+     */
+    public long lagNanos() {
+        if (pendingOperations.get() == 0) {
+            return 0;
+        }
+        return lagNanos + (System.nanoTime() - lagMeasuredAt);
+    }
+
+    private boolean shouldReject() {
+        long operations = pendingOperations.get();
+        long balances = pendingBalances;
+        long lag = lagNanos();
+        long maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMs);
+
+        if (overloaded) {
+            if (operations > lowWatermark || balances > lowWatermark || lag >= maxLagNanos) {
+                return true;
+            }
+            overloaded = false;
+            log.info("Persistence caught up: {} operations, {} balances pending", operations, balances);
+            return false;
+        }
+        if (operations >= highWatermark || balances >= highWatermark || lag >= maxLagNanos) {
+            overloaded = true;
+            log.warn("Persistence is lagging, rejecting operations: {} operations, {} balances pending, lag {} ms",
+                    operations, balances, TimeUnit.NANOSECONDS.toMillis(lag));
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("wallet.persistence.queue.depth", pendingOperations, AtomicLong::get)
+                .tag("queue", "operations")
+                .description("Operations accepted but not yet written to the database")
+                .register(registry);
+        Gauge.builder("wallet.persistence.queue.depth", this, b -> b.pendingBalances)
+                .tag("queue", "balances")
+                .description("Wallets whose balance is not yet written to the database")
+                .register(registry);
+        TimeGauge.builder("wallet.persistence.lag", this, TimeUnit.NANOSECONDS, Backpressure::lagNanos)
+                .description("Age of the oldest operation not yet written to the database")
+                .register(registry);
+        Gauge.builder("wallet.persistence.drain.rate", this, b -> b.drainRate)
+                .baseUnit("operations/s")
+                .description("Operations written to the database per second")
+                .register(registry);
+        Gauge.builder("wallet.persistence.overloaded", this, b -> b.overloaded ? 1 : 0)
+                .description("1 while new operations are rejected")
+                .register(registry);
+        FunctionCounter.builder("wallet.persistence.persisted", persisted, LongAdder::sum)
+                .register(registry);
+        FunctionCounter.builder("wallet.persistence.rejected", rejected, LongAdder::sum)
+                .register(registry);
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.testovoe.wallet.service;
+
+import com.example.testovoe.wallet.cluster.ClusterMembership;
+import com.example.testovoe.wallet.journal.OperationJournal;
+import com.example.testovoe.wallet.ledger.BalanceSnapshot;
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import com.example.testovoe.wallet.ledger.FixedPoint;
+import com.example.testovoe.wallet.repository.StoredBalance;
+import com.example.testovoe.wallet.repository.WalletRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Снимок кэша балансов на локальном диске для быстрого рестарта.
+ *
+ * Снимок пишется периодически и последним при остановке - после финального
+ * сброса балансов в БД (WalletService зависит от этого бина и останавливается
+ * раньше). При старте версии строк из снимка сверяются с wallet.version:
+ * изменённые после снимка кошельки берутся из БД, остальные - из снимка;
+ * восстановленное из журнала уже в кэше и не затирается
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class CacheSnapshotter {
+
+    @Value("${wallet.snapshot.enabled:true}")
+    private boolean enabled;
+
+    @Value("${wallet.snapshot.path:data/snapshot/balances.snap}")
+    private String path;
+
+    @Value("${wallet.warmup.fetch-size:10000}")
+    private int fetchSize;
+
+    private final BalanceStore balanceCache;
+    private final OperationJournal journal;
+    private final WalletRepository walletRepository;
+    private final ClusterMembership cluster;
+
+    // Плановый снимок и снимок при остановке не пишутся одновременно
+    private final ReentrantLock lock = new ReentrantLock();
+
+    @Scheduled(fixedDelayString = "${wallet.snapshot.interval-ms:60000}",
+            initialDelayString = "${wallet.snapshot.interval-ms:60000}")
+    public void snapshot() {
+        if (enabled) {
+            write();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (enabled) {
+            write();
+        }
+    }
+
+    /**
+     * @return количество кошельков в снимке
+     */
+    public long write() {
+        lock.lock();
+        try {
+            long start = System.nanoTime();
+            long size = BalanceSnapshot.write(Path.of(path), LocalDateTime.now(), balanceCache);
+            log.info("Wrote balance snapshot of {} wallets in {} ms", size,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return size;
+        } catch (RuntimeException e) {
+            log.error("Failed to write balance snapshot", e);
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Загружает снимок в кэш
+     *
+     * @return количество добавленных в кэш кошельков; -1, если снимка нет или он не читается
+     */
+    public long restore() {
+        if (!enabled) {
+            return -1;
+        }
+        long start = System.nanoTime();
+        BalanceSnapshot snapshot;
+        try {
+            snapshot = BalanceSnapshot.read(Path.of(path));
+        } catch (RuntimeException e) {
+            log.warn("Ignoring unreadable balance snapshot {}", path, e);
+            return -1;
+        }
+        if (snapshot == null) {
+            return -1;
+        }
+        long version = journal.lastSequence();
+        Chunk chunk = new Chunk(fetchSize);
+        long[] restored = {0};
+        long[] changed = {0};
+        try {
+            snapshot.forEach((walletId, balance, rowVersion) -> {
+                // Состав кластера мог измениться с момента снимка
+                if (cluster.isOwner(walletId) && chunk.add(walletId, balance, rowVersion)) {
+                    restoreChunk(chunk, version, restored, changed);
+                }
+            });
+            restoreChunk(chunk, version, restored, changed);
+        } catch (RuntimeException e) {
+            log.warn("Failed to validate balance snapshot against the database", e);
+            return -1;
+        }
+        log.info("Restored {} wallets from snapshot of {} ({} changed since {}) in {} ms", restored[0],
+                snapshot.size(), changed[0], snapshot.takenAt(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return restored[0];
+    }
+
+    /**
+     * Кошельки окна снимка в кэш: версии строк сверяются с БД одним запросом,
+     * изменённые после снимка берутся из БД, удалённые пропускаются
+     */
+    private void restoreChunk(Chunk chunk, long version, long[] restored, long[] changed) {
+        if (chunk.size == 0) {
+            return;
+        }
+        Map<UUID, StoredBalance> stored = new HashMap<>();
+        changed[0] += walletRepository.findChangedBalances(Arrays.copyOf(chunk.walletIds, chunk.size),
+                Arrays.copyOf(chunk.rowVersions, chunk.size),
+                (walletId, balance, rowVersion) -> stored.put(walletId, balance != null ? new StoredBalance(balance, rowVersion) : null));
+        for (int i = 0; i < chunk.size; i++) {
+            UUID walletId = chunk.walletIds[i];
+            boolean put;
+            if (!stored.containsKey(walletId)) {
+                put = balanceCache.putIfAbsent(walletId, chunk.balances[i], version, chunk.rowVersions[i]);
+            } else {
+                StoredBalance current = stored.get(walletId);
+                put = current != null
+                        && balanceCache.putIfAbsent(walletId, FixedPoint.toUnits(current.balance()), version, current.version());
+            }
+            if (put) {
+                restored[0]++;
+            }
+        }
+        chunk.size = 0;
+    }
+
+    /**
+     * Окно записей снимка до сверки с БД
+     */
+    private static final class Chunk {
+        private final UUID[] walletIds;
+        private final long[] balances;
+        private final long[] rowVersions;
+        private int size;
+
+        private Chunk(int capacity) {
+            walletIds = new UUID[capacity];
+            balances = new long[capacity];
+            rowVersions = new long[capacity];
+        }
+
+        /**
+         * @return true, если окно заполнено
+         */
+        private boolean add(UUID walletId, long balance, long rowVersion) {
+            walletIds[size] = walletId;
+            balances[size] = balance;
+            rowVersions[size++] = rowVersion;
+            return size == walletIds.length;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.testovoe.wallet.service;
+
+import com.example.testovoe.wallet.cluster.ClusterMembership;
+import com.example.testovoe.wallet.journal.OperationJournal;
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import com.example.testovoe.wallet.ledger.FixedPoint;
+import com.example.testovoe.wallet.repository.WalletRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Прогрев кэша балансов при старте.
+ *
+ * Таблица кошельков читается одним серверным курсором (fetch-size строк за раз),
+ * пачки раскладываются в кэш несколькими потоками. Память не зависит от размера
+ * таблицы: в обработке не больше threads * 2 пачек. Если есть снимок кэша
+ * ({@link CacheSnapshotter}), таблица не читается. Выполняется как
+ * ApplicationRunner, поэтому readiness становится UP только после прогрева.
+ * В кластере в кэш попадают только кошельки этого узла.
+ * Ошибка прогрева не мешает старту: кошельки догрузятся при промахах
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class CacheWarmer implements ApplicationRunner, MeterBinder {
+
+    @Value("${wallet.warmup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${wallet.warmup.threads:4}")
+    private int threads;
+
+    @Value("${wallet.warmup.fetch-size:10000}")
+    private int fetchSize;
+
+    // 0 - по размеру кэша (wallet.cache.max-size)
+    @Value("${wallet.warmup.max-wallets:0}")
+    private int maxWallets;
+
+    // 0 - без фильтра по давности изменения
+    @Value("${wallet.warmup.updated-within-days:0}")
+    private int updatedWithinDays;
+
+    @Value("${wallet.cache.max-size:1000000}")
+    private int cacheMaxSize;
+
+    private final WalletRepository walletRepository;
+    private final BalanceStore balanceCache;
+    private final OperationJournal journal;
+    private final CacheSnapshotter cacheSnapshotter;
+    private final ClusterMembership cluster;
+
+    private final AtomicLong loaded = new AtomicLong();
+    private volatile int target;
+    private volatile boolean running;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        long restored = cacheSnapshotter.restore();
+        if (restored >= 0) {
+            loaded.set(restored);
+            return;
+        }
+        if (enabled) {
+            warmUp();
+        }
+    }
+
+    /**
+     * @return сколько кошельков добавлено в кэш
+     */
+    public long warmUp() {
+        int limit = maxWallets > 0 ? maxWallets : cacheMaxSize;
+        LocalDateTime since = updatedWithinDays > 0 ? LocalDateTime.now().minusDays(updatedWithinDays) : null;
+        // Как при загрузке промаха: версия больше версий всех прежних записей
+        long version = journal.lastSequence();
+        long start = System.nanoTime();
+        target = limit;
+        loaded.set(0);
+        running = true;
+
+        AtomicInteger threadIds = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), task -> {
+            Thread thread = new Thread(task, "wallet-warmup-" + threadIds.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore inFlight = new Semaphore(Math.max(1, threads) * 2);
+        Chunk[] chunk = {new Chunk(fetchSize)};
+        try {
+            long scanned = walletRepository.scanBalances(since, limit, fetchSize, (walletId, balance, rowVersion) -> {
+                if (!cluster.isOwner(walletId)) {
+                    return;
+                }
+                try {
+                    chunk[0].add(walletId, FixedPoint.toUnits(balance), rowVersion);
+                } catch (ArithmeticException e) {
+                    log.warn("Skipping wallet {} on warm-up: balance {} is out of range", walletId, balance);
+                    return;
+                }
+                if (chunk[0].isFull()) {
+                    submit(pool, inFlight, chunk[0], version);
+                    chunk[0] = new Chunk(fetchSize);
+                }
+            });
+            submit(pool, inFlight, chunk[0], version);
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            log.info("Warmed up {} of {} scanned wallets in {} ms", loaded.get(), scanned,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Cache warm-up interrupted after {} wallets", loaded.get());
+        } catch (RuntimeException e) {
+            log.warn("Cache warm-up failed after {} wallets, the rest will load on demand", loaded.get(), e);
+        } finally {
+            pool.shutdownNow();
+            running = false;
+        }
+        return loaded.get();
+    }
+
+    private void submit(ExecutorService pool, Semaphore inFlight, Chunk chunk, long version) {
+        if (chunk.size == 0) {
+            return;
+        }
+        // Курсор не обгоняет раскладку больше чем на threads * 2 пачки
+        inFlight.acquireUninterruptibly();
+        pool.execute(() -> {
+            try {
+                int added = 0;
+                for (int i = 0; i < chunk.size; i++) {
+                    // Кошелёк мог попасть в кэш раньше (журнал, запрос) - он свежее
+                    if (balanceCache.putIfAbsent(chunk.walletIds[i], chunk.balances[i], version, chunk.rowVersions[i])) {
+                        added++;
+                    }
+                }
+                loaded.addAndGet(added);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("wallet.warmup.loaded", loaded, AtomicLong::get)
+                .description("Wallets put into the cache by the startup warm-up")
+                .register(registry);
+        Gauge.builder("wallet.warmup.target", this, warmer -> warmer.target)
+                .description("Upper bound of wallets to warm up, 0 - whole table")
+                .register(registry);
+        Gauge.builder("wallet.warmup.running", this, warmer -> warmer.running ? 1 : 0)
+                .register(registry);
+    }
+
+    private static final class Chunk {
+        private final UUID[] walletIds;
+        private final long[] balances;
+        private final long[] rowVersions;
+        private int size;
+
+        private Chunk(int capacity) {
+            walletIds = new UUID[capacity];
+            balances = new long[capacity];
+            rowVersions = new long[capacity];
+        }
+
+        private void add(UUID walletId, long balance, long rowVersion) {
+            walletIds[size] = walletId;
+            balances[size] = balance;
+            rowVersions[size++] = rowVersion;
+        }
+
+        private boolean isFull() {
+            return size == walletIds.length;
+        }
+    }
+}
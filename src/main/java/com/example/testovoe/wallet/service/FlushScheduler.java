@@ -0,0 +1,139 @@
+package com.example.testovoe.wallet.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Потоки записи очередей в БД: у каждой очереди свой поток и свой
+ * {@link AdaptiveBatch}, поэтому балансы и операции пишутся параллельно и
+ * не занимают общий поток @Scheduled.
+ *
+ * Максимальные паузы - прежние wallet.cache.sync-interval-ms и
+ * operations-sync-interval-ms, начальные пачки - прежние фиксированные
+ * лимиты
+ */
+@Slf4j
+@Component
+public class FlushScheduler implements MeterBinder {
+
+    @Value("${wallet.flush.target-latency-ms:200}")
+    private long targetLatencyMs;
+
+    @Value("${wallet.flush.decrease-factor:0.5}")
+    private double decreaseFactor;
+
+    @Value("${wallet.flush.min-interval-ms:1}")
+    private long minIntervalMs;
+
+    @Value("${wallet.cache.sync-interval-ms}")
+    private long balancesMaxIntervalMs;
+
+    @Value("${wallet.flush.balances.initial-batch:1000}")
+    private int balancesInitialBatch;
+
+    @Value("${wallet.flush.balances.min-batch:100}")
+    private int balancesMinBatch;
+
+    @Value("${wallet.flush.balances.max-batch:20000}")
+    private int balancesMaxBatch;
+
+    @Value("${wallet.flush.balances.step:250}")
+    private int balancesStep;
+
+    @Value("${wallet.cache.operations-sync-interval-ms}")
+    private long operationsMaxIntervalMs;
+
+    @Value("${wallet.cache.operations-batch-size:5000}")
+    private int operationsInitialBatch;
+
+    @Value("${wallet.flush.operations.min-batch:500}")
+    private int operationsMinBatch;
+
+    @Value("${wallet.flush.operations.max-batch:50000}")
+    private int operationsMaxBatch;
+
+    @Value("${wallet.flush.operations.step:1000}")
+    private int operationsStep;
+
+    private AdaptiveBatch balances;
+    private AdaptiveBatch operations;
+
+    private final List<Thread> writers = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    @PostConstruct
+    public void init() {
+        balances = new AdaptiveBatch("balances", balancesInitialBatch, balancesMinBatch, balancesMaxBatch,
+                balancesStep, decreaseFactor, TimeUnit.MILLISECONDS.toNanos(targetLatencyMs),
+                TimeUnit.MILLISECONDS.toNanos(minIntervalMs), TimeUnit.MILLISECONDS.toNanos(balancesMaxIntervalMs));
+        operations = new AdaptiveBatch("operations", operationsInitialBatch, operationsMinBatch, operationsMaxBatch,
+                operationsStep, decreaseFactor, TimeUnit.MILLISECONDS.toNanos(targetLatencyMs),
+                TimeUnit.MILLISECONDS.toNanos(minIntervalMs), TimeUnit.MILLISECONDS.toNanos(operationsMaxIntervalMs));
+    }
+
+    public AdaptiveBatch balances() {
+        return balances;
+    }
+
+    public AdaptiveBatch operations() {
+        return operations;
+    }
+
+    /**
+     * Запускает поток, который вызывает flush и ждёт паузу, выбранную batch.
+     * flush сам сообщает batch итог записи; исключение считается неудачной записью
+     */
+    public void start(String name, AdaptiveBatch batch, Runnable flush) {
+        Thread writer = new Thread(() -> {
+            while (running) {
+                try {
+                    flush.run();
+                } catch (RuntimeException e) {
+                    log.error("Writer {} failed, will retry", name, e);
+                    batch.onFailure();
+                }
+                long delay = batch.delayNanos();
+                if (delay > 0 && running) {
+                    LockSupport.parkNanos(delay);
+                }
+            }
+        }, name);
+        writer.setDaemon(true);
+        writers.add(writer);
+        writer.start();
+    }
+
+    /**
+     * Останавливает потоки записи, дожидаясь текущих пачек
+     */
+    public void stop(long timeoutMs) {
+        running = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (Thread writer : writers) {
+            LockSupport.unpark(writer);
+        }
+        for (Thread writer : writers) {
+            try {
+                writer.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        balances.bindTo(registry);
+        operations.bindTo(registry);
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.testovoe.wallet.service;
+
+import com.example.testovoe.wallet.cluster.ClusterMembership;
+import com.example.testovoe.wallet.journal.JournalRecord;
+import com.example.testovoe.wallet.journal.OperationJournal;
+import com.example.testovoe.wallet.ledger.FixedPoint;
+import com.example.testovoe.wallet.ledger.IdempotencyIndex;
+import com.example.testovoe.wallet.model.OperationStatus;
+import com.example.testovoe.wallet.model.OperationType;
+import com.example.testovoe.wallet.repository.WalletRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Восстановление после рестарта: дописываем в БД операции и балансы из журнала.
+ *
+ * Абсолютный баланс из журнала пишется только для кошельков, которыми узел
+ * владеет: баланс чужого кошелька ведёт его владелец, и запись отсюда затёрла
+ * бы более новый. Чужим кошелькам и зачислениям {@link JournalRecord#relative()}
+ * прибавляются суммы операций, которых ещё не было в БД
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class JournalRecovery {
+
+    private static final int BATCH_SIZE = 1000;
+
+    // Повторный прогон журнала не должен дублировать операции. Номера записей
+    // уникальны только в своём журнале, поэтому операция узнаётся по паре
+    private static final String INSERT_OPERATION_SQL =
+            "INSERT INTO wallet_operation (journal_id, journal_seq, wallet_id, operation_type, amount, status, created_at, operation_id) " +
+                    "SELECT ?, ?, ?, ?, ?, ?, ?, ? " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM wallet_operation WHERE journal_id = ? AND journal_seq = ?)";
+
+    private final OperationJournal journal;
+    private final JdbcTemplate jdbcTemplate;
+    private final WalletRepository walletRepository;
+    private final IdempotencyIndex idempotencyIndex;
+    private final ClusterMembership cluster;
+
+    /**
+     * @return последний баланс из журнала по каждому своему кошельку
+     */
+    @Transactional
+    public List<RecoveredBalance> recover() {
+        Map<UUID, JournalRecord> latest = new HashMap<>();
+        // Суммы вставленных сейчас операций, которые прибавляются к строкам
+        Map<UUID, Long> deltas = new TreeMap<>();
+        List<JournalRecord> batch = new ArrayList<>(BATCH_SIZE);
+        long[] replayed = {0};
+
+        journal.replay(record -> {
+            // Записи одного кошелька могут лежать в журнале не по порядку версий
+            if (!record.relative() && cluster.isOwner(record.walletId())) {
+                latest.merge(record.walletId(), record,
+                        (current, candidate) -> candidate.version() > current.version() ? candidate : current);
+            }
+            batch.add(record);
+            // Ключ перевода закреплён за кошельком списания
+            if (record.operationId() != null && record.operationType() != OperationType.TRANSFER_IN) {
+                // Операция уже в БД, ждать журнал при повторе не нужно
+                idempotencyIndex.complete(record.operationId(), record.walletId(), 0);
+            }
+            if (batch.size() == BATCH_SIZE) {
+                insertOperations(batch, deltas);
+                batch.clear();
+            }
+            replayed[0]++;
+        });
+        insertOperations(batch, deltas);
+
+        if (replayed[0] == 0) {
+            return List.of();
+        }
+
+        UUID[] walletIds = new UUID[latest.size()];
+        long[] balances = new long[latest.size()];
+        long[] versions = new long[latest.size()];
+        int i = 0;
+        for (JournalRecord record : latest.values()) {
+            walletIds[i] = record.walletId();
+            balances[i] = FixedPoint.toUnits(record.balance());
+            // Журнал - источник истины для своих кошельков: пишем без проверки версии
+            versions[i++] = -1;
+        }
+        Map<UUID, Long> rowVersions = new HashMap<>(walletRepository.upsertBalances(walletIds, balances, versions).versions());
+        // Суммы - после абсолютных балансов: в них нет зачислений, не дошедших до БД
+        rowVersions.putAll(walletRepository.addBalances(deltas.keySet().toArray(UUID[]::new),
+                deltas.values().stream().mapToLong(Long::longValue).toArray()));
+
+        List<RecoveredBalance> recovered = new ArrayList<>(walletIds.length);
+        for (i = 0; i < walletIds.length; i++) {
+            JournalRecord record = latest.get(walletIds[i]);
+            long balance = Math.addExact(balances[i], deltas.getOrDefault(walletIds[i], 0L));
+            recovered.add(new RecoveredBalance(walletIds[i], balance, record.version(),
+                    rowVersions.get(walletIds[i])));
+        }
+        log.info("Recovered {} operations from journal: {} balances written, {} wallets adjusted by amount",
+                replayed[0], latest.size(), deltas.size());
+        return recovered;
+    }
+
+    /**
+     * Вставка недостающих операций. Для зачислений на чужие кошельки и
+     * операций кошельков, которыми узел больше не владеет, сумма вставленной
+     * операции копится в deltas
+     */
+    private void insertOperations(List<JournalRecord> records, Map<UUID, Long> deltas) {
+        if (records.isEmpty()) {
+            return;
+        }
+        List<Object[]> args = records.stream()
+                .map(r -> new Object[]{
+                        journal.id(),
+                        r.sequence(),
+                        r.walletId(),
+                        r.operationType().name(),
+                        r.amount(),
+                        OperationStatus.SUCCESS.name(),
+                        Timestamp.from(r.timestamp()),
+                        r.operationId(),
+                        journal.id(),
+                        r.sequence()})
+                .toList();
+        int[] inserted = jdbcTemplate.batchUpdate(INSERT_OPERATION_SQL, args);
+        for (int i = 0; i < inserted.length; i++) {
+            JournalRecord record = records.get(i);
+            if (inserted[i] > 0 && (record.relative() || !cluster.isOwner(record.walletId()))) {
+                long amountUnits = FixedPoint.toUnits(record.amount());
+                deltas.merge(record.walletId(), record.operationType().isCredit() ? amountUnits : -amountUnits,
+                        Math::addExact);
+            }
+        }
+    }
+
+    /**
+     * @param balanceUnits баланс, уже записанный в БД
+     * @param version      версия баланса (номер записи журнала)
+     * @param rowVersion   версия строки wallet после записи
+     */
+    public record RecoveredBalance(UUID walletId, long balanceUnits, long version, long rowVersion) {
+    }
+}
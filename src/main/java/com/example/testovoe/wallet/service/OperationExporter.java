@@ -0,0 +1,215 @@
+package com.example.testovoe.wallet.service;
+
+import com.example.testovoe.wallet.exception.ServiceOverloadedException;
+import com.example.testovoe.wallet.model.OperationType;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Потоковая выгрузка wallet_operation для сверок: строки идут из БД прямо
+ * в поток ответа, в памяти не больше fetch-size строк при любом объёме.
+ *
+ * CSV формирует сам Postgres через COPY TO STDOUT, NDJSON пишется из
+ * серверного курсора. У выгрузок свой пул на max-concurrent соединений:
+ * долгие выгрузки не занимают соединения, нужные загрузке кошельков и
+ * записи операций, а сверх лимита запрос сразу получает 503
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class OperationExporter {
+
+    public enum Format {
+        NDJSON, CSV
+    }
+
+    /**
+     * Необязательные фильтры выгрузки: null - без ограничения
+     */
+    public record Filter(UUID walletId, LocalDateTime from, LocalDateTime to, OperationType type) {
+    }
+
+    @FunctionalInterface
+    public interface OutputOpener {
+        OutputStream open() throws IOException;
+    }
+
+    private static final String COLUMNS =
+            "id, wallet_id, operation_id, operation_type, amount, status, error_message, created_at";
+
+    @Value("${spring.datasource.url}")
+    private String dbUrl;
+
+    @Value("${spring.datasource.username}")
+    private String dbUsername;
+
+    @Value("${spring.datasource.password}")
+    private String dbPassword;
+
+    @Value("${wallet.export.max-concurrent:2}")
+    private int maxConcurrent;
+
+    @Value("${wallet.export.fetch-size:5000}")
+    private int fetchSize;
+
+    @Value("${wallet.export.retry-after-seconds:5}")
+    private int retryAfterSeconds;
+
+    private final ObjectMapper objectMapper;
+
+    private HikariDataSource dataSource;
+    private Semaphore slots;
+
+    @PostConstruct
+    public void start() {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("wallet-export");
+        config.setJdbcUrl(dbUrl);
+        config.setUsername(dbUsername);
+        config.setPassword(dbPassword);
+        config.setMaximumPoolSize(maxConcurrent);
+        config.setMinimumIdle(0);
+        config.setIdleTimeout(60000);
+        // Курсор Postgres работает только внутри транзакции
+        config.setAutoCommit(false);
+        config.setReadOnly(true);
+        dataSource = new HikariDataSource(config);
+        slots = new Semaphore(maxConcurrent);
+    }
+
+    @PreDestroy
+    public void close() {
+        dataSource.close();
+    }
+
+    /**
+     * Пишет операции по возрастанию created_at, id. Поток ответа открывается
+     * только после получения соединения: до этого ещё можно ответить ошибкой
+     *
+     * @return количество выгруженных операций
+     * @throws ServiceOverloadedException уже идут max-concurrent выгрузок
+     */
+    public long export(Format format, Filter filter, OutputOpener opener) throws IOException {
+        if (!slots.tryAcquire()) {
+            throw new ServiceOverloadedException(retryAfterSeconds,
+                    "Export limit of " + maxConcurrent + " concurrent requests reached");
+        }
+        long start = System.nanoTime();
+        try (Connection connection = dataSource.getConnection()) {
+            try (OutputStream out = opener.open()) {
+                long rows = format == Format.CSV
+                        ? copyCsv(connection, filter, out)
+                        : writeNdjson(connection, filter, out);
+                log.info("Exported {} operations as {} in {} ms", rows, format,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return rows;
+            } finally {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to export operations", e);
+        } finally {
+            slots.release();
+        }
+    }
+
+    private long copyCsv(Connection connection, Filter filter, OutputStream out) throws SQLException, IOException {
+        // Параметры в COPY не передаются: подставляем литералы из типизированных значений
+        List<String> conditions = new ArrayList<>();
+        if (filter.walletId() != null) {
+            conditions.add("wallet_id = '" + filter.walletId() + "'");
+        }
+        if (filter.from() != null) {
+            conditions.add("created_at >= '" + filter.from().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME) + "'");
+        }
+        if (filter.to() != null) {
+            conditions.add("created_at < '" + filter.to().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME) + "'");
+        }
+        if (filter.type() != null) {
+            conditions.add("operation_type = '" + filter.type().name() + "'");
+        }
+        String sql = "COPY (" + selectSql(conditions) + ") TO STDOUT WITH (FORMAT csv, HEADER)";
+        return connection.unwrap(PGConnection.class).getCopyAPI().copyOut(sql, out);
+    }
+
+    private long writeNdjson(Connection connection, Filter filter, OutputStream out) throws SQLException, IOException {
+        List<String> conditions = new ArrayList<>();
+        List<Object> parameters = new ArrayList<>();
+        if (filter.walletId() != null) {
+            conditions.add("wallet_id = ?");
+            parameters.add(filter.walletId());
+        }
+        if (filter.from() != null) {
+            conditions.add("created_at >= ?");
+            parameters.add(Timestamp.valueOf(filter.from()));
+        }
+        if (filter.to() != null) {
+            conditions.add("created_at < ?");
+            parameters.add(Timestamp.valueOf(filter.to()));
+        }
+        if (filter.type() != null) {
+            conditions.add("operation_type = ?");
+            parameters.add(filter.type().name());
+        }
+        try (PreparedStatement statement = connection.prepareStatement(selectSql(conditions));
+             JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+            statement.setFetchSize(fetchSize);
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i));
+            }
+            // Поток закрывает export, gzip дописывается при его закрытии
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            // Строки разделяет только перевод строки, без пробела между корневыми объектами
+            json.setRootValueSeparator(null);
+            long exported = 0;
+            try (ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    json.writeStartObject();
+                    json.writeNumberField("id", rows.getLong(1));
+                    json.writeStringField("walletId", rows.getString(2));
+                    json.writeStringField("operationId", rows.getString(3));
+                    json.writeStringField("operationType", rows.getString(4));
+                    json.writeNumberField("amount", rows.getBigDecimal(5));
+                    json.writeStringField("status", rows.getString(6));
+                    json.writeStringField("errorMessage", rows.getString(7));
+                    json.writeStringField("createdAt",
+                            rows.getTimestamp(8).toLocalDateTime().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+                    json.writeEndObject();
+                    json.writeRaw('\n');
+                    exported++;
+                }
+            }
+            return exported;
+        }
+    }
+
+    private static String selectSql(List<String> conditions) {
+        return "SELECT " + COLUMNS + " FROM wallet_operation" +
+                (conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions)) +
+                " ORDER BY created_at, id";
+    }
+}
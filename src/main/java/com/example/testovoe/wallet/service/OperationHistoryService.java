@@ -0,0 +1,94 @@
+package com.example.testovoe.wallet.service;
+
+import com.example.testovoe.wallet.dto.OperationHistoryResponse;
+import com.example.testovoe.wallet.dto.WalletOperationResponse;
+import com.example.testovoe.wallet.entity.WalletOperation;
+import com.example.testovoe.wallet.repository.OperationCursor;
+import com.example.testovoe.wallet.repository.WalletOperationRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * История операций кошелька из БД постранично, от новых к старым.
+ *
+ * Пагинация по ключу (created_at, id): страница - продолжение обхода индекса
+ * с места, где закончилась предыдущая, без OFFSET, поэтому стоимость не растёт
+ * с номером страницы. Курсор непрозрачен для клиента. Операции видны после
+ * записи в БД (wallet.cache.operations-sync-interval-ms); историю отдаёт любой
+ * узел кластера
+ */
+@Service
+@RequiredArgsConstructor
+public class OperationHistoryService {
+
+    private static final LocalDateTime EPOCH = LocalDateTime.ofEpochSecond(0, 0, ZoneOffset.UTC);
+
+    @Value("${wallet.history.page-size:50}")
+    private int defaultPageSize;
+
+    @Value("${wallet.history.max-page-size:500}")
+    private int maxPageSize;
+
+    private final WalletOperationRepository operationRepository;
+
+    /**
+     * @param limit размер страницы, null - по умолчанию; ограничен max-page-size
+     * @throws IllegalArgumentException курсор повреждён или границы времени перепутаны
+     */
+    public OperationHistoryResponse history(UUID walletId, LocalDateTime from, LocalDateTime to,
+                                            String cursor, Integer limit) {
+        if (from != null && to != null && !from.isBefore(to)) {
+            throw new IllegalArgumentException("'from' must be before 'to'");
+        }
+        int pageSize = Math.max(1, Math.min(limit != null ? limit : defaultPageSize, maxPageSize));
+        // Лишняя строка - признак следующей страницы
+        List<WalletOperation> rows = operationRepository.findHistory(walletId, from, to,
+                cursor != null ? decode(cursor) : null, pageSize + 1);
+
+        List<WalletOperationResponse> operations = new ArrayList<>(Math.min(rows.size(), pageSize));
+        for (int i = 0; i < rows.size() && i < pageSize; i++) {
+            WalletOperation row = rows.get(i);
+            operations.add(WalletOperationResponse.builder()
+                    .walletId(walletId)
+                    .operationId(row.getOperationId())
+                    .operationType(row.getOperationType())
+                    .amount(row.getAmount())
+                    .status(row.getStatus())
+                    .timestamp(row.getCreatedAt())
+                    .build());
+        }
+        String nextCursor = rows.size() > pageSize ? encode(rows.get(pageSize - 1)) : null;
+        return new OperationHistoryResponse(walletId, operations, nextCursor);
+    }
+
+    private static String encode(WalletOperation last) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(ChronoUnit.MICROS.between(EPOCH, last.getCreatedAt()));
+        buffer.putLong(last.getId());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    private static OperationCursor decode(String cursor) {
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed history cursor", e);
+        }
+        if (bytes.length != 16) {
+            throw new IllegalArgumentException("Malformed history cursor");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new OperationCursor(EPOCH.plus(buffer.getLong(), ChronoUnit.MICROS), buffer.getLong());
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.testovoe.wallet.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * Месячные секции wallet_operation: создаёт секции текущего и следующих
+ * месяцев заранее и удаляет секции старше срока хранения.
+ *
+ * Строки, попавшие в секцию DEFAULT (данные до секционирования, записи без
+ * готовой секции), переносятся в создаваемую секцию своего месяца. Узлы
+ * кластера обслуживают секции по очереди под advisory-блокировкой
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class OperationPartitionMaintainer {
+
+    private static final String PARENT = "wallet_operation";
+    private static final String DEFAULT_PARTITION = "wallet_operation_default";
+    private static final String PREFIX = "wallet_operation_p";
+    private static final DateTimeFormatter SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+    private static final long LOCK_KEY = 0x77616c6c6f70L;
+
+    @Value("${wallet.history.partitions.enabled:true}")
+    private boolean enabled;
+
+    @Value("${wallet.history.partitions.months-ahead:2}")
+    private int monthsAhead;
+
+    @Value("${wallet.history.partitions.retention-months:0}")
+    private int retentionMonths;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    @PostConstruct
+    public void start() {
+        maintain();
+    }
+
+    @Scheduled(fixedDelayString = "${wallet.history.partitions.maintenance-interval-ms:3600000}",
+            initialDelayString = "${wallet.history.partitions.maintenance-interval-ms:3600000}")
+    public void maintain() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                // Схема без секционирования (ddl-auto в тестах) - обслуживать нечего
+                if (!partitioned() || !jdbcTemplate.queryForObject(
+                        "SELECT pg_try_advisory_xact_lock(?)", Boolean.class, LOCK_KEY)) {
+                    return;
+                }
+                YearMonth current = YearMonth.now();
+                List<String> existing = partitions();
+                for (int i = 0; i <= monthsAhead; i++) {
+                    YearMonth month = current.plusMonths(i);
+                    if (!existing.contains(name(month))) {
+                        create(month);
+                    }
+                }
+                if (retentionMonths > 0) {
+                    YearMonth oldest = current.minusMonths(retentionMonths);
+                    for (String partition : existing) {
+                        if (YearMonth.parse(partition.substring(PREFIX.length()), SUFFIX).isBefore(oldest)) {
+                            drop(partition);
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            log.error("Failed to maintain {} partitions", PARENT, e);
+        }
+    }
+
+    private boolean partitioned() {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                "SELECT EXISTS (SELECT 1 FROM pg_class WHERE oid = to_regclass(?) AND relkind = 'p')",
+                Boolean.class, PARENT));
+    }
+
+    private List<String> partitions() {
+        return jdbcTemplate.queryForList(
+                "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+                        "WHERE i.inhparent = to_regclass(?) AND c.relname ~ '^wallet_operation_p[0-9]{6}$' " +
+                        "ORDER BY c.relname",
+                String.class, PARENT);
+    }
+
+    private void create(YearMonth month) {
+        String partition = name(month);
+        LocalDate from = month.atDay(1);
+        LocalDate to = month.plusMonths(1).atDay(1);
+        String bounds = "FROM ('" + from + "') TO ('" + to + "')";
+        String range = "created_at >= '" + from + "' AND created_at < '" + to + "'";
+
+        // Секция DEFAULT не может содержать строк нового диапазона: переносим их
+        jdbcTemplate.execute("LOCK TABLE " + DEFAULT_PARTITION + " IN ACCESS EXCLUSIVE MODE");
+        Boolean misplaced = jdbcTemplate.queryForObject(
+                "SELECT EXISTS (SELECT 1 FROM " + DEFAULT_PARTITION + " WHERE " + range + ")", Boolean.class);
+        if (Boolean.TRUE.equals(misplaced)) {
+            jdbcTemplate.execute("CREATE TABLE " + partition + " (LIKE " + PARENT + " INCLUDING DEFAULTS)");
+            int moved = jdbcTemplate.update("WITH moved AS (DELETE FROM " + DEFAULT_PARTITION +
+                    " WHERE " + range + " RETURNING *) INSERT INTO " + partition + " SELECT * FROM moved");
+            jdbcTemplate.execute("ALTER TABLE " + PARENT + " ATTACH PARTITION " + partition + " FOR VALUES " + bounds);
+            log.info("Created partition {} with {} operations moved from {}", partition, moved, DEFAULT_PARTITION);
+        } else {
+            jdbcTemplate.execute("CREATE TABLE " + partition + " PARTITION OF " + PARENT + " FOR VALUES " + bounds);
+            log.info("Created partition {}", partition);
+        }
+    }
+
+    private void drop(String partition) {
+        jdbcTemplate.execute("ALTER TABLE " + PARENT + " DETACH PARTITION " + partition);
+        jdbcTemplate.execute("DROP TABLE " + partition);
+        log.info("Dropped partition {} past retention of {} months", partition, retentionMonths);
+    }
+
+    private static String name(YearMonth month) {
+        return PREFIX + month.format(SUFFIX);
+    }
+}
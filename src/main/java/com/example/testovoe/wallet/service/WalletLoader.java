@@ -0,0 +1,194 @@
+package com.example.testovoe.wallet.service;
+
+import com.example.testovoe.wallet.exception.ServiceOverloadedException;
+import com.example.testovoe.wallet.repository.StoredBalance;
+import com.example.testovoe.wallet.repository.WalletRepository;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Загрузка кошельков при промахе кэша пакетами.
+ *
+ * Промахи ставятся в очередь, несколько потоков загрузки забирают всё
+ * накопившееся (до batch-size) и загружают одним запросом WHERE id = ANY(?),
+ * как групповой коммит журнала: чем больше промахов, тем крупнее пакеты.
+ * Число потоков - это и предел соединений, занятых загрузкой; потоки запросов
+ * ждут результат, не держа соединений, и по таймауту получают 503.
+ * Один запрос на кошелёк при одновременных промахах обеспечивает WalletService.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class WalletLoader implements MeterBinder {
+
+    private static final long POLL_MS = 100;
+
+    @Value("${wallet.loader.threads:4}")
+    private int threads;
+
+    @Value("${wallet.loader.batch-size:500}")
+    private int batchSize;
+
+    @Value("${wallet.loader.timeout-ms:5000}")
+    private long timeoutMs;
+
+    @Value("${wallet.backpressure.retry-after-seconds:1}")
+    private int retryAfterSeconds;
+
+    private final WalletRepository walletRepository;
+
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final LongAdder timeouts = new LongAdder();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running = true;
+    private DistributionSummary batchSizes;
+
+    @PostConstruct
+    public void start() {
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            Thread worker = new Thread(this::loadLoop, "wallet-loader-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        for (Thread worker : workers) {
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        List<Request> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        IllegalStateException stopped = new IllegalStateException("Wallet loader is stopped");
+        rest.forEach(request -> request.future().completeExceptionally(stopped));
+    }
+
+    /**
+     * Ставит кошелёк в очередь загрузки
+     *
+     * @return баланс и версия строки из БД (кошелёк создаётся, если его нет)
+     */
+    public CompletableFuture<StoredBalance> load(UUID walletId) {
+        if (!running) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Wallet loader is stopped"));
+        }
+        Request request = new Request(walletId, new CompletableFuture<>());
+        queue.add(request);
+        return request.future();
+    }
+
+    /**
+     * Ожидание загрузки в потоке запроса: не дольше timeout-ms, затем
+     * {@link ServiceOverloadedException}. Ошибка загрузки пробрасывается как есть
+     */
+    public void await(CompletableFuture<?> load) {
+        try {
+            load.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timeouts.increment();
+            throw new ServiceOverloadedException(retryAfterSeconds,
+                    "Wallet was not loaded from the database within " + timeoutMs + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceOverloadedException(retryAfterSeconds, "Interrupted while loading wallet");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    private void loadLoop() {
+        List<Request> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                Request first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                loadBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void loadBatch(List<Request> batch) {
+        Set<UUID> walletIds = new LinkedHashSet<>();
+        for (Request request : batch) {
+            walletIds.add(request.walletId());
+        }
+        Map<UUID, StoredBalance> balances;
+        try {
+            balances = walletRepository.findOrCreateBalances(walletIds.toArray(UUID[]::new));
+        } catch (RuntimeException e) {
+            log.error("Failed to load {} wallets", walletIds.size(), e);
+            batch.forEach(request -> request.future().completeExceptionally(e));
+            return;
+        }
+        if (batchSizes != null) {
+            batchSizes.record(walletIds.size());
+        }
+        for (Request request : batch) {
+            StoredBalance balance = balances.get(request.walletId());
+            if (balance != null) {
+                request.future().complete(balance);
+            } else {
+                request.future().completeExceptionally(
+                        new IllegalStateException("Wallet " + request.walletId() + " was not loaded"));
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("wallet.loader.pending", queue, LinkedBlockingQueue::size)
+                .description("Cache misses waiting for a database load")
+                .register(registry);
+        batchSizes = DistributionSummary.builder("wallet.loader.batch.size")
+                .description("Wallets loaded by one query")
+                .serviceLevelObjectives(1, 10, 100, 500)
+                .register(registry);
+        FunctionCounter.builder("wallet.loader.timeouts", timeouts, LongAdder::sum)
+                .register(registry);
+    }
+
+    private record Request(UUID walletId, CompletableFuture<StoredBalance> future) {
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.testovoe.wallet.service;
+
+import com.example.testovoe.wallet.exception.IdempotencyKeyConflictException;
+import com.example.testovoe.wallet.exception.InsufficientFundsException;
+import com.example.testovoe.wallet.exception.ServiceOverloadedException;
+import com.example.testovoe.wallet.exception.WalletNotOwnedException;
+import com.example.testovoe.wallet.model.OperationType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Метрики конвейера операций. Теги - только перечисления (тип операции,
+ * исход, очередь), поэтому число временных рядов ограничено.
+ *
+ * Глубина очередей и отставание самой старой операции публикует
+ * {@link Backpressure}, статистику кэша - BalanceStoreMetrics.
+ */
+@Component
+public class WalletMetrics {
+
+    public enum Outcome {
+        SUCCESS,
+        INSUFFICIENT_FUNDS,
+        CONFLICT,
+        OVERLOADED,
+        REDIRECTED,
+        ERROR;
+
+        static Outcome of(Throwable error) {
+            if (error == null) {
+                return SUCCESS;
+            }
+            if (error instanceof InsufficientFundsException) {
+                return INSUFFICIENT_FUNDS;
+            }
+            if (error instanceof IdempotencyKeyConflictException) {
+                return CONFLICT;
+            }
+            if (error instanceof ServiceOverloadedException) {
+                return OVERLOADED;
+            }
+            if (error instanceof WalletNotOwnedException) {
+                return REDIRECTED;
+            }
+            return ERROR;
+        }
+    }
+
+    private static final Duration MIN_LATENCY = Duration.of(100, ChronoUnit.MICROS);
+    private static final Duration MAX_LATENCY = Duration.ofSeconds(10);
+
+    private final MeterRegistry registry;
+
+    // Тип операции x исход, создаются при первом использовании
+    private final Timer[][] operationTimers = new Timer[OperationType.values().length][Outcome.values().length];
+
+    private final DistributionSummary casRetries;
+    private final Counter cacheReads;
+    private final Counter databaseReads;
+    private final Timer balanceLoad;
+    private final Timer balanceFlush;
+    private final Timer operationFlush;
+    private final DistributionSummary balanceBatchSize;
+    private final DistributionSummary operationBatchSize;
+    private final Timer persistenceLag;
+    private final Counter balanceConflicts;
+    private final Counter balanceOverdrafts;
+
+    public WalletMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.casRetries = DistributionSummary.builder("wallet.balance.cas.retries")
+                .description("Attempts to lock a balance slot that was held by another thread")
+                .serviceLevelObjectives(1, 2, 4, 8, 16, 64)
+                .register(registry);
+        this.cacheReads = Counter.builder("wallet.balance.reads")
+                .tag("source", "cache")
+                .description("Balance reads served by the in-memory cache")
+                .register(registry);
+        this.databaseReads = Counter.builder("wallet.balance.reads")
+                .tag("source", "database")
+                .description("Balance reads that had to load the wallet from the database")
+                .register(registry);
+        this.balanceLoad = Timer.builder("wallet.balance.load")
+                .description("Loading a wallet balance from the database on a cache miss")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(MIN_LATENCY)
+                .maximumExpectedValue(MAX_LATENCY)
+                .register(registry);
+        this.balanceFlush = flushTimer("balances");
+        this.operationFlush = flushTimer("operations");
+        this.balanceBatchSize = batchSize("balances");
+        this.operationBatchSize = batchSize("operations");
+        this.persistenceLag = Timer.builder("wallet.persistence.commit.lag")
+                .description("Time from accepting an operation to committing it to the database")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofMinutes(1))
+                .register(registry);
+        this.balanceConflicts = Counter.builder("wallet.balance.conflicts")
+                .tag("outcome", "rebased")
+                .description("Balance writes rejected because another node changed the wallet row")
+                .register(registry);
+        this.balanceOverdrafts = Counter.builder("wallet.balance.conflicts")
+                .tag("outcome", "overdraft")
+                .description("Conflicts whose rebased balance went below zero")
+                .register(registry);
+    }
+
+    /**
+     * Время обработки операции от приёма до ответа
+     *
+     * @param error исключение операции или null при успехе
+     */
+    public void recordOperation(OperationType operationType, Throwable error, long nanos) {
+        if (operationType == null) {
+            return;
+        }
+        Outcome outcome = Outcome.of(error);
+        Timer timer = operationTimers[operationType.ordinal()][outcome.ordinal()];
+        if (timer == null) {
+            // Гонка безопасна: реестр вернёт тот же таймер
+            timer = Timer.builder("wallet.operation")
+                    .tag("type", operationType.name())
+                    .tag("outcome", outcome.name().toLowerCase(Locale.ROOT))
+                    .description("Wallet operation latency until the response, including journal fsync")
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(MIN_LATENCY)
+                    .maximumExpectedValue(MAX_LATENCY)
+                    .register(registry);
+            operationTimers[operationType.ordinal()][outcome.ordinal()] = timer;
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordCasRetries(int retries) {
+        casRetries.record(retries);
+    }
+
+    public void recordBalanceRead(boolean cached) {
+        (cached ? cacheReads : databaseReads).increment();
+    }
+
+    public Timer balanceLoad() {
+        return balanceLoad;
+    }
+
+    public void recordBalanceFlush(int size, long nanos) {
+        balanceBatchSize.record(size);
+        balanceFlush.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordOperationFlush(int size, long nanos) {
+        operationBatchSize.record(size);
+        operationFlush.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Конфликт версии строки при записи баланса
+     *
+     * @param overdraft баланс после переноса локальных изменений стал отрицательным
+     */
+    public void recordBalanceConflict(boolean overdraft) {
+        (overdraft ? balanceOverdrafts : balanceConflicts).increment();
+    }
+
+    /**
+     * Задержка от приёма операции до коммита её строки в БД
+     */
+    public void recordPersistenceLag(long nanos) {
+        persistenceLag.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer flushTimer(String queue) {
+        return Timer.builder("wallet.persistence.batch.duration")
+                .tag("queue", queue)
+                .description("Writing one batch to the database")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(MIN_LATENCY)
+                .maximumExpectedValue(MAX_LATENCY)
+                .register(registry);
+    }
+
+    private DistributionSummary batchSize(String queue) {
+        return DistributionSummary.builder("wallet.persistence.batch.size")
+                .tag("queue", queue)
+                .description("Rows written to the database in one batch")
+                .serviceLevelObjectives(1, 10, 100, 1000, 5000, 10000)
+                .register(registry);
+    }
+}
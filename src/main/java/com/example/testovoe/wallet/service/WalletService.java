@@ -1,248 +1,1304 @@
-package com.example.testovoe.wallet.service;
-
-
-import com.example.testovoe.wallet.dto.WalletBalanceResponse;
-import com.example.testovoe.wallet.dto.WalletOperationRequest;
-import com.example.testovoe.wallet.dto.WalletOperationResponse;
-import com.example.testovoe.wallet.entity.Wallet;
-import com.example.testovoe.wallet.entity.WalletOperation;
-import com.example.testovoe.wallet.exception.InsufficientFundsException;
-import com.example.testovoe.wallet.model.OperationStatus;
-import com.example.testovoe.wallet.model.OperationType;
-import com.example.testovoe.wallet.repository.WalletOperationRepository;
-import com.example.testovoe.wallet.repository.WalletRepository;
-import jakarta.annotation.PreDestroy;
-import lombok.RequiredArgsConstructor;
-import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
-
-import java.math.BigDecimal;
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Collectors;
-
-@Slf4j
-@Service
-@RequiredArgsConstructor
-public class WalletService {
-    @Value("${wallet.cache.operations-sync-interval-ms}")
-    private String operationsSyncIntervalMs;
-
-
-
-    private final WalletRepository walletRepository;
-    private final WalletOperationRepository operationRepository;
-
-
-    // In-memory кэш: UUID -> AtomicReference<BigDecimal>
-    private final ConcurrentHashMap<UUID, AtomicReference<BigDecimal>> balanceCache =
-            new ConcurrentHashMap<>();
-
-    // Очередь для асинхронной записи операций
-    private final ConcurrentLinkedQueue<WalletOperation> operationQueue =
-            new ConcurrentLinkedQueue<>();
-
-    // Очередь для синхронизации балансов
-    private final ConcurrentHashMap<UUID, BigDecimal> balanceSyncQueue =
-            new ConcurrentHashMap<>();
-
-
-    /**
-     * Основная операция - работает полностью в памяти
-     */
-    public WalletOperationResponse processOperation(WalletOperationRequest request) {
-        UUID walletId = request.getWalletId();
-        OperationType operationType = request.getOperationType();
-        BigDecimal amount = request.getAmount();
-
-        // 1. Получаем или создаем AtomicReference для кошелька
-        AtomicReference<BigDecimal> balanceRef = balanceCache.computeIfAbsent(
-                walletId,
-                id -> new AtomicReference<>(loadBalanceFromDb(id))
-        );
-
-        // 2. Атомарно обновляем баланс в памяти
-        boolean success = updateBalanceInMemory(balanceRef, operationType, amount);
-
-        if (!success) {
-            throw new InsufficientFundsException(walletId,
-                    balanceRef.get(), amount);
-        }
-
-        // 3. Добавляем операцию в очередь для асинхронной записи
-        WalletOperation operation = WalletOperation.builder()
-                .walletId(walletId)
-                .operationType(operationType)
-                .amount(amount)
-                .status(OperationStatus.SUCCESS)
-                .build();
-        operationQueue.offer(operation);
-
-        // 4. Помечаем кошелек для синхронизации баланса
-        balanceSyncQueue.put(walletId, balanceRef.get());
-
-        // 5. Возвращаем ответ мгновенно
-        return WalletOperationResponse.builder()
-                .status(OperationStatus.SUCCESS)
-                .build();
-    }
-
-    /**
-     * Атомарное обновление баланса в памяти
-     */
-    private boolean updateBalanceInMemory(AtomicReference<BigDecimal> balanceRef,
-                                          OperationType operationType,
-                                          BigDecimal amount) {
-        BigDecimal current;
-        BigDecimal newValue;
-
-        do {
-            current = balanceRef.get();
-
-            if (operationType == OperationType.DEPOSIT) {
-                newValue = current.add(amount);
-            } else {
-                // WITHDRAW
-                if (current.compareTo(amount) < 0) {
-                    return false; // Недостаточно средств
-                }
-                newValue = current.subtract(amount);
-            }
-
-        } while (!balanceRef.compareAndSet(current, newValue));
-
-        return true;
-    }
-
-    /**
-     * Загрузка баланса из БД при первом обращении
-     */
-    private BigDecimal loadBalanceFromDb(UUID walletId) {
-        return walletRepository.findById(walletId)
-                .map(Wallet::getBalance)
-                .orElseGet(() -> {
-                    // Создаем новый кошелек в БД
-                    Wallet wallet = Wallet.builder()
-                            .id(walletId)
-                            .balance(BigDecimal.ZERO)
-                            .build();
-                    walletRepository.save(wallet);
-                    return BigDecimal.ZERO;
-                });
-    }
-
-    /**
-     * Получение баланса (читаем из кэша)
-     */
-    public WalletBalanceResponse getWalletBalance(UUID walletId) {
-        AtomicReference<BigDecimal> balanceRef = balanceCache.get(walletId);
-
-        if (balanceRef != null) {
-            // Есть в кэше
-            return new WalletBalanceResponse(walletId, balanceRef.get());
-        } else {
-            // Нет в кэше, грузим из БД
-            BigDecimal balance = loadBalanceFromDb(walletId);
-            balanceCache.put(walletId, new AtomicReference<>(balance));
-            return new WalletBalanceResponse(walletId, balance);
-        }
-    }
-
-
-    /**
-     * Пакетная синхронизация балансов с БД
-     */
-    @Scheduled(fixedDelayString = "${wallet.cache.sync-interval-ms}")
-    @Transactional
-    public void syncBalancesToDatabase() {
-        if (balanceSyncQueue.isEmpty()) {
-            return;
-        }
-
-        Map<UUID, BigDecimal> batch = new HashMap<>();
-
-        // Собираем батч для обновления (максимум 1000 записей)
-        int count = 0;
-        Iterator<Map.Entry<UUID, BigDecimal>> iterator = balanceSyncQueue.entrySet().iterator();
-
-        while (iterator.hasNext() && count < 1000) {
-            Map.Entry<UUID, BigDecimal> entry = iterator.next();
-            batch.put(entry.getKey(), entry.getValue());
-            iterator.remove();
-            count++;
-        }
-
-        if (!batch.isEmpty()) {
-            log.debug("Syncing {} wallet balances to DB", batch.size());
-
-            // Конвертируем Map в строку
-            String updatesStr = batch.entrySet().stream()
-                    .map(e -> e.getKey() + "," + e.getValue())
-                    .collect(Collectors.joining("|"));
-
-            walletRepository.updateBalancesBatch(updatesStr);
-        }
-    }
-
-    /**
-     * Асинхронное сохранение операций в БД
-     */
-    @Scheduled(fixedDelayString = "${wallet.cache.operations-sync-interval-ms}")
-    public void saveOperationsToDatabase() {
-        if (operationQueue.isEmpty()) {
-            return;
-        }
-
-        List<WalletOperation> batch = new ArrayList<>();
-
-        // Максимальное время выполнения: 500ms (половина от интервала)
-        long startTime = System.nanoTime();
-        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(500);
-        int maxOperations = 500;
-
-        // Собираем батч операций с проверкой времени
-        int count = 0;
-        while (!operationQueue.isEmpty() &&
-                count < maxOperations &&
-                (System.nanoTime() - startTime) < timeoutNanos) {
-
-            WalletOperation operation = operationQueue.poll();
-            if (operation != null) {
-                batch.add(operation);
-                count++;
-            }
-        }
-
-        if (!batch.isEmpty()) {
-            log.debug("Saving {} operations to DB", batch.size());
-            operationRepository.saveAll(batch);
-        }
-    }
-
-    /**
-     * Сброс кэша (для тестов)
-     */
-    @PreDestroy
-    public void shutdown() {
-        // При остановке приложения синхронизируем всё
-        log.info("Shutting down cache, syncing remaining balances...");
-        syncAllBalances();
-    }
-
-    private void syncAllBalances() {
-        for (Map.Entry<UUID, AtomicReference<BigDecimal>> entry : balanceCache.entrySet()) {
-            walletRepository.updateBalance(entry.getKey(), entry.getValue().get());
-        }
-    }
-
-    @Transactional(readOnly = true)
-    public boolean walletExists(UUID walletId) {
-        return walletRepository.existsById(walletId);
-    }
-}
+package com.example.testovoe.wallet.service;
+
+
+import com.example.testovoe.wallet.cluster.ClusterMembership;
+import com.example.testovoe.wallet.cluster.ClusterNode;
+import com.example.testovoe.wallet.cluster.HashRing;
+import com.example.testovoe.wallet.cluster.OwnershipChangedEvent;
+import com.example.testovoe.wallet.dto.BatchOperationResponse;
+import com.example.testovoe.wallet.dto.TransferRequest;
+import com.example.testovoe.wallet.dto.WalletBalanceResponse;
+import com.example.testovoe.wallet.dto.WalletOperationRequest;
+import com.example.testovoe.wallet.dto.WalletOperationResponse;
+import com.example.testovoe.wallet.engine.ShardedEngine;
+import com.example.testovoe.wallet.exception.BalanceOverflowException;
+import com.example.testovoe.wallet.exception.BatchSpansOwnersException;
+import com.example.testovoe.wallet.exception.IdempotencyKeyConflictException;
+import com.example.testovoe.wallet.exception.InsufficientFundsException;
+import com.example.testovoe.wallet.exception.WalletNotOwnedException;
+import com.example.testovoe.wallet.journal.JournalEntry;
+import com.example.testovoe.wallet.journal.OperationJournal;
+import com.example.testovoe.wallet.ledger.BalanceChange;
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import com.example.testovoe.wallet.ledger.FixedPoint;
+import com.example.testovoe.wallet.ledger.IdempotencyIndex;
+import com.example.testovoe.wallet.model.OperationStatus;
+import com.example.testovoe.wallet.model.OperationType;
+import com.example.testovoe.wallet.repository.BalanceUpsertResult;
+import com.example.testovoe.wallet.repository.OperationRow;
+import com.example.testovoe.wallet.repository.StoredBalance;
+import com.example.testovoe.wallet.repository.WalletOperationRepository;
+import com.example.testovoe.wallet.repository.WalletRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+@Slf4j
+@Service
+@RequiredArgsConstructor
+// Снимок кэша при остановке пишется после финального сброса балансов
+@DependsOn("cacheSnapshotter")
+public class WalletService {
+    // Сколько чекпоинт ждёт передачи операций закрытых сегментов в очереди записи
+    private static final long HAND_OFF_TIMEOUT_MS = 1000;
+    private static final int MAX_SHUTDOWN_SYNC_ATTEMPTS = 3;
+    private static final long WRITER_STOP_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private final WalletRepository walletRepository;
+    private final WalletOperationRepository operationRepository;
+    private final OperationJournal journal;
+    private final JournalRecovery journalRecovery;
+    private final ShardedEngine engine;
+    private final Backpressure backpressure;
+    private final IdempotencyIndex idempotencyIndex;
+    private final Validator validator;
+    private final WalletMetrics metrics;
+    private final WalletLoader walletLoader;
+    private final ClusterMembership cluster;
+    private final FlushScheduler flushScheduler;
+
+    // In-memory кэш: UUID -> баланс в минорных единицах
+    private final BalanceStore balanceCache;
+
+    // Кошельки, которые сейчас загружаются из БД: остальные потоки ждут ту же загрузку
+    private final ConcurrentHashMap<UUID, CompletableFuture<Void>> pendingLoads = new ConcurrentHashMap<>();
+
+    // Очередь для асинхронной записи операций
+    private final ConcurrentLinkedQueue<OperationRow> operationQueue =
+            new ConcurrentLinkedQueue<>();
+
+    // Очередь для синхронизации балансов (актуальный баланс берётся из кэша при записи)
+    private final Set<UUID> balanceSyncQueue = ConcurrentHashMap.newKeySet();
+
+    // Запись очередей в БД: потоки записи, чекпоинт журнала и остановка.
+    // У очередей свои блокировки, чтобы балансы и операции писались параллельно
+    private final ReentrantLock balanceFlushLock = new ReentrantLock();
+    private final ReentrantLock operationFlushLock = new ReentrantLock();
+
+    // Передача кошельков другим узлам, не завершённая при смене состава
+    private volatile HandOff handOff;
+
+    @PostConstruct
+    public void start() {
+        recoverFromJournal();
+        loadIdempotencyKeys();
+        flushScheduler.start("wallet-operation-writer", flushScheduler.operations(), this::writeOperations);
+        flushScheduler.start("wallet-balance-writer", flushScheduler.balances(), this::syncBalancesToDatabase);
+    }
+
+    /**
+     * Восстановление после рестарта: операции из журнала, не попавшие в БД
+     */
+    private void recoverFromJournal() {
+        // Только свои кошельки: чужие владелец прочитает из БД
+        for (JournalRecovery.RecoveredBalance recovered : journalRecovery.recover()) {
+            balanceCache.putIfAbsent(recovered.walletId(), recovered.balanceUnits(),
+                    recovered.version(), recovered.rowVersion());
+        }
+        // Всё восстановленное уже в БД, старые сегменты больше не нужны
+        journal.release(journal.lastSequence());
+    }
+
+    /**
+     * Ключи идемпотентности операций, записанных в БД за окно индекса
+     */
+    private void loadIdempotencyKeys() {
+        LocalDateTime since = LocalDateTime.now().minus(Duration.ofMillis(idempotencyIndex.windowMs()));
+        List<WalletOperationRepository.OperationKey> keys = operationRepository.findOperationKeysSince(since);
+        for (WalletOperationRepository.OperationKey key : keys) {
+            idempotencyIndex.complete(key.getOperationId(), key.getWalletId(), 0);
+        }
+        log.info("Loaded {} idempotency keys", keys.size());
+    }
+
+    /**
+     * Основная операция - работает полностью в памяти
+     */
+    public WalletOperationResponse processOperation(WalletOperationRequest request) {
+        long start = System.nanoTime();
+        try {
+            WalletOperationResponse response = applyRequest(request);
+            metrics.recordOperation(request.getOperationType(), null, System.nanoTime() - start);
+            return response;
+        } catch (RuntimeException e) {
+            metrics.recordOperation(request.getOperationType(), e, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    private WalletOperationResponse applyRequest(WalletOperationRequest request) {
+        UUID walletId = request.getWalletId();
+        OperationType operationType = request.getOperationType();
+        BigDecimal amount = request.getAmount();
+        if (operationType.isTransferLeg()) {
+            throw new IllegalArgumentException("Transfer legs are created by processTransfer only");
+        }
+        cluster.checkOwner(walletId);
+        long amountUnits = toUnits(walletId, amount);
+        UUID operationId = request.getOperationId();
+
+        // 0. Повтор уже применённой операции не меняет баланс и не считается нагрузкой
+        IdempotencyIndex.Entry applied = findApplied(operationId, walletId);
+        if (applied != null) {
+            journal.awaitDurable(applied.journalSeq());
+            return successResponse(operationId);
+        }
+
+        // Не принимаем новых операций, пока запись в БД не догонит
+        backpressure.admit();
+
+        // 1-5. Изменение баланса и журнал - в потоке шарда кошелька,
+        // при промахе загружаем кошелёк в вызывающем потоке и повторяем
+        Long journalSeq = engine.execute(walletId,
+                () -> applyOperation(walletId, operationType, amount, amountUnits, operationId));
+        while (journalSeq == null) {
+            ensureCached(walletId);
+            journalSeq = engine.execute(walletId,
+                    () -> applyOperation(walletId, operationType, amount, amountUnits, operationId));
+        }
+
+        // 6. Ждём fsync журнала (групповой коммит) и отвечаем
+        journal.awaitDurable(journalSeq);
+        return successResponse(operationId);
+    }
+
+    /**
+     * Перевод между кошельками: списание и зачисление применяются вместе
+     * при занятых шардах обоих кошельков и попадают в журнал одной проводкой
+     */
+    public WalletOperationResponse processTransfer(TransferRequest request) {
+        long start = System.nanoTime();
+        try {
+            WalletOperationResponse response = applyTransfer(request);
+            metrics.recordOperation(OperationType.TRANSFER_OUT, null, System.nanoTime() - start);
+            return response;
+        } catch (RuntimeException e) {
+            metrics.recordOperation(OperationType.TRANSFER_OUT, e, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    private WalletOperationResponse applyTransfer(TransferRequest request) {
+        UUID fromWalletId = request.getFromWalletId();
+        UUID toWalletId = request.getToWalletId();
+        BigDecimal amount = request.getAmount();
+        // Перевод обслуживает владелец кошелька списания, зачисление на чужой
+        // кошелёк прибавится к его строке
+        cluster.checkOwner(fromWalletId);
+        long amountUnits = toUnits(fromWalletId, amount);
+        UUID operationId = request.getOperationId();
+
+        // Ключ перевода закреплён за кошельком списания
+        IdempotencyIndex.Entry applied = findApplied(operationId, fromWalletId);
+        if (applied != null) {
+            journal.awaitDurable(applied.journalSeq());
+            return successResponse(operationId);
+        }
+
+        backpressure.admit();
+
+        List<UUID> wallets = List.of(fromWalletId, toWalletId);
+        Long journalSeq = null;
+        while (journalSeq == null) {
+            ensureCached(fromWalletId);
+            // Зачислению на чужой кошелёк кэш не нужен
+            if (cluster.isOwner(toWalletId)) {
+                ensureCached(toWalletId);
+            }
+            journalSeq = engine.executeExclusive(wallets, () -> applyOnce(fromWalletId, operationId, () -> {
+                long[] sequences = post(List.of(
+                        new Posting(fromWalletId, OperationType.TRANSFER_OUT, amount, amountUnits, operationId),
+                        new Posting(toWalletId, OperationType.TRANSFER_IN, amount, amountUnits, operationId)));
+                return sequences != null ? sequences[sequences.length - 1] : null;
+            }));
+        }
+
+        journal.awaitDurable(journalSeq);
+        return successResponse(operationId);
+    }
+
+    /**
+     * Уже применённая операция с этим ключом или null
+     *
+     * @throws IdempotencyKeyConflictException ключ занят операцией другого кошелька
+     */
+    private IdempotencyIndex.Entry findApplied(UUID operationId, UUID walletId) {
+        IdempotencyIndex.Entry applied = operationId != null ? idempotencyIndex.find(operationId) : null;
+        if (applied != null && !applied.walletId().equals(walletId)) {
+            throw new IdempotencyKeyConflictException(operationId);
+        }
+        return applied;
+    }
+
+    /**
+     * Неблокирующий вариант {@link #processOperation}: при промахе кэша кошелёк
+     * загружает loader, баланс меняет команда шарда, ответ готов после fsync
+     * журнала, и ни один шаг не ждёт в вызывающем потоке. Продолжения
+     * выполняются в потоках шарда и журнала
+     *
+     * @param loader асинхронная загрузка баланса из БД (создаёт кошелёк, если его нет)
+     */
+    public CompletableFuture<WalletOperationResponse> processOperationAsync(
+            WalletOperationRequest request, Function<UUID, CompletionStage<StoredBalance>> loader) {
+        long start = System.nanoTime();
+        CompletableFuture<WalletOperationResponse> response;
+        try {
+            response = applyRequestAsync(request, loader);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        return response.whenComplete((result, error) -> metrics.recordOperation(request.getOperationType(),
+                error != null ? unwrap(error) : null, System.nanoTime() - start));
+    }
+
+    private CompletableFuture<WalletOperationResponse> applyRequestAsync(
+            WalletOperationRequest request, Function<UUID, CompletionStage<StoredBalance>> loader) {
+        UUID walletId = request.getWalletId();
+        OperationType operationType = request.getOperationType();
+        BigDecimal amount = request.getAmount();
+        if (operationType.isTransferLeg()) {
+            throw new IllegalArgumentException("Transfer legs are created by processTransfer only");
+        }
+        cluster.checkOwner(walletId);
+        long amountUnits = toUnits(walletId, amount);
+        UUID operationId = request.getOperationId();
+
+        IdempotencyIndex.Entry applied = findApplied(operationId, walletId);
+        if (applied != null) {
+            return journal.durableFuture(applied.journalSeq()).thenApply(durable -> successResponse(operationId));
+        }
+
+        backpressure.admitNow();
+        return applyAsync(walletId, () -> applyOperation(walletId, operationType, amount, amountUnits, operationId), loader)
+                .thenCompose(journal::durableFuture)
+                .thenApply(durable -> successResponse(operationId));
+    }
+
+    /**
+     * Команда шарда кошелька; если кошелька нет в кэше - загрузка и повтор
+     */
+    private CompletableFuture<Long> applyAsync(UUID walletId, Supplier<Long> operation,
+                                               Function<UUID, CompletionStage<StoredBalance>> loader) {
+        return engine.submit(walletId, operation).thenCompose(journalSeq -> journalSeq != null
+                ? CompletableFuture.completedFuture(journalSeq)
+                : ensureCachedAsync(walletId, loader).thenCompose(loaded -> applyAsync(walletId, operation, loader)));
+    }
+
+    /**
+     * Пакет операций: операции кошелька применяются по порядку одной командой
+     * его шарда, fsync журнала ожидается один раз на весь пакет.
+     * atomic - все операции или ни одной (шарды всех кошельков пакета заняты
+     * на время проверки и применения)
+     */
+    public BatchOperationResponse processBatch(List<WalletOperationRequest> requests, boolean atomic) {
+        int size = requests.size();
+        String[] errors = new String[size];
+        long[] journalSeqs = new long[size];
+
+        // Кошелёк -> номера его операций в порядке запроса
+        Map<UUID, List<Integer>> byWallet = new LinkedHashMap<>();
+        // Ключ идемпотентности -> первая операция с ним. Повтор ключа внутри
+        // пакета ждал бы в claim захвата, который держит этот же пакет
+        Map<UUID, Integer> byOperationId = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            WalletOperationRequest request = requests.get(i);
+            Set<ConstraintViolation<WalletOperationRequest>> violations = validator.validate(request);
+            if (!violations.isEmpty()) {
+                errors[i] = violations.stream()
+                        .map(ConstraintViolation::getMessage)
+                        .sorted()
+                        .collect(Collectors.joining("; "));
+            } else if (request.getOperationId() != null) {
+                Integer first = byOperationId.putIfAbsent(request.getOperationId(), i);
+                if (first != null) {
+                    errors[i] = "Operation id " + request.getOperationId() + " repeats operation " + first + " of the batch";
+                }
+            }
+            if (errors[i] != null) {
+                if (atomic) {
+                    rejectBatch(errors, i);
+                    return batchResponse(requests, errors);
+                }
+                continue;
+            }
+            byWallet.computeIfAbsent(requests.get(i).getWalletId(), id -> new ArrayList<>()).add(i);
+        }
+        if (byWallet.isEmpty()) {
+            return batchResponse(requests, errors);
+        }
+        checkBatchOwner(requests, byWallet);
+
+        backpressure.admit();
+        if (atomic) {
+            applyBatchAtomically(requests, byWallet, errors, journalSeqs);
+        } else {
+            applyBatch(requests, byWallet, errors, journalSeqs);
+        }
+
+        long lastSeq = 0;
+        for (long journalSeq : journalSeqs) {
+            lastSeq = Math.max(lastSeq, journalSeq);
+        }
+        journal.awaitDurable(lastSeq);
+        return batchResponse(requests, errors);
+    }
+
+    /**
+     * Пакет обслуживает владелец кошельков списания, зачисления на чужие
+     * кошельки прибавляются к их строкам
+     *
+     * @throws WalletNotOwnedException списания - с кошельков другого узла
+     * @throws BatchSpansOwnersException списания с кошельков разных узлов
+     */
+    private void checkBatchOwner(List<WalletOperationRequest> requests, Map<UUID, List<Integer>> byWallet) {
+        UUID debited = null;
+        ClusterNode owner = null;
+        for (Map.Entry<UUID, List<Integer>> wallet : byWallet.entrySet()) {
+            if (wallet.getValue().stream().allMatch(i -> requests.get(i).getOperationType().isCredit())) {
+                continue;
+            }
+            ClusterNode walletOwner = cluster.owner(wallet.getKey());
+            if (owner == null) {
+                debited = wallet.getKey();
+                owner = walletOwner;
+            } else if (!owner.equals(walletOwner)) {
+                throw new BatchSpansOwnersException(debited, wallet.getKey());
+            }
+        }
+        if (owner != null && !cluster.isSelf(owner)) {
+            throw new WalletNotOwnedException(debited, owner);
+        }
+    }
+
+    private void applyBatch(List<WalletOperationRequest> requests, Map<UUID, List<Integer>> byWallet,
+                            String[] errors, long[] journalSeqs) {
+        // Сколько операций кошелька уже обработано (до промаха кэша)
+        Map<UUID, Integer> progress = new HashMap<>();
+        Collection<UUID> pending = byWallet.keySet();
+        while (!pending.isEmpty()) {
+            pending.forEach(walletId -> ensureCached(walletId, byWallet.get(walletId), requests));
+            Map<UUID, CompletableFuture<Integer>> submitted = new LinkedHashMap<>();
+            for (UUID walletId : pending) {
+                List<Integer> items = byWallet.get(walletId);
+                int from = progress.getOrDefault(walletId, 0);
+                submitted.put(walletId, engine.submit(walletId,
+                        () -> applyBatchItems(requests, items, from, errors, journalSeqs)));
+            }
+            List<UUID> missed = new ArrayList<>();
+            submitted.forEach((walletId, future) -> {
+                int processed = future.join();
+                if (processed < byWallet.get(walletId).size()) {
+                    progress.put(walletId, processed);
+                    missed.add(walletId);
+                }
+            });
+            pending = missed;
+        }
+    }
+
+    /**
+     * Операции одного кошелька в потоке его шарда
+     *
+     * @return сколько операций обработано; меньше items.size(), если кошелёк вытеснен из кэша
+     */
+    private int applyBatchItems(List<WalletOperationRequest> requests, List<Integer> items, int from,
+                                String[] errors, long[] journalSeqs) {
+        for (int k = from; k < items.size(); k++) {
+            int i = items.get(k);
+            WalletOperationRequest request = requests.get(i);
+            try {
+                Long journalSeq = applyOperation(request.getWalletId(), request.getOperationType(),
+                        request.getAmount(), FixedPoint.toUnits(request.getAmount()), request.getOperationId());
+                if (journalSeq == null) {
+                    return k;
+                }
+                journalSeqs[i] = journalSeq;
+            } catch (RuntimeException e) {
+                errors[i] = e.getMessage();
+            }
+        }
+        return items.size();
+    }
+
+    private void applyBatchAtomically(List<WalletOperationRequest> requests, Map<UUID, List<Integer>> byWallet,
+                                      String[] errors, long[] journalSeqs) {
+        Collection<UUID> wallets = byWallet.keySet();
+        Boolean done = null;
+        while (done == null) {
+            wallets.forEach(walletId -> ensureCached(walletId, byWallet.get(walletId), requests));
+            done = engine.executeExclusive(wallets,
+                    () -> applyBatchExclusive(requests, errors, journalSeqs));
+        }
+    }
+
+    /**
+     * Атомарный пакет при занятых шардах: проверяем весь пакет на копиях
+     * балансов и только потом применяем, поэтому применение не может упасть
+     *
+     * @return null, если кошелька нет в кэше (повторить после загрузки)
+     */
+    private Boolean applyBatchExclusive(List<WalletOperationRequest> requests,
+                                        String[] errors, long[] journalSeqs) {
+        int size = requests.size();
+        boolean[] replayed = new boolean[size];
+        boolean[] claimed = new boolean[size];
+        try {
+            Map<UUID, long[]> balances = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                WalletOperationRequest request = requests.get(i);
+                UUID walletId = request.getWalletId();
+                if (request.getOperationId() != null) {
+                    IdempotencyIndex.Entry applied = idempotencyIndex.claim(request.getOperationId(), walletId);
+                    if (applied != null) {
+                        if (!applied.walletId().equals(walletId)) {
+                            errors[i] = new IdempotencyKeyConflictException(request.getOperationId()).getMessage();
+                            rejectBatch(errors, i);
+                            return Boolean.TRUE;
+                        }
+                        // Повтор уже применённой операции
+                        replayed[i] = true;
+                        journalSeqs[i] = applied.journalSeq();
+                        continue;
+                    }
+                    claimed[i] = true;
+                }
+
+                if (isForeignCredit(walletId, request.getOperationType())) {
+                    continue;
+                }
+                long[] balance = balances.computeIfAbsent(walletId, id -> new long[]{balanceCache.balance(id)});
+                if (balance[0] == BalanceStore.MISSING) {
+                    return null;
+                }
+                long amountUnits = FixedPoint.toUnits(request.getAmount());
+                if (!request.getOperationType().isCredit()) {
+                    if (balance[0] < amountUnits) {
+                        errors[i] = new InsufficientFundsException(walletId,
+                                FixedPoint.toDecimal(balance[0]), request.getAmount()).getMessage();
+                        rejectBatch(errors, i);
+                        return Boolean.TRUE;
+                    }
+                    balance[0] -= amountUnits;
+                } else if (balance[0] > Long.MAX_VALUE - amountUnits) {
+                    errors[i] = new BalanceOverflowException(walletId).getMessage();
+                    rejectBatch(errors, i);
+                    return Boolean.TRUE;
+                } else {
+                    balance[0] += amountUnits;
+                }
+            }
+
+            // Весь пакет - одна проводка: после сбоя не восстановится частично
+            List<Posting> legs = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                if (!replayed[i]) {
+                    WalletOperationRequest request = requests.get(i);
+                    legs.add(new Posting(request.getWalletId(), request.getOperationType(), request.getAmount(),
+                            FixedPoint.toUnits(request.getAmount()), request.getOperationId()));
+                }
+            }
+            long[] sequences = post(legs);
+            if (sequences == null) {
+                return null;
+            }
+            for (int i = 0, leg = 0; i < size; i++) {
+                if (!replayed[i]) {
+                    journalSeqs[i] = sequences[leg++];
+                    if (claimed[i]) {
+                        idempotencyIndex.complete(requests.get(i).getOperationId(), requests.get(i).getWalletId(), journalSeqs[i]);
+                        claimed[i] = false;
+                    }
+                }
+            }
+            return Boolean.TRUE;
+        } finally {
+            for (int i = 0; i < size; i++) {
+                if (claimed[i]) {
+                    idempotencyIndex.release(requests.get(i).getOperationId());
+                }
+            }
+        }
+    }
+
+    private static void rejectBatch(String[] errors, int failed) {
+        for (int i = 0; i < errors.length; i++) {
+            if (i != failed) {
+                errors[i] = "Batch rejected: operation " + failed + " failed";
+            }
+        }
+    }
+
+    private static BatchOperationResponse batchResponse(List<WalletOperationRequest> requests, String[] errors) {
+        List<WalletOperationResponse> results = new ArrayList<>(requests.size());
+        int failed = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            WalletOperationRequest request = requests.get(i);
+            boolean success = errors[i] == null;
+            if (!success) {
+                failed++;
+            }
+            results.add(WalletOperationResponse.builder()
+                    .walletId(request.getWalletId())
+                    .operationId(request.getOperationId())
+                    .operationType(request.getOperationType())
+                    .amount(request.getAmount())
+                    .status(success ? OperationStatus.SUCCESS : OperationStatus.FAILED)
+                    .message(errors[i])
+                    .build());
+        }
+        return BatchOperationResponse.builder()
+                .succeeded(requests.size() - failed)
+                .failed(failed)
+                .results(results)
+                .build();
+    }
+
+    private static WalletOperationResponse successResponse(UUID operationId) {
+        return WalletOperationResponse.builder()
+                .operationId(operationId)
+                .status(OperationStatus.SUCCESS)
+                .build();
+    }
+
+    /**
+     * Применение операции к балансу в памяти (единственный писатель - поток шарда)
+     *
+     * @return номер записи в журнале (для повтора - исходной операции)
+     * или null, если кошелька нет в кэше
+     */
+    private Long applyOperation(UUID walletId, OperationType operationType,
+                                BigDecimal amount, long amountUnits, UUID operationId) {
+        return applyOnce(walletId, operationId,
+                () -> applyAndJournal(walletId, operationType, amount, amountUnits, operationId));
+    }
+
+    /**
+     * Применение под ключом идемпотентности: повтор возвращает номер записи
+     * исходной операции, ключ освобождается, если операция не применена
+     */
+    private Long applyOnce(UUID walletId, UUID operationId, Supplier<Long> operation) {
+        if (operationId != null) {
+            IdempotencyIndex.Entry applied = idempotencyIndex.claim(operationId, walletId);
+            if (applied != null) {
+                if (!applied.walletId().equals(walletId)) {
+                    throw new IdempotencyKeyConflictException(operationId);
+                }
+                return applied.journalSeq();
+            }
+        }
+
+        Long journalSeq = null;
+        try {
+            journalSeq = operation.get();
+            if (operationId != null && journalSeq != null) {
+                idempotencyIndex.complete(operationId, walletId, journalSeq);
+            }
+            return journalSeq;
+        } finally {
+            if (operationId != null && journalSeq == null) {
+                idempotencyIndex.release(operationId);
+            }
+        }
+    }
+
+    /**
+     * Изменение баланса, журнал и очереди записи; ключ идемпотентности уже захвачен
+     */
+    private Long applyAndJournal(UUID walletId, OperationType operationType,
+                                 BigDecimal amount, long amountUnits, UUID operationId) {
+        if (!operationType.isCredit()) {
+            // Кошелёк мог уйти к другому узлу после проверки на входе
+            cluster.checkOwner(walletId);
+        } else if (isForeignCredit(walletId, operationType)) {
+            long journalSeq = journal.append(walletId, operationType, amountUnits,
+                    0, OperationJournal.RELATIVE, operationId);
+            enqueue(walletId, operationType, amountUnits, journalSeq, operationId, true);
+            return journalSeq;
+        }
+
+        // 1-2. Атомарно обновляем баланс в памяти
+        BalanceChange updated = updateBalanceInMemory(walletId, operationType, amountUnits);
+        if (updated == null) {
+            return null;
+        }
+
+        if (!updated.applied()) {
+            throw new InsufficientFundsException(walletId,
+                    FixedPoint.toDecimal(updated.balance()), amount);
+        }
+
+        // 3. Фиксируем операцию в журнале
+        long journalSeq = journal.append(walletId, operationType, amountUnits,
+                updated.balance(), updated.version(), operationId);
+        enqueue(walletId, operationType, amountUnits, journalSeq, operationId, false);
+        return journalSeq;
+    }
+
+    /**
+     * Проводка из нескольких ног, шарды всех кошельков заняты: балансы
+     * меняются все или ни один, в журнал ноги попадают одной записью
+     * {@link OperationJournal#appendAll(List)}
+     *
+     * @return номера записей журнала по ногам или null, если кошелька нет в кэше
+     */
+    private long[] post(List<Posting> legs) {
+        // Кошелёк мог уйти к другому узлу после проверки на входе
+        for (Posting leg : legs) {
+            if (!leg.operationType().isCredit()) {
+                cluster.checkOwner(leg.walletId());
+            }
+        }
+        List<JournalEntry> entries = new ArrayList<>(legs.size());
+        // Ноги-зачисления на чужие кошельки: кэш не меняют и не откатываются
+        boolean[] relative = new boolean[legs.size()];
+        try {
+            for (int i = 0; i < legs.size(); i++) {
+                Posting leg = legs.get(i);
+                relative[i] = isForeignCredit(leg.walletId(), leg.operationType());
+                if (relative[i]) {
+                    entries.add(new JournalEntry(leg.walletId(), leg.operationType(), leg.amountUnits(),
+                            0, OperationJournal.RELATIVE, leg.operationId()));
+                    continue;
+                }
+                BalanceChange updated = updateBalanceInMemory(leg.walletId(), leg.operationType(), leg.amountUnits());
+                if (updated == null) {
+                    rollback(legs, relative, entries.size());
+                    return null;
+                }
+                if (!updated.applied()) {
+                    rollback(legs, relative, entries.size());
+                    throw new InsufficientFundsException(leg.walletId(),
+                            FixedPoint.toDecimal(updated.balance()), leg.amount());
+                }
+                entries.add(new JournalEntry(leg.walletId(), leg.operationType(), leg.amountUnits(),
+                        updated.balance(), updated.version(), leg.operationId()));
+            }
+        } catch (BalanceOverflowException e) {
+            rollback(legs, relative, entries.size());
+            throw e;
+        }
+
+        long[] sequences = journal.appendAll(entries);
+        for (int i = 0; i < legs.size(); i++) {
+            Posting leg = legs.get(i);
+            enqueue(leg.walletId(), leg.operationType(), leg.amountUnits(), sequences[i], leg.operationId(),
+                    relative[i]);
+        }
+        return sequences;
+    }
+
+    /**
+     * Откат первых applied ног проводки (обратная дельта не может не примениться)
+     */
+    private void rollback(List<Posting> legs, boolean[] relative, int applied) {
+        for (int i = applied - 1; i >= 0; i--) {
+            if (relative[i]) {
+                continue;
+            }
+            Posting leg = legs.get(i);
+            balanceCache.apply(leg.walletId(), leg.operationType().isCredit() ? -leg.amountUnits() : leg.amountUnits());
+        }
+    }
+
+    /**
+     * Зачисление на кошелёк другого узла. Его баланс ведёт владелец: запись
+     * абсолютного баланса отсюда затёрла бы более новый, поэтому кэш не
+     * меняется, а сумма прибавляется к строке wallet вместе с записью операции
+     */
+    private boolean isForeignCredit(UUID walletId, OperationType operationType) {
+        return operationType.isCredit() && !cluster.isOwner(walletId);
+    }
+
+    /**
+     * @param relative зачисление на чужой кошелёк: баланс не синхронизируется
+     */
+    private void enqueue(UUID walletId, OperationType operationType, long amountUnits,
+                         long journalSeq, UUID operationId, boolean relative) {
+        try {
+            // 4. Добавляем операцию в очередь для асинхронной записи
+            operationQueue.offer(new OperationRow(walletId, operationType, amountUnits,
+                    OperationStatus.SUCCESS, journalSeq, LocalDateTime.now(), operationId, relative));
+            backpressure.onEnqueued();
+
+            // 5. Помечаем кошелек для синхронизации баланса
+            if (!relative) {
+                balanceSyncQueue.add(walletId);
+            }
+        } finally {
+            journal.handOff(journalSeq);
+        }
+    }
+
+    /**
+     * Атомарное обновление баланса в памяти
+     */
+    private BalanceChange updateBalanceInMemory(UUID walletId,
+                                                OperationType operationType,
+                                                long amountUnits) {
+        // Списание - отрицательная дельта, недостаточно средств вернётся как applied = false
+        long delta = operationType.isCredit() ? amountUnits : -amountUnits;
+        try {
+            BalanceChange change = balanceCache.apply(walletId, delta);
+            if (change != null) {
+                metrics.recordCasRetries(change.retries());
+            }
+            return change;
+        } catch (ArithmeticException e) {
+            throw new BalanceOverflowException(walletId);
+        }
+    }
+
+    /**
+     * Загрузка кошелька пакета в кэш. Кошельку другого узла с одними
+     * зачислениями кэш не нужен: суммы прибавляются к его строке
+     */
+    private void ensureCached(UUID walletId, List<Integer> items, List<WalletOperationRequest> requests) {
+        if (cluster.isOwner(walletId) || !items.stream().allMatch(i -> requests.get(i).getOperationType().isCredit())) {
+            ensureCached(walletId);
+        }
+    }
+
+    /**
+     * Загрузка кошелька в кэш. Версия начинается с последнего номера журнала,
+     * поэтому она больше версий любых прежних записей этого кошелька.
+     *
+     * Промахи разных кошельков загружаются пакетами ({@link WalletLoader}),
+     * одновременные промахи одного кошелька ждут одну загрузку. Под
+     * мониторами (computeIfAbsent) запросов к БД нет: на виртуальном потоке
+     * блокировка на JDBC под synchronized заняла бы поток-носитель
+     */
+    private void ensureCached(UUID walletId) {
+        if (balanceCache.contains(walletId)) {
+            return;
+        }
+        walletLoader.await(ensureCachedAsync(walletId, walletLoader::load));
+    }
+
+    /**
+     * Загрузка кошелька через loader без ожидания. Загрузка, начатая первым
+     * промахом, общая для всех (pendingLoads), поэтому кошелёк не загружается
+     * дважды, а баланс кладётся в кэш только если его там ещё нет
+     */
+    private CompletableFuture<Void> ensureCachedAsync(UUID walletId,
+                                                      Function<UUID, CompletionStage<StoredBalance>> loader) {
+        if (balanceCache.contains(walletId)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> load = new CompletableFuture<>();
+        CompletableFuture<Void> inFlight = pendingLoads.putIfAbsent(walletId, load);
+        if (inFlight != null) {
+            return inFlight;
+        }
+        if (balanceCache.contains(walletId)) {
+            pendingLoads.remove(walletId, load);
+            load.complete(null);
+            return load;
+        }
+        long version = journal.lastSequence();
+        long start = System.nanoTime();
+        CompletionStage<StoredBalance> balance;
+        try {
+            balance = loader.apply(walletId);
+        } catch (RuntimeException e) {
+            balance = CompletableFuture.failedFuture(e);
+        }
+        balance.whenComplete((value, error) -> {
+            metrics.balanceLoad().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            try {
+                if (error != null) {
+                    load.completeExceptionally(unwrap(error));
+                } else {
+                    balanceCache.putIfAbsent(walletId, toUnits(walletId, value.balance()), version, value.version());
+                    load.complete(null);
+                }
+            } catch (RuntimeException e) {
+                load.completeExceptionally(e);
+            } finally {
+                pendingLoads.remove(walletId, load);
+            }
+        });
+        return load;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static long toUnits(UUID walletId, BigDecimal value) {
+        try {
+            return FixedPoint.toUnits(value);
+        } catch (ArithmeticException e) {
+            throw new BalanceOverflowException(walletId);
+        }
+    }
+
+    /**
+     * Получение баланса (читаем из кэша)
+     */
+    public WalletBalanceResponse getWalletBalance(UUID walletId) {
+        cluster.checkOwner(walletId);
+        long balance = balanceCache.balance(walletId);
+        metrics.recordBalanceRead(balance != BalanceStore.MISSING);
+
+        // Нет в кэше, грузим из БД
+        while (balance == BalanceStore.MISSING) {
+            ensureCached(walletId);
+            balance = balanceCache.balance(walletId);
+        }
+        return new WalletBalanceResponse(walletId, FixedPoint.toDecimal(balance));
+    }
+
+    /**
+     * Неблокирующий вариант {@link #getWalletBalance}: промах загружает loader
+     */
+    public CompletableFuture<WalletBalanceResponse> getWalletBalanceAsync(
+            UUID walletId, Function<UUID, CompletionStage<StoredBalance>> loader) {
+        cluster.checkOwner(walletId);
+        long balance = balanceCache.balance(walletId);
+        metrics.recordBalanceRead(balance != BalanceStore.MISSING);
+        if (balance != BalanceStore.MISSING) {
+            return CompletableFuture.completedFuture(new WalletBalanceResponse(walletId, FixedPoint.toDecimal(balance)));
+        }
+        return readBalanceAsync(walletId, loader);
+    }
+
+    private CompletableFuture<WalletBalanceResponse> readBalanceAsync(
+            UUID walletId, Function<UUID, CompletionStage<StoredBalance>> loader) {
+        return ensureCachedAsync(walletId, loader).thenCompose(loaded -> {
+            long balance = balanceCache.balance(walletId);
+            // Кошелёк могли успеть вытеснить - загружаем снова
+            return balance != BalanceStore.MISSING
+                    ? CompletableFuture.completedFuture(new WalletBalanceResponse(walletId, FixedPoint.toDecimal(balance)))
+                    : readBalanceAsync(walletId, loader);
+        });
+    }
+
+
+    /**
+     * Пакетная синхронизация балансов с БД (поток wallet-balance-writer).
+     * Транзакция - в upsertBalances: версии помечаются записанными только после коммита
+     */
+    public void syncBalancesToDatabase() {
+        AdaptiveBatch adaptive = flushScheduler.balances();
+        if (balanceSyncQueue.isEmpty()) {
+            adaptive.onFlush(0, 0, 0);
+            completeHandOff();
+            return;
+        }
+
+        balanceFlushLock.lock();
+        try {
+            List<UUID> batch = new ArrayList<>();
+
+            // Собираем батч для обновления (не больше текущего лимита)
+            int limit = adaptive.limit();
+            Iterator<UUID> iterator = balanceSyncQueue.iterator();
+
+            while (iterator.hasNext() && batch.size() < limit) {
+                batch.add(iterator.next());
+                iterator.remove();
+            }
+
+            long start = System.nanoTime();
+            writeBalances(batch);
+            adaptive.onFlush(batch.size(), System.nanoTime() - start, balanceSyncQueue.size());
+        } finally {
+            balanceFlushLock.unlock();
+        }
+        completeHandOff();
+    }
+
+    private void writeBalances(List<UUID> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        log.debug("Syncing {} wallet balances to DB", batch.size());
+
+        // Версию читаем до баланса: записанный баланс не старше отмеченной версии.
+        // Версия строки меняется только здесь же, под balanceFlushLock
+        UUID[] walletIds = new UUID[batch.size()];
+        long[] versions = new long[walletIds.length];
+        long[] balances = new long[walletIds.length];
+        long[] rowVersions = new long[walletIds.length];
+        int size = 0;
+        for (UUID walletId : batch) {
+            long version = balanceCache.version(walletId);
+            long rowVersion = balanceCache.rowVersion(walletId);
+            long balance = balanceCache.peekBalance(walletId);
+            // Записанный кошелёк вытеснен или удалён, а в очередь попал повторно:
+            // синхронизировать нечего, MISSING записался бы как баланс
+            if (version == BalanceStore.MISSING || rowVersion == BalanceStore.MISSING
+                    || balance == BalanceStore.MISSING) {
+                continue;
+            }
+            walletIds[size] = walletId;
+            versions[size] = version;
+            rowVersions[size] = rowVersion;
+            balances[size++] = balance;
+        }
+        if (size == 0) {
+            return;
+        }
+        if (size < walletIds.length) {
+            walletIds = Arrays.copyOf(walletIds, size);
+            versions = Arrays.copyOf(versions, size);
+            rowVersions = Arrays.copyOf(rowVersions, size);
+            balances = Arrays.copyOf(balances, size);
+        }
+
+        BalanceUpsertResult result;
+        long start = System.nanoTime();
+        try {
+            result = walletRepository.upsertBalances(walletIds, balances, rowVersions);
+            metrics.recordBalanceFlush(walletIds.length, System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            // Возвращаем в очередь, повторим на следующем цикле
+            balanceSyncQueue.addAll(Arrays.asList(walletIds));
+            throw e;
+        }
+        if (result.inserted() > 0) {
+            log.warn("Balance sync created {} missing wallet rows", result.inserted());
+        }
+        log.debug("Synced wallet balances: {} updated, {} inserted", result.updated(), result.inserted());
+
+        // Записанные балансы можно вытеснять из кэша
+        List<UUID> conflicts = new ArrayList<>();
+        for (int i = 0; i < walletIds.length; i++) {
+            Long rowVersion = result.versions().get(walletIds[i]);
+            if (rowVersion == null) {
+                conflicts.add(walletIds[i]);
+            } else {
+                balanceCache.markSynced(walletIds[i], versions[i], balances[i], rowVersion);
+                // Зачисление на чужой кошелёк записано - его баланс ведёт владелец
+                if (!cluster.isOwner(walletIds[i])) {
+                    balanceCache.removeIfSynced(walletIds[i]);
+                }
+            }
+        }
+        if (!conflicts.isEmpty()) {
+            rebaseConflicts(conflicts);
+        }
+    }
+
+    /**
+     * Строки кошельков изменил другой узел: перечитываем их и переносим
+     * локальные изменения на баланс из БД. Результат запишет следующая
+     * синхронизация, уже с новой версией строки
+     */
+    private void rebaseConflicts(List<UUID> conflicts) {
+        Map<UUID, StoredBalance> stored = walletRepository.findOrCreateBalances(conflicts.toArray(new UUID[0]));
+        for (UUID walletId : conflicts) {
+            StoredBalance current = stored.get(walletId);
+            long balance = balanceCache.rebase(walletId, toUnits(walletId, current.balance()), current.version());
+            if (balance == BalanceStore.MISSING) {
+                // Кошелёк вытеснен после записи: переносить нечего, баланс ведёт БД
+                log.debug("Wallet {} was changed by another node and is no longer cached", walletId);
+                continue;
+            }
+            boolean overdraft = balance < 0;
+            metrics.recordBalanceConflict(overdraft);
+            if (overdraft) {
+                // Списания обоих узлов уже подтверждены клиентам, откатить их нельзя
+                log.error("Wallet {} went below zero after rebasing onto version {}: {}",
+                        walletId, current.version(), FixedPoint.toDecimal(balance));
+            } else {
+                log.warn("Wallet {} was changed by another node, rebased onto version {}", walletId, current.version());
+            }
+            balanceSyncQueue.add(walletId);
+        }
+    }
+
+    /**
+     * Смена состава кластера: кошельки, сменившие владельца, записываются в БД
+     * и удаляются из кэша. Новый владелец прочитает их из БД, а этот узел,
+     * получив кошелёк обратно, не возьмёт из кэша устаревший баланс.
+     * Операции остальных кошельков не останавливаются
+     */
+    @EventListener
+    public void onOwnershipChanged(OwnershipChangedEvent event) {
+        Set<UUID> moved = new HashSet<>();
+        balanceCache.forEach((walletId, balance, version) -> {
+            if (!cluster.isSelf(event.previous().owner(walletId)) || !cluster.isSelf(event.current().owner(walletId))) {
+                moved.add(walletId);
+            }
+        });
+        if (moved.isEmpty()) {
+            handOff = null;
+            cluster.handedOff(event.current());
+            return;
+        }
+        List<UUID> dirty = new ArrayList<>();
+        balanceCache.forEachDirty((walletId, balance, version) -> {
+            if (moved.contains(walletId)) {
+                dirty.add(walletId);
+            }
+        });
+
+        balanceFlushLock.lock();
+        try {
+            int limit = flushScheduler.balances().limit();
+            for (int from = 0; from < dirty.size(); from += limit) {
+                List<UUID> batch = dirty.subList(from, Math.min(dirty.size(), from + limit));
+                batch.forEach(balanceSyncQueue::remove);
+                writeBalances(batch);
+            }
+        } catch (RuntimeException e) {
+            // Незаписанные остаются в очереди и удалятся из кэша после записи
+            log.error("Failed to write balances of wallets handed off to other nodes", e);
+        } finally {
+            balanceFlushLock.unlock();
+        }
+
+        // Изменённые после записи остаются до следующей синхронизации
+        Set<UUID> pending = ConcurrentHashMap.newKeySet();
+        for (UUID walletId : moved) {
+            if (!balanceCache.removeIfSynced(walletId) && balanceCache.contains(walletId)) {
+                pending.add(walletId);
+            }
+        }
+        log.info("Handed off {} cached wallets that changed owner ({} written, {} pending)",
+                moved.size() - pending.size(), dirty.size(), pending.size());
+        handOff = new HandOff(event.current(), pending);
+        completeHandOff();
+    }
+
+    /**
+     * Когда все ушедшие кошельки записаны и удалены из кэша, узел отмечает
+     * состав: новые владельцы начнут их обслуживать
+     */
+    private void completeHandOff() {
+        HandOff pending = handOff;
+        if (pending == null) {
+            return;
+        }
+        pending.wallets().removeIf(walletId -> balanceCache.removeIfSynced(walletId) || !balanceCache.contains(walletId));
+        if (pending.wallets().isEmpty()) {
+            handOff = null;
+            cluster.handedOff(pending.ring());
+        }
+    }
+
+    /**
+     * Шаг потока записи операций: паузу между шагами выбирает
+     * {@link FlushScheduler} по задержке записи и глубине очереди
+     */
+    private void writeOperations() {
+        try {
+            saveOperationsToDatabase();
+        } finally {
+            backpressure.update(balanceSyncQueue.size(), oldestOperationAgeNanos());
+        }
+    }
+
+    private long oldestOperationAgeNanos() {
+        OperationRow oldest = operationQueue.peek();
+        return oldest == null ? 0 : Math.max(0, Duration.between(oldest.createdAt(), LocalDateTime.now()).toNanos());
+    }
+
+    /**
+     * Сохранение очередной пачки операций в БД
+     *
+     * @return количество сохранённых операций
+     */
+    public int saveOperationsToDatabase() {
+        AdaptiveBatch adaptive = flushScheduler.operations();
+        if (operationQueue.isEmpty()) {
+            adaptive.onFlush(0, 0, 0);
+            return 0;
+        }
+
+        operationFlushLock.lock();
+        try {
+            long start = System.nanoTime();
+            int saved = saveOperations(adaptive.limit());
+            adaptive.onFlush(saved, System.nanoTime() - start, backpressure.pendingOperations());
+            return saved;
+        } finally {
+            operationFlushLock.unlock();
+        }
+    }
+
+    /**
+     * @return количество сохранённых операций
+     */
+    private int saveOperations(int maxOperations) {
+        List<OperationRow> batch = new ArrayList<>((int) Math.min(maxOperations,
+                Math.max(0, backpressure.pendingOperations())));
+
+        OperationRow operation;
+        while (batch.size() < maxOperations && (operation = operationQueue.poll()) != null) {
+            batch.add(operation);
+        }
+
+        if (!batch.isEmpty()) {
+            log.debug("Saving {} operations to DB", batch.size());
+            long start = System.nanoTime();
+            try {
+                operationRepository.copyOperations(journal.id(), batch);
+            } catch (RuntimeException e) {
+                // Операции уже подтверждены клиенту, повторим на следующем цикле
+                operationQueue.addAll(batch);
+                throw e;
+            }
+            metrics.recordOperationFlush(batch.size(), System.nanoTime() - start);
+            LocalDateTime committedAt = LocalDateTime.now();
+            for (OperationRow row : batch) {
+                metrics.recordPersistenceLag(ChronoUnit.NANOS.between(row.createdAt(), committedAt));
+            }
+            backpressure.onPersisted(batch.size());
+        }
+        return batch.size();
+    }
+
+    /**
+     * Чекпоинт журнала: сбрасываем в БД всё, что попало в закрытые сегменты,
+     * после чего сегменты можно удалить
+     */
+    @Scheduled(fixedDelayString = "${wallet.journal.checkpoint-interval-ms}")
+    public void checkpointJournal() {
+        if (!journal.isEnabled()) {
+            return;
+        }
+        long checkpointSeq = journal.rotate();
+        if (!journal.awaitHandOff(checkpointSeq, HAND_OFF_TIMEOUT_MS)) {
+            log.warn("Journal checkpoint {} postponed: operations are still being handed off", checkpointSeq);
+            return;
+        }
+
+        flush();
+        journal.release(checkpointSeq);
+    }
+
+    /**
+     * Записывает в БД операции и балансы, накопленные к моменту вызова
+     */
+    public void flush() {
+        lockQueues();
+        try {
+            flushQueues();
+        } finally {
+            unlockQueues();
+        }
+    }
+
+    private void lockQueues() {
+        operationFlushLock.lock();
+        balanceFlushLock.lock();
+    }
+
+    private void unlockQueues() {
+        balanceFlushLock.unlock();
+        operationFlushLock.unlock();
+    }
+
+    /**
+     * Записывает в БД всё, что было в очередях на момент вызова (под обеими блокировками)
+     */
+    private void flushQueues() {
+        // Новые операции встают в хвост очереди, достаточно сохранить текущие
+        int pendingOperations = operationQueue.size();
+        while (pendingOperations > 0) {
+            int saved = saveOperations(Math.min(pendingOperations, flushScheduler.operations().limit()));
+            if (saved == 0) {
+                break;
+            }
+            pendingOperations -= saved;
+        }
+
+        List<UUID> pendingWallets = new ArrayList<>(balanceSyncQueue);
+        int limit = flushScheduler.balances().limit();
+        for (int from = 0; from < pendingWallets.size(); from += limit) {
+            List<UUID> batch = new ArrayList<>();
+            for (UUID walletId : pendingWallets.subList(from, Math.min(from + limit, pendingWallets.size()))) {
+                if (balanceSyncQueue.remove(walletId)) {
+                    batch.add(walletId);
+                }
+            }
+            writeBalances(batch);
+        }
+    }
+
+    /**
+     * Сброс кэша (для тестов)
+     */
+    @PreDestroy
+    public void shutdown() {
+        // При остановке приложения синхронизируем всё
+        log.info("Shutting down cache, syncing remaining balances...");
+        flushScheduler.stop(WRITER_STOP_TIMEOUT_MS);
+        long checkpointSeq = journal.rotate();
+        lockQueues();
+        try {
+            flushQueues();
+            syncAllBalances();
+        } finally {
+            unlockQueues();
+        }
+        journal.release(checkpointSeq);
+    }
+
+    /**
+     * Пишем только кошельки с незаписанными балансами, одним запросом:
+     * unnest массивов не ограничен размером, а при остановке важнее
+     * одна транзакция, чем короткие пачки. Кошельки с конфликтом версии
+     * после переноса изменений пишутся ещё раз
+     */
+    private void syncAllBalances() {
+        for (int attempt = 0; ; attempt++) {
+            List<UUID> dirty = new ArrayList<>();
+            balanceCache.forEachDirty((walletId, balance, version) -> dirty.add(walletId));
+            if (dirty.isEmpty()) {
+                return;
+            }
+            if (attempt == MAX_SHUTDOWN_SYNC_ATTEMPTS) {
+                log.error("Balances of {} wallets are left unsynced: row version conflicts keep repeating",
+                        dirty.size());
+                return;
+            }
+            dirty.forEach(balanceSyncQueue::remove);
+            writeBalances(dirty);
+        }
+    }
+
+    @Transactional(readOnly = true)
+    public boolean walletExists(UUID walletId) {
+        return walletRepository.existsById(walletId);
+    }
+
+    /**
+     * Кошельки, сменившие владельца в кольце ring, но ещё не записанные в БД
+     */
+    private record HandOff(HashRing ring, Set<UUID> wallets) {
+    }
+
+    /**
+     * Нога проводки: изменение баланса одного кошелька
+     */
+    private record Posting(UUID walletId, OperationType operationType, BigDecimal amount,
+                           long amountUnits, UUID operationId) {
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.testovoe.wallet.reactive;
+
+import com.example.testovoe.wallet.controller.WalletExceptionHandler;
+import com.example.testovoe.wallet.dto.BatchOperationResponse;
+import com.example.testovoe.wallet.dto.OperationHistoryResponse;
+import com.example.testovoe.wallet.dto.TransferRequest;
+import com.example.testovoe.wallet.dto.WalletBalanceResponse;
+import com.example.testovoe.wallet.dto.WalletOperationRequest;
+import com.example.testovoe.wallet.dto.WalletOperationResponse;
+import com.example.testovoe.wallet.exception.WalletNotOwnedException;
+import com.example.testovoe.wallet.repository.StoredBalance;
+import com.example.testovoe.wallet.service.OperationHistoryService;
+import com.example.testovoe.wallet.service.WalletService;
+import jakarta.validation.Valid;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ProblemDetail;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Тот же контракт /api/v1/wallets на WebFlux.
+ *
+ * Операции и чтения баланса не блокируют поток: промах кэша загружается
+ * через R2DBC, баланс меняет команда шарда, ответ уходит после fsync журнала.
+ * Переводы и пакеты занимают шарды целиком и ждут их в вызывающем потоке,
+ * поэтому выполняются на boundedElastic
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/v1/wallets")
+@RequiredArgsConstructor
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveWalletController {
+
+    private final WalletService walletService;
+    private final ReactiveWalletRepository walletRepository;
+    private final OperationHistoryService historyService;
+
+    @Value("${wallet.batch.max-size:10000}")
+    private int batchMaxSize;
+
+    @PostMapping
+    public Mono<ResponseEntity<WalletOperationResponse>> processOperation(
+            @Valid @RequestBody WalletOperationRequest request,
+            @RequestHeader(value = "Idempotency-Key", required = false) UUID idempotencyKey) {
+
+        log.info("Received operation request: {}", request);
+
+        // Ключ из тела запроса важнее заголовка
+        if (request.getOperationId() == null) {
+            request.setOperationId(idempotencyKey);
+        }
+
+        return Mono.fromFuture(() -> walletService.processOperationAsync(request, this::loadBalance))
+                // Ответ готов в потоке fsync журнала: сериализацию уводим с него
+                .publishOn(Schedulers.parallel())
+                .map(ResponseEntity::ok);
+    }
+
+    /**
+     * Перевод между кошельками: оба изменения баланса применяются атомарно
+     */
+    @PostMapping("/transfer")
+    public Mono<ResponseEntity<WalletOperationResponse>> processTransfer(
+            @Valid @RequestBody TransferRequest request,
+            @RequestHeader(value = "Idempotency-Key", required = false) UUID idempotencyKey) {
+
+        log.info("Received transfer request: {}", request);
+
+        if (request.getOperationId() == null) {
+            request.setOperationId(idempotencyKey);
+        }
+
+        return Mono.fromCallable(() -> walletService.processTransfer(request))
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(ResponseEntity::ok);
+    }
+
+    /**
+     * Пакет операций JSON-массивом
+     */
+    @PostMapping(value = "/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<BatchOperationResponse>> processBatch(
+            @RequestBody List<WalletOperationRequest> requests,
+            @RequestParam(defaultValue = "false") boolean atomic) {
+
+        return processBatchChecked(requests, atomic);
+    }
+
+    /**
+     * Пакет операций в NDJSON: по одной операции на строку
+     */
+    @PostMapping(value = "/batch", consumes = MediaType.APPLICATION_NDJSON_VALUE)
+    public Mono<ResponseEntity<BatchOperationResponse>> processBatchNdjson(
+            @RequestBody Flux<WalletOperationRequest> body,
+            @RequestParam(defaultValue = "false") boolean atomic) {
+
+        // Лишняя строка сверх лимита - чтобы отличить ровно batchMaxSize от превышения
+        return body.take(batchMaxSize + 1L)
+                .collectList()
+                .flatMap(requests -> processBatchChecked(requests, atomic));
+    }
+
+    private Mono<ResponseEntity<BatchOperationResponse>> processBatchChecked(List<WalletOperationRequest> requests,
+                                                                           boolean atomic) {
+        if (requests.size() > batchMaxSize) {
+            return Mono.error(new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "Batch is limited to " + batchMaxSize + " operations"));
+        }
+        log.info("Received batch of {} operations, atomic={}", requests.size(), atomic);
+        return Mono.fromCallable(() -> walletService.processBatch(requests, atomic))
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(ResponseEntity::ok);
+    }
+
+    @GetMapping("/{walletId}")
+    public Mono<ResponseEntity<WalletBalanceResponse>> getWalletBalance(
+            @PathVariable UUID walletId) {
+
+        log.debug("Getting balance for wallet: {}", walletId);
+
+        return Mono.fromFuture(() -> walletService.getWalletBalanceAsync(walletId, this::loadBalance))
+                .map(ResponseEntity::ok);
+    }
+
+    /**
+     * История операций читается через JDBC, поэтому на boundedElastic
+     */
+    @GetMapping("/{walletId}/operations")
+    public Mono<ResponseEntity<OperationHistoryResponse>> getOperationHistory(
+            @PathVariable UUID walletId,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer limit) {
+
+        return Mono.fromCallable(() -> historyService.history(walletId, from, to, cursor, limit))
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorMap(IllegalArgumentException.class,
+                        e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e))
+                .map(ResponseEntity::ok);
+    }
+
+    @GetMapping("/{walletId}/exists")
+    public Mono<ResponseEntity<Boolean>> walletExists(@PathVariable UUID walletId) {
+        return walletRepository.existsById(walletId).map(ResponseEntity::ok);
+    }
+
+    /**
+     * Как в сервлетном стеке: 307 на тот же путь узла-владельца
+     */
+    @ExceptionHandler(WalletNotOwnedException.class)
+    public ResponseEntity<ProblemDetail> handleNotOwned(WalletNotOwnedException e, ServerHttpRequest request) {
+        URI location = URI.create(e.getOwner().url() + request.getURI().getRawPath()
+                + (request.getURI().getRawQuery() != null ? "?" + request.getURI().getRawQuery() : ""));
+        return ResponseEntity.status(HttpStatus.TEMPORARY_REDIRECT)
+                .location(location)
+                .header(WalletExceptionHandler.OWNER_HEADER, e.getOwner().id())
+                .body(ProblemDetail.forStatusAndDetail(HttpStatus.TEMPORARY_REDIRECT, e.getMessage()));
+    }
+
+    private CompletionStage<StoredBalance> loadBalance(UUID walletId) {
+        return walletRepository.findOrCreateBalance(walletId).toFuture();
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.testovoe.wallet.reactive;
+
+import com.example.testovoe.wallet.repository.StoredBalance;
+import io.r2dbc.spi.ConnectionFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/**
+ * Кошельки через R2DBC: загрузка баланса при промахе кэша без блокировки потока.
+ * Балансы и операции в БД по-прежнему пишут общие потоки записи (JDBC)
+ */
+@Repository
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveWalletRepository {
+
+    // Новый кошелёк создаётся с нулевым балансом, как в WalletBulkRepositoryImpl.findOrCreateBalances
+    private static final String FIND_OR_CREATE_SQL =
+            "WITH created AS (" +
+            "    INSERT INTO wallet (id, balance, version, created_at, updated_at) " +
+            "    VALUES (:id, 0, 0, now(), now()) " +
+            "    ON CONFLICT (id) DO NOTHING " +
+            "    RETURNING balance, version" +
+            ") " +
+            "SELECT balance, version FROM created " +
+            "UNION ALL " +
+            "SELECT balance, version FROM wallet WHERE id = :id";
+
+    private final DatabaseClient client;
+
+    public ReactiveWalletRepository(ConnectionFactory connectionFactory) {
+        this.client = DatabaseClient.create(connectionFactory);
+    }
+
+    public Mono<StoredBalance> findOrCreateBalance(UUID walletId) {
+        return client.sql(FIND_OR_CREATE_SQL)
+                .bind("id", walletId)
+                .map(row -> new StoredBalance(row.get("balance", BigDecimal.class), row.get("version", Long.class)))
+                .first();
+    }
+
+    public Mono<Boolean> existsById(UUID walletId) {
+        return client.sql("SELECT EXISTS (SELECT 1 FROM wallet WHERE id = :id) AS found")
+                .bind("id", walletId)
+                .map(row -> Boolean.TRUE.equals(row.get("found", Boolean.class)))
+                .one();
+    }
+}
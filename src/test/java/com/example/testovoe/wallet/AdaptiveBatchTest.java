@@ -0,0 +1,87 @@
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.service.AdaptiveBatch;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveBatchTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MAX_INTERVAL = TimeUnit.MILLISECONDS.toNanos(800);
+
+    private AdaptiveBatch batch;
+
+    @BeforeEach
+    void setUp() {
+        batch = new AdaptiveBatch("operations", 1000, 100, 2000, 200, 0.5,
+                TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(1), MAX_INTERVAL);
+    }
+
+    @Test
+    void onFlush_ShouldGrowBatchAdditivelyAndCutItOnSlowWrites() {
+        // Полные быстрые пачки при глубокой очереди: +step, без пауз
+        batch.onFlush(1000, FAST, 10_000);
+        assertThat(batch.limit()).isEqualTo(1200);
+        assertThat(batch.delayNanos()).isZero();
+        for (int i = 0; i < 10; i++) {
+            batch.onFlush(batch.limit(), FAST, 10_000);
+        }
+        assertThat(batch.limit()).isEqualTo(2000);
+
+        // Медленная запись - вдвое меньше, но не ниже минимума
+        batch.onFlush(2000, SLOW, 10_000);
+        assertThat(batch.limit()).isEqualTo(1000);
+        for (int i = 0; i < 10; i++) {
+            batch.onFlush(batch.limit(), SLOW, 10_000);
+        }
+        assertThat(batch.limit()).isEqualTo(100);
+    }
+
+    @Test
+    void onFlush_ShouldShortenPauseUnderBacklogAndStretchItWhenIdle() {
+        assertThat(batch.delayNanos()).isZero();
+
+        // Очередь меньше пачки, запись быстрая: следующая запись сразу
+        batch.onFlush(500, FAST, 10);
+        assertThat(batch.delayNanos()).isZero();
+        // Неполная пачка лимит не увеличивает
+        assertThat(batch.limit()).isEqualTo(1000);
+
+        // Медленная запись при неглубокой очереди: паузы сокращаются вдвое
+        batch.onFlush(10, SLOW, 10);
+        assertThat(batch.delayNanos()).isEqualTo(MAX_INTERVAL / 4);
+
+        // Пустая очередь: пауза растёт на 1/8 максимальной до максимума
+        batch.onFlush(0, 0, 0);
+        assertThat(batch.delayNanos()).isEqualTo(MAX_INTERVAL / 4 + MAX_INTERVAL / 8);
+        for (int i = 0; i < 10; i++) {
+            batch.onFlush(0, 0, 0);
+        }
+        assertThat(batch.delayNanos()).isEqualTo(MAX_INTERVAL);
+    }
+
+    @Test
+    void onFlush_SmallBacklogAfterIdle_ShouldWriteWithoutPause() {
+        for (int i = 0; i < 10; i++) {
+            batch.onFlush(0, 0, 0);
+        }
+        assertThat(batch.delayNanos()).isEqualTo(MAX_INTERVAL);
+
+        // Пара операций после простоя, за время записи пришло ещё несколько
+        batch.onFlush(2, FAST, 3);
+        assertThat(batch.delayNanos()).isZero();
+    }
+
+    @Test
+    void onFailure_ShouldCutBatchAndRetryAfterMaxInterval() {
+        batch.onFailure();
+
+        assertThat(batch.limit()).isEqualTo(500);
+        assertThat(batch.delayNanos()).isEqualTo(MAX_INTERVAL);
+    }
+}
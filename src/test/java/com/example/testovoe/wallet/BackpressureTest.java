@@ -0,0 +1,58 @@
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.exception.ServiceOverloadedException;
+import com.example.testovoe.wallet.service.Backpressure;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BackpressureTest {
+
+    private Backpressure backpressure;
+
+    @BeforeEach
+    void setUp() {
+        backpressure = new Backpressure();
+        ReflectionTestUtils.setField(backpressure, "highWatermark", 4L);
+        ReflectionTestUtils.setField(backpressure, "lowWatermark", 2L);
+        ReflectionTestUtils.setField(backpressure, "maxLagMs", 60_000L);
+        ReflectionTestUtils.setField(backpressure, "retryAfterSeconds", 3);
+    }
+
+    @Test
+    void admit_ShouldRejectUntilQueueDrainsBelowLowWatermark() {
+        for (int i = 0; i < 4; i++) {
+            backpressure.onEnqueued();
+        }
+
+        assertThatThrownBy(backpressure::admit)
+                .isInstanceOf(ServiceOverloadedException.class)
+                .hasFieldOrPropertyWithValue("retryAfterSeconds", 3);
+
+        // Ниже верхней границы, но выше нижней - всё ещё отклоняем
+        backpressure.onPersisted(1);
+        assertThatThrownBy(backpressure::admit).isInstanceOf(ServiceOverloadedException.class);
+
+        backpressure.onPersisted(1);
+        assertThatCode(backpressure::admit).doesNotThrowAnyException();
+        assertThat(backpressure.isOverloaded()).isFalse();
+    }
+
+    @Test
+    void admit_ShouldRejectWhenPersistenceLags() {
+        backpressure.onEnqueued();
+        backpressure.update(0, TimeUnit.MINUTES.toNanos(2));
+
+        assertThatThrownBy(backpressure::admit).isInstanceOf(ServiceOverloadedException.class);
+
+        backpressure.onPersisted(1);
+        assertThat(backpressure.lagNanos()).isZero();
+        assertThatCode(backpressure::admit).doesNotThrowAnyException();
+    }
+}
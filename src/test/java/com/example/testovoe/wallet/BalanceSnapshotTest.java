@@ -0,0 +1,69 @@
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.ledger.BalanceSnapshot;
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BalanceSnapshotTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void write_ShouldBeReadBackWithAllWallets() {
+        BalanceStore store = new BalanceStore(16, 2, 0);
+        Map<UUID, Long> expected = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            UUID walletId = UUID.randomUUID();
+            store.putIfAbsent(walletId, i * 10_000L - 50_000L, i, i + 100L);
+            expected.put(walletId, i * 10_000L - 50_000L);
+        }
+        LocalDateTime takenAt = LocalDateTime.of(2026, 3, 1, 12, 30, 15, 123_456_000);
+        Path path = dir.resolve("snapshot/balances.snap");
+
+        assertThat(BalanceSnapshot.write(path, takenAt, store)).isEqualTo(100);
+
+        BalanceSnapshot snapshot = BalanceSnapshot.read(path);
+        assertThat(snapshot.takenAt()).isEqualTo(takenAt);
+        assertThat(snapshot.size()).isEqualTo(100);
+        Map<UUID, Long> restored = new HashMap<>();
+        snapshot.forEach((walletId, balance, rowVersion) -> {
+            restored.put(walletId, balance);
+            assertThat(rowVersion).isEqualTo((balance + 50_000L) / 10_000L + 100L);
+        });
+        assertThat(restored).isEqualTo(expected);
+        assertThat(path).hasSize(BalanceSnapshot.HEADER_SIZE + 100L * BalanceSnapshot.ENTRY_SIZE);
+        assertThat(Files.exists(dir.resolve("snapshot/balances.snap.tmp"))).isFalse();
+    }
+
+    @Test
+    void read_ShouldRejectCorruptedSnapshot() throws Exception {
+        BalanceStore store = new BalanceStore(16, 2, 0);
+        store.putIfAbsent(UUID.randomUUID(), 1_000_000L, 1);
+        Path path = dir.resolve("balances.snap");
+        BalanceSnapshot.write(path, LocalDateTime.now(), store);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1}), BalanceSnapshot.HEADER_SIZE + 17);
+        }
+
+        assertThatThrownBy(() -> BalanceSnapshot.read(path))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("corrupted");
+        assertThat(BalanceSnapshot.read(dir.resolve("missing.snap"))).isNull();
+    }
+}
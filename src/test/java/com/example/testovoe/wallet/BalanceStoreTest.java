@@ -0,0 +1,143 @@
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.ledger.BalanceChange;
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BalanceStoreTest {
+
+    @Test
+    void apply_ShouldRejectWithdrawAboveBalance() {
+        BalanceStore store = new BalanceStore(16, 1, 0);
+        UUID walletId = UUID.randomUUID();
+        store.putIfAbsent(walletId, 1_000_000, 7);
+
+        BalanceChange withdraw = store.apply(walletId, -1_500_000);
+        BalanceChange deposit = store.apply(walletId, 250_000);
+
+        assertThat(withdraw.applied()).isFalse();
+        assertThat(withdraw.balance()).isEqualTo(1_000_000);
+        assertThat(deposit.applied()).isTrue();
+        assertThat(deposit.balance()).isEqualTo(1_250_000);
+        assertThat(deposit.version()).isEqualTo(8);
+        assertThat(store.apply(UUID.randomUUID(), 1)).isNull();
+    }
+
+    @Test
+    void apply_ShouldDetectOverflow() {
+        BalanceStore store = new BalanceStore(16, 1, 0);
+        UUID walletId = UUID.randomUUID();
+        store.putIfAbsent(walletId, Long.MAX_VALUE - 1, 0);
+
+        assertThatThrownBy(() -> store.apply(walletId, 2)).isInstanceOf(ArithmeticException.class);
+        assertThat(store.balance(walletId)).isEqualTo(Long.MAX_VALUE - 1);
+    }
+
+    @Test
+    void apply_ConcurrentWithGrowth_ShouldNotLoseUpdates() throws Exception {
+        BalanceStore store = new BalanceStore(16, 4, 0);
+        List<UUID> hot = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            UUID walletId = UUID.randomUUID();
+            hot.add(walletId);
+            store.putIfAbsent(walletId, 0, 0);
+        }
+
+        int threads = 8;
+        int operations = 20_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < operations; i++) {
+                    store.apply(hot.get(i % hot.size()), 1);
+                }
+                return null;
+            }));
+        }
+        // Параллельно растим таблицы новыми кошельками
+        futures.add(executor.submit(() -> {
+            start.await();
+            for (int i = 0; i < 50_000; i++) {
+                store.putIfAbsent(UUID.randomUUID(), i, 0);
+            }
+            return null;
+        }));
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        long total = 0;
+        for (UUID walletId : hot) {
+            total += store.balance(walletId);
+        }
+        assertThat(total).isEqualTo((long) threads * operations);
+        assertThat(store.size()).isEqualTo(50_000 + hot.size());
+
+        Map<UUID, Long> seen = new HashMap<>();
+        store.forEach((walletId, balance, version) -> seen.put(walletId, balance));
+        assertThat(seen).hasSize(store.size());
+    }
+
+    @Test
+    void putIfAbsent_ShouldEvictOnlySyncedEntries() {
+        BalanceStore store = new BalanceStore(16, 1, 8);
+        UUID dirty = UUID.randomUUID();
+        store.putIfAbsent(dirty, 100, 0);
+        store.apply(dirty, 1);
+
+        for (int i = 0; i < 100; i++) {
+            store.putIfAbsent(UUID.randomUUID(), i, 0);
+        }
+
+        assertThat(store.size()).isLessThanOrEqualTo(9);
+        assertThat(store.evictionCount()).isGreaterThan(0);
+        assertThat(store.balance(dirty)).isEqualTo(101);
+
+        // После записи в БД запись становится кандидатом на вытеснение
+        store.markSynced(dirty, store.version(dirty));
+        for (int i = 0; i < 100; i++) {
+            store.putIfAbsent(UUID.randomUUID(), i, 0);
+        }
+        assertThat(store.contains(dirty)).isFalse();
+    }
+
+    @Test
+    void rebase_ShouldKeepLocalChangesOnTopOfStoredBalance() {
+        BalanceStore store = new BalanceStore(16, 1, 0);
+        UUID walletId = UUID.randomUUID();
+        store.putIfAbsent(walletId, 1_000, 0, 4);
+        store.apply(walletId, 300);
+        store.markSynced(walletId, store.version(walletId), 1_300, 5);
+        store.apply(walletId, -200);
+
+        // Другой узел записал 5_000 поверх версии 5 - локальные -200 переносятся на неё
+        long version = store.version(walletId);
+        assertThat(store.rebase(walletId, 5_000, 6)).isEqualTo(4_800);
+        assertThat(store.rowVersion(walletId)).isEqualTo(6);
+        assertThat(store.version(walletId)).isGreaterThan(version);
+
+        // Устаревшая запись не откатывает версию строки
+        store.markSynced(walletId, store.version(walletId), 1_100, 5);
+        assertThat(store.rowVersion(walletId)).isEqualTo(6);
+        assertThat(store.rebase(UUID.randomUUID(), 0, 0)).isEqualTo(BalanceStore.MISSING);
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.cluster.ClusterMembership;
+import com.example.testovoe.wallet.cluster.ClusterNode;
+import com.example.testovoe.wallet.cluster.HashRing;
+import com.example.testovoe.wallet.dto.TransferRequest;
+import com.example.testovoe.wallet.dto.WalletOperationRequest;
+import com.example.testovoe.wallet.exception.ServiceOverloadedException;
+import com.example.testovoe.wallet.exception.WalletNotOwnedException;
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import com.example.testovoe.wallet.model.OperationType;
+import com.example.testovoe.wallet.repository.WalletRepository;
+import com.example.testovoe.wallet.service.JournalRecovery;
+import com.example.testovoe.wallet.service.WalletService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Узел node-a кластера с арендой в wallet_node; второй узел - строка
+ * в таблице, продление аренды вызывает тест
+ */
+@Testcontainers
+@SpringBootTest(properties = {
+        "wallet.cluster.enabled=true",
+        "wallet.cluster.node-id=node-a",
+        "wallet.cluster.url=http://node-a:8080",
+        "wallet.cluster.heartbeat-ms=3600000",
+        "wallet.cluster.lease-ms=3600000",
+        // Записи журнала остаются для повторного восстановления
+        "wallet.journal.checkpoint-interval-ms=3600000"
+})
+@AutoConfigureMockMvc
+class ClusterIntegrationTest {
+
+    @Container
+    static PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(
+            DockerImageName.parse("postgres:17"))
+            .withDatabaseName("testdb")
+            .withUsername("test")
+            .withPassword("test");
+
+    @DynamicPropertySource
+    static void configureProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", postgres::getJdbcUrl);
+        registry.add("spring.datasource.username", postgres::getUsername);
+        registry.add("spring.datasource.password", postgres::getPassword);
+        registry.add("wallet.journal.dir", () -> "${java.io.tmpdir}/wallet-journal-${random.uuid}");
+        registry.add("wallet.snapshot.path", () -> "${java.io.tmpdir}/wallet-snapshot-${random.uuid}/balances.snap");
+    }
+
+    private static final HashRing TWO_NODES = new HashRing(List.of(
+            new ClusterNode("node-a", "http://node-a:8080"),
+            new ClusterNode("node-b", "http://node-b:8080")), 128);
+
+    private static final HashRing THREE_NODES = new HashRing(List.of(
+            new ClusterNode("node-a", "http://node-a:8080"),
+            new ClusterNode("node-b", "http://node-b:8080"),
+            new ClusterNode("node-c", "http://node-c:8080")), 128);
+
+    @Autowired
+    private WalletService walletService;
+
+    @Autowired
+    private ClusterMembership cluster;
+
+    @Autowired
+    private BalanceStore balanceCache;
+
+    @Autowired
+    private WalletRepository walletRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private JournalRecovery journalRecovery;
+
+    @AfterEach
+    void tearDown() {
+        transactionTemplate.executeWithoutResult(
+                status -> jdbcTemplate.update("DELETE FROM wallet_node WHERE node_id <> 'node-a'"));
+        cluster.heartbeat();
+    }
+
+    @Test
+    void heartbeat_JoiningNode_ShouldTakeOverItsWallets() throws Exception {
+        UUID kept = walletOwnedBy("node-a");
+        UUID moved = walletOwnedBy("node-b");
+        walletService.processOperation(deposit(kept, "10.00"));
+        walletService.processOperation(deposit(moved, "20.00"));
+
+        joinNodeB();
+
+        // Кошелёк node-b записан в БД и больше не в кэше node-a
+        assertThat(balanceCache.contains(moved)).isFalse();
+        assertThat(walletRepository.findById(moved).orElseThrow().getBalance()).isEqualByComparingTo("20.00");
+        assertThat(walletService.getWalletBalance(kept).getBalance()).isEqualByComparingTo("10.00");
+
+        assertThatThrownBy(() -> walletService.processOperation(deposit(moved, "1.00")))
+                .isInstanceOf(WalletNotOwnedException.class);
+        mockMvc.perform(get("/api/v1/wallets/{walletId}", moved))
+                .andExpect(status().isTemporaryRedirect())
+                .andExpect(header().string(HttpHeaders.LOCATION, "http://node-b:8080/api/v1/wallets/" + moved))
+                .andExpect(header().string("X-Wallet-Owner", "node-b"));
+    }
+
+    @Test
+    void processTransfer_ToWalletOfAnotherNode_ShouldReachItsRow() {
+        UUID from = walletOwnedBy("node-a");
+        UUID to = walletOwnedBy("node-b");
+        walletService.processOperation(deposit(from, "50.00"));
+        joinNodeB();
+
+        walletService.processTransfer(TransferRequest.builder()
+                .fromWalletId(from)
+                .toWalletId(to)
+                .amount(new BigDecimal("15.00"))
+                .build());
+
+        // Зачисление записано в строку кошелька, баланс дальше ведёт node-b
+        await().atMost(10, TimeUnit.SECONDS).untilAsserted(() -> {
+            assertThat(walletRepository.findById(to).orElseThrow().getBalance()).isEqualByComparingTo("15.00");
+            assertThat(balanceCache.contains(to)).isFalse();
+        });
+        assertThat(walletService.getWalletBalance(from).getBalance()).isEqualByComparingTo("35.00");
+    }
+
+    @Test
+    void processBatch_WithdrawingFromWalletsOfDifferentNodes_ShouldReturnBadRequest() throws Exception {
+        joinNodeB();
+        String batch = """
+                [{"walletId": "%s", "operationType": "WITHDRAW", "amount": 1.00},
+                 {"walletId": "%s", "operationType": "WITHDRAW", "amount": 1.00}]
+                """.formatted(walletOwnedBy("node-a"), walletOwnedBy("node-b"));
+
+        mockMvc.perform(post("/api/v1/wallets/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(batch))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void heartbeat_NewOwner_ShouldNotServeWalletUntilAllNodesHandedItOff() throws Exception {
+        // Кошелёк node-c, после ухода node-c переходит к node-a
+        UUID walletId;
+        do {
+            walletId = walletOwnedBy("node-a");
+        } while (!THREE_NODES.owner(walletId).id().equals("node-c"));
+        UUID moving = walletId;
+        insertNode("node-b", THREE_NODES.key());
+        insertNode("node-c", THREE_NODES.key());
+        awaitSettled();
+        assertThat(cluster.owner(moving).id()).isEqualTo("node-c");
+
+        // node-b ещё не отметил состав без node-c: node-c мог списывать с кошелька до ухода
+        transactionTemplate.executeWithoutResult(
+                status -> jdbcTemplate.update("DELETE FROM wallet_node WHERE node_id = 'node-c'"));
+        cluster.heartbeat();
+        assertThat(cluster.owner(moving).id()).isEqualTo("node-a");
+        assertThatThrownBy(() -> walletService.processOperation(deposit(moving, "1.00")))
+                .isInstanceOf(ServiceOverloadedException.class);
+        mockMvc.perform(get("/api/v1/wallets/{walletId}", moving))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().exists(HttpHeaders.RETRY_AFTER));
+
+        transactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(
+                "UPDATE wallet_node SET ring = ? WHERE node_id = 'node-b'", TWO_NODES.key()));
+        awaitSettled();
+        walletService.processOperation(deposit(moving, "1.00"));
+        assertThat(walletService.getWalletBalance(moving).getBalance()).isEqualByComparingTo("1.00");
+    }
+
+    @Test
+    void recover_ShouldAddCreditsToWalletOfAnotherNodeInsteadOfOverwritingIt() {
+        UUID from = walletOwnedBy("node-a");
+        UUID to = walletOwnedBy("node-b");
+        walletService.processOperation(deposit(from, "50.00"));
+        joinNodeB();
+        walletService.processTransfer(TransferRequest.builder()
+                .fromWalletId(from)
+                .toWalletId(to)
+                .amount(new BigDecimal("15.00"))
+                .build());
+        await().atMost(10, TimeUnit.SECONDS).untilAsserted(() ->
+                assertThat(walletRepository.findById(to).orElseThrow().getBalance()).isEqualByComparingTo("15.00"));
+
+        // node-b принял зачисление и записал более новый баланс
+        transactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(
+                "UPDATE wallet SET balance = balance + 100, version = version + 1 WHERE id = ?", to));
+        journalRecovery.recover();
+        assertThat(walletRepository.findById(to).orElseThrow().getBalance()).isEqualByComparingTo("115.00");
+
+        // Операция не дошла до БД: восстановление вставляет её и прибавляет сумму
+        transactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(
+                "DELETE FROM wallet_operation WHERE wallet_id = ?", to));
+        journalRecovery.recover();
+        assertThat(walletRepository.findById(to).orElseThrow().getBalance()).isEqualByComparingTo("130.00");
+        assertThat(jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM wallet_operation WHERE wallet_id = ?", Long.class, to)).isEqualTo(1);
+    }
+
+    private void joinNodeB() {
+        insertNode("node-b", null);
+        cluster.heartbeat();
+        assertThat(cluster.owner(walletOwnedBy("node-b")).id()).isEqualTo("node-b");
+    }
+
+    /**
+     * Продление аренды, пока свою отметку не поставит и этот узел: кошельки
+     * с конфликтом версий отпускаются после следующей записи балансов
+     */
+    private void awaitSettled() {
+        await().atMost(10, TimeUnit.SECONDS).untilAsserted(() -> {
+            cluster.heartbeat();
+            assertThat(cluster.isSettled()).isTrue();
+        });
+    }
+
+    private void insertNode(String nodeId, String ring) {
+        transactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(
+                "INSERT INTO wallet_node (node_id, url, lease_until, ring) "
+                        + "VALUES (?, ?, localtimestamp + interval '1 hour', ?)",
+                nodeId, "http://" + nodeId + ":8080", ring));
+    }
+
+    private static UUID walletOwnedBy(String nodeId) {
+        while (true) {
+            UUID walletId = UUID.randomUUID();
+            if (TWO_NODES.owner(walletId).id().equals(nodeId)) {
+                return walletId;
+            }
+        }
+    }
+
+    private static WalletOperationRequest deposit(UUID walletId, String amount) {
+        return WalletOperationRequest.builder()
+                .walletId(walletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+}
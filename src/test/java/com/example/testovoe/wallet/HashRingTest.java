@@ -0,0 +1,65 @@
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.cluster.ClusterNode;
+import com.example.testovoe.wallet.cluster.HashRing;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HashRingTest {
+
+    private static final int WALLETS = 100_000;
+
+    @Test
+    void owner_ShouldSpreadWalletsEvenly() {
+        List<ClusterNode> nodes = nodes(4);
+        HashRing ring = new HashRing(nodes, 128);
+
+        Map<ClusterNode, Integer> owned = new HashMap<>();
+        for (int i = 0; i < WALLETS; i++) {
+            owned.merge(ring.owner(UUID.randomUUID()), 1, Integer::sum);
+        }
+
+        assertThat(owned).hasSize(4);
+        assertThat(owned.values()).allSatisfy(count -> assertThat(count).isBetween(WALLETS / 4 * 8 / 10, WALLETS / 4 * 12 / 10));
+        // Порядок узлов в составе не влияет на кольцо
+        List<ClusterNode> reversed = new ArrayList<>(nodes);
+        Collections.reverse(reversed);
+        UUID walletId = UUID.randomUUID();
+        assertThat(new HashRing(reversed, 128).owner(walletId)).isEqualTo(ring.owner(walletId));
+    }
+
+    @Test
+    void owner_ShouldMoveOnlyWalletsOfJoiningNode() {
+        HashRing before = new HashRing(nodes(4), 128);
+        HashRing after = new HashRing(nodes(5), 128);
+        ClusterNode joined = after.nodes().get(4);
+
+        int moved = 0;
+        for (int i = 0; i < WALLETS; i++) {
+            UUID walletId = UUID.randomUUID();
+            ClusterNode owner = after.owner(walletId);
+            if (!owner.equals(before.owner(walletId))) {
+                assertThat(owner).isEqualTo(joined);
+                moved++;
+            }
+        }
+
+        assertThat(moved).isBetween(WALLETS / 5 * 8 / 10, WALLETS / 5 * 12 / 10);
+    }
+
+    private static List<ClusterNode> nodes(int count) {
+        List<ClusterNode> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(new ClusterNode("node-" + i, "http://node-" + i + ":8080"));
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.exception.ServiceOverloadedException;
+import com.example.testovoe.wallet.ledger.IdempotencyIndex;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IdempotencyIndexTest {
+
+    private final IdempotencyIndex index = new IdempotencyIndex(600_000, 100, 1);
+
+    @Test
+    void claim_KeyHeldByStuckRequest_ShouldFailAfterTimeout() {
+        UUID operationId = UUID.randomUUID();
+        UUID walletId = UUID.randomUUID();
+        assertThat(index.claim(operationId, walletId)).isNull();
+
+        // Владелец ключа не завершает и не освобождает его
+        long start = System.nanoTime();
+        assertThatThrownBy(() -> index.claim(operationId, walletId))
+                .isInstanceOf(ServiceOverloadedException.class);
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(5));
+
+        index.release(operationId);
+        assertThat(index.claim(operationId, walletId)).isNull();
+    }
+
+    @Test
+    void claim_KeyCompletedWhileWaiting_ShouldReturnAppliedOperation() throws Exception {
+        IdempotencyIndex patient = new IdempotencyIndex(600_000, 10_000, 1);
+        UUID operationId = UUID.randomUUID();
+        UUID walletId = UUID.randomUUID();
+        assertThat(patient.claim(operationId, walletId)).isNull();
+
+        CompletableFuture<IdempotencyIndex.Entry> retry =
+                CompletableFuture.supplyAsync(() -> patient.claim(operationId, walletId));
+        Thread.sleep(20);
+        patient.complete(operationId, walletId, 42);
+
+        IdempotencyIndex.Entry applied = retry.get(5, TimeUnit.SECONDS);
+        assertThat(applied.journalSeq()).isEqualTo(42);
+        assertThat(applied.walletId()).isEqualTo(walletId);
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.journal.JournalEntry;
+import com.example.testovoe.wallet.journal.JournalRecord;
+import com.example.testovoe.wallet.journal.OperationJournal;
+import com.example.testovoe.wallet.model.OperationType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OperationJournalTest {
+
+    @TempDir
+    Path dir;
+
+    private final UUID walletId = UUID.fromString("a1b2c3d4-e5f6-7890-abcd-ef1234567890");
+
+    @Test
+    void append_ShouldBeReplayedAfterReopen() {
+        OperationJournal journal = new OperationJournal(true, dir, 1024 * 1024);
+        journal.open();
+        long first = journal.append(walletId, OperationType.DEPOSIT, 1_005_000, 1_005_000, 1, null);
+        UUID operationId = UUID.randomUUID();
+        long second = journal.append(walletId, OperationType.WITHDRAW, 2_500, 1_002_500, 2, operationId);
+        journal.awaitDurable(second);
+        journal.close();
+
+        OperationJournal reopened = new OperationJournal(true, dir, 1024 * 1024);
+        reopened.open();
+        List<JournalRecord> records = new ArrayList<>();
+        reopened.replay(records::add);
+        reopened.close();
+
+        assertThat(records).hasSize(2);
+        assertThat(records.get(0).sequence()).isEqualTo(first);
+        assertThat(records.get(0).operationType()).isEqualTo(OperationType.DEPOSIT);
+        assertThat(records.get(1).walletId()).isEqualTo(walletId);
+        assertThat(records.get(1).amount()).isEqualByComparingTo("0.25");
+        assertThat(records.get(1).balance()).isEqualByComparingTo("100.25");
+        assertThat(records.get(1).version()).isEqualTo(2);
+        assertThat(records.get(0).operationId()).isNull();
+        assertThat(records.get(1).operationId()).isEqualTo(operationId);
+        assertThat(reopened.lastSequence()).isEqualTo(second);
+    }
+
+    @Test
+    void release_ShouldDeleteCheckpointedSegments() throws Exception {
+        OperationJournal journal = new OperationJournal(true, dir, OperationJournal.RECORD_SIZE * 4);
+        journal.open();
+        for (int i = 1; i <= 10; i++) {
+            long seq = journal.append(walletId, OperationType.DEPOSIT, 10_000, i * 10_000L, i, null);
+            journal.handOff(seq);
+        }
+        long checkpoint = journal.rotate();
+        assertThat(journal.awaitHandOff(checkpoint, 100)).isTrue();
+        journal.release(checkpoint);
+
+        long next = journal.append(walletId, OperationType.DEPOSIT, 10_000, 110_000, 11, null);
+        journal.awaitDurable(next);
+        journal.close();
+
+        assertThat(next).isEqualTo(checkpoint + 1);
+        // Остаётся только активный сегмент (и файл с id журнала)
+        try (Stream<Path> files = Files.list(dir)) {
+            assertThat(files.filter(p -> p.toString().endsWith(".log")).count()).isEqualTo(1);
+        }
+
+        OperationJournal reopened = new OperationJournal(true, dir, OperationJournal.RECORD_SIZE * 4);
+        reopened.open();
+        List<JournalRecord> records = new ArrayList<>();
+        reopened.replay(records::add);
+        reopened.close();
+
+        assertThat(records).extracting(JournalRecord::sequence).containsExactly(next);
+    }
+
+    @Test
+    void open_DrainedJournal_ShouldKeepIdAndContinueNumbering() {
+        OperationJournal journal = new OperationJournal(true, dir, 1024 * 1024);
+        journal.open();
+        UUID id = journal.id();
+        long seq = journal.append(walletId, OperationType.DEPOSIT, 10_000, 10_000, 1, null);
+        journal.handOff(seq);
+        journal.release(journal.rotate());
+        journal.close();
+
+        OperationJournal reopened = new OperationJournal(true, dir, 1024 * 1024);
+        reopened.open();
+        long next = reopened.append(walletId, OperationType.DEPOSIT, 10_000, 20_000, 2, null);
+        reopened.close();
+
+        assertThat(reopened.id()).isEqualTo(id);
+        assertThat(next).isEqualTo(seq + 1);
+    }
+
+    @Test
+    void awaitHandOff_ShouldTimeOutWhileOperationIsInFlight() {
+        OperationJournal journal = new OperationJournal(true, dir, 1024 * 1024);
+        journal.open();
+        long seq = journal.append(walletId, OperationType.DEPOSIT, 10_000, 10_000, 1, null);
+        long checkpoint = journal.rotate();
+
+        assertThat(journal.awaitHandOff(checkpoint, 10)).isFalse();
+        journal.handOff(seq);
+        assertThat(journal.awaitHandOff(checkpoint, 10)).isTrue();
+        journal.close();
+    }
+
+    @Test
+    void awaitHandOff_ShouldWakeUpWhenLastOperationIsHandedOff() throws Exception {
+        OperationJournal journal = new OperationJournal(true, dir, 1024 * 1024);
+        journal.open();
+        long seq = journal.append(walletId, OperationType.DEPOSIT, 10_000, 10_000, 1, null);
+        long checkpoint = journal.rotate();
+
+        Thread shard = new Thread(() -> {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+            journal.handOff(seq);
+        });
+        long start = System.nanoTime();
+        shard.start();
+
+        // Ожидание заканчивается передачей, а не таймаутом
+        assertThat(journal.awaitHandOff(checkpoint, 10_000)).isTrue();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(5_000);
+        shard.join();
+        journal.close();
+    }
+
+    @Test
+    void durableFuture_ShouldCompleteAfterGroupCommit() throws Exception {
+        OperationJournal journal = new OperationJournal(true, dir, OperationJournal.RECORD_SIZE * 2);
+        journal.open();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        // Пять записей на сегменты по две: часть становится durable при смене сегмента
+        for (int i = 1; i <= 5; i++) {
+            long seq = journal.append(walletId, OperationType.DEPOSIT, 100, 100L * i, i, null);
+            futures.add(journal.durableFuture(seq));
+        }
+
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        assertThat(journal.durableFuture(journal.lastSequence())).isDone();
+        assertThat(journal.durableFuture(0)).isDone();
+        journal.close();
+    }
+
+    @Test
+    void appendAll_TornPosting_ShouldBeDroppedOnReopen() throws Exception {
+        OperationJournal journal = new OperationJournal(true, dir, 1024 * 1024);
+        journal.open();
+        UUID targetId = UUID.randomUUID();
+        long single = journal.append(walletId, OperationType.DEPOSIT, 50_000, 50_000, 1, null);
+        long[] legs = journal.appendAll(List.of(
+                new JournalEntry(walletId, OperationType.TRANSFER_OUT, 10_000, 40_000, 2, null),
+                new JournalEntry(targetId, OperationType.TRANSFER_IN, 10_000, 10_000, 1, null)));
+        journal.awaitDurable(legs[1]);
+        journal.close();
+
+        assertThat(legs).containsExactly(single + 1, single + 2);
+
+        // Вторая нога не дошла до диска
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.findFirst().orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(OperationJournal.RECORD_SIZE), 2L * OperationJournal.RECORD_SIZE);
+        }
+
+        OperationJournal reopened = new OperationJournal(true, dir, 1024 * 1024);
+        reopened.open();
+        List<JournalRecord> records = new ArrayList<>();
+        reopened.replay(records::add);
+        reopened.close();
+
+        assertThat(records).extracting(JournalRecord::sequence).containsExactly(single);
+    }
+}
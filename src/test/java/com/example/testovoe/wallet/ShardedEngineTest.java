@@ -0,0 +1,115 @@
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.engine.ShardedEngine;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ShardedEngineTest {
+
+    @Test
+    void execute_ShouldSerializeCommandsOfOneShard() throws Exception {
+        ShardedEngine engine = new ShardedEngine(4, 64);
+        engine.start();
+        List<UUID> wallets = new ArrayList<>();
+        // Обычная HashMap без синхронизации: каждым кошельком владеет один поток шарда
+        Map<UUID, long[]> balances = new HashMap<>();
+        for (int i = 0; i < 16; i++) {
+            UUID walletId = UUID.randomUUID();
+            wallets.add(walletId);
+            balances.put(walletId, new long[1]);
+        }
+
+        int threads = 8;
+        int operations = 10_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < operations; i++) {
+                    UUID walletId = wallets.get(i % wallets.size());
+                    engine.execute(walletId, () -> ++balances.get(walletId)[0]);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        engine.close();
+
+        long total = balances.values().stream().mapToLong(balance -> balance[0]).sum();
+        assertThat(total).isEqualTo((long) threads * operations);
+    }
+
+    @Test
+    void execute_ShouldRethrowCommandException() {
+        ShardedEngine engine = new ShardedEngine(2, 8);
+        engine.start();
+        UUID walletId = UUID.randomUUID();
+
+        assertThatThrownBy(() -> engine.execute(walletId, () -> {
+            throw new IllegalArgumentException("rejected");
+        })).isInstanceOf(IllegalArgumentException.class).hasMessage("rejected");
+        assertThat(engine.execute(walletId, () -> Thread.currentThread().getName()))
+                .isEqualTo("wallet-shard-" + engine.shardOf(walletId));
+        engine.close();
+    }
+
+    @Test
+    void execute_WithoutShards_ShouldRunInCallerThread() {
+        ShardedEngine engine = new ShardedEngine(0, 8);
+        engine.start();
+
+        assertThat(engine.isEnabled()).isFalse();
+        assertThat(engine.execute(UUID.randomUUID(), () -> Thread.currentThread()))
+                .isSameAs(Thread.currentThread());
+        engine.close();
+    }
+
+    @Test
+    void executeExclusive_ShouldHoldInvolvedShards() throws Exception {
+        ShardedEngine engine = new ShardedEngine(4, 64);
+        engine.start();
+        UUID walletId = UUID.randomUUID();
+        CountDownLatch inside = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<String> exclusive = executor.submit(() -> engine.executeExclusive(List.of(walletId), () -> {
+            inside.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "done";
+        }));
+
+        assertThat(inside.await(5, TimeUnit.SECONDS)).isTrue();
+        var blocked = engine.submit(walletId, () -> "shard");
+        Thread.sleep(50);
+        assertThat(blocked).isNotDone();
+
+        finish.countDown();
+        assertThat(exclusive.get(5, TimeUnit.SECONDS)).isEqualTo("done");
+        assertThat(blocked.get(5, TimeUnit.SECONDS)).isEqualTo("shard");
+        executor.shutdown();
+        engine.close();
+    }
+}
@@ -1,117 +1,183 @@
-package com.example.testovoe.wallet;
-
-import com.example.testovoe.wallet.dto.WalletBalanceResponse;
-import com.example.testovoe.wallet.dto.WalletOperationRequest;
-import com.example.testovoe.wallet.dto.WalletOperationResponse;
-import com.example.testovoe.wallet.exception.InsufficientFundsException;
-import com.example.testovoe.wallet.exception.WalletNotFoundException;
-import com.example.testovoe.wallet.model.OperationStatus;
-import com.example.testovoe.wallet.model.OperationType;
-import com.example.testovoe.wallet.service.WalletService;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.junit.jupiter.api.Test;
-import org.mockito.Mock;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
-import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.http.MediaType;
-import org.springframework.test.context.ActiveProfiles;
-import org.springframework.test.web.servlet.MockMvc;
-
-import java.math.BigDecimal;
-import java.util.UUID;
-
-import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.Mockito.when;
-import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
-import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
-import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
-
-@SpringBootTest
-@AutoConfigureMockMvc
-@ActiveProfiles("test")
-class WalletControllerTest {
-
-    @Autowired
-    private MockMvc mockMvc;
-
-    @Autowired
-    private ObjectMapper objectMapper;
-
-    @Mock
-    private WalletService walletService;
-
-    private final UUID testWalletId = UUID.fromString("a1b2c3d4-e5f6-7890-abcd-ef1234567890");
-
-    @Test
-    void processOperation_Deposit_ShouldReturnSuccess() throws Exception {
-        WalletOperationRequest request = WalletOperationRequest.builder()
-                .walletId(testWalletId)
-                .operationType(OperationType.DEPOSIT)
-                .amount(new BigDecimal("100.50"))
-                .build();
-
-        WalletOperationResponse response = WalletOperationResponse.builder()
-                .status(OperationStatus.SUCCESS)
-                .build();
-
-        when(walletService.processOperation(any(WalletOperationRequest.class)))
-                .thenReturn(response);
-
-        mockMvc.perform(post("/api/v1/wallets")
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .content(objectMapper.writeValueAsString(request)))
-                .andExpect(status().isOk())
-                .andExpect(jsonPath("$.status").value("SUCCESS"));
-    }
-
-    @Test
-    void processOperation_InvalidRequest_ShouldReturnBadRequest() throws Exception {
-        // Arrange - negative amount
-        WalletOperationRequest request = WalletOperationRequest.builder()
-                .walletId(testWalletId)
-                .operationType(OperationType.DEPOSIT)
-                .amount(new BigDecimal("-100.00")) // Invalid
-                .build();
-
-        mockMvc.perform(post("/api/v1/wallets")
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .content(objectMapper.writeValueAsString(request)))
-                .andExpect(status().isBadRequest());
-    }
-
-    @Test
-    void walletExists_ExistingWallet_ShouldReturnTrue() throws Exception {
-        when(walletService.walletExists(testWalletId))
-                .thenReturn(true);
-
-        mockMvc.perform(get("/api/v1/wallets/{walletId}/exists", testWalletId))
-                .andExpect(status().isOk())
-                .andExpect(content().string("true"));
-    }
-
-    @Test
-    void walletExists_NonExistingWallet_ShouldReturnFalse() throws Exception {
-        when(walletService.walletExists(testWalletId))
-                .thenReturn(false);
-
-        mockMvc.perform(get("/api/v1/wallets/{walletId}/exists", testWalletId))
-                .andExpect(status().isOk())
-                .andExpect(content().string("true"));
-    }
-
-    @Test
-    void processOperation_MissingFields_ShouldReturnBadRequest() throws Exception {
-        String invalidJson = """
-            {
-                "walletId": "a1b2c3d4-e5f6-7890-abcd-ef1234567890",
-                "operationType": "DEPOSIT"
-            }
-            """;
-
-        mockMvc.perform(post("/api/v1/wallets")
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .content(invalidJson))
-                .andExpect(status().isBadRequest());
-    }
-}
\ No newline at end of file
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.dto.WalletBalanceResponse;
+import com.example.testovoe.wallet.dto.WalletOperationRequest;
+import com.example.testovoe.wallet.dto.WalletOperationResponse;
+import com.example.testovoe.wallet.exception.InsufficientFundsException;
+import com.example.testovoe.wallet.exception.WalletNotFoundException;
+import com.example.testovoe.wallet.model.OperationStatus;
+import com.example.testovoe.wallet.model.OperationType;
+import com.example.testovoe.wallet.service.WalletService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+@ActiveProfiles("test")
+class WalletControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Mock
+    private WalletService walletService;
+
+    private final UUID testWalletId = UUID.fromString("a1b2c3d4-e5f6-7890-abcd-ef1234567890");
+
+    @Test
+    void processOperation_Deposit_ShouldReturnSuccess() throws Exception {
+        WalletOperationRequest request = WalletOperationRequest.builder()
+                .walletId(testWalletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("100.50"))
+                .build();
+
+        WalletOperationResponse response = WalletOperationResponse.builder()
+                .status(OperationStatus.SUCCESS)
+                .build();
+
+        when(walletService.processOperation(any(WalletOperationRequest.class)))
+                .thenReturn(response);
+
+        mockMvc.perform(post("/api/v1/wallets")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.status").value("SUCCESS"));
+    }
+
+    @Test
+    void processOperation_InvalidRequest_ShouldReturnBadRequest() throws Exception {
+        // Arrange - negative amount
+        WalletOperationRequest request = WalletOperationRequest.builder()
+                .walletId(testWalletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("-100.00")) // Invalid
+                .build();
+
+        mockMvc.perform(post("/api/v1/wallets")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void walletExists_ExistingWallet_ShouldReturnTrue() throws Exception {
+        when(walletService.walletExists(testWalletId))
+                .thenReturn(true);
+
+        mockMvc.perform(get("/api/v1/wallets/{walletId}/exists", testWalletId))
+                .andExpect(status().isOk())
+                .andExpect(content().string("true"));
+    }
+
+    @Test
+    void walletExists_NonExistingWallet_ShouldReturnFalse() throws Exception {
+        when(walletService.walletExists(testWalletId))
+                .thenReturn(false);
+
+        mockMvc.perform(get("/api/v1/wallets/{walletId}/exists", testWalletId))
+                .andExpect(status().isOk())
+                .andExpect(content().string("true"));
+    }
+
+    @Test
+    void processOperation_MissingFields_ShouldReturnBadRequest() throws Exception {
+        String invalidJson = """
+            {
+                "walletId": "a1b2c3d4-e5f6-7890-abcd-ef1234567890",
+                "operationType": "DEPOSIT"
+            }
+            """;
+
+        mockMvc.perform(post("/api/v1/wallets")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(invalidJson))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void processBatch_Ndjson_ShouldReturnPerItemResults() throws Exception {
+        UUID walletId = UUID.randomUUID();
+        String ndjson = """
+            {"walletId": "%1$s", "operationType": "DEPOSIT", "amount": 10.00}
+            {"walletId": "%1$s", "operationType": "WITHDRAW", "amount": 25.00}
+            """.formatted(walletId);
+
+        mockMvc.perform(post("/api/v1/wallets/batch")
+                        .contentType(MediaType.APPLICATION_NDJSON)
+                        .content(ndjson))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.succeeded").value(1))
+                .andExpect(jsonPath("$.results[0].status").value("SUCCESS"))
+                .andExpect(jsonPath("$.results[1].status").value("FAILED"));
+    }
+
+    @Test
+    void getOperationHistory_MalformedCursor_ShouldReturnBadRequest() throws Exception {
+        mockMvc.perform(get("/api/v1/wallets/{walletId}/operations", UUID.randomUUID())
+                        .param("cursor", "not-a-cursor"))
+                .andExpect(status().isBadRequest());
+
+        mockMvc.perform(get("/api/v1/wallets/{walletId}/operations", UUID.randomUUID())
+                        .param("limit", "10"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.operations").isEmpty())
+                .andExpect(jsonPath("$.nextCursor").doesNotExist());
+    }
+
+    @Test
+    void exportOperations_Gzip_ShouldReturnCompressedCsv() throws Exception {
+        byte[] body = mockMvc.perform(get("/api/v1/operations/export")
+                        .param("format", "CSV")
+                        .param("walletId", UUID.randomUUID().toString())
+                        .header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andExpect(content().contentTypeCompatibleWith("text/csv"))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        try (GZIPInputStream csv = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            assertThat(new String(csv.readAllBytes(), StandardCharsets.UTF_8))
+                    .startsWith("id,wallet_id,operation_id,operation_type,amount,status,error_message,created_at");
+        }
+    }
+
+    @Test
+    void exportOperations_GzipWithZeroQuality_ShouldReturnPlainCsv() throws Exception {
+        byte[] body = mockMvc.perform(get("/api/v1/operations/export")
+                        .param("format", "CSV")
+                        .param("walletId", UUID.randomUUID().toString())
+                        .header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0, identity"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        assertThat(new String(body, StandardCharsets.UTF_8))
+                .startsWith("id,wallet_id,operation_id,operation_type,amount,status,error_message,created_at");
+    }
+}
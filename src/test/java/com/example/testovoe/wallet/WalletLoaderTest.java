@@ -0,0 +1,79 @@
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.exception.ServiceOverloadedException;
+import com.example.testovoe.wallet.repository.StoredBalance;
+import com.example.testovoe.wallet.repository.WalletRepository;
+import com.example.testovoe.wallet.service.WalletLoader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class WalletLoaderTest {
+
+    private WalletRepository walletRepository;
+    private WalletLoader walletLoader;
+
+    @BeforeEach
+    void setUp() {
+        walletRepository = mock(WalletRepository.class);
+        when(walletRepository.findOrCreateBalances(any()))
+                .thenAnswer(call -> Arrays.stream(call.<UUID[]>getArgument(0))
+                        .collect(Collectors.toMap(id -> id, id -> new StoredBalance(BigDecimal.TEN, 3))));
+        walletLoader = new WalletLoader(walletRepository);
+        ReflectionTestUtils.setField(walletLoader, "threads", 1);
+        ReflectionTestUtils.setField(walletLoader, "batchSize", 100);
+        ReflectionTestUtils.setField(walletLoader, "timeoutMs", 200L);
+        ReflectionTestUtils.setField(walletLoader, "retryAfterSeconds", 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        walletLoader.stop();
+    }
+
+    @Test
+    void load_ShouldLoadQueuedMissesWithOneQuery() {
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+
+        // Промахи накопились до запуска потока загрузки - уходят одним пакетом
+        CompletableFuture<StoredBalance> firstLoad = walletLoader.load(first);
+        CompletableFuture<StoredBalance> secondLoad = walletLoader.load(second);
+        CompletableFuture<StoredBalance> repeatedLoad = walletLoader.load(first);
+        walletLoader.start();
+
+        assertThat(firstLoad.join().balance()).isEqualByComparingTo(BigDecimal.TEN);
+        assertThat(secondLoad.join().version()).isEqualTo(3);
+        assertThat(repeatedLoad.join().balance()).isEqualByComparingTo(BigDecimal.TEN);
+
+        ArgumentCaptor<UUID[]> walletIds = ArgumentCaptor.forClass(UUID[].class);
+        verify(walletRepository, times(1)).findOrCreateBalances(walletIds.capture());
+        assertThat(walletIds.getValue()).containsExactly(first, second);
+    }
+
+    @Test
+    void await_ShouldRejectWhenLoadTakesTooLong() {
+        // Поток загрузки не запущен - загрузка не завершится
+        CompletableFuture<StoredBalance> load = walletLoader.load(UUID.randomUUID());
+
+        assertThatThrownBy(() -> walletLoader.await(load))
+                .isInstanceOf(ServiceOverloadedException.class)
+                .hasFieldOrPropertyWithValue("retryAfterSeconds", 2);
+    }
+}
@@ -1,260 +1,882 @@
-package com.example.testovoe.wallet;
-
-import com.example.testovoe.wallet.dto.WalletBalanceResponse;
-import com.example.testovoe.wallet.dto.WalletOperationRequest;
-import com.example.testovoe.wallet.entity.Wallet;
-import com.example.testovoe.wallet.entity.WalletOperation;
-import com.example.testovoe.wallet.exception.InsufficientFundsException;
-import com.example.testovoe.wallet.model.OperationStatus;
-import com.example.testovoe.wallet.model.OperationType;
-import com.example.testovoe.wallet.repository.WalletOperationRepository;
-import com.example.testovoe.wallet.repository.WalletRepository;
-import com.example.testovoe.wallet.service.WalletService;
-import org.junit.jupiter.api.BeforeEach;
-import org.junit.jupiter.api.Test;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.test.context.DynamicPropertyRegistry;
-import org.springframework.test.context.DynamicPropertySource;
-import org.testcontainers.containers.PostgreSQLContainer;
-import org.testcontainers.junit.jupiter.Container;
-import org.testcontainers.junit.jupiter.Testcontainers;
-import org.testcontainers.utility.DockerImageName;
-
-import java.math.BigDecimal;
-import java.util.Optional;
-import java.util.UUID;
-import java.util.concurrent.TimeUnit;
-
-import static org.assertj.core.api.Assertions.assertThat;
-import static org.assertj.core.api.Assertions.assertThatThrownBy;
-import static org.awaitility.Awaitility.await;
-
-@Testcontainers
-@SpringBootTest
-class WalletServiceIntegrationTest {
-
-    @Container
-    static PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(
-            DockerImageName.parse("postgres:17"))
-            .withDatabaseName("testdb")
-            .withUsername("test")
-            .withPassword("test");
-
-    @DynamicPropertySource
-    static void configureProperties(DynamicPropertyRegistry registry) {
-        registry.add("spring.datasource.url", postgres::getJdbcUrl);
-        registry.add("spring.datasource.username", postgres::getUsername);
-        registry.add("spring.datasource.password", postgres::getPassword);
-    }
-
-    @Autowired
-    private WalletService walletService;
-
-    @Autowired
-    private WalletRepository walletRepository;
-
-    @Autowired
-    private WalletOperationRepository operationRepository;
-
-    private UUID testWalletId;
-
-    @BeforeEach
-    void setUp() {
-        testWalletId = UUID.randomUUID();
-        operationRepository.deleteAll();
-        walletRepository.deleteAll();
-    }
-
-    @Test
-    void processOperation_Deposit_ShouldCreateWalletAndUpdateBalance() {
-        // Arrange
-        WalletOperationRequest request = WalletOperationRequest.builder()
-                .walletId(testWalletId)
-                .operationType(OperationType.DEPOSIT)
-                .amount(new BigDecimal("100.50"))
-                .build();
-
-        // Act
-        var response = walletService.processOperation(request);
-
-        // Assert
-        assertThat(response.getStatus()).isEqualTo(OperationStatus.SUCCESS);
-
-        // Check cache immediately
-        WalletBalanceResponse balanceResponse = walletService.getWalletBalance(testWalletId);
-        assertThat(balanceResponse.getBalance()).isEqualTo(new BigDecimal("100.50"));
-
-        // Wait for async sync and verify database
-        await()
-                .atMost(10, TimeUnit.SECONDS)
-                .pollInterval(100, TimeUnit.MILLISECONDS)
-                .untilAsserted(() -> {
-                    // Check database
-                    Optional<Wallet> wallet = walletRepository.findById(testWalletId);
-                    assertThat(wallet).isPresent();
-                    assertThat(wallet.get().getBalance()).isEqualByComparingTo("100.50");
-
-                    // Check operations were saved
-                    assertThat(operationRepository.count()).isGreaterThan(0);
-                });
-    }
-
-    @Test
-    void processOperation_WithdrawWithSufficientFunds_ShouldUpdateBalance() {
-        // Arrange - first deposit
-        WalletOperationRequest depositRequest = WalletOperationRequest.builder()
-                .walletId(testWalletId)
-                .operationType(OperationType.DEPOSIT)
-                .amount(new BigDecimal("200.00"))
-                .build();
-        walletService.processOperation(depositRequest);
-
-        // Wait for sync
-        await()
-                .atMost(10, TimeUnit.SECONDS)
-                .pollInterval(100, TimeUnit.MILLISECONDS)
-                .until(() -> walletRepository.existsById(testWalletId));
-
-        // Act - then withdraw
-        WalletOperationRequest withdrawRequest = WalletOperationRequest.builder()
-                .walletId(testWalletId)
-                .operationType(OperationType.WITHDRAW)
-                .amount(new BigDecimal("50.75"))
-                .build();
-        var response = walletService.processOperation(withdrawRequest);
-
-        // Assert
-        assertThat(response.getStatus()).isEqualTo(OperationStatus.SUCCESS);
-
-        // Check balance in cache
-        WalletBalanceResponse balanceResponse = walletService.getWalletBalance(testWalletId);
-        assertThat(balanceResponse.getBalance()).isEqualByComparingTo("149.25");
-    }
-
-    @Test
-    void processOperation_WithdrawWithInsufficientFunds_ShouldThrowException() {
-        // Arrange
-        WalletOperationRequest depositRequest = WalletOperationRequest.builder()
-                .walletId(testWalletId)
-                .operationType(OperationType.DEPOSIT)
-                .amount(new BigDecimal("100.00"))
-                .build();
-        walletService.processOperation(depositRequest);
-
-        // Wait for wallet creation
-        await()
-                .atMost(10, TimeUnit.SECONDS)
-                .until(() -> walletRepository.existsById(testWalletId));
-
-        WalletOperationRequest withdrawRequest = WalletOperationRequest.builder()
-                .walletId(testWalletId)
-                .operationType(OperationType.WITHDRAW)
-                .amount(new BigDecimal("200.00"))
-                .build();
-
-        // Act & Assert
-        assertThatThrownBy(() -> walletService.processOperation(withdrawRequest))
-                .isInstanceOf(InsufficientFundsException.class)
-                .hasMessageContaining("Insufficient funds");
-    }
-
-    @Test
-    void getWalletBalance_NonExistingWallet_ShouldCreateWallet() {
-        // Act
-        WalletBalanceResponse response = walletService.getWalletBalance(testWalletId);
-
-        // Assert
-        assertThat(response.getWalletId()).isEqualTo(testWalletId);
-        assertThat(response.getBalance()).isEqualByComparingTo("0");
-
-        // Wallet should be created in DB after sync
-        await()
-                .atMost(10, TimeUnit.SECONDS)
-                .pollInterval(100, TimeUnit.MILLISECONDS)
-                .until(() -> walletRepository.existsById(testWalletId));
-
-        assertThat(walletRepository.existsById(testWalletId)).isTrue();
-    }
-
-    @Test
-    void syncBalancesToDatabase_ShouldUpdateMultipleWallets() {
-        // Arrange - create multiple wallets
-        UUID wallet1 = UUID.randomUUID();
-        UUID wallet2 = UUID.randomUUID();
-
-        walletService.processOperation(WalletOperationRequest.builder()
-                .walletId(wallet1)
-                .operationType(OperationType.DEPOSIT)
-                .amount(new BigDecimal("100.00"))
-                .build());
-
-        walletService.processOperation(WalletOperationRequest.builder()
-                .walletId(wallet2)
-                .operationType(OperationType.DEPOSIT)
-                .amount(new BigDecimal("200.00"))
-                .build());
-
-        // Act & Assert - wait for sync
-        await()
-                .atMost(10, TimeUnit.SECONDS)
-                .pollInterval(1000, TimeUnit.MILLISECONDS)
-                .untilAsserted(() -> {
-                    Optional<Wallet> dbWallet1 = walletRepository.findById(wallet1);
-                    Optional<Wallet> dbWallet2 = walletRepository.findById(wallet2);
-
-                    assertThat(dbWallet1).isPresent();
-                    assertThat(dbWallet1.get().getBalance())
-                            .isEqualByComparingTo("100.00");
-
-                    assertThat(dbWallet2).isPresent();
-                    assertThat(dbWallet2.get().getBalance())
-                            .isEqualByComparingTo("200.00");
-                });
-    }
-
-    @Test
-    void saveOperationsToDatabase_ShouldSaveBatch() {
-        // Arrange - queue multiple operations
-        int operationCount = 10;
-        for (int i = 0; i < operationCount; i++) {
-            WalletOperationRequest request = WalletOperationRequest.builder()
-                    .walletId(UUID.randomUUID())
-                    .operationType(OperationType.DEPOSIT)
-                    .amount(new BigDecimal("10.00"))
-                    .build();
-            walletService.processOperation(request);
-        }
-
-        // Act & Assert - wait for operations to be saved
-        await()
-                .atMost(10, TimeUnit.SECONDS)
-                .pollInterval(100, TimeUnit.MILLISECONDS)
-                .untilAsserted(() -> {
-                    assertThat(operationRepository.count()).isEqualTo(operationCount);
-
-                    // All operations should have SUCCESS status
-                    Iterable<WalletOperation> operations = operationRepository.findAll();
-                    for (WalletOperation op : operations) {
-                        assertThat(op.getStatus()).isEqualTo(OperationStatus.SUCCESS);
-                    }
-                });
-    }
-
-    @Test
-    void walletExists_ShouldReturnCorrectStatus() {
-        // Arrange - wallet doesn't exist yet
-        assertThat(walletService.walletExists(testWalletId)).isFalse();
-
-        // Act - create wallet by checking balance
-        walletService.getWalletBalance(testWalletId);
-
-        // Assert - wait for wallet to be created
-        await()
-                .atMost(10, TimeUnit.SECONDS)
-                .pollInterval(100, TimeUnit.MILLISECONDS)
-                .until(() -> walletService.walletExists(testWalletId));
-
-        assertThat(walletService.walletExists(testWalletId)).isTrue();
-    }
-}
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.cluster.ClusterMembership;
+import com.example.testovoe.wallet.dto.BatchOperationResponse;
+import com.example.testovoe.wallet.dto.OperationHistoryResponse;
+import com.example.testovoe.wallet.dto.TransferRequest;
+import com.example.testovoe.wallet.dto.WalletBalanceResponse;
+import com.example.testovoe.wallet.dto.WalletOperationRequest;
+import com.example.testovoe.wallet.dto.WalletOperationResponse;
+import com.example.testovoe.wallet.entity.Wallet;
+import com.example.testovoe.wallet.entity.WalletOperation;
+import com.example.testovoe.wallet.exception.IdempotencyKeyConflictException;
+import com.example.testovoe.wallet.exception.ServiceOverloadedException;
+import com.example.testovoe.wallet.exception.InsufficientFundsException;
+import com.example.testovoe.wallet.journal.OperationJournal;
+import com.example.testovoe.wallet.ledger.BalanceSnapshot;
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import com.example.testovoe.wallet.ledger.FixedPoint;
+import com.example.testovoe.wallet.ledger.IdempotencyIndex;
+import com.example.testovoe.wallet.model.OperationStatus;
+import com.example.testovoe.wallet.model.OperationType;
+import com.example.testovoe.wallet.reconciliation.BalanceMismatch;
+import com.example.testovoe.wallet.reconciliation.BalanceRecovery;
+import com.example.testovoe.wallet.reconciliation.LedgerCheckpointer;
+import com.example.testovoe.wallet.reconciliation.LedgerReconciler;
+import com.example.testovoe.wallet.repository.StoredBalance;
+import com.example.testovoe.wallet.repository.WalletOperationRepository;
+import com.example.testovoe.wallet.repository.WalletRepository;
+import com.example.testovoe.wallet.service.CacheSnapshotter;
+import com.example.testovoe.wallet.service.CacheWarmer;
+import com.example.testovoe.wallet.service.JournalRecovery;
+import com.example.testovoe.wallet.service.OperationExporter;
+import com.example.testovoe.wallet.service.OperationHistoryService;
+import com.example.testovoe.wallet.service.OperationPartitionMaintainer;
+import com.example.testovoe.wallet.service.WalletService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.sql.DataSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+@Testcontainers
+@SpringBootTest
+class WalletServiceIntegrationTest {
+
+    @Container
+    static PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(
+            DockerImageName.parse("postgres:17"))
+            .withDatabaseName("testdb")
+            .withUsername("test")
+            .withPassword("test");
+
+    @DynamicPropertySource
+    static void configureProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", postgres::getJdbcUrl);
+        registry.add("spring.datasource.username", postgres::getUsername);
+        registry.add("spring.datasource.password", postgres::getPassword);
+        registry.add("wallet.journal.dir", () -> "${java.io.tmpdir}/wallet-journal-${random.uuid}");
+    }
+
+    @Autowired
+    private WalletService walletService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private WalletRepository walletRepository;
+
+    @Autowired
+    private WalletOperationRepository operationRepository;
+
+    @Autowired
+    private BalanceStore balanceCache;
+
+    @Autowired
+    private CacheWarmer cacheWarmer;
+
+    @Autowired
+    private CacheSnapshotter cacheSnapshotter;
+
+    @Autowired
+    private OperationHistoryService historyService;
+
+    @Autowired
+    private OperationPartitionMaintainer partitionMaintainer;
+
+    @Autowired
+    private OperationExporter exporter;
+
+    @Autowired
+    private LedgerReconciler reconciler;
+
+    @Autowired
+    private LedgerCheckpointer checkpointer;
+
+    @Autowired
+    private BalanceRecovery recovery;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private IdempotencyIndex idempotencyIndex;
+
+    @Autowired
+    private ClusterMembership cluster;
+
+    @Value("${wallet.snapshot.path}")
+    private String snapshotPath;
+
+    private UUID testWalletId;
+
+    @BeforeEach
+    void setUp() {
+        testWalletId = UUID.randomUUID();
+        operationRepository.deleteAll();
+        walletRepository.deleteAll();
+    }
+
+    @Test
+    void processOperation_Deposit_ShouldCreateWalletAndUpdateBalance() {
+        // Arrange
+        WalletOperationRequest request = WalletOperationRequest.builder()
+                .walletId(testWalletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("100.50"))
+                .build();
+
+        // Act
+        var response = walletService.processOperation(request);
+
+        // Assert
+        assertThat(response.getStatus()).isEqualTo(OperationStatus.SUCCESS);
+
+        // Check cache immediately
+        WalletBalanceResponse balanceResponse = walletService.getWalletBalance(testWalletId);
+        assertThat(balanceResponse.getBalance()).isEqualByComparingTo("100.50");
+
+        // Wait for async sync and verify database
+        await()
+                .atMost(10, TimeUnit.SECONDS)
+                .pollInterval(100, TimeUnit.MILLISECONDS)
+                .untilAsserted(() -> {
+                    // Check database
+                    Optional<Wallet> wallet = walletRepository.findById(testWalletId);
+                    assertThat(wallet).isPresent();
+                    assertThat(wallet.get().getBalance()).isEqualByComparingTo("100.50");
+
+                    // Check operations were saved
+                    assertThat(operationRepository.count()).isGreaterThan(0);
+                });
+    }
+
+    @Test
+    void processOperation_WithdrawWithSufficientFunds_ShouldUpdateBalance() {
+        // Arrange - first deposit
+        WalletOperationRequest depositRequest = WalletOperationRequest.builder()
+                .walletId(testWalletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("200.00"))
+                .build();
+        walletService.processOperation(depositRequest);
+
+        // Wait for sync
+        await()
+                .atMost(10, TimeUnit.SECONDS)
+                .pollInterval(100, TimeUnit.MILLISECONDS)
+                .until(() -> walletRepository.existsById(testWalletId));
+
+        // Act - then withdraw
+        WalletOperationRequest withdrawRequest = WalletOperationRequest.builder()
+                .walletId(testWalletId)
+                .operationType(OperationType.WITHDRAW)
+                .amount(new BigDecimal("50.75"))
+                .build();
+        var response = walletService.processOperation(withdrawRequest);
+
+        // Assert
+        assertThat(response.getStatus()).isEqualTo(OperationStatus.SUCCESS);
+
+        // Check balance in cache
+        WalletBalanceResponse balanceResponse = walletService.getWalletBalance(testWalletId);
+        assertThat(balanceResponse.getBalance()).isEqualByComparingTo("149.25");
+    }
+
+    @Test
+    void processOperation_WithdrawWithInsufficientFunds_ShouldThrowException() {
+        // Arrange
+        WalletOperationRequest depositRequest = WalletOperationRequest.builder()
+                .walletId(testWalletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("100.00"))
+                .build();
+        walletService.processOperation(depositRequest);
+
+        // Wait for wallet creation
+        await()
+                .atMost(10, TimeUnit.SECONDS)
+                .until(() -> walletRepository.existsById(testWalletId));
+
+        WalletOperationRequest withdrawRequest = WalletOperationRequest.builder()
+                .walletId(testWalletId)
+                .operationType(OperationType.WITHDRAW)
+                .amount(new BigDecimal("200.00"))
+                .build();
+
+        // Act & Assert
+        assertThatThrownBy(() -> walletService.processOperation(withdrawRequest))
+                .isInstanceOf(InsufficientFundsException.class)
+                .hasMessageContaining("Insufficient funds");
+    }
+
+    @Test
+    void processOperation_RepeatedOperationId_ShouldApplyOnce() {
+        UUID operationId = UUID.randomUUID();
+        WalletOperationRequest request = WalletOperationRequest.builder()
+                .walletId(testWalletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("10.00"))
+                .operationId(operationId)
+                .build();
+
+        var first = walletService.processOperation(request);
+        var replay = walletService.processOperation(request);
+
+        assertThat(replay).isEqualTo(first);
+        assertThat(replay.getOperationId()).isEqualTo(operationId);
+        assertThat(walletService.getWalletBalance(testWalletId).getBalance()).isEqualByComparingTo("10.00");
+
+        // Тот же ключ для другого кошелька - конфликт
+        request.setWalletId(UUID.randomUUID());
+        assertThatThrownBy(() -> walletService.processOperation(request))
+                .isInstanceOf(IdempotencyKeyConflictException.class);
+
+        await()
+                .atMost(10, TimeUnit.SECONDS)
+                .pollInterval(100, TimeUnit.MILLISECONDS)
+                .untilAsserted(() -> assertThat(operationRepository.findAll())
+                        .extracting(WalletOperation::getOperationId)
+                        .containsExactly(operationId));
+    }
+
+    @Test
+    void processOperation_ShouldRecordLatencyByTypeAndOutcome() {
+        double succeeded = operationCount(OperationType.WITHDRAW, "success");
+        double rejected = operationCount(OperationType.WITHDRAW, "insufficient_funds");
+
+        walletService.processOperation(operation(testWalletId, OperationType.DEPOSIT, "10.00"));
+        walletService.processOperation(operation(testWalletId, OperationType.WITHDRAW, "5.00"));
+        assertThatThrownBy(() -> walletService.processOperation(operation(testWalletId, OperationType.WITHDRAW, "50.00")))
+                .isInstanceOf(InsufficientFundsException.class);
+
+        assertThat(operationCount(OperationType.WITHDRAW, "success")).isEqualTo(succeeded + 1);
+        assertThat(operationCount(OperationType.WITHDRAW, "insufficient_funds")).isEqualTo(rejected + 1);
+        await().atMost(5, TimeUnit.SECONDS).untilAsserted(() ->
+                assertThat(meterRegistry.get("wallet.persistence.commit.lag").timer().count()).isPositive());
+    }
+
+    private double operationCount(OperationType type, String outcome) {
+        Timer timer = meterRegistry.find("wallet.operation")
+                .tag("type", type.name())
+                .tag("outcome", outcome)
+                .timer();
+        return timer == null ? 0 : timer.count();
+    }
+
+    @Test
+    void processTransfer_ShouldMoveFundsAtomically() {
+        UUID targetWalletId = UUID.randomUUID();
+        walletService.processOperation(operation(testWalletId, OperationType.DEPOSIT, "100.00"));
+        TransferRequest transfer = TransferRequest.builder()
+                .fromWalletId(testWalletId)
+                .toWalletId(targetWalletId)
+                .amount(new BigDecimal("40.00"))
+                .operationId(UUID.randomUUID())
+                .build();
+
+        walletService.processTransfer(transfer);
+        // Повтор с тем же ключом не переводит второй раз
+        walletService.processTransfer(transfer);
+
+        assertThatThrownBy(() -> walletService.processTransfer(TransferRequest.builder()
+                .fromWalletId(testWalletId)
+                .toWalletId(targetWalletId)
+                .amount(new BigDecimal("60.01"))
+                .build()))
+                .isInstanceOf(InsufficientFundsException.class);
+
+        assertThat(walletService.getWalletBalance(testWalletId).getBalance()).isEqualByComparingTo("60.00");
+        assertThat(walletService.getWalletBalance(targetWalletId).getBalance()).isEqualByComparingTo("40.00");
+
+        await().atMost(5, TimeUnit.SECONDS).untilAsserted(() ->
+                assertThat(operationRepository.findAll())
+                        .filteredOn(o -> o.getOperationId() != null)
+                        .extracting(WalletOperation::getOperationType)
+                        .containsExactlyInAnyOrder(OperationType.TRANSFER_OUT, OperationType.TRANSFER_IN));
+    }
+
+    @Test
+    void processBatch_ShouldApplyPerWalletInOrder() {
+        UUID otherWalletId = UUID.randomUUID();
+        List<WalletOperationRequest> batch = List.of(
+                operation(testWalletId, OperationType.DEPOSIT, "50.00"),
+                operation(otherWalletId, OperationType.DEPOSIT, "5.00"),
+                operation(testWalletId, OperationType.WITHDRAW, "30.00"),
+                operation(testWalletId, OperationType.WITHDRAW, "30.00"),
+                operation(otherWalletId, OperationType.DEPOSIT, "-1.00"));
+
+        BatchOperationResponse response = walletService.processBatch(batch, false);
+
+        assertThat(response.getResults()).extracting(WalletOperationResponse::getStatus).containsExactly(
+                OperationStatus.SUCCESS, OperationStatus.SUCCESS, OperationStatus.SUCCESS,
+                OperationStatus.FAILED, OperationStatus.FAILED);
+        assertThat(response.getResults().get(3).getMessage()).contains("Insufficient funds");
+        assertThat(response.getSucceeded()).isEqualTo(3);
+        assertThat(walletService.getWalletBalance(testWalletId).getBalance()).isEqualByComparingTo("20.00");
+        assertThat(walletService.getWalletBalance(otherWalletId).getBalance()).isEqualByComparingTo("5.00");
+    }
+
+    @Test
+    void processBatch_Atomic_ShouldApplyNothingWhenOneOperationFails() {
+        UUID otherWalletId = UUID.randomUUID();
+        walletService.processOperation(operation(testWalletId, OperationType.DEPOSIT, "10.00"));
+        List<WalletOperationRequest> batch = List.of(
+                operation(testWalletId, OperationType.WITHDRAW, "10.00"),
+                operation(otherWalletId, OperationType.DEPOSIT, "10.00"),
+                operation(otherWalletId, OperationType.WITHDRAW, "20.00"));
+
+        BatchOperationResponse response = walletService.processBatch(batch, true);
+
+        assertThat(response.getFailed()).isEqualTo(3);
+        assertThat(walletService.getWalletBalance(testWalletId).getBalance()).isEqualByComparingTo("10.00");
+        assertThat(walletService.getWalletBalance(otherWalletId).getBalance()).isEqualByComparingTo("0");
+
+        BatchOperationResponse retried = walletService.processBatch(batch.subList(0, 2), true);
+
+        assertThat(retried.getSucceeded()).isEqualTo(2);
+        assertThat(walletService.getWalletBalance(testWalletId).getBalance()).isEqualByComparingTo("0");
+        assertThat(walletService.getWalletBalance(otherWalletId).getBalance()).isEqualByComparingTo("10.00");
+    }
+
+    @Test
+    @Timeout(10)
+    void processBatch_ShouldRejectRepeatedOperationId() {
+        UUID operationId = UUID.randomUUID();
+        UUID otherWalletId = UUID.randomUUID();
+        List<WalletOperationRequest> batch = List.of(
+                withOperationId(operation(testWalletId, OperationType.DEPOSIT, "10.00"), operationId),
+                operation(otherWalletId, OperationType.DEPOSIT, "5.00"),
+                withOperationId(operation(testWalletId, OperationType.DEPOSIT, "10.00"), operationId));
+
+        // Атомарный пакет отклоняется целиком до захвата ключей
+        BatchOperationResponse atomic = walletService.processBatch(batch, true);
+
+        assertThat(atomic.getFailed()).isEqualTo(3);
+        assertThat(atomic.getResults().get(2).getMessage()).contains("repeats operation 0");
+        assertThat(walletService.getWalletBalance(testWalletId).getBalance()).isEqualByComparingTo("0");
+
+        // В неатомарном отклоняется только повтор
+        BatchOperationResponse partial = walletService.processBatch(batch, false);
+
+        assertThat(partial.getResults()).extracting(WalletOperationResponse::getStatus).containsExactly(
+                OperationStatus.SUCCESS, OperationStatus.SUCCESS, OperationStatus.FAILED);
+        assertThat(walletService.getWalletBalance(testWalletId).getBalance()).isEqualByComparingTo("10.00");
+    }
+
+    private static WalletOperationRequest withOperationId(WalletOperationRequest request, UUID operationId) {
+        request.setOperationId(operationId);
+        return request;
+    }
+
+    private static WalletOperationRequest operation(UUID walletId, OperationType type, String amount) {
+        return WalletOperationRequest.builder()
+                .walletId(walletId)
+                .operationType(type)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+
+    @Test
+    void getWalletBalance_NonExistingWallet_ShouldCreateWallet() {
+        // Act
+        WalletBalanceResponse response = walletService.getWalletBalance(testWalletId);
+
+        // Assert
+        assertThat(response.getWalletId()).isEqualTo(testWalletId);
+        assertThat(response.getBalance()).isEqualByComparingTo("0");
+
+        // Wallet should be created in DB after sync
+        await()
+                .atMost(10, TimeUnit.SECONDS)
+                .pollInterval(100, TimeUnit.MILLISECONDS)
+                .until(() -> walletRepository.existsById(testWalletId));
+
+        assertThat(walletRepository.existsById(testWalletId)).isTrue();
+    }
+
+    @Test
+    void findOrCreateBalances_ShouldReturnStoredAndCreateMissingWallets() {
+        UUID existing = UUID.randomUUID();
+        walletRepository.saveAndFlush(Wallet.builder().id(existing).balance(new BigDecimal("42.00")).build());
+
+        Map<UUID, StoredBalance> balances = walletRepository.findOrCreateBalances(new UUID[]{existing, testWalletId});
+
+        assertThat(balances).hasSize(2);
+        assertThat(balances.get(existing).balance()).isEqualByComparingTo("42.00");
+        assertThat(balances.get(testWalletId).balance()).isEqualByComparingTo("0");
+        assertThat(balances.get(testWalletId).version()).isZero();
+        assertThat(walletRepository.existsById(testWalletId)).isTrue();
+    }
+
+    @Test
+    void warmUp_ShouldCacheStoredWalletsWithoutOverwritingCachedOnes() {
+        // Кошелёк есть только в БД - его положит прогрев
+        walletRepository.saveAndFlush(Wallet.builder().id(testWalletId).balance(new BigDecimal("75.00")).build());
+        // Кошелёк уже в кэше с более свежим балансом, чем в БД
+        UUID cached = UUID.randomUUID();
+        walletService.processOperation(operation(cached, OperationType.DEPOSIT, "30.00"));
+        walletRepository.saveAndFlush(Wallet.builder().id(cached).balance(new BigDecimal("1.00")).build());
+        assertThat(balanceCache.contains(testWalletId)).isFalse();
+
+        assertThat(cacheWarmer.warmUp()).isGreaterThanOrEqualTo(1);
+
+        assertThat(balanceCache.contains(testWalletId)).isTrue();
+        assertThat(walletService.getWalletBalance(testWalletId).getBalance()).isEqualByComparingTo("75.00");
+        assertThat(walletService.getWalletBalance(cached).getBalance()).isEqualByComparingTo("30.00");
+    }
+
+    @Test
+    void restoreSnapshot_ShouldPreferWalletsChangedAfterSnapshot() {
+        UUID changed = UUID.randomUUID();
+        UUID deleted = UUID.randomUUID();
+        walletRepository.saveAndFlush(Wallet.builder().id(testWalletId).balance(new BigDecimal("12.00")).build());
+        walletRepository.saveAndFlush(Wallet.builder().id(changed).balance(new BigDecimal("5.00")).build());
+        BalanceStore saved = new BalanceStore(16, 1, 0);
+        saved.putIfAbsent(testWalletId, FixedPoint.toUnits(new BigDecimal("12.00")), 1, 0);
+        saved.putIfAbsent(changed, FixedPoint.toUnits(new BigDecimal("5.00")), 1, 0);
+        saved.putIfAbsent(deleted, FixedPoint.toUnits(new BigDecimal("7.00")), 1, 0);
+        BalanceSnapshot.write(Path.of(snapshotPath), LocalDateTime.now(), saved);
+        // После снимка строка изменилась в БД, а updated_at отстаёт (часы другого узла) -
+        // снимку она всё равно больше не верна
+        transactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(
+                "UPDATE wallet SET balance = 40, version = version + 1, updated_at = now() - interval '1 hour' WHERE id = ?",
+                changed));
+
+        assertThat(cacheSnapshotter.restore()).isEqualTo(2);
+
+        assertThat(walletService.getWalletBalance(testWalletId).getBalance()).isEqualByComparingTo("12.00");
+        assertThat(walletService.getWalletBalance(changed).getBalance()).isEqualByComparingTo("40.00");
+        assertThat(balanceCache.contains(deleted)).isFalse();
+    }
+
+    @Test
+    void recoverJournal_AfterDrainedRestart_ShouldNotSkipSameAmountDeposit(@TempDir Path dir) {
+        long amount = FixedPoint.toUnits(new BigDecimal("10.00"));
+        // Первый запуск: депозит в БД, журнал сброшен штатной остановкой
+        OperationJournal journal = new OperationJournal(true, dir, 1024 * 1024);
+        journal.open();
+        long first = journal.append(testWalletId, OperationType.DEPOSIT, amount, amount, 1, null);
+        journal.awaitDurable(first);
+        recoverJournal(journal);
+        journal.release(journal.rotate());
+        journal.close();
+
+        // Второй запуск: такой же депозит, узел падает до записи в БД
+        journal = new OperationJournal(true, dir, 1024 * 1024);
+        journal.open();
+        long second = journal.append(testWalletId, OperationType.DEPOSIT, amount, 2 * amount, 2, null);
+        journal.awaitDurable(second);
+        journal.close();
+
+        journal = new OperationJournal(true, dir, 1024 * 1024);
+        journal.open();
+        recoverJournal(journal);
+        journal.close();
+
+        assertThat(second).isGreaterThan(first);
+        assertThat(jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM wallet_operation WHERE wallet_id = ?", Long.class, testWalletId)).isEqualTo(2);
+        assertThat(walletRepository.findById(testWalletId).orElseThrow().getBalance()).isEqualByComparingTo("20.00");
+    }
+
+    @Test
+    void processOperationAsync_ShouldLoadMissingWalletOnceThroughLoader() throws Exception {
+        // Загрузчик неблокирующего стека: баланс отдаётся, когда тест его завершит
+        CompletableFuture<StoredBalance> stored = new CompletableFuture<>();
+        AtomicInteger loads = new AtomicInteger();
+        Function<UUID, CompletionStage<StoredBalance>> loader = walletId -> {
+            loads.incrementAndGet();
+            return stored;
+        };
+
+        CompletableFuture<WalletOperationResponse> deposit =
+                walletService.processOperationAsync(operation(testWalletId, OperationType.DEPOSIT, "10.00"), loader);
+        CompletableFuture<WalletBalanceResponse> balance = walletService.getWalletBalanceAsync(testWalletId, loader);
+        assertThat(deposit).isNotDone();
+
+        stored.complete(new StoredBalance(new BigDecimal("50.00"), 0));
+
+        assertThat(deposit.get(5, TimeUnit.SECONDS).getStatus()).isEqualTo(OperationStatus.SUCCESS);
+        assertThat(balance.get(5, TimeUnit.SECONDS).getBalance()).isIn(new BigDecimal("50.0000"), new BigDecimal("60.0000"));
+        assertThat(walletService.getWalletBalance(testWalletId).getBalance()).isEqualByComparingTo("60.00");
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void syncBalancesToDatabase_ShouldUpdateMultipleWallets() {
+        // Arrange - create multiple wallets
+        UUID wallet1 = UUID.randomUUID();
+        UUID wallet2 = UUID.randomUUID();
+
+        walletService.processOperation(WalletOperationRequest.builder()
+                .walletId(wallet1)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("100.00"))
+                .build());
+
+        walletService.processOperation(WalletOperationRequest.builder()
+                .walletId(wallet2)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("200.00"))
+                .build());
+
+        // Act & Assert - wait for sync
+        await()
+                .atMost(10, TimeUnit.SECONDS)
+                .pollInterval(1000, TimeUnit.MILLISECONDS)
+                .untilAsserted(() -> {
+                    Optional<Wallet> dbWallet1 = walletRepository.findById(wallet1);
+                    Optional<Wallet> dbWallet2 = walletRepository.findById(wallet2);
+
+                    assertThat(dbWallet1).isPresent();
+                    assertThat(dbWallet1.get().getBalance())
+                            .isEqualByComparingTo("100.00");
+
+                    assertThat(dbWallet2).isPresent();
+                    assertThat(dbWallet2.get().getBalance())
+                            .isEqualByComparingTo("200.00");
+                });
+    }
+
+    @Test
+    void syncBalancesToDatabase_ShouldRebaseWhenAnotherNodeChangedWallet() {
+        walletService.processOperation(operation(testWalletId, OperationType.DEPOSIT, "100.00"));
+        await().atMost(10, TimeUnit.SECONDS)
+                .until(() -> balanceCache.rowVersion(testWalletId) == 1);
+        double rebased = meterRegistry.get("wallet.balance.conflicts").tag("outcome", "rebased").counter().count();
+
+        // Другой узел записал кошелёк мимо нашего кэша: версия строки выросла
+        walletRepository.upsertBalances(new UUID[]{testWalletId},
+                new long[]{FixedPoint.toUnits(new BigDecimal("500.00"))}, new long[]{-1});
+        walletService.processOperation(operation(testWalletId, OperationType.DEPOSIT, "10.00"));
+
+        // Наш депозит переносится на баланс другого узла, а не затирает его.
+        // Нужны две синхронизации (перенос и запись) - ждём три интервала
+        await().atMost(15, TimeUnit.SECONDS).untilAsserted(() -> {
+            assertThat(walletRepository.findById(testWalletId).orElseThrow().getBalance()).isEqualByComparingTo("510.00");
+            assertThat(balanceCache.rowVersion(testWalletId)).isEqualTo(3);
+        });
+        assertThat(walletService.getWalletBalance(testWalletId).getBalance()).isEqualByComparingTo("510.00");
+        assertThat(meterRegistry.get("wallet.balance.conflicts").tag("outcome", "rebased").counter().count())
+                .isEqualTo(rebased + 1);
+    }
+
+    @Test
+    void saveOperationsToDatabase_ShouldSaveBatch() {
+        // Arrange - queue multiple operations
+        int operationCount = 10;
+        for (int i = 0; i < operationCount; i++) {
+            WalletOperationRequest request = WalletOperationRequest.builder()
+                    .walletId(UUID.randomUUID())
+                    .operationType(OperationType.DEPOSIT)
+                    .amount(new BigDecimal("10.00"))
+                    .build();
+            walletService.processOperation(request);
+        }
+
+        // Act & Assert - wait for operations to be saved
+        await()
+                .atMost(10, TimeUnit.SECONDS)
+                .pollInterval(100, TimeUnit.MILLISECONDS)
+                .untilAsserted(() -> {
+                    assertThat(operationRepository.count()).isEqualTo(operationCount);
+
+                    // All operations should have SUCCESS status
+                    Iterable<WalletOperation> operations = operationRepository.findAll();
+                    for (WalletOperation op : operations) {
+                        assertThat(op.getStatus()).isEqualTo(OperationStatus.SUCCESS);
+                    }
+                });
+    }
+
+    @Test
+    void walletExists_ShouldReturnCorrectStatus() {
+        // Arrange - wallet doesn't exist yet
+        assertThat(walletService.walletExists(testWalletId)).isFalse();
+
+        // Act - create wallet by checking balance
+        walletService.getWalletBalance(testWalletId);
+
+        // Assert - wait for wallet to be created
+        await()
+                .atMost(10, TimeUnit.SECONDS)
+                .pollInterval(100, TimeUnit.MILLISECONDS)
+                .until(() -> walletService.walletExists(testWalletId));
+
+        assertThat(walletService.walletExists(testWalletId)).isTrue();
+    }
+
+    @Test
+    void history_ShouldPageNewestFirstWithCursor() {
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        List<LocalDateTime> times = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            times.add(now.minusMinutes(i));
+        }
+        // Старше всех месячных секций - лежит в секции DEFAULT
+        times.add(now.minusMonths(13));
+        times.forEach(time -> insertOperation(testWalletId, time));
+        insertOperation(UUID.randomUUID(), now);
+
+        List<LocalDateTime> seen = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            OperationHistoryResponse page = historyService.history(testWalletId, null, null, cursor, 4);
+            page.getOperations().forEach(operation -> seen.add(operation.getTimestamp()));
+            cursor = page.getNextCursor();
+            pages++;
+        } while (cursor != null);
+
+        assertThat(pages).isEqualTo(2);
+        assertThat(seen).containsExactlyElementsOf(times);
+        assertThat(historyService.history(testWalletId, now.minusMinutes(3), now, null, null).getOperations())
+                .extracting(WalletOperationResponse::getTimestamp)
+                .containsExactly(now.minusMinutes(1), now.minusMinutes(2), now.minusMinutes(3));
+        assertThatThrownBy(() -> historyService.history(testWalletId, null, null, "not-a-cursor", null))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(partitionOf(testWalletId, now))
+                .isEqualTo("wallet_operation_p" + YearMonth.now().format(DateTimeFormatter.ofPattern("yyyyMM")));
+    }
+
+    @Test
+    void maintainPartitions_ShouldMoveRowsOutOfDefaultPartition() {
+        YearMonth month = YearMonth.now().plusMonths(5);
+        LocalDateTime time = month.atDay(1).atStartOfDay();
+        insertOperation(testWalletId, time);
+        assertThat(partitionOf(testWalletId, time)).isEqualTo("wallet_operation_default");
+
+        ReflectionTestUtils.setField(partitionMaintainer, "monthsAhead", 5);
+        try {
+            partitionMaintainer.maintain();
+        } finally {
+            ReflectionTestUtils.setField(partitionMaintainer, "monthsAhead", 2);
+        }
+
+        assertThat(partitionOf(testWalletId, time))
+                .isEqualTo("wallet_operation_p" + month.format(DateTimeFormatter.ofPattern("yyyyMM")));
+        assertThat(historyService.history(testWalletId, null, null, null, null).getOperations()).hasSize(1);
+    }
+
+    @Test
+    void export_ShouldStreamFilteredOperationsAsNdjsonAndCsv() throws Exception {
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        for (int i = 3; i > 0; i--) {
+            insertOperation(testWalletId, now.minusMinutes(i));
+        }
+        insertOperation(testWalletId, now.minusDays(2));
+        insertOperation(UUID.randomUUID(), now);
+        OperationExporter.Filter filter =
+                new OperationExporter.Filter(testWalletId, now.minusDays(1), null, OperationType.DEPOSIT);
+
+        ByteArrayOutputStream ndjson = new ByteArrayOutputStream();
+        assertThat(exporter.export(OperationExporter.Format.NDJSON, filter, () -> ndjson)).isEqualTo(3);
+        String body = ndjson.toString(StandardCharsets.UTF_8);
+        assertThat(body).endsWith("}\n");
+        List<String> lines = List.of(body.split("\n"));
+        assertThat(lines).hasSize(3);
+        for (int i = 0; i < lines.size(); i++) {
+            // Строка - ровно один объект, без разделителей Jackson между корневыми значениями
+            assertThat(lines.get(i)).startsWith("{").endsWith("}");
+            JsonNode line = objectMapper.readTree(lines.get(i));
+            assertThat(line.get("walletId").asText()).isEqualTo(testWalletId.toString());
+            assertThat(LocalDateTime.parse(line.get("createdAt").asText())).isEqualTo(now.minusMinutes(3 - i));
+        }
+
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        assertThat(exporter.export(OperationExporter.Format.CSV, filter, () -> csv)).isEqualTo(3);
+        assertThat(csv.toString(StandardCharsets.UTF_8).lines().toList())
+                .hasSize(4)
+                .first().isEqualTo("id,wallet_id,operation_id,operation_type,amount,status,error_message,created_at");
+    }
+
+    @Test
+    void export_ShouldRejectRequestsOverConcurrencyLimit() {
+        OperationExporter.Filter all = new OperationExporter.Filter(null, null, null, null);
+        // Выгрузки, начатые внутри других, занимают все места (max-concurrent: 2)
+        assertThatThrownBy(() -> exporter.export(OperationExporter.Format.CSV, all, () -> {
+            exporter.export(OperationExporter.Format.CSV, all, () -> {
+                exporter.export(OperationExporter.Format.CSV, all, ByteArrayOutputStream::new);
+                return new ByteArrayOutputStream();
+            });
+            return new ByteArrayOutputStream();
+        })).isInstanceOf(ServiceOverloadedException.class);
+
+        // Места освобождаются и после ошибки
+        assertThatCode(() -> exporter.export(OperationExporter.Format.CSV, all, ByteArrayOutputStream::new))
+                .doesNotThrowAnyException();
+    }
+
+    @Test
+    void reconcile_ShouldConfirmMismatchThatPersistsAcrossRuns() {
+        walletService.processOperation(operation(testWalletId, OperationType.DEPOSIT, "100.00"));
+        walletService.processOperation(operation(testWalletId, OperationType.WITHDRAW, "30.00"));
+        await().atMost(10, TimeUnit.SECONDS).untilAsserted(() -> {
+            assertThat(operationRepository.count()).isEqualTo(2);
+            assertThat(walletRepository.findById(testWalletId).orElseThrow().getBalance()).isEqualByComparingTo("70.00");
+        });
+
+        // Первый запуск ставит границу, следующие добавляют операции до неё после выдержки
+        await().atMost(10, TimeUnit.SECONDS).untilAsserted(() -> {
+            reconciler.reconcile();
+            assertThat(ledgerBalance(testWalletId)).isEqualByComparingTo("70.00");
+        });
+        assertThat(mismatchOf(reconciler.reconcile())).isEmpty();
+
+        // Баланс в БД испорчен мимо сервиса: одна сверка - подозрение, две - расхождение
+        transactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(
+                "UPDATE wallet SET balance = 50 WHERE id = ?", testWalletId));
+        assertThat(mismatchOf(reconciler.reconcile())).isEmpty();
+        List<BalanceMismatch> mismatches = mismatchOf(reconciler.reconcile());
+        assertThat(mismatches).hasSize(1);
+        assertThat(mismatches.get(0).source()).isEqualTo(BalanceMismatch.Source.DATABASE);
+        assertThat(mismatches.get(0).drift()).isEqualByComparingTo("-20.00");
+    }
+
+    @Test
+    void recover_ShouldRebuildBalanceFromCheckpointAndTail() {
+        walletService.processOperation(operation(testWalletId, OperationType.DEPOSIT, "100.00"));
+        walletService.processOperation(operation(testWalletId, OperationType.WITHDRAW, "30.00"));
+        walletService.flush();
+
+        // Первый шаг ставит границу, следующие добавляют операции до неё в чекпоинт
+        await().atMost(10, TimeUnit.SECONDS).untilAsserted(() -> {
+            checkpointer.advance();
+            assertThat(ledgerBalance(testWalletId)).isEqualByComparingTo("70.00");
+        });
+
+        // Хвост после отметки
+        walletService.processOperation(operation(testWalletId, OperationType.DEPOSIT, "5.00"));
+        walletService.flush();
+
+        corruptBalance("50");
+        assertThat(recovery.recover(testWalletId, true)).isEqualByComparingTo("75.00");
+        assertThat(walletRepository.findById(testWalletId).orElseThrow().getBalance()).isEqualByComparingTo("50");
+
+        assertThat(recovery.recover(testWalletId, false)).isEqualByComparingTo("75.00");
+        assertThat(walletRepository.findById(testWalletId).orElseThrow().getBalance()).isEqualByComparingTo("75.00");
+
+        corruptBalance("1");
+        BalanceRecovery.Result result = recovery.recoverAll(false);
+        assertThat(result.changed()).isGreaterThanOrEqualTo(1);
+        assertThat(walletRepository.findById(testWalletId).orElseThrow().getBalance()).isEqualByComparingTo("75.00");
+        assertThat(walletService.getWalletBalance(testWalletId).getBalance()).isEqualByComparingTo("75.00");
+    }
+
+    @Test
+    void checkpoint_ShouldWaitForOperationsBelowFenceToCommit() throws Exception {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            // Меньший id, но транзакция ещё идёт
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO wallet_operation (wallet_id, operation_type, amount, status, created_at, operation_id) " +
+                            "VALUES (?, 'DEPOSIT', 7, 'SUCCESS', ?, ?)")) {
+                insert.setObject(1, testWalletId);
+                insert.setObject(2, LocalDateTime.now());
+                insert.setObject(3, UUID.randomUUID());
+                insert.executeUpdate();
+            }
+            insertOperation(testWalletId, LocalDateTime.now());
+
+            // Граница выше обеих строк не используется, пока первая не закоммичена
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+            while (System.nanoTime() < deadline) {
+                checkpointer.advance();
+                Thread.sleep(200);
+            }
+            assertThat(ledgerBalance(testWalletId)).isNull();
+
+            connection.commit();
+        }
+        await().atMost(10, TimeUnit.SECONDS).untilAsserted(() -> {
+            checkpointer.advance();
+            assertThat(ledgerBalance(testWalletId)).isEqualByComparingTo("8");
+        });
+    }
+
+    private BigDecimal ledgerBalance(UUID walletId) {
+        return jdbcTemplate.query("SELECT balance FROM wallet_ledger WHERE wallet_id = ?",
+                rs -> rs.next() ? rs.getBigDecimal(1) : null, walletId);
+    }
+
+    private void corruptBalance(String balance) {
+        transactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(
+                "UPDATE wallet SET balance = ?::numeric WHERE id = ?", balance, testWalletId));
+    }
+
+    private List<BalanceMismatch> mismatchOf(LedgerReconciler.Summary summary) {
+        return summary.mismatches().stream()
+                .filter(mismatch -> mismatch.walletId().equals(testWalletId))
+                .toList();
+    }
+
+    private void recoverJournal(OperationJournal journal) {
+        JournalRecovery journalRecovery =
+                new JournalRecovery(journal, jdbcTemplate, walletRepository, idempotencyIndex, cluster);
+        transactionTemplate.executeWithoutResult(status -> journalRecovery.recover());
+    }
+
+    private void insertOperation(UUID walletId, LocalDateTime createdAt) {
+        transactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(
+                "INSERT INTO wallet_operation (wallet_id, operation_type, amount, status, created_at, operation_id) " +
+                        "VALUES (?, 'DEPOSIT', 1, 'SUCCESS', ?, ?)", walletId, createdAt, UUID.randomUUID()));
+    }
+
+    private String partitionOf(UUID walletId, LocalDateTime createdAt) {
+        return jdbcTemplate.queryForObject(
+                "SELECT tableoid::regclass::text FROM wallet_operation WHERE wallet_id = ? AND created_at = ?",
+                String.class, walletId, createdAt);
+    }
+}
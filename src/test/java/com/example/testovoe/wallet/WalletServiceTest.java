@@ -0,0 +1,163 @@
+package com.example.testovoe.wallet;
+
+import com.example.testovoe.wallet.cluster.ClusterMembership;
+import com.example.testovoe.wallet.dto.WalletOperationRequest;
+import com.example.testovoe.wallet.engine.ShardedEngine;
+import com.example.testovoe.wallet.journal.OperationJournal;
+import com.example.testovoe.wallet.ledger.BalanceStore;
+import com.example.testovoe.wallet.ledger.FixedPoint;
+import com.example.testovoe.wallet.ledger.IdempotencyIndex;
+import com.example.testovoe.wallet.model.OperationType;
+import com.example.testovoe.wallet.repository.BalanceUpsertResult;
+import com.example.testovoe.wallet.repository.StoredBalance;
+import com.example.testovoe.wallet.repository.WalletOperationRepository;
+import com.example.testovoe.wallet.repository.WalletRepository;
+import com.example.testovoe.wallet.service.Backpressure;
+import com.example.testovoe.wallet.service.FlushScheduler;
+import com.example.testovoe.wallet.service.JournalRecovery;
+import com.example.testovoe.wallet.service.WalletLoader;
+import com.example.testovoe.wallet.service.WalletMetrics;
+import com.example.testovoe.wallet.service.WalletService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.validation.Validation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Синхронизация балансов с БД без Postgres: репозитории - заглушки
+ */
+class WalletServiceTest {
+
+    private WalletRepository walletRepository;
+    private BalanceStore balanceCache;
+    private ShardedEngine engine;
+    private WalletLoader walletLoader;
+    private WalletService walletService;
+
+    @BeforeEach
+    void setUp() {
+        walletRepository = mock(WalletRepository.class);
+        when(walletRepository.upsertBalances(any(), any(), any()))
+                .thenAnswer(call -> new BalanceUpsertResult(0, call.<UUID[]>getArgument(0).length,
+                        Arrays.stream(call.<UUID[]>getArgument(0)).collect(Collectors.toMap(id -> id, id -> 1L))));
+        when(walletRepository.findOrCreateBalances(any()))
+                .thenAnswer(call -> Arrays.stream(call.<UUID[]>getArgument(0))
+                        .collect(Collectors.toMap(id -> id, id -> new StoredBalance(BigDecimal.ZERO, 0))));
+
+        engine = new ShardedEngine(1, 1024);
+        engine.start();
+        walletLoader = new WalletLoader(walletRepository);
+        ReflectionTestUtils.setField(walletLoader, "threads", 1);
+        ReflectionTestUtils.setField(walletLoader, "batchSize", 100);
+        ReflectionTestUtils.setField(walletLoader, "timeoutMs", 5000L);
+        walletLoader.start();
+
+        Backpressure backpressure = new Backpressure();
+        ReflectionTestUtils.setField(backpressure, "highWatermark", 1000L);
+        ReflectionTestUtils.setField(backpressure, "lowWatermark", 500L);
+        ReflectionTestUtils.setField(backpressure, "maxLagMs", 60_000L);
+
+        // Кластер выключен: узел владеет всеми кошельками
+        ClusterMembership cluster = new ClusterMembership(null, null, null);
+        cluster.start();
+
+        FlushScheduler flushScheduler = new FlushScheduler();
+        ReflectionTestUtils.setField(flushScheduler, "balancesMaxIntervalMs", 5000L);
+        ReflectionTestUtils.setField(flushScheduler, "operationsMaxIntervalMs", 5000L);
+        ReflectionTestUtils.setField(flushScheduler, "targetLatencyMs", 200L);
+        ReflectionTestUtils.setField(flushScheduler, "decreaseFactor", 0.5);
+        ReflectionTestUtils.setField(flushScheduler, "minIntervalMs", 1L);
+        ReflectionTestUtils.setField(flushScheduler, "balancesInitialBatch", 100);
+        ReflectionTestUtils.setField(flushScheduler, "balancesMinBatch", 10);
+        ReflectionTestUtils.setField(flushScheduler, "balancesMaxBatch", 1000);
+        ReflectionTestUtils.setField(flushScheduler, "balancesStep", 10);
+        ReflectionTestUtils.setField(flushScheduler, "operationsInitialBatch", 100);
+        ReflectionTestUtils.setField(flushScheduler, "operationsMinBatch", 10);
+        ReflectionTestUtils.setField(flushScheduler, "operationsMaxBatch", 1000);
+        ReflectionTestUtils.setField(flushScheduler, "operationsStep", 10);
+        flushScheduler.init();
+
+        balanceCache = new BalanceStore(64, 1, 0);
+        // Потоки записи не запускаются: синхронизацию вызывает тест
+        walletService = new WalletService(walletRepository, mock(WalletOperationRepository.class),
+                new OperationJournal(false, Path.of("unused"), OperationJournal.RECORD_SIZE),
+                mock(JournalRecovery.class), engine, backpressure, new IdempotencyIndex(600_000, 100, 1),
+                Validation.buildDefaultValidatorFactory().getValidator(),
+                new WalletMetrics(new SimpleMeterRegistry()), walletLoader, cluster, flushScheduler, balanceCache);
+    }
+
+    @AfterEach
+    void tearDown() {
+        walletLoader.stop();
+        engine.close();
+    }
+
+    @Test
+    void syncBalancesToDatabase_WalletEvictedBetweenFlushes_ShouldNotWriteIt() {
+        UUID walletId = UUID.randomUUID();
+        deposit(walletId, "10.00");
+        walletService.syncBalancesToDatabase();
+
+        // Записанный кошелёк вытеснен, а поток шарда успел снова поставить его в очередь
+        assertThat(balanceCache.removeIfSynced(walletId)).isTrue();
+        syncQueue().add(walletId);
+        walletService.syncBalancesToDatabase();
+
+        ArgumentCaptor<long[]> balances = ArgumentCaptor.forClass(long[].class);
+        verify(walletRepository, times(1)).upsertBalances(any(), balances.capture(), any());
+        assertThat(balances.getValue()).containsExactly(FixedPoint.toUnits(new BigDecimal("10.00")));
+        assertThat(syncQueue()).isEmpty();
+    }
+
+    @Test
+    void syncBalancesToDatabase_ConflictingWalletEvictedBeforeRebase_ShouldNotRequeueIt() {
+        UUID walletId = UUID.randomUUID();
+        deposit(walletId, "10.00");
+        walletService.syncBalancesToDatabase();
+
+        // Строку изменил другой узел, а записанный кошелёк вытеснен до переноса изменений
+        doAnswer(call -> {
+            balanceCache.removeIfSynced(walletId);
+            return new BalanceUpsertResult(0, 0, Map.of());
+        }).when(walletRepository).upsertBalances(any(), any(), any());
+        syncQueue().add(walletId);
+        walletService.syncBalancesToDatabase();
+
+        assertThat(balanceCache.contains(walletId)).isFalse();
+        assertThat(syncQueue()).isEmpty();
+        walletService.syncBalancesToDatabase();
+        verify(walletRepository, times(2)).upsertBalances(any(), any(), any());
+    }
+
+    private void deposit(UUID walletId, String amount) {
+        walletService.processOperation(WalletOperationRequest.builder()
+                .walletId(walletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal(amount))
+                .build());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<UUID> syncQueue() {
+        return (Set<UUID>) ReflectionTestUtils.getField(walletService, "balanceSyncQueue");
+    }
+}